@@ -1,15 +1,23 @@
 package com.ericsson.common.util.serialization;
 
 import com.fasterxml.jackson.annotation.JsonInclude.Include;
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.MapperFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.dataformat.xml.JacksonXmlModule;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.fasterxml.jackson.module.mrbean.MrBeanModule;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /**
@@ -39,6 +47,14 @@ public enum SerializationUtil {
         JSON_MAPPER.setSerializationInclusion(Include.NON_EMPTY);
     }
 
+    private static final Map<Format, Map<Class<?>, ObjectWriter>> WRITERS = new EnumMap<>(Format.class);
+
+    static {
+        for (Format format : Format.values()) {
+            WRITERS.put(format, new ConcurrentHashMap<>());
+        }
+    }
+
     public static ObjectMapper get(Format format) {
         if (format.isJson()) {
             return JSON_MAPPER;
@@ -46,6 +62,82 @@ public enum SerializationUtil {
         return XML_MAPPER;
     }
 
+    /**
+     * Gets the writer for the specified format and view. Writers are
+     * immutable, so they are built once and shared.
+     *
+     * @param format
+     * @param view
+     * @return the writer
+     */
+    public static ObjectWriter writer(Format format, Class<?> view) {
+        return WRITERS.get(format).computeIfAbsent(view, v -> get(format).writerWithView(v));
+    }
+
+    /**
+     * Serializes the value to a string through the cached writer of the
+     * specified view.
+     *
+     * @param format
+     * @param view
+     * @param value
+     * @return the serialized value
+     * @throws SerializationException
+     */
+    public static String serialize(Format format, Class<?> view, Object value) throws SerializationException {
+        try {
+            return writer(format, view).writeValueAsString(value);
+        } catch (IOException ex) {
+            throw new SerializationException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Serializes the value straight to the specified writer. The writer is
+     * not closed.
+     *
+     * @param format
+     * @param view
+     * @param value
+     * @param out
+     * @throws SerializationException
+     */
+    public static void serialize(Format format, Class<?> view, Object value, Writer out) throws SerializationException {
+        try {
+            write(format, view, value, get(format).getFactory().createGenerator(out));
+        } catch (IOException ex) {
+            throw new SerializationException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Serializes the value straight to the specified stream as UTF-8. The
+     * stream is not closed.
+     *
+     * @param format
+     * @param view
+     * @param value
+     * @param out
+     * @throws SerializationException
+     */
+    public static void serialize(Format format, Class<?> view, Object value, OutputStream out) throws SerializationException {
+        try {
+            write(format, view, value, get(format).getFactory().createGenerator(out, JsonEncoding.UTF8));
+        } catch (IOException ex) {
+            throw new SerializationException(ex.getMessage(), ex);
+        }
+    }
+
+    private static void write(Format format, Class<?> view, Object value, JsonGenerator generator) throws IOException {
+        // The caller owns the target, closing the generator only flushes it
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        try {
+            writer(format, view).writeValue(generator, value);
+        } finally {
+            generator.close();
+        }
+    }
+
     public static <T> T execute(Format format, Serializer<T> function) throws SerializationException {
         try {
             return function.apply(get(format));
@@ -54,6 +146,23 @@ public enum SerializationUtil {
         }
     }
 
+    /**
+     * Serializes the value as a JSON node, i.e. without any view, the same
+     * way as the nodes found by
+     * {@link #serializeAccordingPath(Format, String, String, Object)}.
+     *
+     * @param value
+     * @return JSON of the node
+     * @throws SerializationException
+     */
+    public static String serializeNode(Object value) throws SerializationException {
+        try {
+            return JSON_MAPPER.writer().writeValueAsString(value);
+        } catch (IOException ex) {
+            throw new SerializationException(ex.getMessage(), ex);
+        }
+    }
+
     public static <T> String serializeAccordingPath(Format format, String path, String delimiter, T object) throws SerializationException {
         if (path == null) {
             throw new SerializationException("Path cannot be null");
@@ -64,7 +173,8 @@ public enum SerializationUtil {
             if (pathPiece.isEmpty()) {
                 break;
             }
-            node = node.findPath(pathPiece);
+            JsonNode child = node.get(pathPiece);
+            node = child != null ? child : node.findPath(pathPiece);
             if (node.isMissingNode()) {
                 String pathString = Arrays.stream(split).reduce("", (before, after) -> {
                     if (after.equals(pathPiece)) {
@@ -239,9 +239,15 @@ public class UPnPDeviceAgent implements UPnPEventListener {
                 events.forEach((event, data) -> {
                     if (event.equals("LastChange")) {
                         logger.debug("Received LastChange variables event");
-                        UPnPUtil.parseLastChangeEvent(data).forEach((name, value) -> {
-                            eventTypes.getOrDefault(name, EMPTY).accept(svc.getProperties(), value);
-                        });
+                        GDProperties properties = svc.getProperties();
+                        properties.beginUpdate();
+                        try {
+                            UPnPUtil.parseLastChangeEvent(data).forEach((name, value) -> {
+                                eventTypes.getOrDefault(name, EMPTY).accept(properties, value);
+                            });
+                        } finally {
+                            properties.commitUpdate();
+                        }
                         notifyUpdate(svc.getPath(true) + "/parameter");
                     }
                 });
@@ -34,9 +34,13 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.api;
 
+import com.ericsson.deviceaccess.coap.basedriver.osgi.BlockwiseResponseCache;
+import com.ericsson.deviceaccess.coap.basedriver.osgi.OutgoingMessageHandler;
+import com.ericsson.deviceaccess.coap.basedriver.util.HashedWheelTimer;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageCache;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageTrace;
 import com.ericsson.deviceaccess.coap.basedriver.util.NetUtil;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.InetAddress;
@@ -68,7 +72,6 @@ public class CoAPActivator implements BundleActivator {
     public static ServiceTracker incomingCoAPTracker;
 
     private static final String COAP_ADDRESS = "COAP_ADDRESS";
-    public static BufferedWriter out;
     private BundleContext context;
 
     private CoAPService service;
@@ -102,6 +105,13 @@ public class CoAPActivator implements BundleActivator {
         int discoveryPort = -1;
         InetAddress discovery = null;
         int maximumBlockSzx = 6;
+        boolean channelTransport = false;
+        int nstart = OutgoingMessageHandler.DEFAULT_NSTART;
+        int messageCacheEntries = MessageCache.DEFAULT_MAX_ENTRIES;
+        long messageCacheBytes = MessageCache.DEFAULT_MAX_BYTES;
+        String messageTrace = null;
+        int block2Window = 1;
+        long blockwiseCacheBytes = BlockwiseResponseCache.DEFAULT_MAX_BYTES;
 
         if (is != null) {
             LOGGER.debug("Read properties file");
@@ -204,6 +214,34 @@ public class CoAPActivator implements BundleActivator {
             if (port != null) {
                 discoveryPort = Integer.parseInt(port);
             }
+
+            channelTransport = Boolean.parseBoolean(p.getProperty("CHANNEL_TRANSPORT"));
+
+            String nstartStr = p.getProperty("NSTART");
+            if (nstartStr != null && !nstartStr.isEmpty()) {
+                nstart = Math.max(1, Integer.parseInt(nstartStr));
+            }
+
+            String cacheEntries = p.getProperty("MESSAGE_CACHE_ENTRIES");
+            if (cacheEntries != null && !cacheEntries.isEmpty()) {
+                messageCacheEntries = Integer.parseInt(cacheEntries);
+            }
+            String cacheBytes = p.getProperty("MESSAGE_CACHE_BYTES");
+            if (cacheBytes != null && !cacheBytes.isEmpty()) {
+                messageCacheBytes = Long.parseLong(cacheBytes);
+            }
+
+            messageTrace = p.getProperty("MESSAGE_TRACE");
+
+            String block2WindowStr = p.getProperty("BLOCK2_WINDOW");
+            if (block2WindowStr != null && !block2WindowStr.isEmpty()) {
+                block2Window = Math.max(1, Integer.parseInt(block2WindowStr));
+            }
+
+            String blockwiseCacheBytesStr = p.getProperty("BLOCKWISE_CACHE_BYTES");
+            if (blockwiseCacheBytesStr != null && !blockwiseCacheBytesStr.isEmpty()) {
+                blockwiseCacheBytes = Long.parseLong(blockwiseCacheBytesStr);
+            }
         } else {
             LOGGER.debug("Problem reading properties file, use hard coded values");
             try {
@@ -222,6 +260,11 @@ public class CoAPActivator implements BundleActivator {
 
         LOGGER.info("CoAP driver address: " + address.getHostAddress());
         service = new CoAPService(address, coapPort, maximumBlockSzx);
+        service.setChannelTransport(channelTransport);
+        service.setNStart(nstart);
+        service.setMessageCacheLimits(messageCacheEntries, messageCacheBytes);
+        service.setBlock2Window(block2Window);
+        service.setBlockwiseCacheBytes(blockwiseCacheBytes);
         serviceRegistration = context.registerService(CoAPService.class, service, null);
 
         LOGGER.debug("Service registered");
@@ -232,7 +275,10 @@ public class CoAPActivator implements BundleActivator {
         incomingCoAPTracker = new ServiceTracker(context, IncomingCoAPRequestListener.class, null);
         incomingCoAPTracker.open();
 
-        out = new BufferedWriter(new FileWriter("coapmessaging.log"));
+        if (messageTrace != null && !messageTrace.isEmpty()) {
+            // Binary trace of all messages for interop tests
+            service.startMessageTrace(new File(messageTrace), MessageTrace.DEFAULT_MAX_FILE_SIZE);
+        }
 
         service.init();
         service.startResourceDiscoveryService(discoveryInterval, discovery, discoveryPort);
@@ -247,12 +293,11 @@ public class CoAPActivator implements BundleActivator {
     public void stop(BundleContext context) throws Exception {
         LOGGER.debug("Stop CoAPService");
         service.stopService();
+        HashedWheelTimer.getShared().stop();
+        service.stopMessageTrace();
 
         service = null;
         tracker.close();
-        out.flush();
-        out.close();
-        out = null;
 
         serviceRegistration.unregister();
         this.context = null;
@@ -43,19 +43,25 @@ import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestListener
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
 import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResource;
 import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResourceObserver;
+import com.ericsson.deviceaccess.coap.basedriver.communication.DatagramChannelTransport;
 import com.ericsson.deviceaccess.coap.basedriver.communication.TransportLayerReceiver;
 import com.ericsson.deviceaccess.coap.basedriver.communication.TransportLayerSender;
 import com.ericsson.deviceaccess.coap.basedriver.communication.UDPReceiver;
 import com.ericsson.deviceaccess.coap.basedriver.communication.UDPSender;
+import com.ericsson.deviceaccess.coap.basedriver.osgi.BlockwiseResponseCache;
 import com.ericsson.deviceaccess.coap.basedriver.osgi.CoAPEndpointFactory;
 import com.ericsson.deviceaccess.coap.basedriver.osgi.CoAPMessageHandlerFactory;
 import com.ericsson.deviceaccess.coap.basedriver.osgi.IncomingMessageHandler;
 import com.ericsson.deviceaccess.coap.basedriver.osgi.LinkFormatDirectory;
 import com.ericsson.deviceaccess.coap.basedriver.osgi.LocalCoAPEndpoint;
 import com.ericsson.deviceaccess.coap.basedriver.osgi.OutgoingMessageHandler;
+import com.ericsson.deviceaccess.coap.basedriver.util.HashedWheelTimer;
 import com.ericsson.deviceaccess.coap.basedriver.util.LinkFormatReader;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageCache;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageTrace;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
@@ -65,16 +71,22 @@ import java.net.SocketException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * CoAPService is the access point to the API. A CoAPService can be fetched
  * using a service reference.
+ * <p/>
+ * Resources sent in Block2 blocks are reassembled before the request listener
+ * is called. The listener gets one response with the whole payload and is not
+ * called for the responses carrying the intermediate blocks, unless streaming
+ * is turned on with {@link #setBlockwiseStreaming(boolean)}.
  */
 public class CoAPService {
 
@@ -89,11 +101,19 @@ public class CoAPService {
     private final int coapPort;
     private MulticastSocket multicastSocket;
     private DatagramSocket socket;
+    private DatagramChannel channel;
+    private boolean channelTransport;
+    private int nstart = OutgoingMessageHandler.DEFAULT_NSTART;
+    private int messageCacheEntries = MessageCache.DEFAULT_MAX_ENTRIES;
+    private long messageCacheBytes = MessageCache.DEFAULT_MAX_BYTES;
+    private int block2Window = 1;
+    private boolean blockwiseStreaming;
+    private long blockwiseCacheBytes = BlockwiseResponseCache.DEFAULT_MAX_BYTES;
 
     private final int maximumBlockSzx;
 
     private LocalCoAPEndpoint endpoint;
-    private Timer timer;
+    private HashedWheelTimer.Timeout discoveryTimeout;
 
     private InetAddress resourceDiscoveryAddress;
     private int resourceDiscoveryPort;
@@ -118,6 +138,75 @@ public class CoAPService {
         this.maximumBlockSzx = maximumBlockSzx;
     }
 
+    /**
+     * Selects the transport used for unicast addresses. When enabled the
+     * non-blocking {@link DatagramChannelTransport} is used instead of the
+     * socket based receiver and sender threads. Multicast always uses the
+     * socket based transport. Has to be called before {@link #init()}.
+     *
+     * @param channelTransport true to use the datagram channel transport
+     */
+    public void setChannelTransport(boolean channelTransport) {
+        this.channelTransport = channelTransport;
+    }
+
+    /**
+     * Sets NSTART, the number of confirmable requests that may be outstanding
+     * towards one CoAP server at a time. Has to be called before
+     * {@link #init()}.
+     *
+     * @param nstart number of simultaneous outstanding requests, at least 1
+     */
+    public void setNStart(int nstart) {
+        this.nstart = nstart;
+    }
+
+    /**
+     * Sets the limits of each of the caches used for detecting duplicate
+     * messages and repeating replies. Has to be called before {@link #init()}.
+     *
+     * @param maxEntries maximum number of messages per cache
+     * @param maxBytes maximum encoded size of the messages per cache
+     */
+    public void setMessageCacheLimits(int maxEntries, long maxBytes) {
+        this.messageCacheEntries = maxEntries;
+        this.messageCacheBytes = maxBytes;
+    }
+
+    /**
+     * Sets how many Block2 requests may be in flight for one block-wise
+     * download when the server tells the size of the resource. Has to be
+     * called before {@link #init()}.
+     *
+     * @param block2Window number of block requests in flight, at least 1
+     */
+    public void setBlock2Window(int block2Window) {
+        this.block2Window = block2Window;
+    }
+
+    /**
+     * Sets whether responses sent in Block2 blocks are passed on to the
+     * request listeners block by block as they arrive. By default they are
+     * not: the blocks are collected and the listener is called once, with
+     * the whole payload in the response of the last block. Has to be called
+     * before {@link #init()}.
+     *
+     * @param blockwiseStreaming true to pass on each block as it arrives
+     */
+    public void setBlockwiseStreaming(boolean blockwiseStreaming) {
+        this.blockwiseStreaming = blockwiseStreaming;
+    }
+
+    /**
+     * Sets the byte budget of the cache holding the payloads of responses
+     * sent block-wise. Has to be called before {@link #init()}.
+     *
+     * @param blockwiseCacheBytes byte budget for the cached payloads
+     */
+    public void setBlockwiseCacheBytes(long blockwiseCacheBytes) {
+        this.blockwiseCacheBytes = blockwiseCacheBytes;
+    }
+
     /**
      * Init the UDP sockets
      *
@@ -145,13 +234,12 @@ public class CoAPService {
         // Start the service if the value for the interval is > 0
         if (resourceDiscoveryInterval > 0) {
             directory.setResourceDiscoveryInterval(resourceDiscoveryInterval);
-            timer = new Timer();
             ResourceDiscoveryTask task = new ResourceDiscoveryTask();
             this.resourceDiscoveryAddress = resourceDiscoveryAddress;
             this.resourceDiscoveryPort = resourceDiscoveryPort;
 
             // Schedule tasks to do resource discovery
-            timer.schedule(task, 0, resourceDiscoveryInterval * 1000);
+            discoveryTimeout = HashedWheelTimer.getShared().schedule(task, 0, resourceDiscoveryInterval * 1000);
         } else {
             LOGGER.debug("Resource discovery interval set to 0, do not use resource discovery");
         }
@@ -348,6 +436,33 @@ public class CoAPService {
         return directory.getKnownDevices();
     }
 
+    /**
+     * Starts a binary trace of the messages sent and received, replacing a
+     * trace that is already running. Can be called at any time, see
+     * {@link MessageTrace}.
+     *
+     * @param file trace file
+     * @param maxFileSize size at which the file is moved aside
+     * @throws IOException if the file cannot be opened
+     */
+    public void startMessageTrace(File file, long maxFileSize) throws IOException {
+        MessageTrace.getShared().start(file, maxFileSize);
+    }
+
+    /**
+     * Stops the message trace, if one is running.
+     */
+    public void stopMessageTrace() {
+        MessageTrace.getShared().stop();
+    }
+
+    /**
+     * @return true if messages are being traced
+     */
+    public boolean isMessageTraceEnabled() {
+        return MessageTrace.getShared().isEnabled();
+    }
+
     /**
      * Init needed message handlers for this CoAP service and add then as
      * listeners to transport layer.
@@ -359,6 +474,13 @@ public class CoAPService {
         // incoming/outgoing
         inMsgHandler = factory.getIncomingCoAPMessageHandler();
         outMagHandler = factory.getOutgoingCoAPMessageHandler(transportLayerSender);
+        outMagHandler.setNStart(nstart);
+        for (MessageCache<?> cache : Arrays.asList(
+                inMsgHandler.getIncomingRequests(), inMsgHandler.getIncomingResponses(),
+                outMagHandler.getOutgoingRequests(), outMagHandler.getOutgoingResponses())) {
+            cache.setMaxEntries(messageCacheEntries);
+            cache.setMaxBytes(messageCacheBytes);
+        }
 
         // get the local endpoint (singleton), add outgoing message handler as
         // listener
@@ -367,6 +489,9 @@ public class CoAPService {
         if (maximumBlockSzx != 6) {
             endpoint.setMaxSzx(maximumBlockSzx);
         }
+        endpoint.setBlock2Window(block2Window);
+        endpoint.setBlockwiseStreaming(blockwiseStreaming);
+        endpoint.setBlockwiseCacheBytes(blockwiseCacheBytes);
 
         inMsgHandler.setIncomingCoAPListener(endpoint);
         transportLayerReceiver.addListener(inMsgHandler);
@@ -396,6 +521,24 @@ public class CoAPService {
             } catch (IOException e) {
                 throw new CoAPException(e);
             }
+            // Use non-blocking datagram channel if selected
+        } else if (channelTransport) {
+            try {
+                channel = DatagramChannel.open();
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                if (coapPort != -1 && address != null) {
+                    channel.bind(new InetSocketAddress(address, coapPort));
+                } else if (coapPort != -1) {
+                    channel.bind(new InetSocketAddress(coapPort));
+                } else {
+                    channel.bind(null);
+                }
+                DatagramChannelTransport transport = new DatagramChannelTransport(channel);
+                transportLayerReceiver = transport;
+                transportLayerSender = transport;
+            } catch (IOException e) {
+                throw new CoAPException(e);
+            }
             // Otherwise use normal UDP datagram socket
         } else {
             try {
@@ -454,6 +597,13 @@ public class CoAPService {
         if (multicastSocket != null) {
             multicastSocket.close();
         }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.debug("Couldn't close channel.", e);
+            }
+        }
 
         CoAPEndpointFactory.stopService();
         CoAPMessageHandlerFactory.stopService();
@@ -465,8 +615,8 @@ public class CoAPService {
         transportLayerSender.stopService();
         transportLayerSender = null;
 
-        if (timer != null) {
-            timer.cancel();
+        if (discoveryTimeout != null) {
+            discoveryTimeout.cancel();
         }
         outMagHandler.stopService();
         outMagHandler = null;
@@ -479,7 +629,7 @@ public class CoAPService {
      * This is a private class responsible for sending the resource discovery
      * requests (link format)
      */
-    private class ResourceDiscoveryTask extends TimerTask implements CoAPRequestListener {
+    private class ResourceDiscoveryTask implements Runnable, CoAPRequestListener {
 
         private final String path;
 
@@ -62,7 +62,6 @@ import java.net.URISyntaxException;
 import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -84,7 +83,6 @@ public class CoAPExtBasedriver {
     final private int maximumBlockSzx;
 
     private CoAPExtEndpoint endpoint;
-    private Timer timer;
 
     protected LinkFormatDirectory directory;
 
@@ -453,9 +451,6 @@ public class CoAPExtBasedriver {
         transportLayerSender.stopService();
         transportLayerSender = null;
 
-        if (timer != null) {
-            timer.cancel();
-        }
         outgoingMessageHandler.stopService();
         outgoingMessageHandler = null;
 
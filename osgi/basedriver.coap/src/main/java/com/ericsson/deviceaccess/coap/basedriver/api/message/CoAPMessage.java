@@ -34,23 +34,19 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.api.message;
 
-import com.ericsson.common.util.BitUtil;
 import com.ericsson.common.util.function.FunctionalUtil;
 import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
 import com.ericsson.deviceaccess.coap.basedriver.util.CoAPMessageWriter;
 import com.ericsson.deviceaccess.coap.basedriver.util.CoAPOptionHeaderConverter;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.Consumer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -97,6 +93,7 @@ public abstract class CoAPMessage {
     private int messageId;
 
     private byte[] payload;
+    private ByteBuffer payloadView;
 
     /**
      * CoAP version of the message. In core 07, the version is 1
@@ -115,10 +112,18 @@ public abstract class CoAPMessage {
 
     private InetSocketAddress remoteSocketAddress;
 
+    // Cached key of the exchange, reset when the address or ID changes
+    private volatile ExchangeKey exchangeKey;
+
+    private static final CoAPOptionHeader[] NO_OPTIONS = new CoAPOptionHeader[0];
+
     /**
-     * List of options. Options MUST appear in order of their Option Number.
+     * Options sorted by their Option Number, options with the same number in
+     * the order they were added. Options MUST appear in order of their Option
+     * Number. The array is replaced on every change, so readers can use it
+     * without locking.
      */
-    private Map<CoAPOptionName, List<CoAPOptionHeader>> headers;
+    private volatile CoAPOptionHeader[] headers;
 
     private byte[] token;
 
@@ -148,7 +153,7 @@ public abstract class CoAPMessage {
     public CoAPMessage(CoAPMessageType messageType, CoAPCode methodCode,
             int messageId, byte[] token) {
         this.token = token;
-        this.headers = new ConcurrentHashMap<>();
+        this.headers = NO_OPTIONS;
         this.code = methodCode;
         this.messageType = messageType;
         this.version = VERSION_07;
@@ -207,11 +212,14 @@ public abstract class CoAPMessage {
      * @return option count of this message
      */
     public int getOptionCount() {
-        return (int) headers
-                .values()
-                .stream()
-                .filter(c -> !c.isEmpty())
-                .count();
+        CoAPOptionHeader[] options = headers;
+        int count = 0;
+        for (int i = 0; i < options.length; i++) {
+            if (i == 0 || options[i].getOptionName() != options[i - 1].getOptionName()) {
+                count++;
+            }
+        }
+        return count;
     }
 
     /**
@@ -253,6 +261,7 @@ public abstract class CoAPMessage {
      */
     public void setMessageId(int messageId) {
         this.messageId = messageId;
+        this.exchangeKey = null;
     }
 
     /**
@@ -291,7 +300,7 @@ public abstract class CoAPMessage {
     public synchronized boolean addOptionHeader(CoAPOptionHeader option) {
         boolean ok = okToAddHeader(option);
         if (ok) {
-            get(option).add(option);
+            insert(option);
         }
         return ok;
     }
@@ -314,14 +323,14 @@ public abstract class CoAPMessage {
         // uri-host, uri-port, uri-path & uri-query. thus do not allow these
         // headers to be added if proxy-uri is there
         CoAPOptionName optionName = header.getOptionName();
-        if (!get(CoAPOptionName.PROXY_URI).isEmpty()
+        if (hasOptionHeader(CoAPOptionName.PROXY_URI)
                 && (optionName == CoAPOptionName.URI_HOST
                 || optionName == CoAPOptionName.URI_PATH
                 || optionName == CoAPOptionName.URI_PORT)) {
             LOGGER.info("Proxy-uri option in the message, not possible to add [" + header.getOptionName() + "] option header");
             return false;
         }
-        if (!optionName.isRepeatable() && !get(optionName).isEmpty()) {
+        if (!optionName.isRepeatable() && hasOptionHeader(optionName)) {
             // Cannot add multiple repeatables
             return false;
         }
@@ -344,12 +353,12 @@ public abstract class CoAPMessage {
         // headers first!
         if (optionName == CoAPOptionName.PROXY_URI) {
             LOGGER.info("Proxy-uri in the message, overwrite Uri-host, Uri-port, Uri-path and Uri-query options");
-            headers = headers.keySet().stream()
-                    .filter(k -> k != CoAPOptionName.URI_HOST)
-                    .filter(k -> k != CoAPOptionName.URI_PORT)
-                    .filter(k -> k != CoAPOptionName.URI_PATH)
-                    .filter(k -> k != CoAPOptionName.URI_QUERY)
-                    .collect(Collectors.toMap(Function.identity(), headers::get));
+            headers = Arrays.stream(headers)
+                    .filter(h -> h.getOptionName() != CoAPOptionName.URI_HOST)
+                    .filter(h -> h.getOptionName() != CoAPOptionName.URI_PORT)
+                    .filter(h -> h.getOptionName() != CoAPOptionName.URI_PATH)
+                    .filter(h -> h.getOptionName() != CoAPOptionName.URI_QUERY)
+                    .toArray(CoAPOptionHeader[]::new);
         }
         return true;
     }
@@ -361,16 +370,36 @@ public abstract class CoAPMessage {
      * @return true, if an option header was successfully removed, false
      * otherwise
      */
-    public boolean removeOptionHeader(CoAPOptionHeader option) {
-        return get(option).remove(option);
-    }
-
-    private List<CoAPOptionHeader> get(CoAPOptionHeader option) {
-        return get(option.getOptionName());
+    public synchronized boolean removeOptionHeader(CoAPOptionHeader option) {
+        CoAPOptionHeader[] options = headers;
+        for (int i = 0; i < options.length; i++) {
+            if (options[i].equals(option)) {
+                CoAPOptionHeader[] result = new CoAPOptionHeader[options.length - 1];
+                System.arraycopy(options, 0, result, 0, i);
+                System.arraycopy(options, i + 1, result, i, result.length - i);
+                headers = result;
+                return true;
+            }
+        }
+        return false;
     }
 
-    private List<CoAPOptionHeader> get(CoAPOptionName option) {
-        return headers.computeIfAbsent(option, k -> Collections.synchronizedList(new ArrayList<>()));
+    /**
+     * Inserts the option after the options with the same or smaller option
+     * number.
+     */
+    private void insert(CoAPOptionHeader option) {
+        CoAPOptionHeader[] options = headers;
+        int number = option.getOptionNumber();
+        int index = options.length;
+        while (index > 0 && options[index - 1].getOptionNumber() > number) {
+            index--;
+        }
+        CoAPOptionHeader[] result = new CoAPOptionHeader[options.length + 1];
+        System.arraycopy(options, 0, result, 0, index);
+        result[index] = option;
+        System.arraycopy(options, index, result, index + 1, options.length - index);
+        headers = result;
     }
 
     /**
@@ -380,6 +409,20 @@ public abstract class CoAPMessage {
      */
     public void setPayload(byte[] payload) {
         this.payload = payload;
+        this.payloadView = null;
+    }
+
+    /**
+     * Set the payload for this message as a view to the bytes between the
+     * position and the limit of the given buffer. The bytes are not copied
+     * until {@link #getPayload()} is called, so the buffer must not be
+     * modified while this message is in use.
+     *
+     * @param payload payload view
+     */
+    public void setPayload(ByteBuffer payload) {
+        this.payload = null;
+        this.payloadView = payload;
     }
 
     /**
@@ -388,18 +431,105 @@ public abstract class CoAPMessage {
      * @return payload of this message
      */
     public byte[] getPayload() {
+        if (payload == null && payloadView != null) {
+            payload = bytesOf(payloadView);
+        }
         return this.payload;
     }
 
+    /**
+     * Get the payload of this message as read only buffer without copying it.
+     *
+     * @return payload of this message or null if there is none
+     */
+    public ByteBuffer getPayloadBuffer() {
+        if (payloadView != null) {
+            return payloadView.asReadOnlyBuffer();
+        }
+        return payload == null ? null : ByteBuffer.wrap(payload).asReadOnlyBuffer();
+    }
+
+    /**
+     * Get the length of the payload without copying it.
+     *
+     * @return length of the payload in bytes
+     */
+    public int getPayloadLength() {
+        if (payloadView != null) {
+            return payloadView.remaining();
+        }
+        return payload == null ? 0 : payload.length;
+    }
+
+    /**
+     * Copies the bytes between position and limit of the given buffer without
+     * moving its position. If the view covers a whole heap array, the array is
+     * returned as is.
+     *
+     * @param view view to copy
+     * @return bytes of the view
+     */
+    static byte[] bytesOf(ByteBuffer view) {
+        int length = view.remaining();
+        if (view.hasArray()) {
+            byte[] array = view.array();
+            int offset = view.arrayOffset() + view.position();
+            if (offset == 0 && length == array.length) {
+                return array;
+            }
+            byte[] bytes = new byte[length];
+            System.arraycopy(array, offset, bytes, 0, length);
+            return bytes;
+        }
+        byte[] bytes = new byte[length];
+        view.duplicate().get(bytes);
+        return bytes;
+    }
+
     /**
      * Get the option headers in this message as List
      *
      * @return option headers in this message
      */
     public List<CoAPOptionHeader> getOptionHeaders() {
-        List<CoAPOptionHeader> result = new ArrayList<>();
-        headers.values().stream().forEach(result::addAll);
-        return result;
+        return new ArrayList<>(Arrays.asList(headers));
+    }
+
+    /**
+     * Passes the option headers of this message to the given action in option
+     * number order without copying them.
+     *
+     * @param action action to perform for each option header
+     */
+    public void forEachOptionHeader(Consumer<? super CoAPOptionHeader> action) {
+        for (CoAPOptionHeader header : headers) {
+            action.accept(header);
+        }
+    }
+
+    /**
+     * Returns the first option header with the given name without allocating.
+     *
+     * @param optionName option to be found
+     * @return the option header, or null if there is none
+     */
+    public CoAPOptionHeader getOptionHeader(CoAPOptionName optionName) {
+        for (CoAPOptionHeader header : headers) {
+            if (header.getOptionName() == optionName) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks if this message has an option header with the given name.
+     *
+     * @param optionName option to be found
+     * @return true if there is at least one option header with the name
+     */
+    public boolean hasOptionHeader(CoAPOptionName optionName) {
+        return getOptionHeader(optionName) != null;
     }
 
     /**
@@ -410,7 +540,19 @@ public abstract class CoAPMessage {
      * @return list of options with the given option name.
      */
     public List<CoAPOptionHeader> getOptionHeaders(CoAPOptionName optionName) {
-        return headers.getOrDefault(optionName, Collections.emptyList());
+        CoAPOptionHeader[] options = headers;
+        int from = 0;
+        while (from < options.length && options[from].getOptionName() != optionName) {
+            from++;
+        }
+        int to = from;
+        while (to < options.length && options[to].getOptionName() == optionName) {
+            to++;
+        }
+        if (from == to) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(Arrays.asList(options).subList(from, to));
     }
 
     /**
@@ -418,9 +560,9 @@ public abstract class CoAPMessage {
      *
      * @param headers list of option headers
      */
-    public void setOptionHeaders(List<CoAPOptionHeader> headers) {
-        this.headers.clear();
-        headers.forEach(h -> get(h).add(h));
+    public synchronized void setOptionHeaders(List<CoAPOptionHeader> headers) {
+        this.headers = NO_OPTIONS;
+        headers.forEach(this::insert);
     }
 
     /**
@@ -498,6 +640,7 @@ public abstract class CoAPMessage {
      */
     public void setSocketAddress(InetSocketAddress remoteSocketAddress) {
         this.remoteSocketAddress = remoteSocketAddress;
+        this.exchangeKey = null;
     }
 
     /**
@@ -519,19 +662,29 @@ public abstract class CoAPMessage {
      * address is set yet
      */
     public String getIdentifier() {
-        if (this.remoteSocketAddress == null) {
-            return null;
-        }
+        ExchangeKey key = getExchangeKey();
+        return key == null ? null : key.toString();
+    }
 
-        return this.remoteSocketAddress.getAddress().getCanonicalHostName()
-                + ":"
-                + this.remoteSocketAddress.getPort()
-                + ":"
-                + this.messageId;
+    /**
+     * Get the key of the exchange this message belongs to. The key is made of
+     * the raw remote address, port and message ID, and is used for matching
+     * messages in the message caches.
+     *
+     * @return key of the exchange, or null if no destination address is set
+     * yet
+     */
+    public ExchangeKey getExchangeKey() {
+        ExchangeKey key = exchangeKey;
+        if (key == null && remoteSocketAddress != null) {
+            key = ExchangeKey.of(remoteSocketAddress, messageId);
+            exchangeKey = key;
+        }
+        return key;
     }
 
     public CoAPOptionHeader getUriHostOptionHeader() {
-        return get(CoAPOptionName.URI_HOST).get(0);
+        return getOptionHeader(CoAPOptionName.URI_HOST);
     }
 
     /**
@@ -556,7 +709,7 @@ public abstract class CoAPMessage {
      * @return true if this message contains "observe" option, false otherwise
      */
     public boolean isObserveMessage() {
-        return headers.containsKey(CoAPOptionName.OBSERVE);
+        return hasOptionHeader(CoAPOptionName.OBSERVE);
     }
 
     /**
@@ -569,38 +722,27 @@ public abstract class CoAPMessage {
      * in the request (only 1 allowed)
      */
     public long getMaxAge() throws CoAPException {
-        int maxAge = 60;
-        List<CoAPOptionHeader> maxAgeOption = this.getOptionHeaders(CoAPOptionName.MAX_AGE);
-        // If max-age is in the message, it should be there only once
-        if (maxAgeOption.size() == 1) {
-            byte[] bytes = maxAgeOption.get(0).getValue();
-
-            if (bytes.length < 4) {
-                ByteArrayOutputStream s = new ByteArrayOutputStream();
-
-                int diff = 4 - bytes.length;
-                for (int i = 0; i < diff; i++) {
-                    s.write(0);
+        CoAPOptionHeader maxAgeOption = null;
+        for (CoAPOptionHeader header : headers) {
+            if (header.getOptionName() == CoAPOptionName.MAX_AGE) {
+                // If max-age is in the message, it should be there only once
+                if (maxAgeOption != null) {
+                    throw new CoAPException("Too many max-age options found");
                 }
-
-                try {
-                    s.write(bytes);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-                bytes = s.toByteArray();
-                maxAge = BitUtil.mergeBytesToInt(bytes[0], bytes[1],
-                        bytes[2], bytes[3]);
-            } else {
-                maxAge = BitUtil.mergeBytesToInt(bytes[0], bytes[1],
-                        bytes[2], bytes[3]);
+                maxAgeOption = header;
             }
-        } else if (maxAgeOption.size() > 1) {
-            throw new CoAPException("Too many max-age options found");
         }
-
-        // Make signed int to unsigned int -> becomes long
-        return 0xffffffffL & maxAge;
+        if (maxAgeOption == null) {
+            return 60;
+        }
+        // Unsigned integer of at most 4 bytes
+        ByteBuffer value = maxAgeOption.getValueBuffer();
+        long maxAge = 0;
+        int length = Math.min(value.remaining(), 4);
+        for (int i = value.position(); i < value.position() + length; i++) {
+            maxAge = maxAge << 8 | value.get(i) & 0xFF;
+        }
+        return maxAge;
     }
 
     /**
@@ -662,7 +804,7 @@ public abstract class CoAPMessage {
             });
             // payload
             if (getPayload() != null) {
-                String payloadStr = new String(payload, StandardCharsets.UTF_8);
+                String payloadStr = new String(getPayload(), StandardCharsets.UTF_8);
                 logMessage.append("Payload [").append(payloadStr).append("]\n");
             }
             logMessage.append("*****************************\n");
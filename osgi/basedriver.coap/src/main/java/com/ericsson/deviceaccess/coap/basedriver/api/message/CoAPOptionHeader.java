@@ -34,6 +34,7 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.api.message;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Objects;
 
@@ -100,6 +101,7 @@ public class CoAPOptionHeader implements Comparable<CoAPOptionHeader> {
     private final int length;
 
     private byte[] value;
+    private ByteBuffer view;
 
     /**
      * Constructor
@@ -117,6 +119,20 @@ public class CoAPOptionHeader implements Comparable<CoAPOptionHeader> {
         this.value = value;
     }
 
+    /**
+     * Constructor taking the value as a view to the bytes between the position
+     * and the limit of the given buffer. The bytes are copied only if
+     * {@link #getValue()} is called.
+     *
+     * @param name name of the option
+     * @param value view of the value of the option
+     */
+    public CoAPOptionHeader(CoAPOptionName name, ByteBuffer value) {
+        this.optionName = name;
+        this.length = value.remaining();
+        this.view = value;
+    }
+
     /**
      * Constructor
      *
@@ -182,11 +198,27 @@ public class CoAPOptionHeader implements Comparable<CoAPOptionHeader> {
      * @return value of the option in bytes
      */
     public byte[] getValue() {
+        if (value == null && view != null) {
+            value = CoAPMessage.bytesOf(view);
+        }
         return value;
     }
 
+    /**
+     * Get the value of the option as read only buffer without copying it.
+     *
+     * @return value of the option or null if there is none
+     */
+    public ByteBuffer getValueBuffer() {
+        if (view != null) {
+            return view.asReadOnlyBuffer();
+        }
+        return value == null ? null : ByteBuffer.wrap(value).asReadOnlyBuffer();
+    }
+
     public void setValue(byte[] value) {
         this.value = value;
+        this.view = null;
     }
 
     /**
@@ -204,7 +236,7 @@ public class CoAPOptionHeader implements Comparable<CoAPOptionHeader> {
     public int hashCode() {
         int hash = 3;
         hash = 59 * hash + Objects.hashCode(optionName);
-        hash = 59 * hash + Arrays.hashCode(value);
+        hash = 59 * hash + Arrays.hashCode(getValue());
         return hash;
     }
 
@@ -217,6 +249,6 @@ public class CoAPOptionHeader implements Comparable<CoAPOptionHeader> {
         if (optionName != other.optionName) {
             return false;
         }
-        return Arrays.equals(value, other.value);
+        return Arrays.equals(getValue(), other.getValue());
     }
 }
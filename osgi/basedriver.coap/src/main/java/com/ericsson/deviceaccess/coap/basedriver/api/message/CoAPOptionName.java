@@ -64,6 +64,8 @@ public enum CoAPOptionName {
     LOCATION_QUERY(20, "Location-Query", 0, 255, true),
     BLOCK2(23, "Block2", 0, 3),
     BLOCK1(27, "Block1", 0, 3),
+    // Added from RFC 7959
+    SIZE2(28, "Size2", 0, 4),
     PROXY_URI(35, "Proxy-Uri", 1, 1034),
     PROXY_SCHEME(39, "Proxy-Scheme", 1, 255),
     SIZE1(60, "Size1", 0, 4);
@@ -0,0 +1,130 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.api.message;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+
+/**
+ * Key of a message exchange: the remote address, port and the message ID.
+ * Used for matching duplicates, acknowledgements and resets to messages.
+ * IPv4 endpoints are packed into a single long, other addresses keep their
+ * raw bytes. No name resolution is done.
+ */
+public final class ExchangeKey {
+
+    private final long packed;
+    private final byte[] address;
+    private final int hash;
+
+    private ExchangeKey(long packed, byte[] address) {
+        this.packed = packed;
+        this.address = address;
+        this.hash = 31 * Long.hashCode(packed) + Arrays.hashCode(address);
+    }
+
+    /**
+     * Creates a key for the given endpoint and message ID.
+     *
+     * @param socketAddress remote endpoint
+     * @param messageId message ID (16 bits)
+     * @return key of the exchange
+     */
+    public static ExchangeKey of(InetSocketAddress socketAddress, int messageId) {
+        InetAddress inetAddress = socketAddress.getAddress();
+        byte[] raw = inetAddress == null ? new byte[0] : inetAddress.getAddress();
+        long portAndId = (long) (socketAddress.getPort() & 0xFFFF) << 16 | messageId & 0xFFFF;
+        if (raw.length == 4) {
+            long ipv4 = (raw[0] & 0xFFL) << 24 | (raw[1] & 0xFFL) << 16 | (raw[2] & 0xFFL) << 8 | raw[3] & 0xFFL;
+            return new ExchangeKey(ipv4 << 32 | portAndId, null);
+        }
+        return new ExchangeKey(portAndId, raw);
+    }
+
+    /**
+     * Port of the remote endpoint.
+     *
+     * @return port
+     */
+    public int getPort() {
+        return (int) (packed >>> 16) & 0xFFFF;
+    }
+
+    /**
+     * Message ID of the exchange.
+     *
+     * @return message ID
+     */
+    public int getMessageId() {
+        return (int) packed & 0xFFFF;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final ExchangeKey other = (ExchangeKey) obj;
+        return packed == other.packed && Arrays.equals(address, other.address);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        if (address == null) {
+            sb.append(packed >>> 56).append('.')
+                    .append(packed >>> 48 & 0xFF).append('.')
+                    .append(packed >>> 40 & 0xFF).append('.')
+                    .append(packed >>> 32 & 0xFF);
+        } else {
+            for (int i = 0; i < address.length; i += 2) {
+                if (i > 0) {
+                    sb.append(':');
+                }
+                sb.append(Integer.toHexString((address[i] & 0xFF) << 8 | address[i + 1] & 0xFF));
+            }
+        }
+        return sb.append(':').append(getPort()).append(':').append(getMessageId()).toString();
+    }
+}
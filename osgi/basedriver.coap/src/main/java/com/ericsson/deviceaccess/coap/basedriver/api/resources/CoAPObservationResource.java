@@ -84,7 +84,7 @@ public class CoAPObservationResource extends CoAPResource {
      * @return boolean value indicating whether an observation with the
      * parameter values is fresh or not
      */
-    public boolean isFresh(int presentObserve, Date date) {
+    public synchronized boolean isFresh(int presentObserve, Date date) {
         // draft-ietf-core-observe-03
         if (latestTimestamp == null || latestValidObserve == 0) {
             LOGGER.debug("Initial observe notification");
@@ -95,9 +95,10 @@ public class CoAPObservationResource extends CoAPResource {
 
         // compare the values given as parameters to the ones of this instance
         // based on the formula in draft-ietf-core-observe-03
-        double val1 = (latestValidObserve - presentObserve) % Math.pow(2, 16);
+        // modulo, not remainder, so that a newer value is not taken as older
+        int val1 = Math.floorMod(latestValidObserve - presentObserve, 1 << 16);
 
-        boolean condition1 = val1 < Math.pow(2, 15);
+        boolean condition1 = val1 < 1 << 15;
         boolean condition2 = date.getTime() < (latestTimestamp.getTime() + Math.pow(2, 14));
 
         if (condition1 && condition2) {
@@ -38,9 +38,9 @@ import com.ericsson.common.util.StringUtil;
 import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
 import java.net.URI;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * This class represents a CoAPResource on a CoAP endpoint, which is cached on
@@ -148,7 +148,7 @@ public class CoAPResource {
         this.interfaceDescription = "";
         this.resourceType = "";
         this.maxAge = 2; // default value by core 08
-        this.observers = new LinkedList<>();
+        this.observers = new CopyOnWriteArrayList<>();
         this.title = "";
         this.titleAsterisk = "";
         this.relationType = "";
@@ -0,0 +1,153 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.communication;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of reusable datagram buffers. Buffers are allocated lazily up to the
+ * capacity of the pool; when the pool is empty a fresh buffer is handed out
+ * and dropped again on release if the pool is already full.
+ */
+public final class BufferPool {
+
+    private final BlockingQueue<Buffer> free;
+    private final int bufferSize;
+    private final boolean direct;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity maximum number of idle buffers kept in the pool
+     * @param bufferSize size of a single buffer in bytes
+     * @param direct whether to allocate direct buffers
+     */
+    public BufferPool(int capacity, int bufferSize, boolean direct) {
+        if (capacity <= 0 || bufferSize <= 0) {
+            throw new IllegalArgumentException("Capacity and buffer size must be positive");
+        }
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool.
+     *
+     * @return buffer ready to be written into
+     */
+    public Buffer acquire() {
+        Buffer buffer = free.poll();
+        if (buffer == null) {
+            buffer = new Buffer(direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize));
+        }
+        return buffer;
+    }
+
+    /**
+     * Takes a buffer that can hold at least the given amount of bytes. Sizes
+     * above the pool buffer size get a one-off heap buffer which is not
+     * pooled on release.
+     *
+     * @param size required size in bytes
+     * @return buffer ready to be written into
+     */
+    public Buffer acquire(int size) {
+        if (size > bufferSize) {
+            return new Buffer(ByteBuffer.allocate(size));
+        }
+        return acquire();
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     *
+     * @param buffer buffer to return
+     */
+    public void release(Buffer buffer) {
+        buffer.data.clear();
+        buffer.address = null;
+        if (buffer.data.capacity() == bufferSize) {
+            free.offer(buffer);
+        }
+    }
+
+    /**
+     * Number of idle buffers in the pool.
+     *
+     * @return idle buffer count
+     */
+    public int available() {
+        return free.size();
+    }
+
+    /**
+     * Size of the buffers in this pool.
+     *
+     * @return buffer size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Pooled datagram: the content and the remote address it came from or is
+     * going to.
+     */
+    public static final class Buffer {
+
+        private final ByteBuffer data;
+        private SocketAddress address;
+
+        private Buffer(ByteBuffer data) {
+            this.data = data;
+        }
+
+        public ByteBuffer getData() {
+            return data;
+        }
+
+        public SocketAddress getAddress() {
+            return address;
+        }
+
+        public void setAddress(SocketAddress address) {
+            this.address = address;
+        }
+    }
+}
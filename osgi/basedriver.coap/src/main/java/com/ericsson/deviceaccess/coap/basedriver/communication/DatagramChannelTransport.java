@@ -0,0 +1,349 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.communication;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat;
+import com.ericsson.deviceaccess.coap.basedriver.osgi.IncomingMessageListener;
+import com.ericsson.deviceaccess.coap.basedriver.util.CoAPMessageWriter;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Non-blocking UDP transport built on a {@link DatagramChannel} and a
+ * {@link Selector}. The selector thread only moves bytes between the channel
+ * and pooled buffers, so the socket is drained at line rate; decoding and
+ * listener callbacks happen on a separate dispatch thread.
+ *
+ * The {@link DatagramPacket} handed to the listeners is reused between
+ * datagrams and is only valid for the duration of the callback.
+ *
+ * A datagram that cannot be sent, e.g. because its destination is
+ * unreachable or unresolved, is dropped and counted, see
+ * {@link #getFailedSends()}.
+ */
+public class DatagramChannelTransport implements TransportLayerReceiver, TransportLayerSender {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DatagramChannelTransport.class);
+    private static final int BUFFER_SIZE = UDPConstants.MAX_DATAGRAM_SIZE + 1;
+    private static final int POOL_SIZE = 256;
+    private static final int QUEUE_SIZE = 1024;
+
+    private final DatagramChannel channel;
+    private final Selector selector;
+    private final SelectionKey key;
+    private final BufferPool pool;
+    private final BlockingQueue<BufferPool.Buffer> inbound;
+    private final Queue<BufferPool.Buffer> outbound = new ConcurrentLinkedQueue<>();
+    private final List<IncomingMessageListener> coapListeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final AtomicBoolean stopped = new AtomicBoolean(false);
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failedSends = new AtomicLong();
+
+    private Thread selectorThread;
+    private Thread dispatchThread;
+
+    /**
+     * Constructor. The channel is switched to non-blocking mode and owned by
+     * this transport from now on.
+     *
+     * @param channel bound datagram channel
+     * @throws IOException if the channel cannot be registered with a selector
+     */
+    public DatagramChannelTransport(DatagramChannel channel) throws IOException {
+        this(channel, POOL_SIZE, QUEUE_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param channel bound datagram channel
+     * @param poolSize number of idle buffers kept for reuse
+     * @param queueSize number of received datagrams waiting for dispatch
+     * before new ones are dropped
+     * @throws IOException if the channel cannot be registered with a selector
+     */
+    public DatagramChannelTransport(DatagramChannel channel, int poolSize, int queueSize) throws IOException {
+        this.channel = channel;
+        this.pool = new BufferPool(poolSize, BUFFER_SIZE, true);
+        this.inbound = new ArrayBlockingQueue<>(queueSize);
+        channel.configureBlocking(false);
+        this.selector = Selector.open();
+        this.key = channel.register(selector, SelectionKey.OP_READ);
+    }
+
+    @Override
+    public void start() {
+        if (!running.compareAndSet(false, true)) {
+            return;
+        }
+        selectorThread = new Thread(this::select, "coap-channel-selector");
+        dispatchThread = new Thread(this::dispatch, "coap-channel-dispatch");
+        selectorThread.setDaemon(true);
+        dispatchThread.setDaemon(true);
+        selectorThread.start();
+        dispatchThread.start();
+    }
+
+    /**
+     * Stops the threads and closes the channel. Waits for the threads to end,
+     * unless called from one of them.
+     */
+    @Override
+    public void stopService() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        running.set(false);
+        coapListeners.clear();
+        if (selectorThread == null) {
+            close();
+            return;
+        }
+        selector.wakeup();
+        dispatchThread.interrupt();
+        boolean interrupted = false;
+        for (Thread thread : new Thread[]{selectorThread, dispatchThread}) {
+            while (thread != Thread.currentThread() && thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        inbound.clear();
+    }
+
+    @Override
+    public void addListener(IncomingMessageListener listener) {
+        coapListeners.add(listener);
+    }
+
+    @Override
+    public boolean removeListener(IncomingMessageListener listener) {
+        return coapListeners.remove(listener);
+    }
+
+    /**
+     * Encodes the message into a pooled buffer and queues it for the selector
+     * thread.
+     *
+     * @param message message to send
+     */
+    @Override
+    public void sendMessage(CoAPMessage message) {
+        CoAPMessageWriter writer = new CoAPMessageWriter(message);
+        BufferPool.Buffer buffer = pool.acquire();
+        try {
+            try {
+                writer.encode(buffer.getData());
+            } catch (BufferOverflowException e) {
+                // Larger than a pooled buffer, measure it for a one-off buffer
+                pool.release(buffer);
+                buffer = pool.acquire(writer.encodedLength());
+                writer.encode(buffer.getData());
+            }
+        } catch (CoAPMessageFormat.IncorrectMessageException e) {
+            pool.release(buffer);
+            LOGGER.debug("Encoding failed.", e);
+            return;
+        }
+        buffer.getData().flip();
+        buffer.setAddress(message.getSocketAddress());
+        outbound.add(buffer);
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Number of received datagrams dropped because the dispatch queue was
+     * full.
+     *
+     * @return dropped datagram count
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Number of datagrams dropped because sending them failed.
+     *
+     * @return failed send count
+     */
+    public long getFailedSends() {
+        return failedSends.get();
+    }
+
+    private void select() {
+        try {
+            while (running.get()) {
+                selector.select();
+                wakeupPending.set(false);
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey k = selected.next();
+                    selected.remove();
+                    if (k.isValid() && k.isReadable()) {
+                        read();
+                    }
+                }
+                write();
+            }
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            LOGGER.debug("Channel closed.", e);
+        } catch (IOException e) {
+            LOGGER.warn("Channel transport failed.", e);
+        } finally {
+            close();
+        }
+    }
+
+    private void read() throws IOException {
+        while (true) {
+            BufferPool.Buffer buffer = pool.acquire();
+            SocketAddress source = channel.receive(buffer.getData());
+            if (source == null) {
+                pool.release(buffer);
+                return;
+            }
+            buffer.getData().flip();
+            buffer.setAddress(source);
+            if (!inbound.offer(buffer)) {
+                dropped.incrementAndGet();
+                pool.release(buffer);
+            }
+        }
+    }
+
+    private void write() throws IOException {
+        BufferPool.Buffer buffer;
+        while ((buffer = outbound.peek()) != null) {
+            if (buffer.getAddress() != null && !send(buffer)) {
+                // Socket send buffer is full, continue when writable
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+            outbound.poll();
+            pool.release(buffer);
+        }
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Sends one datagram. A failure that only concerns this datagram, like an
+     * unreachable destination, drops it.
+     *
+     * @return false if the socket send buffer is full
+     * @throws ClosedChannelException if the channel has been closed
+     */
+    private boolean send(BufferPool.Buffer buffer) throws ClosedChannelException {
+        try {
+            return channel.send(buffer.getData(), buffer.getAddress()) != 0;
+        } catch (ClosedChannelException e) {
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            failedSends.incrementAndGet();
+            LOGGER.warn("Sending datagram to " + buffer.getAddress() + " failed.", e);
+            return true;
+        }
+    }
+
+    private void dispatch() {
+        byte[] bytes = new byte[BUFFER_SIZE];
+        DatagramPacket datagram = new DatagramPacket(bytes, bytes.length);
+        while (!stopped.get()) {
+            BufferPool.Buffer buffer;
+            try {
+                buffer = inbound.take();
+            } catch (InterruptedException ex) {
+                // interrupted by stopService()
+                return;
+            }
+            ByteBuffer data = buffer.getData();
+            int length = data.remaining();
+            data.get(bytes, 0, length);
+            datagram.setData(bytes, 0, length);
+            datagram.setSocketAddress(buffer.getAddress());
+            pool.release(buffer);
+            for (IncomingMessageListener listener : coapListeners) {
+                try {
+                    listener.messageReceived(datagram);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Listener failed to handle datagram.", e);
+                }
+            }
+        }
+    }
+
+    private void close() {
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.debug("Couldn't close selector.", e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("Couldn't close channel.", e);
+        }
+        outbound.clear();
+    }
+}
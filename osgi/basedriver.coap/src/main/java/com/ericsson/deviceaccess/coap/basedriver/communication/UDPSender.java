@@ -35,11 +35,15 @@
 package com.ericsson.deviceaccess.coap.basedriver.communication;
 
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat;
+import com.ericsson.deviceaccess.coap.basedriver.util.CoAPMessageWriter;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.MulticastSocket;
 import java.net.SocketAddress;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -64,6 +68,10 @@ public class UDPSender implements TransportLayerSender, Runnable {
 
     private Thread thread;
 
+    // Send buffer reused by the sender thread for every message that fits
+    private final ByteBuffer sendBuffer = ByteBuffer.allocate(UDPConstants.MAX_DATAGRAM_SIZE);
+    private final DatagramPacket sendPacket = new DatagramPacket(sendBuffer.array(), 0);
+
     /**
      * Constructor with multicast socket used for sending
      *
@@ -103,7 +111,11 @@ public class UDPSender implements TransportLayerSender, Runnable {
             if (task == POISON) {
                 break;
             }
-            task.run();
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("Sending message failed.", e);
+            }
         }
 
         if (multicastSocket != null) {
@@ -130,7 +142,7 @@ public class UDPSender implements TransportLayerSender, Runnable {
      */
     public void send(byte[] content, int contentLength, SocketAddress socketAddress) {
         try {
-            DatagramPacket outgoingDatagram = new DatagramPacket(content, content.length, socketAddress);
+            DatagramPacket outgoingDatagram = new DatagramPacket(content, contentLength, socketAddress);
             if (socket != null) {
                 socket.send(outgoingDatagram);
             } else {
@@ -160,8 +172,28 @@ public class UDPSender implements TransportLayerSender, Runnable {
 
         @Override
         public void run() {
-            byte[] encoded = message.encoded();
-            send(encoded, encoded.length, message.getSocketAddress());
+            CoAPMessageWriter writer = new CoAPMessageWriter(message);
+            try {
+                sendBuffer.clear();
+                try {
+                    writer.encode(sendBuffer);
+                } catch (BufferOverflowException e) {
+                    byte[] encoded = writer.encode();
+                    send(encoded, encoded.length, message.getSocketAddress());
+                    return;
+                }
+                sendPacket.setData(sendBuffer.array(), 0, sendBuffer.position());
+                sendPacket.setSocketAddress(message.getSocketAddress());
+                if (socket != null) {
+                    socket.send(sendPacket);
+                } else {
+                    multicastSocket.send(sendPacket);
+                }
+            } catch (CoAPMessageFormat.IncorrectMessageException e) {
+                LOGGER.debug("Encoding failed.", e);
+            } catch (IOException e) {
+                LOGGER.warn("Couldn't send content.", e);
+            }
         }
     }
 }
@@ -34,25 +34,45 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.osgi;
 
-import com.ericsson.common.util.function.FunctionalUtil;
 import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponseCode;
+import com.ericsson.deviceaccess.coap.basedriver.util.HashedWheelTimer;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Collectors;
 
+/**
+ * Cache of the full payloads of responses sent block-wise, so that the
+ * following blocks can be served without asking the resource again.
+ * <p/>
+ * The payloads are kept within a byte budget. When a new payload would
+ * exceed it, the least recently used sessions are evicted. Refreshing a
+ * session only updates its expiry time, and one periodic task on the shared
+ * timer removes the expired sessions, so lookups and refreshes take no locks.
+ */
 public class BlockwiseResponseCache {
 
+    /**
+     * Default byte budget for the cached payloads.
+     */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    // Rough size of a session apart from its payload
+    private static final int SESSION_OVERHEAD = 256;
+
     private static List<String> getQueryStrings(CoAPRequest request) {
         return request
                 .getOptionHeaders(CoAPOptionName.URI_QUERY)
@@ -65,22 +85,89 @@ public class BlockwiseResponseCache {
 
     final private Map<SessionKey, SessionData> cache = new ConcurrentHashMap<>();
     final private long cacheTime;
-    final private Timer timer;
+    final private HashedWheelTimer timer;
+    final private AtomicLong bytes = new AtomicLong();
+    final private AtomicLong evictions = new AtomicLong();
+    final private AtomicBoolean sweepScheduled = new AtomicBoolean();
+    final private ReentrantLock evictionLock = new ReentrantLock();
+    private volatile long maxBytes;
+    private volatile HashedWheelTimer.Timeout sweepTimeout;
 
     public BlockwiseResponseCache(long cacheTime) {
+        this(cacheTime, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param cacheTime time in milliseconds a session is kept after it was
+     * last used
+     * @param maxBytes byte budget for the cached payloads
+     */
+    public BlockwiseResponseCache(long cacheTime, long maxBytes) {
         this.cacheTime = cacheTime;
-        this.timer = new Timer();
+        this.maxBytes = maxBytes;
+        this.timer = HashedWheelTimer.getShared();
     }
 
     public void cleanup() {
-        cache.values().forEach(session -> session.stopTimer());
+        HashedWheelTimer.Timeout scheduled = sweepTimeout;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        sweepScheduled.set(false);
         cache.clear();
+        bytes.set(0);
+    }
+
+    /**
+     * Sets the byte budget. Takes effect when the next payload is cached.
+     *
+     * @param maxBytes byte budget for the cached payloads
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return estimated memory used by the cached sessions
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return number of cached sessions
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * @return number of sessions evicted to stay within the byte budget
+     */
+    public long getEvictions() {
+        return evictions.get();
     }
 
     public void put(InetSocketAddress clientAddress, URI resourceUri, List queryHeaders, byte[] payload, CoAPResponseCode responseCode) {
         SessionKey key = new SessionKey(clientAddress, resourceUri, queryHeaders);
         SessionData data = new SessionData(key, payload, responseCode);
-        FunctionalUtil.putAndClean(cache, key, data, v -> v.stopTimer());
+        if (data.size > maxBytes) {
+            // would evict everything else and still not fit
+            remove(clientAddress, resourceUri, queryHeaders);
+            return;
+        }
+        SessionData previous = cache.put(key, data);
+        bytes.addAndGet(previous == null ? data.size : data.size - previous.size);
+        if (bytes.get() > maxBytes) {
+            evict(data);
+        }
+        scheduleSweep();
     }
 
     public void put(CoAPRequest request, CoAPResponse response) throws CoAPException {
@@ -88,7 +175,13 @@ public class BlockwiseResponseCache {
     }
 
     public SessionData get(InetSocketAddress clientAddress, URI resourceUri, List queryHeaders) {
-        return cache.get(new SessionKey(clientAddress, resourceUri, queryHeaders));
+        SessionKey key = new SessionKey(clientAddress, resourceUri, queryHeaders);
+        SessionData data = cache.get(key);
+        if (data != null && data.isExpired(System.currentTimeMillis())) {
+            removeSession(key, data);
+            return null;
+        }
+        return data;
     }
 
     public SessionData get(CoAPRequest request) throws CoAPException {
@@ -97,7 +190,10 @@ public class BlockwiseResponseCache {
 
     public void remove(InetSocketAddress clientAddress, URI resourceUri, List queryHeaders) {
         SessionKey key = new SessionKey(clientAddress, resourceUri, queryHeaders);
-        FunctionalUtil.putAndClean(cache, key, null, v -> v.stopTimer());
+        SessionData data = cache.remove(key);
+        if (data != null) {
+            bytes.addAndGet(-data.size);
+        }
     }
 
     public void remove(CoAPRequest request) throws CoAPException {
@@ -107,7 +203,7 @@ public class BlockwiseResponseCache {
     public void updateTimer(InetSocketAddress clientAddress, URI resourceUri, List queryHeaders) {
         SessionData data = get(clientAddress, resourceUri, queryHeaders);
         if (data != null) {
-            data.startTimer();
+            data.refresh();
         }
     }
 
@@ -115,6 +211,68 @@ public class BlockwiseResponseCache {
         this.updateTimer(request.getSocketAddress(), request.getUriFromRequest(), getQueryStrings(request));
     }
 
+    private boolean removeSession(SessionKey key, SessionData data) {
+        if (cache.remove(key, data)) {
+            bytes.addAndGet(-data.size);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evicts the least recently used sessions until the cache is within its
+     * budget again. Only one thread evicts at a time; the others go on, so the
+     * budget may be exceeded briefly by the payloads being added.
+     *
+     * @param keep session just added, evicted last
+     */
+    private void evict(SessionData keep) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            // Sort by a snapshot of the expiry times, which may change
+            // while sorting
+            List<Map.Entry<Long, SessionData>> sessions = new ArrayList<>();
+            cache.values().forEach(data -> sessions.add(new SimpleImmutableEntry<>(data.expiresAt, data)));
+            sessions.sort(Map.Entry.comparingByKey());
+            for (Map.Entry<Long, SessionData> session : sessions) {
+                if (bytes.get() <= maxBytes) {
+                    break;
+                }
+                SessionData data = session.getValue();
+                if (data != keep && removeSession(data.key, data)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void scheduleSweep() {
+        if (sweepScheduled.compareAndSet(false, true)) {
+            sweepTimeout = timer.schedule(this::sweep, Math.max(cacheTime / 2, 1));
+        }
+    }
+
+    /**
+     * Removes the expired sessions, and runs again later while there are
+     * sessions left.
+     */
+    private void sweep() {
+        sweepScheduled.set(false);
+        long now = System.currentTimeMillis();
+        cache.forEach((key, data) -> {
+            if (data.isExpired(now)) {
+                removeSession(key, data);
+            }
+        });
+        if (!cache.isEmpty()) {
+            scheduleSweep();
+        }
+    }
+
     public class SessionKey {
 
         final private InetSocketAddress clientAddress;
@@ -166,12 +324,15 @@ public class BlockwiseResponseCache {
         final private SessionKey key;
         final private byte[] payload;
         final private CoAPResponseCode responseCode;
-        private TimerTask timerTask = null;
+        final private long size;
+        private volatile long expiresAt;
 
         private SessionData(SessionKey key, byte[] payload, CoAPResponseCode responseCode) {
             this.key = key;
             this.payload = payload;
             this.responseCode = responseCode;
+            this.size = (payload == null ? 0 : payload.length) + SESSION_OVERHEAD;
+            refresh();
         }
 
         public SessionKey getSessionKey() {
@@ -187,25 +348,16 @@ public class BlockwiseResponseCache {
             return responseCode;
         }
 
-        public void startTimer() {
-            stopTimer();
-            synchronized (cache) {
-                if (timerTask == null) {
-                    timerTask = FunctionalUtil.timerTask(() -> {
-                        cache.remove(key);
-                    });
-                    timer.schedule(timerTask, cacheTime);
-                }
-            }
+        /**
+         * Keeps the session for the cache time from now on, and marks it as
+         * the most recently used.
+         */
+        public void refresh() {
+            expiresAt = System.currentTimeMillis() + cacheTime;
         }
 
-        public void stopTimer() {
-            synchronized (cache) {
-                if (timerTask != null) {
-                    timerTask.cancel();
-                    timerTask = null;
-                }
-            }
+        private boolean isExpired(long now) {
+            return expiresAt <= now;
         }
     }
 }
@@ -34,21 +34,33 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.osgi;
 
+import com.ericsson.common.util.BitUtil;
 import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
-import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionHeader;
 import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName.BLOCK1;
 import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName.BLOCK2;
+import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName.SIZE2;
 import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName.URI_HOST;
 import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName.URI_PATH;
 import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName.URI_PORT;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestCode;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestListener;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
 import com.ericsson.deviceaccess.coap.basedriver.util.CoAPUtil;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageCache;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * This class takes care of handling blockwise transfers identified by Block1
@@ -58,12 +70,39 @@ import java.util.Map;
  *
  * Note that blockwise message transfers towards observable resources do not
  * work at the moment.
+ * <p/>
+ * Received Block2 payloads are collected into one buffer per transfer, sized
+ * from the Size2 option when the server sends one, so reassembly is linear in
+ * the size of the resource. In streaming mode the blocks are not collected,
+ * but each block is passed on as it arrives.
+ * <p/>
+ * When Size2 is known, several blocks can be requested at once, see
+ * {@link #setBlock2Window(int)}. The blocks are then written to their place
+ * in the buffer in whatever order they arrive.
+ * <p/>
+ * A block whose request reaches the maximum number of retransmissions is
+ * requested again, up to {@link #MAX_BLOCK_RETRIES} times per transfer, after
+ * which the transfer fails and the listener of the original request is told
+ * that the maximum number of retransmissions was reached.
  */
 public class BlockwiseTransferHandler {
 
-    private final Map<String, CoAPMessage> blockwiseMessages;
-    private final Map<String, CoAPRequest> ongoingBlockwiseRequests;
+    private static final Logger LOGGER = LoggerFactory.getLogger(BlockwiseTransferHandler.class);
+
+    // Upper limit for a buffer allocated up front from Size2
+    private static final int MAX_PREALLOCATED_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * How many times the blocks of one transfer are requested again after
+     * their requests failed, before the whole transfer fails.
+     */
+    public static final int MAX_BLOCK_RETRIES = 3;
+
+    private final Map<ByteBuffer, Block2Transfer> blockwiseMessages;
+    private final Map<ByteBuffer, CoAPRequest> ongoingBlockwiseRequests;
     private final LocalCoAPEndpoint endpoint;
+    private volatile boolean streaming;
+    private volatile int block2Window = 1;
 
     // Max block size from draft-ietf-core-blao
     // private static int maxBlockSize = 1024;
@@ -76,8 +115,8 @@ public class BlockwiseTransferHandler {
      * @param endpoint endpoint sending the messages
      */
     public BlockwiseTransferHandler(LocalCoAPEndpoint endpoint) {
-        this.blockwiseMessages = new HashMap<>();
-        this.ongoingBlockwiseRequests = new HashMap<>();
+        this.blockwiseMessages = new ConcurrentHashMap<>();
+        this.ongoingBlockwiseRequests = new ConcurrentHashMap<>();
         this.endpoint = endpoint;
         this.maxSzx = 6;
         this.maxBlockSize = 1024; // blockwise transfer draft 07
@@ -94,6 +133,39 @@ public class BlockwiseTransferHandler {
         this.maxBlockSize = CoAPUtil.getBlockSize(maxSzx).intValue();
     }
 
+    /**
+     * Sets whether Block2 responses are passed on block by block instead of
+     * once with the whole payload. When not streaming, which is the default,
+     * the responses carrying the intermediate blocks are not passed on to the
+     * listeners at all, only the last one is, with the whole payload.
+     *
+     * @param streaming true to pass on each block as it arrives
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Sets how many Block2 requests may be in flight for one transfer. A
+     * window bigger than 1 is used when the server tells the size of the
+     * resource with Size2 in the first block and the blocks are collected, not
+     * streamed. The requests still go through the request queue of the
+     * server endpoint, so NSTART limits how many are outstanding at a time.
+     *
+     * @param window number of block requests in flight, at least 1
+     */
+    public void setBlock2Window(int window) {
+        this.block2Window = Math.max(1, window);
+    }
+
+    public int getBlock2Window() {
+        return block2Window;
+    }
+
     /**
      * This method is used when requests are sent blockwise. If the size of the
      * request is > allowed block size defined in the local CoAP endpoint, this
@@ -106,7 +178,7 @@ public class BlockwiseTransferHandler {
      * @throws CoAPException
      */
     public CoAPRequest createBlockwiseRequest(CoAPRequest request, int blockNumber, int szx) throws CoAPException {
-        if (request.getOptionHeaders(BLOCK2).isEmpty()) {
+        if (!request.hasOptionHeader(BLOCK2)) {
             return createBlock1Request(request, blockNumber, szx);
         }
         return request;
@@ -124,7 +196,7 @@ public class BlockwiseTransferHandler {
      */
     public CoAPResponse createBlockwiseResponse(CoAPResponse response, int blockNumber, int szx) {
         // Control usage of Block1 option in CoAP response
-        if (!response.getOptionHeaders(BLOCK1).isEmpty()) {
+        if (response.hasOptionHeader(BLOCK1)) {
             return response;
         }
         // Descriptive usage of Block2 option
@@ -133,62 +205,147 @@ public class BlockwiseTransferHandler {
 
     /**
      * This method will be called when a message with option header Block2 is
-     * received. It will return the next block request that should be sent out,
-     * or null if the last block was received.
+     * received. The requests for the next blocks are given to the sender. When
+     * the last block is received and not streaming, the payload of the
+     * response is replaced with the payload of the whole transfer.
      *
      * @param response response with block2 option received
      * @param request original request
-     * @return
-     * @throws CoAPException
+     * @param sender sends out the requests for the next blocks
+     * @return true if the response should be passed on to the listener, that
+     * is when streaming or when the whole payload has been received
+     * @throws CoAPException if the block does not belong to the transfer
      */
-    public CoAPRequest block2OptionReceived(CoAPResponse response, CoAPRequest request) throws CoAPException {
+    public boolean block2OptionReceived(CoAPResponse response, CoAPRequest request,
+            Consumer<CoAPRequest> sender) throws CoAPException {
         //It MUST NOT occur more than once.
-        CoAPOptionHeader blockOption = response.getOptionHeaders(BLOCK2).get(0);
-
-        // Check if there exist a message with the same token
-        String tokenString = new String(response.getToken(), StandardCharsets.UTF_8);
-        CoAPMessage originalResponse = blockwiseMessages.get(tokenString);
-
-        if (originalResponse != null) {
-
-            // append received payload to first response
-            byte[] initialPayload = originalResponse.getPayload();
-            byte[] newPayload = new byte[initialPayload.length + response.getPayload().length];
+        CoAPOptionHeader blockOption = response.getOptionHeader(BLOCK2);
+        BlockOptionHeader blockOptionHeader = new BlockOptionHeader(blockOption);
+        int szx = blockOptionHeader.getSzx();
+        int offset = blockOptionHeader.getBlockNumber() << (szx + 4);
+        // if the m flag is set, there are still more blocks
+        boolean more = blockOptionHeader.getMFlag();
 
-            System.arraycopy(initialPayload, 0, newPayload, 0, initialPayload.length);
-            System.arraycopy(response.getPayload(), 0, newPayload, initialPayload.length, response.getPayload().length);
+        // Check if there exist a transfer with the same token
+        Block2Transfer existing = blockwiseMessages.get(tokenKey(response.getToken()));
+        if (existing == null && !more) {
+            // the only block, nothing to collect
+            return true;
+        }
+        Block2Transfer transfer = existing != null ? existing
+                : startTransfer(response, request, offset, szx);
+
+        List<CoAPRequest> nextRequests = new ArrayList<>();
+        boolean complete;
+        synchronized (transfer) {
+            transfer.sender = sender;
+            try {
+                if (!transfer.receive(offset, szx, response.getPayload(), more)) {
+                    LOGGER.debug("Duplicate block at offset " + offset + " ignored");
+                    return false;
+                }
+            } catch (CoAPException e) {
+                removeTransfer(transfer);
+                throw e;
+            }
+            complete = transfer.isComplete();
+            if (!complete) {
+                for (int blockNumber : transfer.nextBlocks()) {
+                    nextRequests.add(createBlock2Request(transfer, blockNumber));
+                }
+            }
+        }
 
-            response.setPayload(newPayload);
+        if (complete) {
+            removeTransfer(transfer);
+            if (!transfer.streaming) {
+                response.setPayload(transfer.getPayload());
+            }
+            return true;
         }
+        nextRequests.forEach(sender);
+        return transfer.streaming;
+    }
 
-        blockwiseMessages.put(tokenString, response);
+    private Block2Transfer startTransfer(CoAPResponse response, CoAPRequest request,
+            int offset, int szx) {
+        removeStaleTransfers();
+        long size = getSize2(response);
+        // A window is used only when the whole resource fits in one buffer
+        boolean windowed = !streaming && offset == 0 && size > 0 && size <= MAX_PREALLOCATED_SIZE;
+        // If the received szx is bigger that the client can accept, use the
+        // correct one for the next requests
+        Block2Transfer created = new Block2Transfer(request, response.getToken(), offset,
+                Math.min(szx, maxSzx), streaming, windowed ? block2Window : 1,
+                (int) Math.min(size, MAX_PREALLOCATED_SIZE));
+        ByteBuffer key = tokenKey(response.getToken());
+        created.keys.add(key);
+        Block2Transfer transfer = blockwiseMessages.putIfAbsent(key, created);
+        return transfer != null ? transfer : created;
+    }
 
-        BlockOptionHeader blockOptionHeader = new BlockOptionHeader(blockOption);
+    private CoAPRequest createBlock2Request(Block2Transfer transfer, int blockNumber) throws CoAPException {
+        // With several requests in flight, each needs a token of its own
+        byte[] tokenHeader = transfer.window > 1 ? blockToken(transfer.token, blockNumber) : transfer.token;
+        CoAPRequest request = transfer.request;
+        CoAPRequest blockRequest = endpoint.createCoAPRequest(
+                request.getMessageType(), CoAPRequestCode.GET, request.getSocketAddress(),
+                request.getUriFromRequest(), tokenHeader);
 
-        // if the m flag is set, there are still more blocks
-        if (blockOptionHeader.getMFlag()) {
-            byte[] tokenHeader = response.getToken();
-            CoAPRequest blockRequest = endpoint.createCoAPRequest(
-                    request.getMessageType(), CoAPRequestCode.GET, request.getSocketAddress(),
-                    request.getUriFromRequest(), tokenHeader);
-            // blockRequest.setListener(request.getListener());
-            int nextBlockNumber = blockOptionHeader.getBlockNumber() + 1;
-            int szx = blockOptionHeader.getSzx();
-            // If the received szx is bigger that the client can accept, change
-            // it to correct one for the next request
-            if (szx > maxSzx) {
-                szx = maxSzx;
-            }
+        // TODO do this in a more clever way
+        BlockOptionHeader nextBlock = new BlockOptionHeader(BLOCK2, blockNumber, false, transfer.szx);
 
-            // TODO do this in a more clever way
-            BlockOptionHeader nextBlock = new BlockOptionHeader(BLOCK2, nextBlockNumber, false, szx);
+        blockRequest.setListener(new BlockRequestListener(transfer, blockNumber, request.getListener()));
+        blockRequest.addOptionHeader(nextBlock);
 
-            blockRequest.setListener(request.getListener());
-            blockRequest.addOptionHeader(nextBlock);
+        ByteBuffer key = tokenKey(tokenHeader);
+        if (transfer.keys.add(key)) {
+            blockwiseMessages.put(key, transfer);
+        }
+        return blockRequest;
+    }
+
+    private void removeTransfer(Block2Transfer transfer) {
+        transfer.keys.forEach(key -> blockwiseMessages.remove(key, transfer));
+    }
 
-            return blockRequest;
+    /**
+     * Called when the request for a block of a transfer failed, i.e. the
+     * maximum number of retransmissions was reached or the request was
+     * refused. The block is requested again, or if it has been retried too
+     * many times, the transfer fails.
+     *
+     * @param transfer transfer the block belongs to
+     * @param blockNumber number of the block that was requested
+     */
+    private void block2RequestFailed(Block2Transfer transfer, int blockNumber) {
+        CoAPRequest retry = null;
+        synchronized (transfer) {
+            if (blockwiseMessages.get(tokenKey(transfer.token)) != transfer
+                    || !transfer.requestFailed(blockNumber)) {
+                // already received, or the transfer is over
+                return;
+            }
+            if (transfer.retries < MAX_BLOCK_RETRIES) {
+                transfer.requestAgain();
+                try {
+                    retry = createBlock2Request(transfer, blockNumber);
+                } catch (CoAPException e) {
+                    LOGGER.warn("Could not request block " + blockNumber + " again", e);
+                }
+            }
+        }
+        if (retry != null) {
+            LOGGER.debug("Request for block " + blockNumber + " failed, request it again");
+            transfer.sender.accept(retry);
+            return;
+        }
+        LOGGER.info("Request for block " + blockNumber + " failed, blockwise transfer cancelled");
+        removeTransfer(transfer);
+        CoAPRequestListener listener = transfer.request.getListener();
+        if (listener != null) {
+            listener.maximumRetransmissionsReached(transfer.request);
         }
-        return null;
     }
 
     /**
@@ -205,17 +362,20 @@ public class BlockwiseTransferHandler {
 
         // read the block size from the sent request
         // It MUST NOT occur more than once.
-        CoAPOptionHeader blockOption = response.getOptionHeaders(BLOCK1).get(0);
+        CoAPOptionHeader blockOption = response.getOptionHeader(BLOCK1);
         BlockOptionHeader header = new BlockOptionHeader(blockOption);
 
         // read szx from the response
         int szx = header.getSzx();
 
-        String tokenString = new String(request.getToken(), StandardCharsets.UTF_8);
-        CoAPRequest originalRequest = ongoingBlockwiseRequests.get(tokenString);
+        ByteBuffer key = tokenKey(request.getToken());
+        CoAPRequest originalRequest = ongoingBlockwiseRequests.get(key);
+        if (originalRequest == null) {
+            throw new CoAPException("No block-wise request found for the response");
+        }
         int diff = 1;
-        if (!originalRequest.getOptionHeaders(BLOCK1).isEmpty()) {
-            CoAPOptionHeader coapOption = originalRequest.getOptionHeaders(BLOCK1).get(0);
+        if (originalRequest.hasOptionHeader(BLOCK1)) {
+            CoAPOptionHeader coapOption = originalRequest.getOptionHeader(BLOCK1);
             BlockOptionHeader h = new BlockOptionHeader(coapOption);
             int originalSzx = h.getSzx();
 
@@ -239,6 +399,10 @@ public class BlockwiseTransferHandler {
         // the final response
         // if (header.getMFlag()) {
         CoAPRequest blockRequest = createBlock1Request(originalRequest, newBlockNumber, szx);
+        if (blockRequest == null) {
+            // all blocks sent
+            ongoingBlockwiseRequests.remove(key, originalRequest);
+        }
 
         // Calculate szx from the block size:
         // 2^(4+SZX) = 512 =>
@@ -301,8 +465,7 @@ public class BlockwiseTransferHandler {
         blockRequest.setListener(request.getListener());
 
         if (blockNumber == 0) {
-            String tokenString = new String(request.getToken(), StandardCharsets.UTF_8);
-            ongoingBlockwiseRequests.put(tokenString, request);
+            ongoingBlockwiseRequests.put(tokenKey(request.getToken()), request);
         }
         return blockRequest;
     }
@@ -351,6 +514,12 @@ public class BlockwiseTransferHandler {
                 .filter(h -> h.getOptionName() != BLOCK2)
                 .forEach(blockResponse::addOptionHeader);
 
+        // Tell the size of the whole resource with the first block, so that
+        // the client can allocate for it
+        if (blockNumber == 0 && !response.hasOptionHeader(SIZE2)) {
+            blockResponse.addOptionHeader(new CoAPOptionHeader(SIZE2, BitUtil.splitIntToBytes(response.getPayload().length)));
+        }
+
         // Calculate szx from the block size:
         // 2^(4+SZX) = 512 =>
         // Form the block option header
@@ -372,4 +541,275 @@ public class BlockwiseTransferHandler {
         return blockResponse;
     }
 
+    /**
+     * Drops the transfers that have not received a block within the exchange
+     * lifetime, e.g. because the server stopped responding.
+     */
+    private void removeStaleTransfers() {
+        long oldest = System.currentTimeMillis() - MessageCache.EXCHANGE_LIFETIME;
+        blockwiseMessages.values().removeIf(t -> t.lastActivity < oldest);
+    }
+
+    private static ByteBuffer tokenKey(byte[] token) {
+        return ByteBuffer.wrap(token.clone());
+    }
+
+    /**
+     * Derives the token for a block request sent within a window from the
+     * token of the transfer. Multiplying by an odd constant keeps the tokens
+     * of different blocks different.
+     */
+    private static byte[] blockToken(byte[] token, int blockNumber) {
+        long value = 0;
+        for (byte b : token) {
+            value = value << 8 | b & 0xFF;
+        }
+        return BitUtil.splitLongToBytes(value ^ (blockNumber + 1) * 0x9E3779B97F4A7C15L);
+    }
+
+    private static long getSize2(CoAPResponse response) {
+        CoAPOptionHeader size2 = response.getOptionHeader(SIZE2);
+        if (size2 == null) {
+            return 0;
+        }
+        long size = 0;
+        for (byte b : size2.getValue()) {
+            size = size << 8 | b & 0xFF;
+        }
+        return size;
+    }
+
+    /**
+     * Listener of a Block2 request. Failed block requests are handled by the
+     * transfer, the rest is passed on to the listener of the original request.
+     */
+    private final class BlockRequestListener implements CoAPRequestListener {
+
+        private final Block2Transfer transfer;
+        private final int blockNumber;
+        private final CoAPRequestListener listener;
+
+        private BlockRequestListener(Block2Transfer transfer, int blockNumber, CoAPRequestListener listener) {
+            this.transfer = transfer;
+            this.blockNumber = blockNumber;
+            this.listener = listener;
+        }
+
+        @Override
+        public void resetResponseReceived(CoAPResponse response, CoAPRequest request) {
+            // the server lost the state, the rest of the blocks won't come
+            removeTransfer(transfer);
+            if (listener != null) {
+                listener.resetResponseReceived(response, request);
+            }
+        }
+
+        @Override
+        public void separateResponseReceived(CoAPResponse response, CoAPRequest request) {
+            if (listener != null) {
+                listener.separateResponseReceived(response, request);
+            }
+        }
+
+        @Override
+        public void piggyPackedResponseReceived(CoAPResponse response, CoAPRequest request) {
+            if (listener != null) {
+                listener.piggyPackedResponseReceived(response, request);
+            }
+        }
+
+        @Override
+        public void emptyAckReceived(CoAPResponse response, CoAPRequest request) {
+            if (listener != null) {
+                listener.emptyAckReceived(response, request);
+            }
+        }
+
+        @Override
+        public void maximumRetransmissionsReached(CoAPRequest request) {
+            block2RequestFailed(transfer, blockNumber);
+        }
+
+        @Override
+        public void serviceBusy(CoAPRequest request) {
+            block2RequestFailed(transfer, blockNumber);
+        }
+    }
+
+    /**
+     * State of one Block2 transfer being received. Without a window the
+     * blocks are requested one at a time and must arrive in order. With a
+     * window, the size of the resource is known from Size2 and each block is
+     * written to its place in the buffer as it arrives.
+     */
+    private static final class Block2Transfer {
+
+        private final CoAPRequest request;
+        private final byte[] token;
+        private final boolean streaming;
+        private final int window;
+        private final Set<ByteBuffer> keys = ConcurrentHashMap.newKeySet();
+        private int szx;
+        private byte[] buffer;
+        private int length;
+        // offset expected next, or with a window the next block to request
+        private int next;
+        private boolean last;
+        private BitSet received;
+        private int inFlight;
+        private int retries;
+        private Consumer<CoAPRequest> sender;
+        private volatile long lastActivity;
+
+        /**
+         * Constructor
+         *
+         * @param request request the first block was received for
+         * @param token token of the transfer
+         * @param offset offset of the first block
+         * @param szx szx of the blocks to request
+         * @param streaming true if the blocks are not collected
+         * @param window number of block requests in flight
+         * @param size expected size of the payload, or 0 if not known
+         */
+        private Block2Transfer(CoAPRequest request, byte[] token, int offset, int szx,
+                boolean streaming, int window, int size) {
+            this.request = request;
+            this.token = token.clone();
+            this.szx = szx;
+            this.streaming = streaming;
+            this.window = window;
+            if (window > 1) {
+                this.buffer = new byte[size];
+                this.received = new BitSet();
+            } else {
+                this.next = offset;
+                this.buffer = streaming ? null : new byte[Math.max(size - offset, 0)];
+            }
+            this.lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * Takes in a received block.
+         *
+         * @return false if the block was received already
+         * @throws CoAPException if the block does not fit in the transfer
+         */
+        private boolean receive(int offset, int blockSzx, byte[] payload, boolean more) throws CoAPException {
+            int size = payload == null ? 0 : payload.length;
+            lastActivity = System.currentTimeMillis();
+            if (window > 1) {
+                return receiveInPlace(offset, payload, size, more);
+            }
+            if (offset < next) {
+                return false;
+            }
+            if (offset > next) {
+                throw new CoAPException("Block at offset " + offset + " received, expected offset " + next);
+            }
+            if (!streaming && size > 0) {
+                if (length + size > buffer.length) {
+                    // double the buffer, so that copying stays linear
+                    buffer = Arrays.copyOf(buffer, Math.max(length + size, 2 * buffer.length));
+                }
+                System.arraycopy(payload, 0, buffer, length, size);
+                length += size;
+            }
+            next += size;
+            last = !more;
+            // the server may only make the blocks smaller
+            szx = Math.min(szx, blockSzx);
+            return true;
+        }
+
+        private boolean receiveInPlace(int offset, byte[] payload, int size, boolean more) throws CoAPException {
+            int blockSize = 1 << (szx + 4);
+            if (offset % blockSize != 0 || more && size % blockSize != 0) {
+                throw new CoAPException("Block size changed during the transfer");
+            }
+            if (offset + size > buffer.length) {
+                throw new CoAPException("Block at offset " + offset + " exceeds the size given in Size2");
+            }
+            int first = offset / blockSize;
+            if (received.get(first)) {
+                return false;
+            }
+            System.arraycopy(payload, 0, buffer, offset, size);
+            received.set(first, first + Math.max((size + blockSize - 1) / blockSize, 1));
+            if (offset > 0) {
+                inFlight--;
+            }
+            if (!more) {
+                last = true;
+                length = offset + size;
+            }
+            return true;
+        }
+
+        private boolean isComplete() {
+            if (window > 1) {
+                return received.nextClearBit(0) >= blockCount();
+            }
+            return last;
+        }
+
+        /**
+         * @return numbers of the blocks to request next
+         */
+        private List<Integer> nextBlocks() {
+            if (window == 1) {
+                // the smaller blocks are aligned with the bigger ones
+                return Collections.singletonList(next >> (szx + 4));
+            }
+            List<Integer> blocks = new ArrayList<>();
+            int count = blockCount();
+            while (inFlight < window && next < count) {
+                if (!received.get(next)) {
+                    blocks.add(next);
+                    inFlight++;
+                }
+                next++;
+            }
+            return blocks;
+        }
+
+        /**
+         * Takes the block of a failed request out of flight.
+         *
+         * @return true if the block is still awaited
+         */
+        private boolean requestFailed(int blockNumber) {
+            if (window == 1) {
+                return !last && blockNumber == next >> (szx + 4);
+            }
+            if (blockNumber >= next || received.get(blockNumber)) {
+                return false;
+            }
+            inFlight--;
+            return true;
+        }
+
+        /**
+         * Puts the block of a failed request back in flight.
+         */
+        private void requestAgain() {
+            retries++;
+            if (window > 1) {
+                inFlight++;
+            }
+        }
+
+        private int blockCount() {
+            int blockSize = 1 << (szx + 4);
+            int size = last ? length : buffer.length;
+            return (size + blockSize - 1) / blockSize;
+        }
+
+        private byte[] getPayload() {
+            if (window > 1) {
+                return last && length < buffer.length ? Arrays.copyOf(buffer, length) : buffer;
+            }
+            return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+        }
+    }
 }
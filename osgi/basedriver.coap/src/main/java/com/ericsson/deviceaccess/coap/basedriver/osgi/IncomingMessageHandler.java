@@ -36,7 +36,6 @@ package com.ericsson.deviceaccess.coap.basedriver.osgi;
 
 import com.ericsson.common.util.BitUtil;
 import com.ericsson.common.util.function.FunctionalUtil;
-import com.ericsson.deviceaccess.coap.basedriver.api.CoAPActivator;
 import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
 import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType.ACKNOWLEDGEMENT;
@@ -48,15 +47,16 @@ import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
 import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponseCode.BAD_OPTION;
 import static com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponseCode.REQUEST_ENTITY_TOO_LARGE;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.ExchangeKey;
 import com.ericsson.deviceaccess.coap.basedriver.communication.UDPConstants;
 import com.ericsson.deviceaccess.coap.basedriver.util.CoAPMessageReader;
-import java.io.IOException;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageCache;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageTrace;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageTrace.Direction;
 import java.net.DatagramPacket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.Optional;
-import java.util.Timer;
-import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -68,25 +68,21 @@ import org.slf4j.LoggerFactory;
 public class IncomingMessageHandler implements IncomingMessageListener {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(IncomingMessageHandler.class);
-    static final long incomingRequestsExpirationTime = 60000; //msec
 
     private IncomingCoAPListener incomingCoAPListener;
 
-    // Keep track of incoming messages with socket address (toString) + message
-    // ID as key, these are used for detecting duplicate incoming messages
-    final private Map<String, CoAPRequest> incomingRequests;
-    final private Map<String, CoAPResponse> incomingResponses;
-
-    // Remove the entry of incomingRequests when expired
-    final private Timer incomingRequestsTimer = new Timer();
+    // Keep track of incoming messages by exchange for EXCHANGE_LIFETIME, these
+    // are used for detecting duplicate incoming messages
+    final private MessageCache<CoAPRequest> incomingRequests;
+    final private MessageCache<CoAPResponse> incomingResponses;
 
     /**
      * Constructor is protected, this is a singleton class. Instance can be
      * fetched using the CoAPMessageHandlerFactory class.
      */
     protected IncomingMessageHandler() {
-        incomingRequests = new ConcurrentHashMap<>();
-        incomingResponses = new ConcurrentHashMap<>();
+        incomingRequests = new MessageCache<>();
+        incomingResponses = new MessageCache<>();
     }
 
     /**
@@ -103,7 +99,13 @@ public class IncomingMessageHandler implements IncomingMessageListener {
             return;
         }
 
-        CoAPMessageReader handler = new CoAPMessageReader(datagram);
+        // The transport may reuse the datagram, so take one copy of its
+        // content for the decoded message to refer to
+        int offset = datagram.getOffset();
+        byte[] content = Arrays.copyOfRange(datagram.getData(), offset, offset + datagram.getLength());
+        InetSocketAddress source = datagram.getPort() != -1 ? (InetSocketAddress) datagram.getSocketAddress() : null;
+        CoAPMessageReader handler = new CoAPMessageReader(ByteBuffer.wrap(content), source);
+        MessageTrace.getShared().record(Direction.IN, source, content);
 
         if (datagram.getLength() > UDPConstants.MAX_DATAGRAM_SIZE) {
             // response with a 4.13 entity too large
@@ -131,16 +133,13 @@ public class IncomingMessageHandler implements IncomingMessageListener {
         } catch (CoAPMessageFormat.IncorrectMessageException ex) {
             LOGGER.debug("Couldn't decode message.", ex);
         }
+        if (msg == null) {
+            return;
+        }
 
         // log each message
-        String msgStr = "*** Incoming CoAP message ***\n" + msg.logMessage();
-        LOGGER.info(msgStr);
-        try {
-            // Write to a file too (interop tests)
-            CoAPActivator.out.write(msgStr);
-            CoAPActivator.out.flush();
-        } catch (IOException e) {
-            LOGGER.debug("Couldn't log message to file.", e);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("*** Incoming CoAP message ***\n" + msg.logMessage());
         }
         // If there are unrecognized options, reply with a reset message for
         // confirmable response and 4.02 response to a confirmable request
@@ -177,7 +176,7 @@ public class IncomingMessageHandler implements IncomingMessageListener {
     private void handleResponse(CoAPResponse response) throws CoAPException {
         // On messaging level, check for duplicates based on message ID + IP
         // check the received responses
-        String id = response.getIdentifier();
+        ExchangeKey id = response.getExchangeKey();
         OutgoingMessageHandler outHandler = incomingCoAPListener.getOutgoingMessageHandler();
         if (incomingResponses.containsKey(id)) {
             // TODO process only in case of CON??
@@ -189,8 +188,8 @@ public class IncomingMessageHandler implements IncomingMessageListener {
         }
 
         // No duplicate was found so this is a new incoming response. Stop retransmission task.
-        Map<String, CoAPRequest> outgoingRequests = outHandler.getOutgoingRequests();
-        Map<String, CoAPResponse> outgoingReplies = outHandler.getOutgoingResponses();
+        MessageCache<CoAPRequest> outgoingRequests = outHandler.getOutgoingRequests();
+        MessageCache<CoAPResponse> outgoingReplies = outHandler.getOutgoingResponses();
         CoAPRequest sentRequest = outgoingRequests.get(id);
 
         // Message ID will be different if this is a separate response (tokens
@@ -222,22 +221,14 @@ public class IncomingMessageHandler implements IncomingMessageListener {
         }
 
         // Check also the tokens, this is the case for separate responses
-        byte[] header = response.getToken();
-        if (header != null) {
-            Optional<CoAPRequest> request = outgoingRequests
-                    .values()
-                    .stream()
-                    .filter(v -> v.getToken() != null)
-                    .filter(v -> Arrays.equals(v.getToken(), header))
-                    .findAny();
-            if (request.isPresent()) {
-                if (response.getMessageType() == CONFIRMABLE) {
-                    ackMessage(response);
-                }
-                outHandler.removeRetransmissionTask(request.get());
-                incomingCoAPListener.handleResponse(response);
-                return;
+        CoAPRequest request = outHandler.findRequestByToken(response);
+        if (request != null) {
+            if (response.getMessageType() == CONFIRMABLE) {
+                ackMessage(response);
             }
+            outHandler.removeRetransmissionTask(request);
+            incomingCoAPListener.handleResponse(response);
+            return;
         }
         resetMessage(response);
     }
@@ -258,18 +249,32 @@ public class IncomingMessageHandler implements IncomingMessageListener {
      * @param req
      */
     private void handleRequest(final CoAPRequest req) {
-        String id = req.getIdentifier();
+        ExchangeKey id = req.getExchangeKey();
         // Register requests until expired
         incomingRequests.put(id, req);
-        incomingRequestsTimer.schedule(
-                FunctionalUtil.timerTask(() -> incomingRequests.computeIfPresent(id, (k, v) -> v == req ? null : req)),
-                incomingRequestsExpirationTime
-        );
         incomingCoAPListener.handleRequest(req);
     }
 
     public CoAPRequest getIncomingRequest(CoAPMessage msg) {
-        return incomingRequests.get(msg.getIdentifier());
+        return incomingRequests.get(msg.getExchangeKey());
+    }
+
+    /**
+     * Returns the cache of received requests, for monitoring.
+     *
+     * @return cache of received requests
+     */
+    public MessageCache<CoAPRequest> getIncomingRequests() {
+        return incomingRequests;
+    }
+
+    /**
+     * Returns the cache of received responses, for monitoring.
+     *
+     * @return cache of received responses
+     */
+    public MessageCache<CoAPResponse> getIncomingResponses() {
+        return incomingResponses;
     }
 
     /**
@@ -43,14 +43,13 @@ import com.ericsson.deviceaccess.coap.basedriver.api.DeviceInterface;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
 import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResource;
 import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResource.CoAPResourceType;
+import com.ericsson.deviceaccess.coap.basedriver.util.HashedWheelTimer;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.stream.Collectors;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -67,7 +66,7 @@ public class LinkFormatDirectory {
     private static final Logger LOGGER = LoggerFactory.getLogger(LinkFormatDirectory.class);
     // This keeps the already known endpoints
     private final Map<URI, RemoteEndpointRefreshTask> refreshTasks;
-    private final Timer timer;
+    private final HashedWheelTimer timer;
     private int resourceDiscoveryInterval;
 
     /**
@@ -75,7 +74,7 @@ public class LinkFormatDirectory {
      */
     public LinkFormatDirectory() {
         this.refreshTasks = new HashMap<>();
-        this.timer = new Timer();
+        this.timer = HashedWheelTimer.getShared();
     }
 
     /**
@@ -135,7 +134,7 @@ public class LinkFormatDirectory {
                 int scheduled = (30 + this.resourceDiscoveryInterval) * 1000;
                 RemoteEndpointRefreshTask newTask = new RemoteEndpointRefreshTask(serverURI, endpoint);
                 this.refreshTasks.put(serverURI, newTask);
-                timer.schedule(newTask, scheduled);
+                newTask.timeout = timer.schedule(newTask, scheduled);
             } else {
 
                 // This is a hack to figure out the type of the server
@@ -154,7 +153,7 @@ public class LinkFormatDirectory {
                 // is received
                 int scheduled = (30 + this.resourceDiscoveryInterval) * 1000;
 
-                timer.schedule(task, scheduled);
+                task.timeout = timer.schedule(task, scheduled);
                 // New endpoint, all new resources
                 for (CoAPResource res : updatedResources) {
                     URI resourcePath = res.getUri();
@@ -204,7 +203,7 @@ public class LinkFormatDirectory {
     }
 
     public void stopService() {
-        timer.cancel();
+        refreshTasks.values().forEach(RemoteEndpointRefreshTask::cancel);
     }
 
     /**
@@ -212,10 +211,11 @@ public class LinkFormatDirectory {
      * from which no reply to the resource discveory requests has been received
      * anymore
      */
-    private class RemoteEndpointRefreshTask extends TimerTask {
+    private class RemoteEndpointRefreshTask implements Runnable {
 
         private final URI uri;
         private final CoAPRemoteEndpoint endpoint;
+        private volatile HashedWheelTimer.Timeout timeout;
 
         protected RemoteEndpointRefreshTask(URI uri, CoAPRemoteEndpoint endpoint) {
             this.uri = uri;
@@ -231,5 +231,12 @@ public class LinkFormatDirectory {
         public CoAPRemoteEndpoint getCoAPRemoteEndpoint() {
             return this.endpoint;
         }
+
+        public void cancel() {
+            HashedWheelTimer.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
     }
 }
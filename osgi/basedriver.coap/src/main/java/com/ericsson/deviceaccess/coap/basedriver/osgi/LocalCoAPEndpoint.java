@@ -62,6 +62,7 @@ import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResourceObser
 import com.ericsson.deviceaccess.coap.basedriver.osgi.BlockwiseResponseCache.SessionData;
 import com.ericsson.deviceaccess.coap.basedriver.util.CoAPOptionHeaderConverter;
 import com.ericsson.deviceaccess.coap.basedriver.util.CoAPUtil;
+import com.ericsson.deviceaccess.coap.basedriver.util.HashedWheelTimer;
 import java.io.ByteArrayOutputStream;
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -73,8 +74,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -95,7 +94,7 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
     private final ObservationHandler obsHandler;
     private final BlockwiseTransferHandler blockHandler;
 
-    private final Timer timer;
+    private final HashedWheelTimer timer;
 
     // Max block-size defined in the draft-ietf-core-block-07
     private int maxBlockSize;
@@ -119,7 +118,7 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
         this.inHandler = incomingMessageHandler;
         this.obsHandler = new ObservationHandler(this);
         this.inResponseCache = new ConcurrentHashMap<>();
-        this.timer = new Timer();
+        this.timer = HashedWheelTimer.getShared();
 
         this.maxBlockSize = 1024;
         this.maxSzx = 6;
@@ -146,6 +145,37 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
         return maxSzx;
     }
 
+    /**
+     * Sets whether responses sent in Block2 blocks are passed on to the
+     * listeners block by block as they arrive. By default the blocks are
+     * collected and the listener gets one response with the whole payload;
+     * the responses carrying the intermediate blocks are not passed on.
+     *
+     * @param streaming true to pass on each block as it arrives
+     */
+    public void setBlockwiseStreaming(boolean streaming) {
+        blockHandler.setStreaming(streaming);
+    }
+
+    /**
+     * Sets how many Block2 requests may be in flight for one transfer when
+     * the size of the resource is known.
+     *
+     * @param window number of block requests in flight, at least 1
+     */
+    public void setBlock2Window(int window) {
+        blockHandler.setBlock2Window(window);
+    }
+
+    /**
+     * Sets the byte budget of the cache of responses sent block-wise.
+     *
+     * @param maxBytes byte budget for the cached payloads
+     */
+    public void setBlockwiseCacheBytes(long maxBytes) {
+        outBlockCache.setMaxBytes(maxBytes);
+    }
+
     /**
      * This method will send out the request using the lower layers
      *
@@ -159,8 +189,8 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
             if (resp == null) {
 
                 // TODO are block1 and block2 alternatives?
-                boolean block2Request = !request.getOptionHeaders(BLOCK2).isEmpty();
-                boolean block1Request = !request.getOptionHeaders(BLOCK1).isEmpty();
+                boolean block2Request = request.hasOptionHeader(BLOCK2);
+                boolean block1Request = request.hasOptionHeader(BLOCK1);
                 // If size of the request is larger than default max size, split
                 // into smaller blocks
                 byte[] payload = request.getPayload();
@@ -173,9 +203,9 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
                     if (block2Request || block1Request) {
                         CoAPOptionHeader header;
                         if (block2Request) {
-                            header = request.getOptionHeaders(BLOCK2).get(0);
+                            header = request.getOptionHeader(BLOCK2);
                         } else {
-                            header = request.getOptionHeaders(BLOCK1).get(0);
+                            header = request.getOptionHeader(BLOCK1);
                         }
                         BlockOptionHeader blockOptionHeader = new BlockOptionHeader(header);
                         szx = blockOptionHeader.getSzx();
@@ -187,7 +217,7 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
             } else {
                 // If the response included a block2 option, do not use cached
                 // response (blockwise transfer)
-                if (!resp.getCachedResponse().getOptionHeaders(BLOCK2).isEmpty()) {
+                if (resp.getCachedResponse().hasOptionHeader(BLOCK2)) {
                     outHandler.send(request, false);
                     return;
                 }
@@ -231,16 +261,17 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
                 response.setToken(request.getToken());
 
                 // Replace max-age option header
-                List<CoAPOptionHeader> options = response.getOptionHeaders();
-
-                options.removeAll(response.getOptionHeaders(MAX_AGE));
+                CoAPOptionHeader oldMaxAge;
+                while ((oldMaxAge = response.getOptionHeader(MAX_AGE)) != null) {
+                    response.removeOptionHeader(oldMaxAge);
+                }
 
-                long timeLeft = resp.scheduledExecutionTime() - System.currentTimeMillis();
+                long timeLeft = resp.getExpirationTime() - System.currentTimeMillis();
 
                 int seconds = (int) (timeLeft / 1000) % 60;
                 byte[] maxAgeBytes = BitUtil.splitIntToBytes(seconds);
 
-                options.add(new CoAPOptionHeader(MAX_AGE, maxAgeBytes));
+                response.addOptionHeader(new CoAPOptionHeader(MAX_AGE, maxAgeBytes));
                 // Notify listener
                 CoAPMessageType type = response.getMessageType();
                 if (type == CoAPMessageType.CONFIRMABLE || type == CoAPMessageType.NON_CONFIRMABLE) {
@@ -261,13 +292,13 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
                         return;
                     }
                     // Check for block options
-                    List<CoAPOptionHeader> block1 = response.getOptionHeaders(BLOCK1);
-                    List<CoAPOptionHeader> block2 = response.getOptionHeaders(BLOCK2);
+                    boolean block1 = response.hasOptionHeader(BLOCK1);
+                    boolean block2 = response.hasOptionHeader(BLOCK2);
 
-                    if (!block1.isEmpty()) {
+                    if (block1) {
                         // TODO
                         System.out.println("TODO: Handle block-wise transfer with option Block");
-                    } else if (!block2.isEmpty()) {
+                    } else if (block2) {
                         // TODO
                         System.out.println("TODO: Handle block-wise transfer with option Block2");
                     }
@@ -304,12 +335,7 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
         byte[] payload = response.getPayload();
 
         boolean hasTokenOption = response.getToken() != null;
-        boolean hasEtagOption = response.getOptionHeaders()
-                .stream()
-                .map(h -> h.getOptionName())
-                .filter(n -> n == ETAG)
-                .findAny()
-                .isPresent();
+        boolean hasEtagOption = response.hasOptionHeader(ETAG);
 
         // Add ETag option if payload exists
         if (payload != null && payload.length > 0 && !hasEtagOption) {
@@ -331,18 +357,16 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
 
         CoAPRequest request = this.inHandler.getIncomingRequest(response);
         if (request != null) {
-            for (CoAPOptionHeader optionHeader : request.getOptionHeaders()) {
-                CoAPOptionName optionName = optionHeader.getOptionName();
-                if (BLOCK2 == optionName) {
-                    hasBlock2Option = true;
-                    try {
-                        BlockOptionHeader block2OptionHeader = new BlockOptionHeader(optionHeader);
-                        szx = block2OptionHeader.getSzx();
-                        blockNumber = block2OptionHeader.getBlockNumber();
-                    } catch (CoAPException e) {
-                        // throw new RuntimeException("Invalid Block2 option", e);
-                        // XXX: Move on
-                    }
+            CoAPOptionHeader optionHeader = request.getOptionHeader(BLOCK2);
+            if (optionHeader != null) {
+                hasBlock2Option = true;
+                try {
+                    BlockOptionHeader block2OptionHeader = new BlockOptionHeader(optionHeader);
+                    szx = block2OptionHeader.getSzx();
+                    blockNumber = block2OptionHeader.getBlockNumber();
+                } catch (CoAPException e) {
+                    // throw new RuntimeException("Invalid Block2 option", e);
+                    // XXX: Move on
                 }
             }
             byte[] token = request.getToken();
@@ -381,7 +405,7 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
 
         // look up blockwise response cache if Request is GET and has Block2 option
         CoAPRequestCode code = request.getCode();
-        boolean hasBlock2Option = !request.getOptionHeaders(BLOCK2).isEmpty();
+        boolean hasBlock2Option = request.hasOptionHeader(BLOCK2);
         if (code == CoAPRequestCode.GET && hasBlock2Option) {
             try {
                 SessionData sessionData = outBlockCache.get(request);
@@ -453,11 +477,13 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
     @Override
     public void handleResponse(CoAPResponse resp) throws CoAPException {
         LOGGER.info("CoAP response of type [" + resp.getMessageType() + "] received");
-        resp.getOptionHeaders().forEach(h -> {
-            CoAPOptionHeaderConverter converter = new CoAPOptionHeaderConverter();
-            String headerValue = converter.convertOptionHeaderToString(h);
-            LOGGER.debug("CoAPOptionHeader [" + h.getOptionName() + "] in the response with value [" + headerValue + "]");
-        });
+        if (LOGGER.isDebugEnabled()) {
+            resp.forEachOptionHeader(h -> {
+                CoAPOptionHeaderConverter converter = new CoAPOptionHeaderConverter();
+                String headerValue = converter.convertOptionHeaderToString(h);
+                LOGGER.debug("CoAPOptionHeader [" + h.getOptionName() + "] in the response with value [" + headerValue + "]");
+            });
+        }
 
         CoAPMessageType type = resp.getMessageType();
         if (type == CoAPMessageType.RESET) {
@@ -532,17 +558,7 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
      * @return request that was matched based on the token
      */
     private Optional<CoAPRequest> matchBasedOnTokens(CoAPResponse resp) {
-        byte[] tokenHeader = resp.getToken();
-        if (tokenHeader == null) {
-            return Optional.empty();
-        }
-        String token = new String(tokenHeader, StandardCharsets.UTF_8);
-        return outHandler.getOutgoingRequests()
-                .values()
-                .stream()
-                .filter(req -> req != null)
-                .filter(req -> token.equals(new String(req.getToken(), StandardCharsets.UTF_8)))
-                .findAny();
+        return Optional.ofNullable(outHandler.findRequestByToken(resp));
     }
 
     /**
@@ -553,7 +569,7 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
      * @return request that matches the given response
      */
     private CoAPRequest matchBasedOnIdentifier(CoAPResponse resp) {
-        return outHandler.getOutgoingRequests().get(resp.getIdentifier());
+        return outHandler.getOutgoingRequests().get(resp.getExchangeKey());
     }
 
     private void handleReset(CoAPResponse resp) throws CoAPException {
@@ -596,27 +612,27 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
         }
 
         // Check for block options
-        List block2 = resp.getOptionHeaders(BLOCK2);
-        List block1 = resp.getOptionHeaders(BLOCK1);
+        boolean block2 = resp.hasOptionHeader(BLOCK2);
+        boolean block1 = resp.hasOptionHeader(BLOCK1);
 
         // Cache response
         // Check the response code to check conditions for caching, do not also
         // cache is there's a block option (either block1 or block2 present)
-        if (resp.isCacheable() && block2.isEmpty() && block1.isEmpty()) {
+        if (resp.isCacheable() && !block2 && !block1) {
             cacheResponse(resp, originalRequest);
         }
 
         // Do not return from these methods, use the normal callback methods
-        if (!block1.isEmpty()) {
+        if (block1) {
             CoAPRequest nextBlock = blockHandler.block1OptionResponseReceived(resp, originalRequest);
             if (nextBlock != null) {
                 outHandler.send(nextBlock, false);
             }
-        } else if (!block2.isEmpty()) {
-            CoAPRequest nextBlock = blockHandler.block2OptionReceived(resp, originalRequest);
-            // Send the next block
-            if (nextBlock != null) {
-                outHandler.send(nextBlock, false);
+        } else if (block2) {
+            // Send the next blocks, pass on the whole payload once the last
+            // block is received
+            if (!blockHandler.block2OptionReceived(resp, originalRequest, r -> outHandler.send(r, false))) {
+                return;
             }
         }
 
@@ -659,26 +675,25 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
         CoAPRequest oRequest = originalRequest.get();
 
         // Check for block options
-        List<CoAPOptionHeader> block2 = resp.getOptionHeaders(BLOCK2);
-        List<CoAPOptionHeader> block1 = resp.getOptionHeaders(BLOCK1);
+        boolean block2 = resp.hasOptionHeader(BLOCK2);
+        boolean block1 = resp.hasOptionHeader(BLOCK1);
 
         // Cache response
         // Check the response code to check conditions for caching, do not also
         // cache is there's a block option (either block1 or block2 present)
-        if (resp.isCacheable() && block2.isEmpty() && block1.isEmpty()) {
+        if (resp.isCacheable() && !block2 && !block1) {
             cacheResponse(resp, oRequest);
         }
 
         // Do not return from these methods, use the normal callback methods
-        if (!block1.isEmpty()) {
+        if (block1) {
             CoAPRequest nextBlock = blockHandler.block1OptionResponseReceived(resp, oRequest);
             if (nextBlock != null) {
                 outHandler.send(nextBlock, false);
             }
-        } else if (!block2.isEmpty()) {
-            CoAPRequest nextBlock = blockHandler.block2OptionReceived(resp, oRequest);
-            if (nextBlock != null) {
-                outHandler.send(nextBlock, false);
+        } else if (block2) {
+            if (!blockHandler.block2OptionReceived(resp, oRequest, r -> outHandler.send(r, false))) {
+                return;
             }
         }
         // if the message is related to an observed resource or the resource
@@ -749,24 +764,23 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
 
         // Cached response for the time defined by the max-age option.
         long maxAge = resp.getMaxAge();
-        CachedResponse task = new CachedResponse(resp, originalRequest);
+        CachedResponse task = new CachedResponse(resp, originalRequest, System.currentTimeMillis() + maxAge * 1000);
 
         LOGGER.debug("Cache response for resource at [" + originalRequest.getUriFromRequest() + "] for [" + maxAge + "] seconds");
         // Cache response based on the max-age option
-        inResponseCache.put(originalRequest.getUriFromRequest(), task);
-        try {
-            timer.schedule(task, maxAge * 1000);
-        } catch (IllegalArgumentException | IllegalStateException e) {
-            LOGGER.debug("Scheduling timer failed.", e);
+        CachedResponse previous = inResponseCache.put(originalRequest.getUriFromRequest(), task);
+        if (previous != null) {
+            previous.cancel();
         }
+        task.timeout = timer.schedule(task, maxAge * 1000);
     }
 
     /**
-     * This method cancels the timer and the scheduled tasks. It's needed when
-     * the bundle is stopped
+     * This method cancels the scheduled tasks. It's needed when the bundle is
+     * stopped
      */
     public void stopService() {
-        timer.cancel();
+        inResponseCache.values().forEach(CachedResponse::cancel);
         obsHandler.stopService();
         if (outBlockCache != null) {
             outBlockCache.cleanup();
@@ -857,21 +871,28 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
      * Private class that is responsible for caching the received responses. The
      * rules for caching are defined in the core draft.
      */
-    private class CachedResponse extends TimerTask {
+    private class CachedResponse implements Runnable {
 
         private final CoAPResponse cachedResponse;
         private final CoAPRequest originalRequest;
+        private final long expirationTime;
+        private volatile HashedWheelTimer.Timeout timeout;
 
-        protected CachedResponse(CoAPResponse cachedResponse, CoAPRequest originalRequest) {
+        protected CachedResponse(CoAPResponse cachedResponse, CoAPRequest originalRequest, long expirationTime) {
             this.cachedResponse = cachedResponse;
             this.originalRequest = originalRequest;
+            this.expirationTime = expirationTime;
         }
 
         @Override
         public void run() {
-            // cached response has expired, remove
+            // cached response has expired, remove it unless it has been
+            // replaced already
             try {
-                removeCachedResponse(originalRequest.getUriFromRequest());
+                URI uri = originalRequest.getUriFromRequest();
+                if (inResponseCache.remove(uri, this)) {
+                    LOGGER.debug("Cached response for resource at [" + uri + "] expired, remove from cache");
+                }
             } catch (CoAPException e) {
                 LOGGER.debug("Removing cached request failed.", e);
             }
@@ -884,5 +905,16 @@ public class LocalCoAPEndpoint extends CoAPEndpoint implements
         public CoAPRequest getRequest() {
             return this.originalRequest;
         }
+
+        public long getExpirationTime() {
+            return this.expirationTime;
+        }
+
+        public void cancel() {
+            HashedWheelTimer.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
     }
 }
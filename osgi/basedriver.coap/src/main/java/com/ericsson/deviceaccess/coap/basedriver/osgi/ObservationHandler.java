@@ -35,7 +35,6 @@
 package com.ericsson.deviceaccess.coap.basedriver.osgi;
 
 import com.ericsson.common.util.BitUtil;
-import com.ericsson.common.util.function.FunctionalUtil;
 import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionHeader;
@@ -46,14 +45,20 @@ import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
 import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPObservationResource;
 import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResource;
 import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResourceObserver;
+import com.ericsson.deviceaccess.coap.basedriver.util.HashedWheelTimer;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.UnknownHostException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,17 +71,31 @@ import org.slf4j.LoggerFactory;
  * doesn't exist a fresh response, a further observe request is sent. This means
  * that all listeners will be called when a response for that "refresh" request
  * is received.
+ * <p/>
+ * The observations are kept in one concurrent map, so a notification is
+ * matched to its resource without locking. When cached responses expire, the
+ * re-registrations are collected and sent together after
+ * {@link #REFRESH_BATCH_DELAY} milliseconds.
  */
 public class ObservationHandler {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ObservationHandler.class);
-    private final Map<URI, CoAPObservationResource> observedResources;
 
-    private final Map<URI, CoAPRequest> originalRequests;
+    /**
+     * Time in milliseconds the re-registrations of expired observations are
+     * collected before they are sent.
+     */
+    public static final long REFRESH_BATCH_DELAY = 50;
+
+    private final ConcurrentMap<URI, Observation> observations;
+
+    private final Queue<URI> pendingRefreshes;
+
+    private final AtomicBoolean refreshScheduled;
 
-    private final Map<URI, RefreshTask> cachedResponses;
+    private volatile HashedWheelTimer.Timeout refreshTimeout;
 
-    private final Timer timer;
+    private final HashedWheelTimer timer;
 
     private final LocalCoAPEndpoint endpoint;
 
@@ -86,11 +105,11 @@ public class ObservationHandler {
      * @param endpoint the local endpoint
      */
     public ObservationHandler(LocalCoAPEndpoint endpoint) {
-        this.observedResources = new HashMap<>();
-        this.cachedResponses = new HashMap<>();
-        this.originalRequests = new HashMap<>();
+        this.observations = new ConcurrentHashMap<>();
+        this.pendingRefreshes = new ConcurrentLinkedQueue<>();
+        this.refreshScheduled = new AtomicBoolean();
         this.endpoint = endpoint;
-        this.timer = new Timer();
+        this.timer = HashedWheelTimer.getShared();
     }
 
     /**
@@ -106,32 +125,35 @@ public class ObservationHandler {
         LOGGER.debug("Response is related to an observation relationship");
 
         URI uri = originalRequest.getUriFromRequest();
-        CoAPObservationResource res = observedResources.get(uri);
-        if (res == null) {
+        Observation observation = observations.get(uri);
+        if (observation == null) {
             return;
         }
+        CoAPObservationResource res = observation.resource;
 
-        if (resp.getOptionHeaders(CoAPOptionName.OBSERVE).isEmpty()) {
+        if (!resp.hasOptionHeader(CoAPOptionName.OBSERVE)) {
             // this means the response is terminating an observation relationship
-            observedResources.remove(uri);
-            res.getObservers()
-                    .forEach(obs -> {
-                        obs.observationRelationshipTerminated(resp, res, originalRequests.get(uri));
-                    });
-            FunctionalUtil.putAndClean(cachedResponses, uri, null, v -> v.cancel());
+            if (observations.remove(uri, observation)) {
+                observation.setCachedResponse(null);
+                unregister(observation);
+                res.getObservers()
+                        .forEach(obs -> {
+                            obs.observationRelationshipTerminated(resp, res, observation.originalRequest);
+                        });
+            }
             return;
         }
 
-        byte[] bytes = resp.getOptionHeaders(CoAPOptionName.OBSERVE).get(0).getValue();
+        byte[] bytes = resp.getOptionHeader(CoAPOptionName.OBSERVE).getValue();
 
         if (bytes.length == 2) {
             short test = BitUtil.mergeBytesToShort(bytes[0], bytes[1]);
             int observeValue = test & 0xFFFF;
 
             LOGGER.debug("Masked observe value in observation handler [" + observeValue + "]");
-            if (resp.getOptionHeaders(CoAPOptionName.BLOCK2).isEmpty()) {
+            if (!resp.hasOptionHeader(CoAPOptionName.BLOCK2)) {
                 // Check if the notification is fresh
-                if (!res.isFresh(observeValue, new java.util.Date())) {
+                if (!res.isFresh(observeValue, new Date())) {
                     //if the response is not fresh, it can be discarded!
                     return;
                 }
@@ -140,16 +162,16 @@ public class ObservationHandler {
             }
         }
 
-        // Put in the cached responses, replacing the old task if
-        RefreshTask task = new RefreshTask(resp, uri);
-        FunctionalUtil.putAndClean(cachedResponses, uri, task, v -> v.cancel());
+        // Put in the cached responses, replacing the old task if any
+        RefreshTask task = new RefreshTask(resp, uri, observation);
+        observation.setCachedResponse(task);
 
         // Read the max-age option
-        timer.schedule(task, resp.getMaxAge() * 1000);
+        task.timeout = timer.schedule(task, resp.getMaxAge() * 1000);
 
         // TODO populate resource with more data?
         res.setContent(resp.getPayload());
-        CoAPRequest req = originalRequests.get(res.getUri());
+        CoAPRequest req = observation.originalRequest;
         res.getObservers()
                 .forEach(observer -> {
                     observer.observeResponseReceived(resp, res, req);
@@ -169,9 +191,12 @@ public class ObservationHandler {
             CoAPResourceObserver observer) throws CoAPException {
 
         boolean removed = resource.removeObserver(observer);
-        // If no more observers are left, finish the observation
-        // relationship by sending a request without observe option
-        if (removed && resource.getObservers().isEmpty()) {
+        if (!removed) {
+            return false;
+        }
+        // Finish the observation relationship by sending a request without
+        // observe option if no observer is left
+        if (endIfUnobserved(resource.getUri())) {
 
             // TODO should the termination request be confirmable or non-confirmable
             InetSocketAddress sockaddr = null;
@@ -190,30 +215,40 @@ public class ObservationHandler {
                     resource.getUri(),
                     null);
             endpoint.sendRequest(req);
-
-            originalRequests.remove(resource.getUri());
             // TODO identify if the relationship was terminated!
-            observedResources.remove(resource.getUri());
         }
-        return removed;
-    }
-
-    public boolean isObserved(URI uri) {
-        return observedResources.get(uri) != null;
-    }
-
-    public CoAPResource getResource(URI uri) {
-        return observedResources.get(uri);
+        return true;
     }
 
     /**
-     * Remove cached response (expired)
+     * Removes the observation of a resource if it has no observers. This is
+     * decided while the entry is locked, observers are added under the same
+     * lock.
      *
      * @param uri URI to the resource
+     * @return true if the observation was removed
      */
-    protected synchronized void removeCachedResponse(URI uri) {
-        LOGGER.debug("Cached response for URI [" + uri.toString() + " expired, remove from cache");
-        cachedResponses.remove(uri);
+    private boolean endIfUnobserved(URI uri) {
+        boolean[] ended = new boolean[1];
+        observations.computeIfPresent(uri, (key, observation) -> {
+            if (!observation.resource.getObservers().isEmpty()) {
+                return observation;
+            }
+            observation.setCachedResponse(null);
+            unregister(observation);
+            ended[0] = true;
+            return null;
+        });
+        return ended[0];
+    }
+
+    public boolean isObserved(URI uri) {
+        return observations.containsKey(uri);
+    }
+
+    public CoAPResource getResource(URI uri) {
+        Observation observation = observations.get(uri);
+        return observation == null ? null : observation.resource;
     }
 
     /**
@@ -228,40 +263,46 @@ public class ObservationHandler {
     public CoAPResource createObservationRelationship(URI uri,
             CoAPResourceObserver observer) throws CoAPException {
         LOGGER.debug("Create observation relationship to URI [" + uri + "]");
-        CoAPObservationResource resource;
-
-        // Check if there already exist observation for this resource
-        if (observedResources.containsKey(uri)) {
-            // get the resource based on key
-            resource = observedResources.get(uri);
-            resource.addObserver(observer);
-
-            // Notify with a cached response
-            if (cachedResponses.containsKey(uri)) {
-                LOGGER.debug("A fresh response still found in cache");
-                observer.observeResponseReceived(
-                        cachedResponses.get(uri).getResponse(),
-                        resource,
-                        originalRequests.get(uri));
-            } // If the response in the cache is older than max-age + max-ofe,
-            // send a further observation request
-            else {
-                CoAPRequest req = createObservationRequest(uri);
-                // Store in the local memory the original request
-                originalRequests.put(uri, req);
-                endpoint.sendRequest(req);
-            }
-        } else {
-            // Otherwise create a new observation request and add it in the list of observed resources
-            CoAPRequest req = createObservationRequest(uri);
-
-            resource = new CoAPObservationResource(uri);
-            resource.addObserver(observer);
-            originalRequests.put(uri, req);
-            observedResources.put(uri, resource);
 
-            endpoint.sendRequest(req);
+        // Join the observation of the resource or start a new one. The
+        // observer is added while the entry is locked, so that a termination
+        // cannot end the observation under it.
+        boolean[] created = new boolean[1];
+        Observation observation = observations.compute(uri, (key, existing) -> {
+            Observation current = existing;
+            if (current == null) {
+                current = new Observation(new CoAPObservationResource(key));
+                created[0] = true;
+            }
+            current.resource.addObserver(observer);
+            return current;
+        });
+        CoAPObservationResource resource = observation.resource;
+
+        // Notify with a cached response
+        RefreshTask cached = observation.cachedResponse.get();
+        if (!created[0] && cached != null) {
+            LOGGER.debug("A fresh response still found in cache");
+            observer.observeResponseReceived(
+                    cached.getResponse(),
+                    resource,
+                    observation.originalRequest);
+            return resource;
         }
+        // A new observation, or the response in the cache is older than
+        // max-age + max-ofe: send an observation request
+        CoAPRequest req;
+        try {
+            req = createObservationRequest(uri);
+        } catch (CoAPException e) {
+            resource.removeObserver(observer);
+            endIfUnobserved(uri);
+            throw e;
+        }
+        // Store in the local memory the original request
+        observation.originalRequest = req;
+        register(observation, req);
+        endpoint.sendRequest(req);
         return resource;
     }
 
@@ -302,50 +343,159 @@ public class ObservationHandler {
     }
 
     /**
-     * Cancel the timer and its tasks. This method is needed when stopping the
+     * Makes notifications answering the given request found by its token for
+     * as long as the observation lasts. The request replaces the one sent
+     * before for the observation, as the server notifies with the token of
+     * the latest registration.
+     *
+     * @param observation observation the request is sent for
+     * @param request observe request
+     */
+    private void register(Observation observation, CoAPRequest request) {
+        OutgoingMessageHandler outHandler = endpoint.getOutgoingMessageHandler();
+        outHandler.registerObservation(request);
+        CoAPRequest previous = observation.registered.getAndSet(request);
+        if (previous != null && previous != request) {
+            outHandler.unregisterObservation(previous);
+        }
+    }
+
+    private void unregister(Observation observation) {
+        CoAPRequest previous = observation.registered.getAndSet(null);
+        if (previous != null) {
+            endpoint.getOutgoingMessageHandler().unregisterObservation(previous);
+        }
+    }
+
+    /**
+     * Queues a re-registration for the given URI. The queued ones are sent
+     * together by {@link #refreshPending()}.
+     *
+     * @param uri URI to the resource
+     */
+    private void scheduleRefresh(URI uri) {
+        pendingRefreshes.add(uri);
+        if (refreshScheduled.compareAndSet(false, true)) {
+            refreshTimeout = timer.schedule(this::refreshPending, REFRESH_BATCH_DELAY);
+        }
+    }
+
+    /**
+     * Sends a new observe request for each resource whose cached response
+     * expired, unless a notification was received meanwhile.
+     */
+    private void refreshPending() {
+        refreshScheduled.set(false);
+        Set<URI> batch = new LinkedHashSet<>();
+        for (URI uri = pendingRefreshes.poll(); uri != null; uri = pendingRefreshes.poll()) {
+            batch.add(uri);
+        }
+        LOGGER.debug("Refresh " + batch.size() + " observations");
+        for (URI uri : batch) {
+            Observation observation = observations.get(uri);
+            if (observation == null || observation.cachedResponse.get() != null) {
+                continue;
+            }
+            try {
+                CoAPRequest req = createObservationRequest(uri);
+                // Do no update the original request, keep the first one
+                register(observation, req);
+                endpoint.sendRequest(req);
+            } catch (CoAPException e) {
+                LOGGER.warn("Sending new GET request failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Cancel the scheduled tasks. This method is needed when stopping the
      * bundle.
      */
     public void stopService() {
-        timer.cancel();
+        observations.values().forEach(o -> {
+            o.setCachedResponse(null);
+            unregister(o);
+        });
+        HashedWheelTimer.Timeout scheduled = refreshTimeout;
+        if (scheduled != null) {
+            scheduled.cancel();
+        }
+        pendingRefreshes.clear();
+        refreshScheduled.set(false);
+    }
+
+    /**
+     * State of one observed resource
+     */
+    private static final class Observation {
+
+        private final CoAPObservationResource resource;
+        private final AtomicReference<RefreshTask> cachedResponse = new AtomicReference<>();
+        // Latest request sent for the observation, registered by token
+        private final AtomicReference<CoAPRequest> registered = new AtomicReference<>();
+        private volatile CoAPRequest originalRequest;
+
+        private Observation(CoAPObservationResource resource) {
+            this.resource = resource;
+        }
+
+        /**
+         * Replaces the cached response, cancelling the expiry of the previous
+         * one.
+         *
+         * @param task task of the new cached response, or null
+         */
+        private void setCachedResponse(RefreshTask task) {
+            RefreshTask previous = cachedResponse.getAndSet(task);
+            if (previous != null) {
+                previous.cancel();
+            }
+        }
     }
 
     /**
      * Inner class to handle timers for cached observe responses
      */
-    private class RefreshTask extends TimerTask {
+    private class RefreshTask implements Runnable {
 
         private final CoAPResponse cachedResponse;
         private final URI uri;
+        private final Observation observation;
+        private volatile HashedWheelTimer.Timeout timeout;
 
         /**
          * Constructor
          *
          * @param cachedResponse
          * @param uri
+         * @param observation
          */
-        protected RefreshTask(CoAPResponse cachedResponse, URI uri) {
+        protected RefreshTask(CoAPResponse cachedResponse, URI uri, Observation observation) {
             this.cachedResponse = cachedResponse;
             this.uri = uri;
+            this.observation = observation;
         }
 
         @Override
         public void run() {
-            LOGGER.debug("Cached response expired");
-            // If the cached response expires, remove first the cached stuff
-            removeCachedResponse(uri);
-            // TODO if cached response expires, should send a new GET request!!
-            try {
-                LOGGER.debug("Send a new GET request towards the server to refresh the observation");
-                CoAPRequest req = createObservationRequest(uri);
-                // Do no update the hashmap, keep the original request there
-                endpoint.sendRequest(req);
-            } catch (CoAPException e) {
-                LOGGER.warn("Sending new GET request failed.", e);
+            // If the cached response expires, remove first the cached stuff.
+            // The task may have been replaced just before it was cancelled.
+            if (!observation.cachedResponse.compareAndSet(this, null)) {
+                return;
             }
+            LOGGER.debug("Cached response for URI [" + uri + "] expired, remove from cache");
+            scheduleRefresh(uri);
         }
 
         public CoAPResponse getResponse() {
             return this.cachedResponse;
         }
+
+        public void cancel() {
+            HashedWheelTimer.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
     }
 }
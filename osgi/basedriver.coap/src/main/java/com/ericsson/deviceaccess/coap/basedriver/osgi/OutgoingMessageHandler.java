@@ -34,26 +34,38 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.osgi;
 
-import com.ericsson.deviceaccess.coap.basedriver.api.CoAPActivator;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestListener;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.ExchangeKey;
 import com.ericsson.deviceaccess.coap.basedriver.communication.TransportLayerSender;
-import java.io.IOException;
+import com.ericsson.deviceaccess.coap.basedriver.util.HashedWheelTimer;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageCache;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageTrace;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageTrace.Direction;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Sends the message using the transport layer. Takes care of retransmissions
- * and detecting duplicate messages.
+ * and detecting duplicate messages. Requests towards one endpoint are limited
+ * to NSTART outstanding confirmable requests, the rest wait in a queue of that
+ * endpoint.
  */
 public class OutgoingMessageHandler {
 
@@ -64,12 +76,20 @@ public class OutgoingMessageHandler {
     public final static int MESSAGE_ID_MAX = 65535;
 
     public final static int MESSAGE_ID_MIN = 0;
-    // TODO outgoing message cache should be cleaned up!!!
+
+    // Default number of simultaneous outstanding requests to one endpoint
+    public final static int DEFAULT_NSTART = 1;
+
+    public final static int DEFAULT_MAX_QUEUED_REQUESTS = 64;
     // note that in case of transmission, the current state should be sent out
     // (rather than an old snapshot)
-    // All sent messages with token as key
-    private final Map<String, CoAPResponse> outgoingReplies;
-    private final Map<String, CoAPRequest> outgoingRequests;
+    // Sent messages by exchange, kept for EXCHANGE_LIFETIME
+    private final MessageCache<CoAPResponse> outgoingReplies;
+    private final MessageCache<CoAPRequest> outgoingRequests;
+    // Secondary index of outgoingRequests for matching separate responses
+    private final Map<TokenKey, CoAPRequest> requestsByToken;
+    // Requests of observations, matched by token until the observation ends
+    private final Map<TokenKey, CoAPRequest> observationsByToken;
 
     // lower layer transport sender
     private final TransportLayerSender sender;
@@ -77,9 +97,16 @@ public class OutgoingMessageHandler {
     // this variable keeps track
     private int messageId;
 
-    private final Timer timer;
+    private final HashedWheelTimer timer;
+
+    // Retransmission tasks of confirmable messages awaiting an acknowledgement
+    private final Map<ExchangeKey, RetransmissionTask> retransmissions;
 
-    private final Map<InetSocketAddress, RetransmissionTask> retransmissionTasks;
+    // Transmission state of each endpoint messages have been sent to
+    private final Map<InetSocketAddress, PeerState> peers;
+
+    private volatile int nstart = DEFAULT_NSTART;
+    private volatile int maxQueuedRequests = DEFAULT_MAX_QUEUED_REQUESTS;
 
     /**
      * Constructor is protected, an instance of this handler should be fetched
@@ -89,11 +116,40 @@ public class OutgoingMessageHandler {
      */
     protected OutgoingMessageHandler(TransportLayerSender sender) {
         this.messageId = -1;
-        this.outgoingReplies = new ConcurrentHashMap<>();
-        this.outgoingRequests = new ConcurrentHashMap<>();
-        this.timer = new Timer();
+        this.outgoingReplies = new MessageCache<>();
+        this.outgoingRequests = new MessageCache<>();
+        this.outgoingRequests.setEvictionListener(this::unindex);
+        this.requestsByToken = new ConcurrentHashMap<>();
+        this.observationsByToken = new ConcurrentHashMap<>();
+        this.timer = HashedWheelTimer.getShared();
         this.sender = sender;
-        this.retransmissionTasks = new ConcurrentHashMap<>();
+        this.retransmissions = new ConcurrentHashMap<>();
+        this.peers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Sets NSTART, the number of confirmable requests that may be outstanding
+     * towards one endpoint at a time. Further requests to that endpoint wait
+     * in its queue.
+     *
+     * @param nstart number of simultaneous outstanding requests, at least 1
+     */
+    public void setNStart(int nstart) {
+        if (nstart < 1) {
+            throw new IllegalArgumentException("NSTART must be at least 1: " + nstart);
+        }
+        this.nstart = nstart;
+    }
+
+    /**
+     * Sets how many requests may wait for one endpoint. When the queue is
+     * full, the request is dropped and its listener is told that the service
+     * is busy.
+     *
+     * @param maxQueuedRequests maximum number of queued requests per endpoint
+     */
+    public void setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
     }
 
     /**
@@ -103,48 +159,57 @@ public class OutgoingMessageHandler {
      * @param retransmission set to true if the message is resent
      */
     protected void send(CoAPMessage msg, boolean retransmission) {
-        LOGGER.debug("SEND REQUEST: " + msg.getMessageType() + " and id: " + msg.getIdentifier());
-        // Can send a new request to the same host, if no messages are in the retransmission queue
-        if (!retransmission
-                && retransmissionTasks.containsKey(msg.getSocketAddress())
-                && msg instanceof CoAPRequest) {
-            CoAPRequest req = (CoAPRequest) msg;
-
-            if (req.getListener() != null) {
-                req.getListener().serviceBusy(req);
-            }
+        LOGGER.debug("SEND REQUEST: {} and id: {}", msg.getMessageType(), msg.getExchangeKey());
+        if (retransmission) {
+            transmit(msg, retransmissionTaskOf(msg));
+            return;
+        }
+        // Requests to an endpoint with NSTART outstanding requests are queued
+        if (msg instanceof CoAPRequest && msg.getSocketAddress() != null && !admit((CoAPRequest) msg)) {
             return;
         }
+        transmit(msg, null);
+    }
 
+    /**
+     * Sends a message. Confirmable messages get a retransmission task the
+     * first time they are sent.
+     *
+     * @param msg message to be sent
+     * @param task retransmission task of the message, null on the first
+     * transmission
+     */
+    private void transmit(CoAPMessage msg, RetransmissionTask task) {
+        boolean retransmission = task != null;
         // messages are only retransmitted if they're of type confirmable
         if (msg.getMessageType() == CoAPMessageType.CONFIRMABLE) {
-            int timeoutValue = msg.getTimeout();
+            if (task == null) {
+                PeerState peer = peer(msg.getSocketAddress());
+                task = new RetransmissionTask(msg, peer, peer.initialTimeout());
+                retransmissions.put(msg.getExchangeKey(), task);
+            }
             LOGGER.info("Transmit, nof retransmissions this far : [" + msg.getRetransmissions() + "] , max 4 (re)transmissions allowed");
-            LOGGER.debug("Timeout value in milliseconds: [" + timeoutValue + "]");
+            LOGGER.debug("Timeout value in milliseconds: [" + task.nextTimeout + "]");
             // start timer
             if (msg.getRetransmissions() < MAX_RETRANSMIT) {
                 LOGGER.debug("Schedule retransmission");
-                // Create retransmission only if this is not multicast message
-                RetransmissionTask task = new RetransmissionTask(msg);
-                retransmissionTasks.put(msg.getSocketAddress(), task);
-
-                timer.schedule(task, timeoutValue);
-                // Increase timeout and number of retransmission
+                task.schedule();
+                // Increase number of retransmission
                 msg.messageRetransmitted();
             } else {
                 LOGGER.info("Maximum number of retransmissions reached, cancel this message");
-                removeRetransmissionTask(msg);
                 msg.setMessageCanceled(true);
+                removeRetransmissionTask(msg);
 
                 // Remove message from the memory
                 if (msg instanceof CoAPRequest) {
-                    outgoingRequests.remove(msg.getIdentifier());
+                    removeRequest((CoAPRequest) msg);
                     CoAPRequestListener listener = ((CoAPRequest) msg).getListener();
                     if (listener != null) {
                         listener.maximumRetransmissionsReached((CoAPRequest) msg);
                     }
                 } else if (msg instanceof CoAPResponse) {
-                    outgoingReplies.remove(msg.getIdentifier());
+                    outgoingReplies.remove(msg.getExchangeKey());
                 }
             }
         }
@@ -160,20 +225,87 @@ public class OutgoingMessageHandler {
             }
         }
 
-        String msgStr = "*** Outgoing CoAP message **\n" + msg.logMessage();
-        LOGGER.info(msgStr);
-        try {
-            // Write to a file too (interop tests)
-            CoAPActivator.out.write(msgStr);
-            CoAPActivator.out.flush();
-        } catch (IOException e) {
-            LOGGER.debug("Problem to log the outgoing message");
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("*** Outgoing CoAP message **\n" + msg.logMessage());
         }
+        MessageTrace.getShared().record(Direction.OUT, msg);
 
         // TODO How to handle non-confirmable messages??
         sender.sendMessage(msg);
     }
 
+    private PeerState peer(InetSocketAddress address) {
+        return peers.computeIfAbsent(address, a -> new PeerState());
+    }
+
+    /**
+     * Lets a request through if fewer than NSTART confirmable requests are
+     * outstanding towards its endpoint and no earlier request is waiting.
+     * Otherwise the request is queued, or refused if the queue is full.
+     *
+     * @param request request to send
+     * @return true if the request can be sent now
+     */
+    private boolean admit(CoAPRequest request) {
+        PeerState peer = peer(request.getSocketAddress());
+        synchronized (peer) {
+            if (peer.queue.isEmpty() && peer.outstanding < nstart) {
+                if (request.getMessageType() == CoAPMessageType.CONFIRMABLE) {
+                    peer.outstanding++;
+                }
+                return true;
+            }
+            if (peer.queue.size() < maxQueuedRequests) {
+                LOGGER.debug("{} requests outstanding to {}, queue request", peer.outstanding, request.getSocketAddress());
+                peer.queue.add(request);
+                return false;
+            }
+        }
+        if (request.getListener() != null) {
+            request.getListener().serviceBusy(request);
+        }
+        return false;
+    }
+
+    /**
+     * Frees the slot of a completed confirmable request and sends the queued
+     * requests that now fit within NSTART.
+     *
+     * @param peer state of the endpoint
+     */
+    private void release(PeerState peer) {
+        List<CoAPRequest> next = null;
+        synchronized (peer) {
+            if (peer.outstanding > 0) {
+                peer.outstanding--;
+            }
+            while (peer.outstanding < nstart && !peer.queue.isEmpty()) {
+                CoAPRequest request = peer.queue.poll();
+                if (request.getMessageType() == CoAPMessageType.CONFIRMABLE) {
+                    peer.outstanding++;
+                }
+                if (next == null) {
+                    next = new ArrayList<>();
+                }
+                next.add(request);
+            }
+        }
+        if (next != null) {
+            next.forEach(request -> transmit(request, null));
+        }
+    }
+
+    /**
+     * Returns the current retransmission timeout estimate for an endpoint.
+     *
+     * @param address address of the endpoint
+     * @return retransmission timeout in milliseconds
+     */
+    int getRetransmissionTimeout(InetSocketAddress address) {
+        PeerState peer = peers.get(address);
+        return peer == null ? PeerState.INITIAL_RTO : peer.getRto();
+    }
+
     /**
      * Private method to cache the outoing messages.
      *
@@ -181,12 +313,92 @@ public class OutgoingMessageHandler {
      */
     private void cacheMessage(CoAPMessage msg) {
         if (msg instanceof CoAPRequest) {
-            outgoingRequests.put(msg.getIdentifier(), (CoAPRequest) msg);
+            CoAPRequest request = (CoAPRequest) msg;
+            CoAPRequest previous = outgoingRequests.put(msg.getExchangeKey(), request);
+            if (previous != null && previous != request) {
+                unindex(previous);
+            }
+            TokenKey key = TokenKey.of(request);
+            if (key != null) {
+                requestsByToken.put(key, request);
+            }
         } else if (msg instanceof CoAPResponse) {
-            outgoingReplies.put(msg.getIdentifier(), (CoAPResponse) msg);
+            outgoingReplies.put(msg.getExchangeKey(), (CoAPResponse) msg);
+        }
+    }
+
+    /**
+     * Removes a request from the outgoing requests and the token index.
+     *
+     * @param request request to remove
+     */
+    private void removeRequest(CoAPRequest request) {
+        outgoingRequests.remove(request.getExchangeKey(), request);
+        unindex(request);
+    }
+
+    private void unindex(CoAPRequest request) {
+        TokenKey key = TokenKey.of(request);
+        if (key != null) {
+            requestsByToken.remove(key, request);
         }
     }
 
+    /**
+     * Keeps the request of an observation matched by its token after it has
+     * left the outgoing requests, as notifications keep arriving with the
+     * token until the observation ends.
+     *
+     * @param request observe request
+     */
+    public void registerObservation(CoAPRequest request) {
+        TokenKey key = TokenKey.of(request);
+        if (key != null) {
+            observationsByToken.put(key, request);
+        }
+    }
+
+    /**
+     * Stops matching notifications to an observe request registered with
+     * {@link #registerObservation(CoAPRequest)}.
+     *
+     * @param request observe request
+     */
+    public void unregisterObservation(CoAPRequest request) {
+        TokenKey key = TokenKey.of(request);
+        if (key != null) {
+            observationsByToken.remove(key, request);
+        }
+    }
+
+    /**
+     * Finds the outgoing request a response with the given token from the
+     * given endpoint answers. Requests sent to a multicast address match
+     * responses from any endpoint.
+     *
+     * @param response response to match
+     * @return matching request, or null if there is none
+     */
+    public CoAPRequest findRequestByToken(CoAPMessage response) {
+        byte[] token = response.getToken();
+        if (token == null || token.length == 0) {
+            return null;
+        }
+        CoAPRequest request = findByToken(requestsByToken, response.getSocketAddress(), token);
+        if (request == null) {
+            request = findByToken(observationsByToken, response.getSocketAddress(), token);
+        }
+        return request;
+    }
+
+    private static CoAPRequest findByToken(Map<TokenKey, CoAPRequest> index, InetSocketAddress endpoint, byte[] token) {
+        CoAPRequest request = index.get(new TokenKey(endpoint, token));
+        if (request == null) {
+            request = index.get(new TokenKey(null, token));
+        }
+        return request;
+    }
+
     /**
      * Generate a message ID between 0 and 655535 (those included). In this
      * implementation, the message ID is always increased by one (acc. to draft
@@ -211,21 +423,21 @@ public class OutgoingMessageHandler {
     }
 
     /**
-     * Return a list of responses that have been sent (for detecting duplicate
-     * messages for example)
+     * Return the cache of responses that have been sent (for detecting
+     * duplicate messages for example)
      *
-     * @return list of responses
+     * @return cache of responses
      */
-    public Map<String, CoAPResponse> getOutgoingResponses() {
+    public MessageCache<CoAPResponse> getOutgoingResponses() {
         return outgoingReplies;
     }
 
     /**
-     * Return a list of requests that have been sent
+     * Return the cache of requests that have been sent
      *
-     * @return list of requests
+     * @return cache of requests
      */
-    public Map<String, CoAPRequest> getOutgoingRequests() {
+    public MessageCache<CoAPRequest> getOutgoingRequests() {
         return outgoingRequests;
     }
 
@@ -236,47 +448,210 @@ public class OutgoingMessageHandler {
      * @param message message for which a confirmation was received
      */
     protected void removeRetransmissionTask(CoAPMessage message) {
-        retransmissionTasks
-                .entrySet()
-                .stream()
-                .filter(e -> e.getValue().getMessage().getIdentifier().equals(message.getIdentifier()))
-                .findAny()
-                .ifPresent(e -> {
-                    e.getValue().cancel();
-                    retransmissionTasks.remove(e.getKey());
-                });
+        RetransmissionTask task = retransmissionTaskOf(message);
+        // Only the first acknowledgement completes the exchange
+        if (task == null || !task.completed.compareAndSet(false, true)) {
+            return;
+        }
+        task.cancel();
+        retransmissions.remove(task.message.getExchangeKey(), task);
+        if (!message.messageCanceled()) {
+            task.peer.update(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - task.firstSent), message.getRetransmissions());
+        }
+        if (task.message instanceof CoAPRequest) {
+            release(task.peer);
+        }
     }
 
     /**
-     * This method is used when the bundle is stopped. It will cancel the timer
-     * and the scheduled tasks.
+     * Returns the retransmission task of the exchange of a message.
+     *
+     * @param message message
+     * @return retransmission task, or null if there is none
+     */
+    private RetransmissionTask retransmissionTaskOf(CoAPMessage message) {
+        return retransmissions.get(message.getExchangeKey());
+    }
+
+    /**
+     * This method is used when the bundle is stopped. It will cancel the
+     * scheduled retransmissions.
      */
     public void stopService() {
-        if (timer != null) {
-            timer.cancel();
+        retransmissions.values().forEach(RetransmissionTask::cancel);
+        retransmissions.clear();
+        peers.clear();
+        observationsByToken.clear();
+    }
+
+    /**
+     * Key of the token index: the endpoint a request was sent to and its
+     * token. The endpoint is null for requests sent to a multicast address.
+     */
+    private static final class TokenKey {
+
+        private final InetSocketAddress endpoint;
+        private final byte[] token;
+        private final int hash;
+
+        private TokenKey(InetSocketAddress endpoint, byte[] token) {
+            this.endpoint = endpoint;
+            this.token = token;
+            this.hash = 31 * Objects.hashCode(endpoint) + Arrays.hashCode(token);
+        }
+
+        private static TokenKey of(CoAPRequest request) {
+            byte[] token = request.getToken();
+            if (token == null || token.length == 0) {
+                return null;
+            }
+            InetSocketAddress endpoint = request.getSocketAddress();
+            if (endpoint != null && endpoint.getAddress() != null && endpoint.getAddress().isMulticastAddress()) {
+                endpoint = null;
+            }
+            return new TokenKey(endpoint, token.clone());
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TokenKey)) {
+                return false;
+            }
+            TokenKey other = (TokenKey) obj;
+            return Objects.equals(endpoint, other.endpoint) && Arrays.equals(token, other.token);
+        }
+    }
+
+    /**
+     * Transmission state of one endpoint: the requests outstanding and waiting
+     * under NSTART, and a retransmission timeout estimated from measured round
+     * trip times in the style of CoCoA.
+     */
+    private static final class PeerState {
+
+        private static final int INITIAL_RTO = 2000;
+        private static final int MIN_RTO = 200;
+        private static final int MAX_RTO = 60000;
+        private static final double ACK_RANDOM_FACTOR = 1.5;
+
+        // queue and outstanding are guarded by the PeerState
+        private final Deque<CoAPRequest> queue = new ArrayDeque<>();
+        private int outstanding;
+
+        private final RttEstimator strong = new RttEstimator(4);
+        private final RttEstimator weak = new RttEstimator(1);
+        private double rto = INITIAL_RTO;
+
+        /**
+         * Adds a round trip time sample, measured from the first
+         * transmission. Exchanges answered on the first transmission feed the
+         * strong estimator, exchanges that needed one or two retransmissions
+         * the weak one. Later samples are too ambiguous to use.
+         *
+         * @param rtt round trip time in milliseconds
+         * @param transmissions number of times the message was sent
+         */
+        private synchronized void update(long rtt, int transmissions) {
+            if (transmissions <= 1) {
+                rto = 0.5 * strong.update(rtt) + 0.5 * rto;
+            } else if (transmissions <= 3) {
+                rto = 0.25 * weak.update(rtt) + 0.75 * rto;
+            } else {
+                return;
+            }
+            rto = Math.min(Math.max(rto, MIN_RTO), MAX_RTO);
+        }
+
+        private synchronized int getRto() {
+            return (int) rto;
+        }
+
+        /**
+         * @return timeout for the first transmission, randomized between RTO
+         * and RTO * ACK_RANDOM_FACTOR
+         */
+        private int initialTimeout() {
+            int current = getRto();
+            return current + ThreadLocalRandom.current().nextInt((int) (current * (ACK_RANDOM_FACTOR - 1)) + 1);
+        }
+    }
+
+    /**
+     * Smoothed round trip time and variation as in RFC 6298, with a
+     * configurable variance multiplier.
+     */
+    private static final class RttEstimator {
+
+        private final int k;
+        private double srtt;
+        private double rttvar;
+        private boolean sampled;
+
+        private RttEstimator(int k) {
+            this.k = k;
+        }
+
+        private double update(long rtt) {
+            if (!sampled) {
+                srtt = rtt;
+                rttvar = rtt / 2.0;
+                sampled = true;
+            } else {
+                rttvar = 0.75 * rttvar + 0.25 * Math.abs(srtt - rtt);
+                srtt = 0.875 * srtt + 0.125 * rtt;
+            }
+            return srtt + k * rttvar;
         }
     }
 
     /**
      * Inner class for running the retransmission timers for outgoing,
-     * confirmable messages
+     * confirmable messages. The timeout doubles after every transmission.
      */
-    private class RetransmissionTask extends TimerTask {
+    private class RetransmissionTask implements Runnable {
 
         private final CoAPMessage message;
+        private final PeerState peer;
+        private final long firstSent;
+        private final AtomicBoolean completed = new AtomicBoolean();
+        private volatile int nextTimeout;
+        private volatile HashedWheelTimer.Timeout timeout;
 
-        protected RetransmissionTask(CoAPMessage message) {
+        protected RetransmissionTask(CoAPMessage message, PeerState peer, int initialTimeout) {
             this.message = message;
+            this.peer = peer;
+            this.firstSent = System.nanoTime();
+            this.nextTimeout = initialTimeout;
+        }
+
+        private void schedule() {
+            timeout = timer.schedule(this, nextTimeout);
+            nextTimeout *= 2;
         }
 
         @Override
         public void run() {
-            LOGGER.debug("Retransmit message with ID: " + message.getIdentifier());
-            send(this.message, true);
+            if (completed.get()) {
+                return;
+            }
+            LOGGER.debug("Retransmit message with ID: {}", message.getExchangeKey());
+            transmit(this.message, this);
         }
 
         public CoAPMessage getMessage() {
             return this.message;
         }
+
+        public void cancel() {
+            HashedWheelTimer.Timeout scheduled = timeout;
+            if (scheduled != null) {
+                scheduled.cancel();
+            }
+        }
     }
 }
@@ -34,10 +34,6 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.util;
 
-import static com.ericsson.common.util.BitUtil.getBitsInByteAsByte;
-import static com.ericsson.common.util.BitUtil.mergeBytesToShort;
-import com.ericsson.common.util.function.FunctionalUtil;
-import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat;
@@ -49,29 +45,51 @@ import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponseCode;
 import java.net.DatagramPacket;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * This class is responsible for decoding a byte array containing CoAP message
- * (either request or response)
+ * This class is responsible for decoding a byte buffer containing CoAP message
+ * (either request or response). The buffer is read with absolute offsets and
+ * option values and payload of the decoded message are views to it, so the
+ * content of the buffer must not change while the message is in use.
  */
 public class CoAPMessageReader implements CoAPMessageFormat {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CoAPMessageReader.class);
+    private static final int NIBBLE = 0x0F;
     // this is the message being decoded
     private CoAPMessage message;
-    private final DatagramPacket packet;
+    private final ByteBuffer buffer;
+    private final InetSocketAddress source;
+    private final int start;
+    private final int end;
     private boolean okOptions;
 
     /**
      * Constructor. A datagram containing the data to be decoded is given as
-     * parameter.
+     * parameter. The decoded message refers to the data of the datagram.
      *
      * @param packet
      */
     public CoAPMessageReader(DatagramPacket packet) {
-        this.packet = packet;
+        this(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()),
+                packet.getPort() != -1 ? (InetSocketAddress) packet.getSocketAddress() : null);
+    }
+
+    /**
+     * Constructor. The bytes between the position and the limit of the buffer
+     * are decoded, the position of the buffer is not moved.
+     *
+     * @param buffer buffer containing the message
+     * @param source address the message came from, or null if unknown
+     */
+    public CoAPMessageReader(ByteBuffer buffer, InetSocketAddress source) {
+        this.buffer = buffer;
+        this.source = source;
+        this.start = buffer.position();
+        this.end = buffer.limit();
         this.okOptions = true;
     }
 
@@ -86,7 +104,7 @@ public class CoAPMessageReader implements CoAPMessageFormat {
     }
 
     public CoAPMessage decodeStart() throws IncorrectMessageException {
-        decodeStartPos(packet.getData());
+        decodeStartPos();
         return message;
     }
 
@@ -98,69 +116,55 @@ public class CoAPMessageReader implements CoAPMessageFormat {
      * com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat.IncorrectMessageException
      */
     public CoAPMessage decode() throws IncorrectMessageException {
-        byte[] bytes = packet.getData();
-        StringBuilder sb = new StringBuilder(bytes.length * Byte.SIZE);
-        for (int i = 0; i < Byte.SIZE * bytes.length; i++) {
-            if (bytes[i / Byte.SIZE] == 0) {
-                break;
-            }
-            sb.append((bytes[i / Byte.SIZE] << i % Byte.SIZE & 0x80) == 0 ? '0' : '1');
-        }
-        LOGGER.debug("CoAPMessageReader: Decode message: " + sb);
+        LOGGER.debug("CoAPMessageReader: Decode message of {} bytes", end - start);
 
-        int position = decodeStartPos(bytes);
+        int position = decodeStartPos();
+        if (message == null) {
+            return null;
+        }
 
-        position = decodeOptions(bytes, position);
+        position = decodeOptions(position);
 
         // Only payload left
-        readPayload(bytes, position);
+        message.setPayload(view(position, end - position));
 
         return message;
     }
 
-    private int decodeStartPos(byte[] bytes) throws IncorrectMessageException {
-        int position = 0;
-        // Get version
+    private int decodeStartPos() throws IncorrectMessageException {
+        if (end - start < 4) {
+            throw new IncorrectMessageException("Message too short: " + (end - start));
+        }
+        int position = start;
+        int first = buffer.get(position++);
         // Version should be the first 2 bits (unsigned)
-        byte versionByte = getBitsInByteAsByte(bytes[position], VERSION_START, VERSION_LENGTH);
-        int version = (int) versionByte & 0xff;
+        int version = (first >>> VERSION_START) & 0x03;
         if (version != 1) {
             //MUST be silently ignored //TODO: Handle this
             throw new IncorrectMessageException("Wrong version: " + version);
         }
 
-        // Get type
-        byte typeByte = getBitsInByteAsByte(bytes[position], TYPE_START, TYPE_LENGTH);
-        int type = (int) typeByte & 0xff;
+        int type = (first >>> TYPE_START) & 0x03;
 
-        // Get token length
-        byte tokenLengthByte = getBitsInByteAsByte(bytes[position], TOKEN_LENGTH_START, TOKEN_LENGTH_LENGTH);
-        position++;
-        int tokenLength = (int) tokenLengthByte & 0xff;
+        int tokenLength = first & NIBBLE;
         if (tokenLength > 8) {
             //MUST NOT be send and MUST be processed as a message format error //TODO: Handle this
             throw new IncorrectMessageException("Wrong token length: " + tokenLength);
         }
 
-        // Get code
-        byte codeByte = getBitsInByteAsByte(bytes[position], CODE_START, CODE_LENGTH);
-        position++;
-        int code = (int) codeByte & 0xff;
+        int code = buffer.get(position++) & 0xFF;
 
-        // Get message id
-        // Message ID is a 16-bit unsigned => merge two bytes
-        byte firstByte = bytes[position];
-        position++;
-        byte secondByte = bytes[position];
-        position++;
-        short shortInt = mergeBytesToShort(firstByte, secondByte);
-        // mask to unsigned 16 bit -> int
-        int messageId = shortInt & 0xFFFF;
+        // Message ID is a 16-bit unsigned
+        int messageId = readUnsignedShort(position);
+        position += 2;
 
-        //Get token
+        if (position + tokenLength > end) {
+            throw new IncorrectMessageException("Token exceeds message: " + tokenLength);
+        }
         byte[] token = new byte[tokenLength];
-        System.arraycopy(bytes, position, token, 0, tokenLength);
-        position += tokenLength;
+        for (int i = 0; i < tokenLength; i++) {
+            token[i] = buffer.get(position++);
+        }
 
         CoAPMessageType messageType = CoAPMessageType.getType(type);
 
@@ -175,68 +179,67 @@ public class CoAPMessageReader implements CoAPMessageFormat {
             // TODO exception handling
             message = null;
         }
-        if (message != null && packet.getPort() != -1) {
-            message.setSocketAddress((InetSocketAddress) packet.getSocketAddress());
+        if (message != null && source != null) {
+            message.setSocketAddress(source);
         }
-        FunctionalUtil.acceptIfCan(CoAPRequest.class, message, m -> {
-            try {
-                m.createUriFromRequest(packet.getSocketAddress());
-            } catch (CoAPException e) {
-                LOGGER.debug("Creating URI from request failed.", e);
-            }
-        });
         return position;
     }
 
     /**
-     * This method decodes the options in the given data
+     * This method decodes the options starting from the given position.
      *
-     * @param bytes bytes to decode
-     * @param optionCount option count (determined from the option count header)
+     * @param position offset of the first option
+     * @return offset of the payload
      */
-    private int decodeOptions(byte[] bytes, int position) throws IncorrectMessageException {
-        int cur = bytes[position];
-        position++;
-        int delta = getBitsInByteAsByte((byte) cur, OPTION_DELTA_START, OPTION_DELTA_LENGTH);
-        int length = getBitsInByteAsByte((byte) cur, OPTION_LENGTH_START, OPTION_LENGTH_LENGTH);
+    private int decodeOptions(int position) throws IncorrectMessageException {
         int optionNumber = 0;
         // An Option can be followed by the end of the message, by another Option, or by the Payload Marker and the payload.
-        while (delta != PAYLOAD_MARKER) {
-            if (length == 0 && delta == 0) {
+        while (position < end) {
+            int cur = buffer.get(position++);
+            int delta = (cur >>> OPTION_DELTA_START) & NIBBLE;
+            int length = cur & NIBBLE;
+            if (delta == PAYLOAD_MARKER) {
+                if (length != PAYLOAD_MARKER) {
+                    // If the field is set to this value but the entire byte is not the payload marker, this MUST be processed as a message format error.
+                    throw new IncorrectMessageException("Payload marker was bad: " + length + " at position " + (position - start)); //TODO: Handle this
+                }
+                if (position == end) {
+                    // The presence of a marker followed by a zero-length payload MUST be processed as a message format error.
+                    throw new IncorrectMessageException("Empty payload after payload marker"); //TODO: Handle this
+                }
                 return position;
             }
+            if (length == RESERVED) {
+                throw new IncorrectMessageException("Reserved option length at position " + (position - start));
+            }
+
             //Determine option number
             if (delta == ADDITIONAL_DELTA) {
-                delta += bytes[position];
-                position++;
+                delta += readUnsignedByte(position++);
             } else if (delta == ADDITIONAL_DELTA_2) {
-                cur = bytes[position];
-                position++;
-                delta = ADDITIONAL_DELTA_MAX + ((cur << 8) + bytes[position]);
-                position++;
+                delta = ADDITIONAL_DELTA_MAX + readUnsignedShort(position);
+                position += 2;
             }
             optionNumber += delta;
             CoAPOptionName name = CoAPOptionName.getFromNo(optionNumber);
 
             //Determine length
             if (length == ADDITIONAL_LENGTH) {
-                length += bytes[position];
-                position++;
+                length += readUnsignedByte(position++);
             } else if (length == ADDITIONAL_LENGTH_2) {
-                cur = bytes[position];
-                position++;
-                length = ADDITIONAL_LENGTH_MAX + ((cur << 8) + bytes[position]);
-                position++;
+                length = ADDITIONAL_LENGTH_MAX + readUnsignedShort(position);
+                position += 2;
+            }
+            if (position + length > end) {
+                throw new IncorrectMessageException("Option value exceeds message at position " + (position - start));
             }
             if (!name.isLegalSize(length)) {
                 //If the length of an option value in a request is outside the defined range, that option MUST be treated like an unrecognized option
                 okOptions = false; //TODO: Handle this
             }
 
-            byte[] value = new byte[length];
-            System.arraycopy(bytes, position, value, 0, length);
+            boolean okToAdd = message.addOptionHeader(new CoAPOptionHeader(name, view(position, length)));
             position += length;
-            boolean okToAdd = message.addOptionHeader(new CoAPOptionHeader(name, value));
             // TODO draft-ietf-core-coap-08 specifies behaviour when
             // unrecognized options are received in confirmable req/resp.
             // So apply to CON messages only
@@ -244,35 +247,34 @@ public class CoAPMessageReader implements CoAPMessageFormat {
                 this.okOptions = false; //TODO: Handle this
                 LOGGER.debug("Unrecognized options in a confirmable message");
             }
-
-            if (position >= bytes.length) {
-                return position;
-            }
-            cur = bytes[position];
-            position++;
-            delta = getBitsInByteAsByte((byte) cur, OPTION_DELTA_START, OPTION_DELTA_LENGTH);
-            length = getBitsInByteAsByte((byte) cur, OPTION_LENGTH_START, OPTION_LENGTH_LENGTH);
-        }
-        if (length != PAYLOAD_MARKER) {
-            // If the field is set to this value but the entire byte is not the payload marker, this MUST be processed as a message format error.
-            throw new IncorrectMessageException("Payload marker was bad: " + length + " at position " + position); //TODO: Handle this
-        }
-        if (position == bytes.length - 1) {
-            // The presence of a marker followed by a zero-length payload MUST be processed as a message format error.
-            throw new IncorrectMessageException("Empty payload after payload marker"); //TODO: Handle this
         }
         return position;
     }
 
+    private int readUnsignedByte(int position) throws IncorrectMessageException {
+        if (position >= end) {
+            throw new IncorrectMessageException("Unexpected end of message at position " + (position - start));
+        }
+        return buffer.get(position) & 0xFF;
+    }
+
+    private int readUnsignedShort(int position) throws IncorrectMessageException {
+        return (readUnsignedByte(position) << 8) | readUnsignedByte(position + 1);
+    }
+
     /**
-     * Read the content of the message
+     * Creates a view to the given region of the buffer without copying.
      *
-     * @param bytes byte array to decode
+     * @param position absolute offset of the region
+     * @param length length of the region
+     * @return view to the region
      */
-    private void readPayload(byte[] bytes, int position) {
-        int bytesLeft = bytes.length - position;
-        byte[] payload = new byte[bytesLeft];
-        System.arraycopy(bytes, position, payload, 0, bytesLeft);
-        message.setPayload(payload);
+    private ByteBuffer view(int position, int length) {
+        if (buffer.hasArray()) {
+            return ByteBuffer.wrap(buffer.array(), buffer.arrayOffset() + position, length);
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(position + length).position(position);
+        return view;
     }
 }
@@ -34,31 +34,29 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.util;
 
-import com.ericsson.common.util.BitUtil;
-import static com.ericsson.common.util.BitUtil.getBitsInIntAsByte;
-import static com.ericsson.common.util.BitUtil.getBitsInIntAsInt;
-import static com.ericsson.common.util.BitUtil.setBitsInByte;
-import static com.ericsson.common.util.BitUtil.splitIntToBytes;
-import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPCode;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionHeader;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.util.Collections;
-import java.util.List;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * This class is responsible for encoding a CoAPMessage (either request or
- * response) into a byte array
+ * response). The exact size of the encoded message is computed first, after
+ * which the message is written in a single pass into a byte array or a buffer
+ * given by the caller.
  */
 public class CoAPMessageWriter implements CoAPMessageFormat {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CoAPMessageWriter.class);
+    private static final int HEADER_LENGTH = 4;
+    private static final int PAYLOAD_MARKER_BYTE = PAYLOAD_MARKER << OPTION_DELTA_START | PAYLOAD_MARKER;
     private final CoAPMessage message;
-    private final ByteArrayOutputStream outputStream;
+    private ByteBuffer out;
+    private int previousOption;
+    private int length;
 
     /**
      * Constructor.
@@ -67,7 +65,24 @@ public class CoAPMessageWriter implements CoAPMessageFormat {
      */
     public CoAPMessageWriter(CoAPMessage message) {
         this.message = message;
-        this.outputStream = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Computes the number of bytes the encoded message takes.
+     *
+     * @return encoded size in bytes
+     * @throws
+     * com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat.IncorrectMessageException
+     */
+    public int encodedLength() throws IncorrectMessageException {
+        length = HEADER_LENGTH + tokenLength();
+        previousOption = 0;
+        message.forEachOptionHeader(this::measureOption);
+        int payloadLength = message.getPayloadLength();
+        if (payloadLength > 0) {
+            length += 1 + payloadLength;
+        }
+        return length;
     }
 
     /**
@@ -78,148 +93,122 @@ public class CoAPMessageWriter implements CoAPMessageFormat {
      * com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat.IncorrectMessageException
      */
     public byte[] encode() throws IncorrectMessageException {
-        LOGGER.debug("CoAPMessageWriter: encode a message with message ID " + message.getIdentifier());
-        // These are the header that all messages should have
-        int version = message.getVersion();
-        int messageType = message.getMessageType().getNo();
+        byte[] bytes = new byte[encodedLength()];
+        write(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Encodes the message into the given buffer starting from its position.
+     * After the call the position of the buffer is after the message. The
+     * message is not measured first, the length is what was written.
+     *
+     * @param buffer buffer to write to
+     * @return number of bytes written
+     * @throws
+     * com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat.IncorrectMessageException
+     * @throws BufferOverflowException if the message does not fit into the
+     * remaining space of the buffer, the position of the buffer is then left
+     * unchanged
+     */
+    public int encode(ByteBuffer buffer) throws IncorrectMessageException {
+        int start = buffer.position();
+        try {
+            write(buffer);
+        } catch (BufferOverflowException e) {
+            out = null;
+            buffer.position(start);
+            throw e;
+        }
+        return buffer.position() - start;
+    }
+
+    private int tokenLength() throws IncorrectMessageException {
         byte[] token = message.getToken();
         int tokenLength = token == null ? 0 : token.length;
         if (tokenLength > 8) {
             //MUST NOT be send and MUST be processed as a message format error
             throw new IncorrectMessageException("Wrong token length: " + tokenLength); //TODO: Handle this
         }
-        CoAPCode messageCode = message.getCode();
-
-        // First byte with version, message type & option count
-        byte headerByte = setBitsInByte(0, VERSION_START,
-                VERSION_LENGTH,
-                getBitsInIntAsByte(version, 0, VERSION_LENGTH));
-        headerByte = setBitsInByte(headerByte, TYPE_START,
-                TYPE_LENGTH,
-                getBitsInIntAsByte(messageType, 0, TYPE_LENGTH));
-        headerByte = setBitsInByte(headerByte,
-                TOKEN_LENGTH_START, TOKEN_LENGTH_LENGTH,
-                getBitsInIntAsByte(tokenLength, 0, TOKEN_LENGTH_LENGTH));
-
-        outputStream.write(headerByte);
-
-        byte codeByte = setBitsInByte(0, CODE_START,
-                CODE_LENGTH,
-                getBitsInIntAsByte(messageCode.getNo(), 0, CODE_LENGTH));
+        return tokenLength;
+    }
 
-        outputStream.write(codeByte);
+    private void write(ByteBuffer buffer) throws IncorrectMessageException {
+        LOGGER.debug("CoAPMessageWriter: encode a message with message ID {}", message.getMessageId());
+        byte[] token = message.getToken();
+        int tokenLength = tokenLength();
 
+        // First byte with version, message type & token length
+        buffer.put((byte) ((message.getVersion() & 0x03) << VERSION_START
+                | (message.getMessageType().getNo() & 0x03) << TYPE_START
+                | tokenLength));
+        buffer.put((byte) message.getCode().getNo());
         // Message ID is a 16-bit unsigned => two bytes
-        byte[] messageIdBytes = splitIntToBytes(message.getMessageId());
-        outputStream.write(messageIdBytes[2]);
-        outputStream.write(messageIdBytes[3]);
-
-        for (int n = 0; n < tokenLength; n++) {
-            outputStream.write(token[n]);
+        buffer.putShort((short) message.getMessageId());
+        if (tokenLength > 0) {
+            buffer.put(token);
         }
 
-        this.encodeOptionHeaders();
+        out = buffer;
+        previousOption = 0;
+        message.forEachOptionHeader(this::writeOption);
+        out = null;
 
-        if (message.getPayload() != null && message.getPayload().length > 0) {
-            try {
-                outputStream.write(PAYLOAD_MARKER);
-                outputStream.write(message.getPayload());
-            } catch (IOException e) {
-                LOGGER.debug("Writing payload failed.", e);
-            }
+        ByteBuffer payload = message.getPayloadBuffer();
+        if (payload != null && payload.hasRemaining()) {
+            buffer.put((byte) PAYLOAD_MARKER_BYTE);
+            buffer.put(payload);
         }
+    }
 
-        byte[] byteArray = outputStream.toByteArray();
+    private void measureOption(CoAPOptionHeader header) {
+        int delta = header.getOptionNumber() - previousOption;
+        previousOption = header.getOptionNumber();
+        length += 1 + extendedSize(delta) + extendedSize(header.getLength()) + header.getLength();
+    }
 
-        try {
-            outputStream.flush();
-            outputStream.close();
-        } catch (IOException e) {
-            LOGGER.debug("Ending message writing failed.", e);
+    /**
+     * Encodes one option header. Options are given in option number order.
+     */
+    private void writeOption(CoAPOptionHeader header) {
+        int optionNumber = header.getOptionNumber();
+        int delta = optionNumber - previousOption;
+        previousOption = optionNumber;
+        int optionLength = header.getLength();
+
+        out.put((byte) (nibble(delta) << OPTION_DELTA_START | nibble(optionLength)));
+        writeExtended(delta);
+        writeExtended(optionLength);
+        if (optionLength > 0) {
+            out.put(header.getValue(), 0, optionLength);
         }
+    }
 
-        return byteArray;
+    /**
+     * Number of extra bytes needed for an option delta or length.
+     */
+    private static int extendedSize(int value) {
+        if (value >= ADDITIONAL_LENGTH_MAX) {
+            return 2;
+        }
+        return value >= ADDITIONAL_LENGTH ? 1 : 0;
     }
 
     /**
-     * This method encodes the option headers that are part of the message
+     * Value of the 4-bit field for an option delta or length.
      */
-    private void encodeOptionHeaders() {
-
-        // Sort options
-        // TODO is there better to handle this??
-        List<CoAPOptionHeader> options = message.getOptionHeaders();
-        Collections.sort(options);
-
-        // MultiMap options = message.getOptionHeaders();
-        int previousOption = 0;
-
-        // Go through different option numbers
-        for (CoAPOptionHeader header : options) {
-            int optionNumber = header.getOptionNumber();
-
-            //Determine delta and if needed additional deltas
-            int optionDelta = optionNumber - previousOption;
-            int additionalDelta1 = -1;
-            int additionalDelta2 = -1;
-            if (optionDelta >= ADDITIONAL_DELTA) {
-                if (optionDelta >= ADDITIONAL_DELTA_MAX) {
-                    optionDelta -= ADDITIONAL_DELTA_MAX;
-                    additionalDelta1 = getBitsInIntAsInt(optionDelta, 0, 8);
-                    additionalDelta2 = getBitsInIntAsInt(optionDelta, 8, 8);
-                    optionDelta = ADDITIONAL_DELTA_2;
-                } else {
-                    additionalDelta1 = optionDelta - ADDITIONAL_DELTA;
-                    optionDelta = ADDITIONAL_DELTA;
-                }
-            }
-            byte optionByte = setBitsInByte(0,
-                    OPTION_DELTA_START, OPTION_DELTA_LENGTH, BitUtil
-                    .getBitsInIntAsByte(optionDelta, 0,
-                            OPTION_DELTA_LENGTH));
-            previousOption = optionNumber;
-
-            //Determine optionLength and if needed additional lengths
-            int optionLength = header.getLength();
-            int additionalLength1 = -1;
-            int additionalLength2 = -1;
-            if (optionLength >= ADDITIONAL_LENGTH) {
-                if (optionLength >= ADDITIONAL_LENGTH_MAX) {
-                    optionLength -= ADDITIONAL_LENGTH_MAX;
-                    additionalLength1 = getBitsInIntAsInt(optionLength, 0, 8);
-                    additionalLength2 = getBitsInIntAsInt(optionLength, 8, 8);
-                    optionLength = ADDITIONAL_LENGTH_2;
-                } else {
-                    additionalLength1 = optionLength - ADDITIONAL_LENGTH;
-                    optionLength = ADDITIONAL_LENGTH;
-                }
-            }
-            optionByte = setBitsInByte(optionByte,
-                    OPTION_LENGTH_START, OPTION_LENGTH_LENGTH,
-                    getBitsInIntAsByte(optionLength, 0,
-                            OPTION_LENGTH_LENGTH));
-            outputStream.write(optionByte);
-
-            if (additionalDelta1 != -1) {
-                outputStream.write(additionalDelta1);
-            }
-            if (additionalDelta2 != -1) {
-                outputStream.write(additionalDelta2);
-            }
-            if (additionalLength1 != -1) {
-                outputStream.write(additionalLength1);
-            }
-            if (additionalLength2 != -1) {
-                outputStream.write(additionalLength2);
-            }
-
-            if (header.getLength() > 0) {
-                try {
-                    outputStream.write(header.getValue());
-                } catch (IOException e) {
-                    LOGGER.debug("Writing header failed.", e);
-                }
-            }
+    private static int nibble(int value) {
+        if (value >= ADDITIONAL_LENGTH_MAX) {
+            return ADDITIONAL_LENGTH_2;
+        }
+        return value >= ADDITIONAL_LENGTH ? ADDITIONAL_LENGTH : value;
+    }
+
+    private void writeExtended(int value) {
+        if (value >= ADDITIONAL_LENGTH_MAX) {
+            out.putShort((short) (value - ADDITIONAL_LENGTH_MAX));
+        } else if (value >= ADDITIONAL_LENGTH) {
+            out.put((byte) (value - ADDITIONAL_LENGTH));
         }
     }
 }
@@ -0,0 +1,398 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer that keeps its timeouts in a hashed wheel of buckets, as described by
+ * Varghese and Lauck. Scheduling and cancelling a timeout are O(1) and all
+ * timeouts are expired by one worker thread, which ticks once per tick
+ * duration. Timeouts therefore fire up to one tick late.
+ * <p/>
+ * The CoAP stack uses one shared instance, see {@link #getShared()}, instead
+ * of a java.util.Timer thread per component. Tasks run on the worker thread
+ * and should not block.
+ */
+public final class HashedWheelTimer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HashedWheelTimer.class);
+    private static final HashedWheelTimer SHARED = new HashedWheelTimer("CoAP timer", 10, TimeUnit.MILLISECONDS, 512);
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public interface Timeout {
+
+        /**
+         * Cancels the task. A task that is already running is not
+         * interrupted, but a periodic task will not run again.
+         *
+         * @return true if the task was cancelled by this call
+         */
+        boolean cancel();
+
+        /**
+         * @return true if the task has been cancelled
+         */
+        boolean isCancelled();
+
+        /**
+         * @return true if a one-shot task has been run
+         */
+        boolean isExpired();
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Entry> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private volatile Thread worker;
+    private volatile long startTime;
+
+    /**
+     * Creates a timer. The worker thread is started when the first task is
+     * scheduled.
+     *
+     * @param name name of the worker thread
+     * @param tickDuration duration of one tick
+     * @param unit unit of the tick duration
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be positive: " + tickDuration);
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > 1 << 30) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+        int size = Integer.highestOneBit(ticksPerWheel);
+        if (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.name = name;
+        this.tickNanos = unit.toNanos(tickDuration);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Returns the timer shared by the CoAP stack.
+     *
+     * @return shared timer
+     */
+    public static HashedWheelTimer getShared() {
+        return SHARED;
+    }
+
+    /**
+     * Schedules a task to run once after the given delay.
+     *
+     * @param task task to run
+     * @param delay delay in milliseconds
+     * @return handle for cancelling the task
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        return schedule(task, delay, 0);
+    }
+
+    /**
+     * Schedules a task to run after the given delay and then repeatedly at a
+     * fixed rate. A period of zero runs the task once.
+     *
+     * @param task task to run
+     * @param delay delay in milliseconds
+     * @param period period in milliseconds
+     * @return handle for cancelling the task
+     */
+    public Timeout schedule(Runnable task, long delay, long period) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (period < 0) {
+            throw new IllegalArgumentException("Negative period: " + period);
+        }
+        start();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delay, 0)) - startTime;
+        Entry entry = new Entry(this, task, deadline, TimeUnit.MILLISECONDS.toNanos(period));
+        pending.incrementAndGet();
+        added.add(entry);
+        return entry;
+    }
+
+    /**
+     * @return number of tasks that are scheduled and not yet expired or
+     * cancelled
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the worker thread and drops all scheduled tasks. Scheduling a new
+     * task starts the timer again.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (this) {
+            thread = worker;
+            worker = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        if (thread != Thread.currentThread()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void start() {
+        if (worker != null) {
+            return;
+        }
+        synchronized (this) {
+            if (worker == null) {
+                startTime = System.nanoTime();
+                Thread thread = new Thread(this::work, name);
+                thread.setDaemon(true);
+                worker = thread;
+                thread.start();
+            }
+        }
+    }
+
+    private void work() {
+        Thread self = Thread.currentThread();
+        long tick = 0;
+        while (worker == self) {
+            if (!waitForTick(tick)) {
+                break;
+            }
+            removeCancelled();
+            transferAdded(tick);
+            expire(wheel[(int) (tick & mask)], tick);
+            tick++;
+        }
+        clear();
+    }
+
+    private boolean waitForTick(long tick) {
+        long deadline = startTime + tickNanos * (tick + 1);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(remaining);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void removeCancelled() {
+        Entry entry;
+        while ((entry = cancelled.poll()) != null) {
+            if (entry.bucket != null) {
+                entry.bucket.remove(entry);
+                pending.decrementAndGet();
+            }
+        }
+    }
+
+    private void transferAdded(long tick) {
+        Entry entry;
+        while ((entry = added.poll()) != null) {
+            if (entry.state == Entry.CANCELLED) {
+                pending.decrementAndGet();
+            } else {
+                place(entry, tick);
+            }
+        }
+    }
+
+    /**
+     * Places an entry before the bucket of the given tick is expired, so the
+     * bucket of the target is visited first on tick, ..., tick + size - 1.
+     */
+    private void place(Entry entry, long tick) {
+        long target = Math.max(entry.deadline / tickNanos, tick);
+        entry.rounds = (target - tick) / wheel.length;
+        wheel[(int) (target & mask)].add(entry);
+    }
+
+    private void expire(Bucket bucket, long tick) {
+        Entry entry = bucket.head;
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.rounds > 0) {
+                entry.rounds--;
+            } else {
+                bucket.remove(entry);
+                run(entry, tick);
+            }
+            entry = next;
+        }
+    }
+
+    private void run(Entry entry, long tick) {
+        boolean periodic = entry.period > 0;
+        if (periodic ? entry.state != Entry.INIT : !Entry.STATE.compareAndSet(entry, Entry.INIT, Entry.EXPIRED)) {
+            pending.decrementAndGet();
+            return;
+        }
+        try {
+            entry.task.run();
+        } catch (Throwable e) {
+            LOGGER.warn("Timer task " + entry.task + " failed.", e);
+        }
+        if (periodic && entry.state == Entry.INIT) {
+            // Placed with the next tick, the bucket being expired is only
+            // visited again a revolution later
+            entry.deadline += entry.period;
+            added.add(entry);
+        } else {
+            pending.decrementAndGet();
+        }
+    }
+
+    private void clear() {
+        for (Bucket bucket : wheel) {
+            bucket.head = null;
+            bucket.tail = null;
+        }
+        added.clear();
+        cancelled.clear();
+        pending.set(0);
+    }
+
+    /**
+     * Doubly linked list of the entries that expire on one tick of the wheel.
+     * Only touched by the worker thread.
+     */
+    private static final class Bucket {
+
+        private Entry head;
+        private Entry tail;
+
+        private void add(Entry entry) {
+            entry.bucket = this;
+            if (tail == null) {
+                head = entry;
+            } else {
+                tail.next = entry;
+                entry.prev = tail;
+            }
+            tail = entry;
+        }
+
+        private void remove(Entry entry) {
+            if (entry.prev == null) {
+                head = entry.next;
+            } else {
+                entry.prev.next = entry.next;
+            }
+            if (entry.next == null) {
+                tail = entry.prev;
+            } else {
+                entry.next.prev = entry.prev;
+            }
+            entry.prev = null;
+            entry.next = null;
+            entry.bucket = null;
+        }
+    }
+
+    private static final class Entry implements Timeout {
+
+        private static final int INIT = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Entry> STATE = AtomicIntegerFieldUpdater.newUpdater(Entry.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long period;
+        private long deadline;
+        private long rounds;
+        private volatile int state;
+        private Bucket bucket;
+        private Entry prev;
+        private Entry next;
+
+        private Entry(HashedWheelTimer timer, Runnable task, long deadline, long period) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, INIT, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return state == EXPIRED;
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.util;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat.IncorrectMessageException;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.ExchangeKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Bounded cache of CoAP messages by exchange, used for detecting duplicates
+ * and for answering them with the reply sent before. Entries expire after a
+ * lifetime, EXCHANGE_LIFETIME by default. The least recently used entries are
+ * evicted when the cache holds more than the maximum number of entries or the
+ * encoded size of its messages exceeds the byte budget.
+ * <p/>
+ * Lookups and insertions do not lock, the entries are kept in a
+ * ConcurrentHashMap and stamped with the time they were last used. The thread
+ * that takes the cache over a limit evicts the least recently used entries
+ * down to a little below the limit, so the sorting is shared by the following
+ * insertions. Between an insertion and its eviction the cache can briefly
+ * exceed its limits.
+ * <p/>
+ * Hits, misses, evictions and expirations are counted, so that the cache can
+ * be monitored.
+ *
+ * @param <V> type of the cached messages
+ */
+public final class MessageCache<V extends CoAPMessage> {
+
+    /**
+     * Time from sending a confirmable message until its message ID can be
+     * reused (RFC 7252, section 4.8.2), in milliseconds.
+     */
+    public static final long EXCHANGE_LIFETIME = 247000;
+
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    public static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+
+    // Size counted for a message that cannot be encoded
+    private static final int UNKNOWN_SIZE = 64;
+
+    // Eviction goes this fraction of a limit below it
+    private static final int EVICTION_SLACK = 16;
+
+    private final Map<ExchangeKey, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private volatile int maxEntries;
+    private volatile long maxBytes;
+    private volatile long lifetimeNanos;
+    private volatile Consumer<? super V> evictionListener;
+    // Entries are not swept for expired ones before this time
+    private volatile long nextSweep;
+
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * Creates a cache with EXCHANGE_LIFETIME expiry and the default limits.
+     */
+    public MessageCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_BYTES, EXCHANGE_LIFETIME);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param maxEntries maximum number of cached messages
+     * @param maxBytes maximum encoded size of the cached messages
+     * @param lifetime time in milliseconds after which an entry expires
+     */
+    public MessageCache(int maxEntries, long maxBytes, long lifetime) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(lifetime);
+        this.nextSweep = System.nanoTime() + lifetimeNanos;
+    }
+
+    /**
+     * Sets a listener that is called with each message evicted or expired
+     * from the cache, by the thread that removed it.
+     *
+     * @param evictionListener listener, or null
+     */
+    public void setEvictionListener(Consumer<? super V> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Returns the message of an exchange, unless it has expired. Counts a hit
+     * or a miss.
+     *
+     * @param key exchange key
+     * @return cached message or null
+     */
+    public V get(ExchangeKey key) {
+        Entry<V> entry = entries.get(key);
+        long now = System.nanoTime();
+        if (entry != null && entry.expires - now <= 0) {
+            if (discard(key, entry)) {
+                expirations.increment();
+            }
+            entry = null;
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.used = now;
+        hits.increment();
+        return entry.value;
+    }
+
+    /**
+     * Returns true if a message of the exchange is cached and not expired.
+     * Counts a hit or a miss.
+     *
+     * @param key exchange key
+     * @return true if the exchange is known
+     */
+    public boolean containsKey(ExchangeKey key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Caches a message and evicts expired and least recently used entries as
+     * needed.
+     *
+     * @param key exchange key
+     * @param value message
+     * @return message previously cached for the exchange, or null
+     */
+    public V put(ExchangeKey key, V value) {
+        long now = System.nanoTime();
+        long expires = now + lifetimeNanos;
+        Entry<V> entry = new Entry<>(value, sizeOf(value), expires, now);
+        Entry<V> previous = entries.put(key, entry);
+        bytes.addAndGet(previous == null ? entry.bytes : entry.bytes - previous.bytes);
+        if (expires - nextSweep < 0) {
+            nextSweep = expires;
+        }
+        if (now - nextSweep >= 0) {
+            sweep(now);
+        }
+        if (overLimits()) {
+            trim();
+        }
+        return previous == null ? null : previous.value;
+    }
+
+    /**
+     * Removes the message of an exchange.
+     *
+     * @param key exchange key
+     * @return removed message, or null
+     */
+    public V remove(ExchangeKey key) {
+        Entry<V> entry = entries.remove(key);
+        if (entry == null) {
+            return null;
+        }
+        bytes.addAndGet(-entry.bytes);
+        return entry.value;
+    }
+
+    /**
+     * Removes the message of an exchange if it is the given message.
+     *
+     * @param key exchange key
+     * @param value message to remove
+     * @return true if the message was removed
+     */
+    public boolean remove(ExchangeKey key, V value) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null || entry.value != value || !entries.remove(key, entry)) {
+            return false;
+        }
+        bytes.addAndGet(-entry.bytes);
+        return true;
+    }
+
+    /**
+     * Removes all messages.
+     */
+    public void clear() {
+        entries.forEach((key, entry) -> {
+            if (entries.remove(key, entry)) {
+                bytes.addAndGet(-entry.bytes);
+            }
+        });
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        this.maxEntries = maxEntries;
+        trim();
+    }
+
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+        trim();
+    }
+
+    /**
+     * Sets the lifetime of entries added from now on.
+     *
+     * @param lifetime lifetime in milliseconds
+     */
+    public void setLifetime(long lifetime) {
+        this.lifetimeNanos = TimeUnit.MILLISECONDS.toNanos(lifetime);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return encoded size of the cached messages in bytes
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries evicted to stay within the limits
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return number of entries dropped because their lifetime ended
+     */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "MessageCache[size=" + entries.size() + ", bytes=" + bytes.get() + ", hits=" + hits.sum()
+                + ", misses=" + misses.sum() + ", evictions=" + evictions.sum()
+                + ", expirations=" + expirations.sum() + "]";
+    }
+
+    private boolean overLimits() {
+        return entries.size() > maxEntries || bytes.get() > maxBytes;
+    }
+
+    /**
+     * Drops expired entries and finds when the next one expires. Sweeps are
+     * at least a sixteenth of the lifetime apart, expired entries in between
+     * are dropped when they are looked up or evicted.
+     */
+    private void sweep(long now) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            long next = now + lifetimeNanos;
+            for (Map.Entry<ExchangeKey, Entry<V>> e : entries.entrySet()) {
+                Entry<V> entry = e.getValue();
+                if (entry.expires - now > 0) {
+                    if (entry.expires - next < 0) {
+                        next = entry.expires;
+                    }
+                } else if (discard(e.getKey(), entry)) {
+                    expirations.increment();
+                }
+            }
+            long earliest = now + lifetimeNanos / EVICTION_SLACK;
+            nextSweep = next - earliest < 0 ? earliest : next;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache is a sixteenth
+     * of its limits below them.
+     */
+    private void trim() {
+        evictionLock.lock();
+        try {
+            if (!overLimits()) {
+                return;
+            }
+            int entryTarget = maxEntries - maxEntries / EVICTION_SLACK;
+            long byteTarget = maxBytes - maxBytes / EVICTION_SLACK;
+            // The use times are copied, as they change while sorting
+            List<Candidate<V>> candidates = new ArrayList<>(entries.size());
+            entries.forEach((key, entry) -> candidates.add(new Candidate<>(key, entry)));
+            candidates.sort((a, b) -> Long.signum(a.used - b.used));
+            for (Candidate<V> candidate : candidates) {
+                if (entries.size() <= entryTarget && bytes.get() <= byteTarget) {
+                    break;
+                }
+                if (discard(candidate.key, candidate.entry)) {
+                    evictions.increment();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private boolean discard(ExchangeKey key, Entry<V> entry) {
+        if (!entries.remove(key, entry)) {
+            return false;
+        }
+        bytes.addAndGet(-entry.bytes);
+        Consumer<? super V> listener = evictionListener;
+        if (listener != null) {
+            listener.accept(entry.value);
+        }
+        return true;
+    }
+
+    private static int sizeOf(CoAPMessage message) {
+        try {
+            return new CoAPMessageWriter(message).encodedLength();
+        } catch (IncorrectMessageException e) {
+            return UNKNOWN_SIZE;
+        }
+    }
+
+    private static final class Candidate<V> {
+
+        private final ExchangeKey key;
+        private final Entry<V> entry;
+        private final long used;
+
+        private Candidate(ExchangeKey key, Entry<V> entry) {
+            this.key = key;
+            this.entry = entry;
+            this.used = entry.used;
+        }
+    }
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private final int bytes;
+        private final long expires;
+        private volatile long used;
+
+        private Entry(V value, int bytes, long expires, long used) {
+            this.value = value;
+            this.bytes = bytes;
+            this.expires = expires;
+            this.used = used;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.util;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat.IncorrectMessageException;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Binary trace of the CoAP messages sent and received, for interop testing.
+ * Messages are recorded as their encoded datagrams and written to the trace
+ * file by a background thread, so recording never waits for the disk. When
+ * the file reaches its size limit it is moved aside to a file with the suffix
+ * ".1" and a new file is started, so at most two files are kept.
+ * <p/>
+ * Tracing can be started and stopped at runtime. While it is stopped,
+ * recording costs one volatile read. Records are only decoded and formatted
+ * when the trace is read, see {@link #read(File)}.
+ */
+public final class MessageTrace {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageTrace.class);
+    private static final MessageTrace SHARED = new MessageTrace();
+
+    private static final byte[] MAGIC = "CoAPTRC1".getBytes(StandardCharsets.US_ASCII);
+    private static final int QUEUE_SIZE = 4096;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // Set in the direction byte when the address is a host name that was
+    // not resolved
+    private static final int UNRESOLVED = 2;
+    private static final int MAX_HOST_LENGTH = 255;
+    // Tells the writer to stop. The writer is not interrupted, as that
+    // would close the file channel under it.
+    private static final Record END = new Record(0, Direction.IN, null, new byte[0]);
+
+    public static final long DEFAULT_MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Direction of a traced message.
+     */
+    public enum Direction {
+
+        IN, OUT
+    }
+
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean enabled;
+    private BlockingQueue<Record> queue;
+    private Thread writer;
+
+    /**
+     * Creates a stopped trace. The CoAP stack records to
+     * {@link #getShared()}.
+     */
+    public MessageTrace() {
+    }
+
+    /**
+     * Returns the trace shared by the CoAP stack.
+     *
+     * @return shared trace
+     */
+    public static MessageTrace getShared() {
+        return SHARED;
+    }
+
+    /**
+     * @return true if messages are being recorded
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Starts recording to the given file, replacing an earlier trace there.
+     * Stops a trace that is already running first.
+     *
+     * @param file trace file
+     * @param maxFileSize size at which the file is moved aside
+     * @throws IOException if the file cannot be opened
+     */
+    public synchronized void start(File file, long maxFileSize) throws IOException {
+        stop();
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        channel.write(ByteBuffer.wrap(MAGIC));
+        BlockingQueue<Record> records = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        Thread thread = new Thread(new Writer(file, maxFileSize, channel, records), "CoAP message trace");
+        thread.setDaemon(true);
+        queue = records;
+        writer = thread;
+        thread.start();
+        enabled = true;
+        LOGGER.info("Tracing CoAP messages to " + file);
+    }
+
+    /**
+     * Stops recording. The records already taken are written and the file is
+     * closed before this method returns.
+     */
+    public synchronized void stop() {
+        if (writer == null) {
+            return;
+        }
+        enabled = false;
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                // the writer may have given up, so don't wait for room forever
+                if (queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+                    writer.join();
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        queue = null;
+    }
+
+    /**
+     * Records an outgoing or incoming message. The message is encoded only
+     * if tracing is on.
+     *
+     * @param direction direction of the message
+     * @param message message
+     */
+    public void record(Direction direction, CoAPMessage message) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            record(direction, message.getSocketAddress(), new CoAPMessageWriter(message).encode());
+        } catch (IncorrectMessageException e) {
+            LOGGER.debug("Couldn't encode message for the trace.", e);
+        }
+    }
+
+    /**
+     * Records a datagram. The array is kept, so it must not be changed
+     * afterwards.
+     *
+     * @param direction direction of the datagram
+     * @param address remote address
+     * @param datagram content of the datagram
+     */
+    public void record(Direction direction, InetSocketAddress address, byte[] datagram) {
+        if (!enabled) {
+            return;
+        }
+        BlockingQueue<Record> records = queue;
+        if (records == null || !records.offer(new Record(System.currentTimeMillis(), direction, address, datagram))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return number of records dropped because the writer could not keep up
+     * or could not write them
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Reads a trace file.
+     *
+     * @param file trace file
+     * @return records in the order they were recorded
+     * @throws IOException if the file cannot be read or is not a trace
+     */
+    public static List<Record> read(File file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        byte[] magic = new byte[MAGIC.length];
+        if (buffer.remaining() < magic.length) {
+            throw new EOFException("Not a message trace: " + file);
+        }
+        buffer.get(magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a message trace: " + file);
+        }
+        List<Record> records = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            Record record = Record.readFrom(buffer);
+            if (record == null) {
+                // the last record was cut short, e.g. by a crash
+                break;
+            }
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * One traced datagram.
+     */
+    public static final class Record {
+
+        private final long timestamp;
+        private final Direction direction;
+        private final InetSocketAddress address;
+        private final byte[] datagram;
+        // IP address, or host name of an unresolved address
+        private byte[] rawAddress;
+
+        private Record(long timestamp, Direction direction, InetSocketAddress address, byte[] datagram) {
+            this.timestamp = timestamp;
+            this.direction = direction;
+            this.address = address;
+            this.datagram = datagram;
+        }
+
+        /**
+         * @return time the message was recorded, in milliseconds since the
+         * epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public Direction getDirection() {
+            return direction;
+        }
+
+        /**
+         * @return remote address, or null if the message had none
+         */
+        public InetSocketAddress getAddress() {
+            return address;
+        }
+
+        public byte[] getDatagram() {
+            return datagram.clone();
+        }
+
+        /**
+         * Decodes the datagram.
+         *
+         * @return decoded message, or null if the code is unknown
+         * @throws IncorrectMessageException if the datagram is malformed
+         */
+        public CoAPMessage decode() throws IncorrectMessageException {
+            return new CoAPMessageReader(ByteBuffer.wrap(datagram), address).decode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder text = new StringBuilder();
+            text.append(timestamp).append(' ').append(direction).append(' ').append(address).append('\n');
+            try {
+                CoAPMessage message = decode();
+                text.append(message == null ? "Unknown message code" : message.logMessage());
+            } catch (IncorrectMessageException e) {
+                text.append("Malformed message: ").append(e.getMessage());
+            }
+            return text.toString();
+        }
+
+        private boolean isUnresolved() {
+            return address != null && address.getAddress() == null;
+        }
+
+        private byte[] rawAddress() {
+            if (rawAddress == null) {
+                if (address == null) {
+                    rawAddress = new byte[0];
+                } else if (isUnresolved()) {
+                    byte[] host = address.getHostString().getBytes(StandardCharsets.UTF_8);
+                    rawAddress = host.length > MAX_HOST_LENGTH ? Arrays.copyOf(host, MAX_HOST_LENGTH) : host;
+                } else {
+                    rawAddress = address.getAddress().getAddress();
+                }
+            }
+            return rawAddress;
+        }
+
+        private int size() {
+            return 8 + 1 + 1 + rawAddress().length + 2 + 4 + datagram.length;
+        }
+
+        private void writeTo(ByteBuffer buffer) {
+            byte[] raw = rawAddress();
+            buffer.putLong(timestamp);
+            buffer.put((byte) (direction.ordinal() | (isUnresolved() ? UNRESOLVED : 0)));
+            buffer.put((byte) raw.length);
+            buffer.put(raw);
+            buffer.putShort((short) (address == null ? 0 : address.getPort()));
+            buffer.putInt(datagram.length);
+            buffer.put(datagram);
+        }
+
+        private static Record readFrom(ByteBuffer buffer) throws IOException {
+            if (buffer.remaining() < 10) {
+                return null;
+            }
+            long timestamp = buffer.getLong();
+            int flags = buffer.get();
+            Direction direction = Direction.values()[flags & 1];
+            int addressLength = buffer.get() & 0xFF;
+            if (buffer.remaining() < addressLength + 6) {
+                return null;
+            }
+            byte[] raw = new byte[addressLength];
+            buffer.get(raw);
+            int port = buffer.getShort() & 0xFFFF;
+            int length = buffer.getInt();
+            if (length < 0 || buffer.remaining() < length) {
+                return null;
+            }
+            byte[] datagram = new byte[length];
+            buffer.get(datagram);
+            InetSocketAddress address;
+            if (addressLength == 0) {
+                address = null;
+            } else if ((flags & UNRESOLVED) != 0) {
+                address = InetSocketAddress.createUnresolved(new String(raw, StandardCharsets.UTF_8), port);
+            } else {
+                address = new InetSocketAddress(InetAddress.getByAddress(raw), port);
+            }
+            return new Record(timestamp, direction, address, datagram);
+        }
+    }
+
+    /**
+     * Writes the queued records to the trace file in batches.
+     */
+    private final class Writer implements Runnable {
+
+        private final File file;
+        private final long maxFileSize;
+        private final BlockingQueue<Record> records;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        private final List<Record> batch = new ArrayList<>();
+        private FileChannel channel;
+
+        private Writer(File file, long maxFileSize, FileChannel channel, BlockingQueue<Record> records) {
+            this.file = file;
+            this.maxFileSize = maxFileSize;
+            this.channel = channel;
+            this.records = records;
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean running = true;
+                while (running) {
+                    batch.add(records.take());
+                    records.drainTo(batch);
+                    for (Record record : batch) {
+                        if (record == END) {
+                            running = false;
+                            break;
+                        }
+                        try {
+                            write(record);
+                        } catch (RuntimeException e) {
+                            dropped.incrementAndGet();
+                            LOGGER.warn("Couldn't write a record to the message trace, skipped it.", e);
+                        }
+                    }
+                    batch.clear();
+                    flush();
+                }
+            } catch (InterruptedException e) {
+                LOGGER.debug("Message trace writer interrupted.", e);
+            } catch (IOException e) {
+                enabled = false;
+                LOGGER.warn("Writing the message trace failed, tracing stopped.", e);
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Couldn't close the message trace.", e);
+                }
+            }
+        }
+
+        private void write(Record record) throws IOException {
+            int size = record.size();
+            if (size > buffer.remaining()) {
+                flush();
+            }
+            if (channel.position() + buffer.position() + size > maxFileSize) {
+                flush();
+                rotate();
+            }
+            if (size > buffer.capacity()) {
+                ByteBuffer large = ByteBuffer.allocate(size);
+                record.writeTo(large);
+                large.flip();
+                writeFully(large);
+            } else {
+                int start = buffer.position();
+                try {
+                    record.writeTo(buffer);
+                } catch (RuntimeException e) {
+                    // drop what was written of the record
+                    buffer.position(start);
+                    throw e;
+                }
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+
+        private void rotate() throws IOException {
+            channel.close();
+            Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(), StandardCopyOption.REPLACE_EXISTING);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            writeFully(ByteBuffer.wrap(MAGIC));
+        }
+    }
+}
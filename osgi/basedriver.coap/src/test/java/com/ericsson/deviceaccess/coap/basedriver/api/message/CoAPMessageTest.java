@@ -38,9 +38,12 @@ import com.ericsson.common.util.BitUtil;
 import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
 import com.ericsson.deviceaccess.coap.basedriver.util.CoAPOptionHeaderConverter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import org.junit.Before;
 import org.junit.Test;
@@ -380,4 +383,29 @@ public class CoAPMessageTest {
         assertTrue(req.addOptionHeader(h));
         assertTrue(resp.addOptionHeader(h));
     }
+
+    @Test
+    public void testOptionsKeptInNumberOrder() {
+        CoAPOptionHeader path1 = new CoAPOptionHeader(CoAPOptionName.URI_PATH, "a".getBytes(StandardCharsets.UTF_8));
+        CoAPOptionHeader path2 = new CoAPOptionHeader(CoAPOptionName.URI_PATH, "b".getBytes(StandardCharsets.UTF_8));
+        CoAPOptionHeader block2 = new CoAPOptionHeader(CoAPOptionName.BLOCK2, new byte[]{6});
+        CoAPOptionHeader observe = new CoAPOptionHeader(CoAPOptionName.OBSERVE, new byte[]{1});
+        assertTrue(req.addOptionHeader(block2));
+        assertTrue(req.addOptionHeader(path1));
+        assertTrue(req.addOptionHeader(observe));
+        assertTrue(req.addOptionHeader(path2));
+
+        assertEquals(Arrays.asList(observe, path1, path2, block2), req.getOptionHeaders());
+        assertEquals(Arrays.asList(path1, path2), req.getOptionHeaders(CoAPOptionName.URI_PATH));
+        assertEquals(3, req.getOptionCount());
+        assertSame(block2, req.getOptionHeader(CoAPOptionName.BLOCK2));
+        assertNull(req.getOptionHeader(CoAPOptionName.BLOCK1));
+        assertFalse(req.hasOptionHeader(CoAPOptionName.BLOCK1));
+        // Lookups of missing options do not add anything
+        assertEquals(3, req.getOptionCount());
+
+        assertTrue(req.removeOptionHeader(path1));
+        assertEquals(Arrays.asList(observe, path2, block2), req.getOptionHeaders());
+        assertTrue(req.isObserveMessage());
+    }
 }
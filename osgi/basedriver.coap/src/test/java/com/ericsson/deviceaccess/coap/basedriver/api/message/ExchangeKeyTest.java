@@ -0,0 +1,78 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.api.message;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+public class ExchangeKeyTest {
+
+    @Test
+    public void testIPv4() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, (byte) 200, 1}), 5683);
+        ExchangeKey key = ExchangeKey.of(address, 65535);
+        assertEquals(ExchangeKey.of(address, 65535), key);
+        assertEquals(ExchangeKey.of(address, 65535).hashCode(), key.hashCode());
+        assertNotEquals(ExchangeKey.of(address, 1), key);
+        assertNotEquals(ExchangeKey.of(new InetSocketAddress(address.getAddress(), 5684), 65535), key);
+        assertEquals(5683, key.getPort());
+        assertEquals(65535, key.getMessageId());
+        assertEquals("10.0.200.1:5683:65535", key.toString());
+    }
+
+    @Test
+    public void testIPv6() throws Exception {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByName("fe80::1"), 5683);
+        ExchangeKey key = ExchangeKey.of(address, 7);
+        assertEquals(ExchangeKey.of(new InetSocketAddress(InetAddress.getByName("fe80:0:0:0:0:0:0:1"), 5683), 7), key);
+        assertNotEquals(ExchangeKey.of(new InetSocketAddress(InetAddress.getByName("fe80::2"), 5683), 7), key);
+        assertEquals("fe80:0:0:0:0:0:0:1:5683:7", key.toString());
+    }
+
+    @Test
+    public void testMessageKey() throws Exception {
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.CONFIRMABLE, CoAPRequestCode.GET, 12);
+        request.setSocketAddress(new InetSocketAddress(InetAddress.getLoopbackAddress(), 5683));
+        ExchangeKey key = request.getExchangeKey();
+        assertSame(key, request.getExchangeKey());
+        request.setMessageId(13);
+        assertEquals(13, request.getExchangeKey().getMessageId());
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.communication;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestCode;
+import com.ericsson.deviceaccess.coap.basedriver.util.CoAPMessageReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatagramChannelTransportTest {
+
+    private DatagramChannelTransport sender;
+    private DatagramChannelTransport receiver;
+    private InetSocketAddress receiverAddress;
+
+    @Before
+    public void setUp() throws Exception {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        DatagramChannel senderChannel = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        DatagramChannel receiverChannel = DatagramChannel.open().bind(new InetSocketAddress(loopback, 0));
+        receiverAddress = (InetSocketAddress) receiverChannel.getLocalAddress();
+        sender = new DatagramChannelTransport(senderChannel);
+        receiver = new DatagramChannelTransport(receiverChannel);
+    }
+
+    @After
+    public void tearDown() {
+        sender.stopService();
+        receiver.stopService();
+    }
+
+    @Test
+    public void testSendAndReceive() throws Exception {
+        BlockingQueue<CoAPMessage> received = receive();
+        receiver.start();
+        sender.start();
+
+        int count = 100;
+        for (int i = 0; i < count; i++) {
+            CoAPRequest request = new CoAPRequest(CoAPMessageType.NON_CONFIRMABLE, CoAPRequestCode.GET, i, new byte[]{(byte) i});
+            request.setSocketAddress(receiverAddress);
+            sender.sendMessage(request);
+        }
+        for (int i = 0; i < count; i++) {
+            CoAPMessage message = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Datagram " + i + " was not received", message);
+            assertArrayEquals(new byte[]{(byte) message.getMessageId()}, message.getToken());
+        }
+        assertEquals(0, receiver.getDropped());
+    }
+
+    @Test
+    public void testFailedSendIsDropped() throws Exception {
+        BlockingQueue<CoAPMessage> received = receive();
+        receiver.start();
+        sender.start();
+
+        CoAPRequest unresolved = new CoAPRequest(CoAPMessageType.NON_CONFIRMABLE, CoAPRequestCode.GET, 1, new byte[]{1});
+        unresolved.setSocketAddress(InetSocketAddress.createUnresolved("unresolved.invalid", 5683));
+        sender.sendMessage(unresolved);
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.NON_CONFIRMABLE, CoAPRequestCode.GET, 2, new byte[]{2});
+        request.setSocketAddress(receiverAddress);
+        sender.sendMessage(request);
+
+        CoAPMessage message = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull("Sending stopped after a failed datagram", message);
+        assertEquals(2, message.getMessageId());
+        assertEquals(1, sender.getFailedSends());
+    }
+
+    @Test
+    public void testStopEndsThreads() {
+        receiver.start();
+        List<Thread> threads = channelThreads();
+        assertEquals(2, threads.size());
+        threads.forEach(thread -> assertTrue(thread.getName() + " is not a daemon", thread.isDaemon()));
+
+        receiver.stopService();
+        threads.forEach(thread -> assertFalse(thread.getName() + " still running", thread.isAlive()));
+    }
+
+    @Test
+    public void testBufferPoolReuse() {
+        BufferPool pool = new BufferPool(1, 16, false);
+        BufferPool.Buffer buffer = pool.acquire();
+        buffer.getData().put((byte) 1);
+        pool.release(buffer);
+        BufferPool.Buffer reused = pool.acquire();
+        assertSame(buffer, reused);
+        assertEquals(0, reused.getData().position());
+
+        BufferPool.Buffer large = pool.acquire(32);
+        assertEquals(32, large.getData().capacity());
+        pool.release(large);
+        pool.release(reused);
+        assertSame(reused, pool.acquire());
+    }
+
+    private BlockingQueue<CoAPMessage> receive() {
+        BlockingQueue<CoAPMessage> received = new LinkedBlockingQueue<>();
+        receiver.addListener(datagram -> {
+            try {
+                received.add(new CoAPMessageReader(datagram).decode());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        return received;
+    }
+
+    private static List<Thread> channelThreads() {
+        List<Thread> threads = new ArrayList<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("coap-channel-") && thread.isAlive()) {
+                threads.add(thread);
+            }
+        }
+        return threads;
+    }
+}
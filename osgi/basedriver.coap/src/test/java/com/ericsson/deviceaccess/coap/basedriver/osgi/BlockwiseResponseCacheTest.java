@@ -40,8 +40,15 @@ import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
@@ -74,4 +81,86 @@ public class BlockwiseResponseCacheTest {
             e.printStackTrace();
         }
     }
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() throws Exception {
+        // room for two sessions
+        BlockwiseResponseCache cache = new BlockwiseResponseCache(10000, 2 * 1000 + 600);
+        URI uri = new URI("coap://12.34.56.78:9999/big");
+        InetSocketAddress first = new InetSocketAddress("127.0.0.1", 1001);
+        InetSocketAddress second = new InetSocketAddress("127.0.0.1", 1002);
+        InetSocketAddress third = new InetSocketAddress("127.0.0.1", 1003);
+        cache.put(first, uri, new ArrayList<>(), new byte[1000], CoAPResponseCode.CONTENT);
+        Thread.sleep(5);
+        cache.put(second, uri, new ArrayList<>(), new byte[1000], CoAPResponseCode.CONTENT);
+        Thread.sleep(5);
+        // the first client asks for its next block
+        cache.updateTimer(first, uri, new ArrayList<>());
+        cache.put(third, uri, new ArrayList<>(), new byte[1000], CoAPResponseCode.CONTENT);
+
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get(first, uri, new ArrayList<>()));
+        assertNull(cache.get(second, uri, new ArrayList<>()));
+        assertNotNull(cache.get(third, uri, new ArrayList<>()));
+        assertTrue(cache.getBytes() <= cache.getMaxBytes());
+
+        // a payload bigger than the budget is not cached
+        cache.put(first, uri, new ArrayList<>(), new byte[5000], CoAPResponseCode.CONTENT);
+        assertNull(cache.get(first, uri, new ArrayList<>()));
+        assertEquals(1, cache.size());
+        cache.cleanup();
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        BlockwiseResponseCache cache = new BlockwiseResponseCache(50);
+        InetSocketAddress addr = new InetSocketAddress("127.0.0.1", 1001);
+        URI uri = new URI("coap://12.34.56.78:9999/");
+        cache.put(addr, uri, new ArrayList<>(), new byte[100], CoAPResponseCode.CONTENT);
+        assertNotNull(cache.get(addr, uri, new ArrayList<>()));
+
+        // the shared sweep removes the session without it being asked for
+        long deadline = System.currentTimeMillis() + 2000;
+        while (cache.size() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getBytes());
+        cache.cleanup();
+    }
+
+    @Test
+    public void testConcurrentClients() throws Exception {
+        long budget = 256 * 1024;
+        BlockwiseResponseCache cache = new BlockwiseResponseCache(10000, budget);
+        URI uri = new URI("coap://12.34.56.78:9999/firmware");
+        int threads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int thread = t;
+                results.add(executor.submit(() -> {
+                    for (int i = 0; i < 1000; i++) {
+                        InetSocketAddress client = new InetSocketAddress("127.0.0.1", 1000 + thread * 1000 + i % 50);
+                        cache.put(client, uri, new ArrayList<>(), new byte[4096], CoAPResponseCode.CONTENT);
+                        cache.updateTimer(client, uri, new ArrayList<>());
+                        cache.get(client, uri, new ArrayList<>());
+                    }
+                }));
+            }
+            for (Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // once all puts are done, the next one brings the cache to budget
+        cache.put(new InetSocketAddress("127.0.0.1", 999), uri, new ArrayList<>(), new byte[4096], CoAPResponseCode.CONTENT);
+        assertTrue(cache.getBytes() <= budget);
+        assertEquals(cache.size() * (4096 + 256), cache.getBytes());
+        cache.cleanup();
+    }
 }
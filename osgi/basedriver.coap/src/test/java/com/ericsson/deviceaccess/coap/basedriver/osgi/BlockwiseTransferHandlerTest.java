@@ -0,0 +1,335 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.osgi;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.CoAPException;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestCode;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestListener;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponseCode;
+import com.ericsson.deviceaccess.coap.basedriver.communication.TransportLayerSender;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BlockwiseTransferHandlerTest {
+
+    private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 5683);
+    private static final byte[] TOKEN = {5, 6, 7};
+
+    private OutgoingMessageHandler outHandler;
+    private BlockwiseTransferHandler handler;
+    private CoAPRequest request;
+
+    @Before
+    public void setUp() throws Exception {
+        outHandler = new OutgoingMessageHandler(new TransportLayerSender() {
+            @Override
+            public void sendMessage(CoAPMessage message) {
+            }
+
+            @Override
+            public void stopService() {
+            }
+
+            @Override
+            public void start() {
+            }
+        });
+        LocalCoAPEndpoint endpoint = new LocalCoAPEndpoint(outHandler, null, URI.create("coap://127.0.0.1:5684"));
+        handler = new BlockwiseTransferHandler(endpoint);
+        request = endpoint.createCoAPRequest(CoAPMessageType.CONFIRMABLE, CoAPRequestCode.GET,
+                PEER, URI.create("coap://127.0.0.1:5683/firmware"), TOKEN);
+    }
+
+    @After
+    public void tearDown() {
+        outHandler.stopService();
+    }
+
+    @Test
+    public void testReassembly() throws Exception {
+        byte[] payload = payload(10000);
+        CoAPResponse last = receiveAll(payload, 6);
+        assertArrayEquals(payload, last.getPayload());
+    }
+
+    @Test
+    public void testSmallerBlocksRequested() throws Exception {
+        handler.setMaxSzx(4);
+        byte[] payload = payload(3000);
+        CoAPResponse first = handler.createBlockwiseResponse(response(payload), 0, 6);
+        List<CoAPRequest> requests = new ArrayList<>();
+        assertFalse(handler.block2OptionReceived(first, request, requests::add));
+        assertEquals(1, requests.size());
+        CoAPRequest next = requests.get(0);
+        BlockOptionHeader block = new BlockOptionHeader(next.getOptionHeader(CoAPOptionName.BLOCK2));
+        assertEquals(4, block.getSzx());
+        // 1024 bytes received, so the next 256 byte block is the fifth one
+        assertEquals(4, block.getBlockNumber());
+
+        CoAPResponse second = handler.createBlockwiseResponse(response(payload), 4, 4);
+        assertFalse(handler.block2OptionReceived(second, request, requests::add));
+        assertEquals(2, requests.size());
+    }
+
+    @Test(expected = CoAPException.class)
+    public void testMissingBlockRejected() throws Exception {
+        byte[] payload = payload(5000);
+        handler.block2OptionReceived(handler.createBlockwiseResponse(response(payload), 0, 6), request, r -> {
+        });
+        handler.block2OptionReceived(handler.createBlockwiseResponse(response(payload), 2, 6), request, r -> {
+        });
+    }
+
+    @Test
+    public void testStreaming() throws Exception {
+        handler.setStreaming(true);
+        byte[] payload = payload(3000);
+        CoAPResponse last = receiveAll(payload, 6);
+        assertEquals(3000 - 2048, last.getPayloadLength());
+    }
+
+    /**
+     * Reassembles a 4 MiB resource from 1024 byte blocks.
+     */
+    @Test
+    public void testLargeTransfer() throws Exception {
+        byte[] payload = payload(4 * 1024 * 1024);
+        CoAPResponse last = receiveAll(payload, 6);
+        assertArrayEquals(payload, last.getPayload());
+    }
+
+    @Test
+    public void testWindowedDownload() throws Exception {
+        byte[] payload = payload(20000);
+        int stopAndWait = roundTrips(payload);
+        handler.setBlock2Window(4);
+        int windowed = roundTrips(payload);
+        assertEquals(20, stopAndWait);
+        // the first block, then four blocks per round trip
+        assertEquals(6, windowed);
+        assertArrayEquals(payload, lastResponse.getPayload());
+    }
+
+    @Test
+    public void testWindowedDuplicateIgnored() throws Exception {
+        handler.setBlock2Window(2);
+        byte[] payload = payload(5000);
+        List<CoAPRequest> requests = new ArrayList<>();
+        assertFalse(handler.block2OptionReceived(handler.createBlockwiseResponse(response(payload), 0, 6), request, requests::add));
+        assertEquals(2, requests.size());
+        CoAPResponse second = answer(response(payload), requests.get(1));
+        assertFalse(handler.block2OptionReceived(second, requests.get(1), requests::add));
+        assertEquals(3, requests.size());
+        assertFalse(handler.block2OptionReceived(answer(response(payload), requests.get(1)), requests.get(1), requests::add));
+        assertEquals(3, requests.size());
+        // tokens of the requests in flight differ
+        assertFalse(Arrays.equals(requests.get(0).getToken(), requests.get(1).getToken()));
+    }
+
+    /**
+     * The response to one block request is lost. When the request reaches the
+     * maximum number of retransmissions, the block is requested again and the
+     * transfer completes.
+     */
+    @Test
+    public void testWindowedBlockLost() throws Exception {
+        handler.setBlock2Window(4);
+        byte[] payload = payload(20000);
+        CoAPResponse full = response(payload);
+        List<CoAPRequest> requests = new ArrayList<>();
+        assertFalse(handler.block2OptionReceived(handler.createBlockwiseResponse(full, 0, 6), request, requests::add));
+        assertEquals(4, requests.size());
+        CoAPRequest lost = requests.get(1);
+        int lostBlock = new BlockOptionHeader(lost.getOptionHeader(CoAPOptionName.BLOCK2)).getBlockNumber();
+
+        lost.getListener().maximumRetransmissionsReached(lost);
+        assertEquals(5, requests.size());
+        CoAPRequest retry = requests.get(4);
+        assertEquals(lostBlock, new BlockOptionHeader(retry.getOptionHeader(CoAPOptionName.BLOCK2)).getBlockNumber());
+
+        CoAPResponse last = null;
+        for (int i = 0; i < requests.size(); i++) {
+            CoAPRequest blockRequest = requests.get(i);
+            if (blockRequest == lost) {
+                continue;
+            }
+            CoAPResponse block = answer(full, blockRequest);
+            if (handler.block2OptionReceived(block, blockRequest, requests::add)) {
+                last = block;
+            }
+        }
+        assertArrayEquals(payload, last.getPayload());
+        // the late failure of an answered block is ignored
+        int sent = requests.size();
+        retry.getListener().maximumRetransmissionsReached(retry);
+        assertEquals(sent, requests.size());
+    }
+
+    @Test
+    public void testTransferFailsAfterBlockRetries() throws Exception {
+        List<CoAPRequest> failed = new ArrayList<>();
+        request.setListener(new FailureListener(failed));
+        byte[] payload = payload(5000);
+        List<CoAPRequest> requests = new ArrayList<>();
+        assertFalse(handler.block2OptionReceived(handler.createBlockwiseResponse(response(payload), 0, 6), request, requests::add));
+        for (int i = 0; i < BlockwiseTransferHandler.MAX_BLOCK_RETRIES; i++) {
+            CoAPRequest blockRequest = requests.get(requests.size() - 1);
+            blockRequest.getListener().maximumRetransmissionsReached(blockRequest);
+            assertTrue(failed.isEmpty());
+        }
+        assertEquals(1 + BlockwiseTransferHandler.MAX_BLOCK_RETRIES, requests.size());
+        CoAPRequest blockRequest = requests.get(requests.size() - 1);
+        blockRequest.getListener().maximumRetransmissionsReached(blockRequest);
+        assertEquals(1 + BlockwiseTransferHandler.MAX_BLOCK_RETRIES, requests.size());
+        assertEquals(1, failed.size());
+        assertSame(request, failed.get(0));
+    }
+
+    private CoAPResponse lastResponse;
+
+    /**
+     * Downloads the payload answering all requests in flight at once, in
+     * reverse order, and counts the round trips needed.
+     */
+    private int roundTrips(byte[] payload) throws CoAPException {
+        CoAPResponse full = response(payload);
+        List<CoAPRequest> inFlight = new ArrayList<>();
+        int rounds = 1;
+        if (handler.block2OptionReceived(handler.createBlockwiseResponse(full, 0, 6), request, inFlight::add)) {
+            return rounds;
+        }
+        while (!inFlight.isEmpty()) {
+            rounds++;
+            List<CoAPRequest> sent = new ArrayList<>(inFlight);
+            inFlight.clear();
+            Collections.reverse(sent);
+            for (CoAPRequest blockRequest : sent) {
+                CoAPResponse block = answer(full, blockRequest);
+                if (handler.block2OptionReceived(block, blockRequest, inFlight::add)) {
+                    lastResponse = block;
+                }
+            }
+        }
+        return rounds;
+    }
+
+    private CoAPResponse answer(CoAPResponse full, CoAPRequest blockRequest) throws CoAPException {
+        BlockOptionHeader block = new BlockOptionHeader(blockRequest.getOptionHeader(CoAPOptionName.BLOCK2));
+        CoAPResponse response = handler.createBlockwiseResponse(full, block.getBlockNumber(), block.getSzx());
+        response.setToken(blockRequest.getToken());
+        return response;
+    }
+
+    private CoAPResponse receiveAll(byte[] payload, int szx) throws CoAPException {
+        CoAPResponse full = response(payload);
+        int blockNumber = 0;
+        while (true) {
+            CoAPResponse block = handler.createBlockwiseResponse(full, blockNumber, szx);
+            List<CoAPRequest> next = new ArrayList<>();
+            if (handler.block2OptionReceived(block, request, next::add) && next.isEmpty()) {
+                return block;
+            }
+            assertEquals(1, next.size());
+            blockNumber = new BlockOptionHeader(next.get(0).getOptionHeader(CoAPOptionName.BLOCK2)).getBlockNumber();
+            assertNull(next.get(0).getPayload());
+        }
+    }
+
+    private static CoAPResponse response(byte[] payload) {
+        CoAPResponse response = new CoAPResponse(CoAPMessageType.ACKNOWLEDGEMENT, CoAPResponseCode.CONTENT, 1, TOKEN);
+        response.setSocketAddress(PEER);
+        response.setPayload(payload);
+        return response;
+    }
+
+    private static byte[] payload(int size) {
+        byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    private static class FailureListener implements CoAPRequestListener {
+
+        private final List<CoAPRequest> failed;
+
+        FailureListener(List<CoAPRequest> failed) {
+            this.failed = failed;
+        }
+
+        @Override
+        public void resetResponseReceived(CoAPResponse response, CoAPRequest request) {
+        }
+
+        @Override
+        public void separateResponseReceived(CoAPResponse response, CoAPRequest request) {
+        }
+
+        @Override
+        public void piggyPackedResponseReceived(CoAPResponse response, CoAPRequest request) {
+        }
+
+        @Override
+        public void emptyAckReceived(CoAPResponse response, CoAPRequest request) {
+        }
+
+        @Override
+        public void maximumRetransmissionsReached(CoAPRequest request) {
+            failed.add(request);
+        }
+
+        @Override
+        public void serviceBusy(CoAPRequest request) {
+        }
+    }
+}
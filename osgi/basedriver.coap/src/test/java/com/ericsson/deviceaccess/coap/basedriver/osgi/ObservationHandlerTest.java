@@ -0,0 +1,305 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.osgi;
+
+import com.ericsson.common.util.BitUtil;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionHeader;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponseCode;
+import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPObservationResource;
+import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResource;
+import com.ericsson.deviceaccess.coap.basedriver.api.resources.CoAPResourceObserver;
+import com.ericsson.deviceaccess.coap.basedriver.communication.TransportLayerSender;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ObservationHandlerTest {
+
+    // Allowed growth of the notification handling time with 100 times the
+    // observations
+    private static final long MAX_SLOWDOWN = 3;
+
+    private OutgoingMessageHandler outHandler;
+    private RecordingEndpoint endpoint;
+    private ObservationHandler handler;
+
+    @Before
+    public void setUp() {
+        outHandler = new OutgoingMessageHandler(new TransportLayerSender() {
+            @Override
+            public void sendMessage(CoAPMessage message) {
+            }
+
+            @Override
+            public void stopService() {
+            }
+
+            @Override
+            public void start() {
+            }
+        });
+        endpoint = new RecordingEndpoint(outHandler);
+        handler = new ObservationHandler(endpoint);
+    }
+
+    @After
+    public void tearDown() {
+        handler.stopService();
+        outHandler.stopService();
+    }
+
+    @Test
+    public void testNotificationDispatchedAndCached() throws Exception {
+        URI uri = uri(1);
+        CountingObserver first = new CountingObserver();
+        CoAPResource resource = handler.createObservationRelationship(uri, first);
+        assertTrue(handler.isObserved(uri));
+        assertSame(resource, handler.getResource(uri));
+        assertEquals(1, endpoint.sent.size());
+        CoAPRequest request = endpoint.sent.get(0);
+
+        CoAPResponse notification = notification(request, 1, 60);
+        handler.handleObserveResponse(request, notification);
+        assertEquals(1, first.notifications.get());
+        // the same notification again is not fresh
+        handler.handleObserveResponse(request, notification(request, 1, 60));
+        assertEquals(1, first.notifications.get());
+        handler.handleObserveResponse(request, notification(request, 2, 60));
+        assertEquals(2, first.notifications.get());
+
+        // a second observer gets the cached notification without a request
+        CountingObserver second = new CountingObserver();
+        assertSame(resource, handler.createObservationRelationship(uri, second));
+        assertEquals(1, second.notifications.get());
+        assertEquals(1, endpoint.sent.size());
+
+        handler.terminateObservationRelationship(resource, first);
+        assertTrue(handler.isObserved(uri));
+        handler.terminateObservationRelationship(resource, second);
+        assertFalse(handler.isObserved(uri));
+    }
+
+    @Test
+    public void testExpiredObservationsRefreshedTogether() throws Exception {
+        int count = 100;
+        List<CoAPRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            handler.createObservationRelationship(uri(i), new CountingObserver());
+            requests.add(endpoint.sent.get(i));
+        }
+        // notifications which expire at once
+        for (CoAPRequest request : requests) {
+            handler.handleObserveResponse(request, notification(request, 1, 0));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (endpoint.sent.size() < 2 * count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(2 * ObservationHandler.REFRESH_BATCH_DELAY);
+        assertEquals(2 * count, endpoint.sent.size());
+        Set<URI> refreshed = new HashSet<>();
+        for (CoAPRequest request : endpoint.sent.subList(count, 2 * count)) {
+            assertNotNull(request.getOptionHeader(CoAPOptionName.OBSERVE));
+            refreshed.add(request.getUriFromRequest());
+        }
+        assertEquals(count, refreshed.size());
+    }
+
+    /**
+     * Observers join and leave one resource from several threads. An observer
+     * must never be left on an observation that was ended meanwhile.
+     */
+    @Test
+    public void testConcurrentCreateAndTerminate() throws Exception {
+        URI uri = uri(1);
+        int threads = 4;
+        int rounds = 500;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                CountingObserver observer = new CountingObserver();
+                try {
+                    for (int i = 0; i < rounds; i++) {
+                        CoAPResource resource = handler.createObservationRelationship(uri, observer);
+                        assertSame(resource, handler.getResource(uri));
+                        assertTrue(resource.getObservers().contains(observer));
+                        assertTrue(handler.terminateObservationRelationship(resource, observer));
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertFalse(handler.isObserved(uri));
+    }
+
+    /**
+     * Dispatches notifications for 10000 observed resources from several
+     * threads. The mean handling time must not grow much from that with 100
+     * observations. In the test environment the time is dominated by the
+     * DEBUG output of the log binding, so the bound is relative.
+     */
+    @Test
+    public void testNotificationLatencyWithManyObservations() throws Exception {
+        long few = meanHandlingNanos(0, 100, 200);
+        long many = meanHandlingNanos(100, 10000, 2);
+        assertTrue("Mean notification handling time " + many + " ns with 10000 observations, "
+                + few + " ns with 100", many < MAX_SLOWDOWN * few);
+    }
+
+    /**
+     * Observes more resources and sends notifications for them from 8
+     * threads.
+     *
+     * @return mean handling time of a notification in nanoseconds
+     */
+    private long meanHandlingNanos(int first, int resources, int rounds) throws Exception {
+        int threads = 8;
+        Map<URI, CoAPRequest> requests = new ConcurrentHashMap<>();
+        CountingObserver observer = new CountingObserver();
+        endpoint.sent.clear();
+        for (int i = first; i < first + resources; i++) {
+            handler.createObservationRelationship(uri(i), observer);
+        }
+        for (CoAPRequest request : endpoint.sent) {
+            requests.put(request.getUriFromRequest(), request);
+        }
+        assertEquals(resources, requests.size());
+
+        List<CoAPRequest> all = new ArrayList<>(requests.values());
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int shard = t;
+                results.add(executor.submit(() -> {
+                    long elapsed = 0;
+                    for (int round = 1; round <= rounds; round++) {
+                        for (int i = shard; i < all.size(); i += threads) {
+                            CoAPRequest request = all.get(i);
+                            CoAPResponse notification = notification(request, round, 60);
+                            long start = System.nanoTime();
+                            handler.handleObserveResponse(request, notification);
+                            elapsed += System.nanoTime() - start;
+                        }
+                    }
+                    return elapsed;
+                }));
+            }
+            long total = 0;
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+            int notifications = resources * rounds;
+            assertEquals(notifications, observer.notifications.get());
+            return total / notifications;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static URI uri(int i) {
+        return URI.create("coap://127.0.0.1:5683/sensor/" + i);
+    }
+
+    private static CoAPResponse notification(CoAPRequest request, int observe, int maxAge) {
+        CoAPResponse response = new CoAPResponse(CoAPMessageType.NON_CONFIRMABLE, CoAPResponseCode.CONTENT, observe, request.getToken());
+        response.setSocketAddress(request.getSocketAddress());
+        response.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.OBSERVE, BitUtil.splitShortToBytes((short) observe)));
+        response.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.MAX_AGE, new byte[]{(byte) maxAge}));
+        response.setPayload(new byte[]{(byte) observe});
+        return response;
+    }
+
+    private static class RecordingEndpoint extends LocalCoAPEndpoint {
+
+        private final List<CoAPRequest> sent = Collections.synchronizedList(new ArrayList<>());
+
+        RecordingEndpoint(OutgoingMessageHandler outHandler) {
+            super(outHandler, null, URI.create("coap://127.0.0.1:5684"));
+        }
+
+        @Override
+        public void sendRequest(CoAPRequest request) {
+            sent.add(request);
+        }
+    }
+
+    private static class CountingObserver implements CoAPResourceObserver {
+
+        private final AtomicInteger notifications = new AtomicInteger();
+
+        @Override
+        public void observeResponseReceived(CoAPResponse response, CoAPResource resource, CoAPRequest request) {
+            notifications.incrementAndGet();
+        }
+
+        @Override
+        public void observationRelationshipTerminated(CoAPResponse response, CoAPObservationResource resource, CoAPRequest request) {
+        }
+    }
+}
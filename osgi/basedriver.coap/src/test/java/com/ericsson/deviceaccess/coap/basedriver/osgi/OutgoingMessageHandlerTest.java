@@ -0,0 +1,321 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.osgi;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionHeader;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestCode;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestListener;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponse;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponseCode;
+import com.ericsson.deviceaccess.coap.basedriver.communication.TransportLayerSender;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntConsumer;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutgoingMessageHandlerTest {
+
+    private OutgoingMessageHandler handler;
+    private final List<CoAPMessage> sent = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        handler = new OutgoingMessageHandler(new TransportLayerSender() {
+            @Override
+            public void sendMessage(CoAPMessage message) {
+                sent.add(message);
+            }
+
+            @Override
+            public void stopService() {
+            }
+
+            @Override
+            public void start() {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        handler.stopService();
+    }
+
+    @Test
+    public void testFindRequestByToken() {
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.1", 5683);
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.NON_CONFIRMABLE, CoAPRequestCode.GET, 1, new byte[]{1, 2, 3});
+        request.setSocketAddress(peer);
+        handler.send(request, false);
+
+        CoAPResponse response = new CoAPResponse(CoAPMessageType.CONFIRMABLE, CoAPResponseCode.CONTENT, 77, new byte[]{1, 2, 3});
+        response.setSocketAddress(peer);
+        assertSame(request, handler.findRequestByToken(response));
+
+        CoAPResponse otherToken = new CoAPResponse(CoAPMessageType.CONFIRMABLE, CoAPResponseCode.CONTENT, 78, new byte[]{1, 2, 4});
+        otherToken.setSocketAddress(peer);
+        assertNull(handler.findRequestByToken(otherToken));
+
+        CoAPResponse otherPeer = new CoAPResponse(CoAPMessageType.CONFIRMABLE, CoAPResponseCode.CONTENT, 79, new byte[]{1, 2, 3});
+        otherPeer.setSocketAddress(new InetSocketAddress("127.0.0.2", 5683));
+        assertNull(handler.findRequestByToken(otherPeer));
+    }
+
+    @Test
+    public void testEvictedRequestsLeaveTokenIndex() {
+        handler.getOutgoingRequests().setMaxEntries(1);
+        CoAPRequest observe = tokenRequest(new InetSocketAddress("127.0.0.1", 5683), 1);
+        observe.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.OBSERVE, new byte[0]));
+        handler.send(observe, false);
+        handler.registerObservation(observe);
+        CoAPRequest plain = tokenRequest(new InetSocketAddress("127.0.0.1", 5684), 2);
+        handler.send(plain, false);
+        // evicts both earlier requests
+        handler.send(tokenRequest(new InetSocketAddress("127.0.0.1", 5685), 3), false);
+
+        assertNull(handler.findRequestByToken(tokenResponse(plain)));
+        assertSame(observe, handler.findRequestByToken(tokenResponse(observe)));
+        handler.unregisterObservation(observe);
+        assertNull(handler.findRequestByToken(tokenResponse(observe)));
+    }
+
+    @Test
+    public void testMulticastRequestMatchesAnyPeer() {
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.NON_CONFIRMABLE, CoAPRequestCode.GET, 2, new byte[]{9});
+        request.setSocketAddress(new InetSocketAddress("224.0.1.187", 5683));
+        handler.send(request, false);
+
+        CoAPResponse response = new CoAPResponse(CoAPMessageType.NON_CONFIRMABLE, CoAPResponseCode.CONTENT, 80, new byte[]{9});
+        response.setSocketAddress(new InetSocketAddress("127.0.0.1", 5683));
+        assertSame(request, handler.findRequestByToken(response));
+    }
+
+    @Test
+    public void testRequestsQueuedUnderNStart() {
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.1", 5683);
+        CoAPRequest first = confirmable(peer, 10);
+        CoAPRequest second = confirmable(peer, 11);
+        CoAPRequest third = confirmable(peer, 12);
+        handler.send(first, false);
+        handler.send(second, false);
+        handler.send(third, false);
+        assertEquals(1, sent.size());
+        assertSame(first, sent.get(0));
+
+        // another endpoint is not held up
+        CoAPRequest other = confirmable(new InetSocketAddress("127.0.0.2", 5683), 13);
+        handler.send(other, false);
+        assertEquals(2, sent.size());
+
+        handler.removeRetransmissionTask(first);
+        assertEquals(3, sent.size());
+        assertSame(second, sent.get(2));
+        // acknowledging twice does not free another slot
+        handler.removeRetransmissionTask(first);
+        assertEquals(3, sent.size());
+
+        handler.removeRetransmissionTask(second);
+        assertSame(third, sent.get(3));
+    }
+
+    @Test
+    public void testNStartAllowsParallelRequests() {
+        handler.setNStart(2);
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.1", 5683);
+        handler.send(confirmable(peer, 20), false);
+        handler.send(confirmable(peer, 21), false);
+        handler.send(confirmable(peer, 22), false);
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void testFullQueueReportsBusy() {
+        handler.setMaxQueuedRequests(1);
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.1", 5683);
+        List<CoAPRequest> busy = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            CoAPRequest request = confirmable(peer, 30 + i);
+            request.setListener(new BusyListener(busy));
+            handler.send(request, false);
+        }
+        assertEquals(1, sent.size());
+        assertEquals(1, busy.size());
+        assertEquals(32, busy.get(0).getMessageId());
+    }
+
+    @Test
+    public void testRetransmissionTimeoutAdaptsToRoundTripTime() {
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.1", 5683);
+        assertEquals(2000, handler.getRetransmissionTimeout(peer));
+        for (int i = 0; i < 10; i++) {
+            CoAPRequest request = confirmable(peer, 40 + i);
+            handler.send(request, false);
+            handler.removeRetransmissionTask(request);
+        }
+        int rto = handler.getRetransmissionTimeout(peer);
+        assertTrue("RTO " + rto, rto < 1000);
+    }
+
+    /**
+     * Thousands of confirmable exchanges to distinct endpoints are sent and
+     * acknowledged from several threads. Every acknowledgement must give the
+     * endpoint its slot back.
+     */
+    @Test
+    public void testConcurrentExchanges() throws Exception {
+        int count = 8000;
+        int threads = 8;
+        int perThread = count / threads;
+        CoAPRequest[][] requests = new CoAPRequest[threads][perThread];
+        Set<CoAPMessage> first = new HashSet<>();
+        for (int t = 0; t < threads; t++) {
+            for (int i = 0; i < perThread; i++) {
+                InetSocketAddress peer = new InetSocketAddress("127.0.0.1", 1024 + t * perThread + i);
+                requests[t][i] = confirmable(peer, i);
+                first.add(requests[t][i]);
+            }
+        }
+        sent.clear();
+        runInThreads(threads, t -> {
+            for (CoAPRequest request : requests[t]) {
+                handler.send(request, false);
+            }
+        });
+        // slow logging may let some retransmissions through, count messages
+        assertTrue(sentMessages().containsAll(first));
+
+        runInThreads(threads, t -> {
+            for (CoAPRequest request : requests[t]) {
+                handler.removeRetransmissionTask(request);
+            }
+        });
+
+        // every endpoint has its slot back
+        Set<CoAPMessage> second = new HashSet<>();
+        for (CoAPRequest[] perPeer : requests) {
+            for (CoAPRequest request : perPeer) {
+                CoAPRequest next = confirmable(request.getSocketAddress(), request.getMessageId() + 1);
+                second.add(next);
+                handler.send(next, false);
+                handler.removeRetransmissionTask(next);
+            }
+        }
+        assertTrue(sentMessages().containsAll(second));
+    }
+
+    private Set<CoAPMessage> sentMessages() {
+        synchronized (sent) {
+            return new HashSet<>(sent);
+        }
+    }
+
+    private static void runInThreads(int threads, IntConsumer body) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            workers[t] = new Thread(() -> body.accept(index));
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private static CoAPRequest tokenRequest(InetSocketAddress peer, int messageId) {
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.NON_CONFIRMABLE, CoAPRequestCode.GET, messageId, new byte[]{9, (byte) messageId});
+        request.setSocketAddress(peer);
+        return request;
+    }
+
+    private static CoAPResponse tokenResponse(CoAPRequest request) {
+        CoAPResponse response = new CoAPResponse(CoAPMessageType.CONFIRMABLE, CoAPResponseCode.CONTENT, 100 + request.getMessageId(), request.getToken());
+        response.setSocketAddress(request.getSocketAddress());
+        return response;
+    }
+
+    private static CoAPRequest confirmable(InetSocketAddress peer, int messageId) {
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.CONFIRMABLE, CoAPRequestCode.GET, messageId, new byte[]{(byte) messageId});
+        request.setSocketAddress(peer);
+        return request;
+    }
+
+    private static class BusyListener implements CoAPRequestListener {
+
+        private final List<CoAPRequest> busy;
+
+        BusyListener(List<CoAPRequest> busy) {
+            this.busy = busy;
+        }
+
+        @Override
+        public void resetResponseReceived(CoAPResponse response, CoAPRequest request) {
+        }
+
+        @Override
+        public void separateResponseReceived(CoAPResponse response, CoAPRequest request) {
+        }
+
+        @Override
+        public void piggyPackedResponseReceived(CoAPResponse response, CoAPRequest request) {
+        }
+
+        @Override
+        public void emptyAckReceived(CoAPResponse response, CoAPRequest request) {
+        }
+
+        @Override
+        public void maximumRetransmissionsReached(CoAPRequest request) {
+        }
+
+        @Override
+        public void serviceBusy(CoAPRequest request) {
+            busy.add(request);
+        }
+    }
+}
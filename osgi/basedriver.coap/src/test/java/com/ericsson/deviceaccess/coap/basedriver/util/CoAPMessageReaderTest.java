@@ -0,0 +1,142 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.util;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat.IncorrectMessageException;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionHeader;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionName;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestCode;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class CoAPMessageReaderTest {
+
+    private static final InetSocketAddress SOURCE = new InetSocketAddress(InetAddress.getLoopbackAddress(), 5683);
+
+    private static byte[] encodedGet() throws IncorrectMessageException {
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.CONFIRMABLE, CoAPRequestCode.GET, 0x1234, new byte[]{1, 2, 3, 4});
+        request.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.URI_PATH, "sensors".getBytes(StandardCharsets.UTF_8)));
+        request.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.URI_PATH, "temperature".getBytes(StandardCharsets.UTF_8)));
+        request.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.URI_QUERY, "unit=celsius&precision=2".getBytes(StandardCharsets.UTF_8)));
+        request.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.ACCEPT, new byte[]{41}));
+        request.setPayload("ok".getBytes(StandardCharsets.UTF_8));
+        return new CoAPMessageWriter(request).encode();
+    }
+
+    @Test
+    public void testDecodeFromBuffer() throws Exception {
+        byte[] encoded = encodedGet();
+        // Decode from the middle of a larger buffer
+        ByteBuffer buffer = ByteBuffer.allocate(encoded.length + 20);
+        buffer.position(10);
+        buffer.put(encoded);
+        buffer.limit(buffer.position()).position(10);
+
+        CoAPMessage message = new CoAPMessageReader(buffer, SOURCE).decode();
+        assertTrue(message instanceof CoAPRequest);
+        assertEquals(0x1234, message.getMessageId());
+        assertArrayEquals(new byte[]{1, 2, 3, 4}, message.getToken());
+        assertEquals(SOURCE, message.getSocketAddress());
+        assertEquals(2, message.getOptionHeaders(CoAPOptionName.URI_PATH).size());
+        assertArrayEquals(new byte[]{41}, message.getOptionHeaders(CoAPOptionName.ACCEPT).get(0).getValue());
+        assertEquals(2, message.getPayloadLength());
+        assertEquals("ok", new String(message.getPayload(), StandardCharsets.UTF_8));
+        assertEquals(10, buffer.position());
+
+        // Option values and payload are views to the decoded buffer
+        ByteBuffer payload = message.getPayloadBuffer();
+        buffer.put(buffer.limit() - 1, (byte) '!');
+        assertEquals('!', payload.get(payload.limit() - 1));
+    }
+
+    @Test
+    public void testDecodeWithoutPayload() throws Exception {
+        byte[] encoded = {0x40, 0x01, 0x00, 0x01};
+        CoAPMessage message = new CoAPMessageReader(ByteBuffer.wrap(encoded), null).decode();
+        assertEquals(1, message.getMessageId());
+        assertEquals(0, message.getPayloadLength());
+        assertEquals(0, message.getPayload().length);
+    }
+
+    @Test(expected = IncorrectMessageException.class)
+    public void testDecodeTruncatedOption() throws Exception {
+        byte[] encoded = {0x40, 0x01, 0x00, 0x01, (byte) 0xB5, 'a'};
+        new CoAPMessageReader(ByteBuffer.wrap(encoded), null).decode();
+    }
+
+    /**
+     * The payload is not copied, so decoding a large message allocates about
+     * as much as decoding a small one.
+     */
+    @Test
+    public void testDecodeDoesNotCopyPayload() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.CONFIRMABLE, CoAPRequestCode.PUT, 0x1234, new byte[]{1, 2, 3, 4});
+        request.setPayload(new byte[4096]);
+        ByteBuffer large = ByteBuffer.wrap(new CoAPMessageWriter(request).encode());
+        ByteBuffer small = ByteBuffer.wrap(encodedGet());
+
+        long perSmallDecode = allocatedPerDecode(threads, small);
+        long perLargeDecode = allocatedPerDecode(threads, large);
+        assertTrue("Decoding allocated " + perLargeDecode + " bytes for a 4 KiB payload and "
+                + perSmallDecode + " bytes for a small message", perLargeDecode < perSmallDecode + 1024);
+    }
+
+    private static long allocatedPerDecode(com.sun.management.ThreadMXBean threads, ByteBuffer buffer) throws IncorrectMessageException {
+        int rounds = 1000;
+        for (int i = 0; i < rounds; i++) {
+            new CoAPMessageReader(buffer, SOURCE).decode();
+        }
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < rounds; i++) {
+            new CoAPMessageReader(buffer, SOURCE).decode();
+        }
+        return (threads.getThreadAllocatedBytes(thread) - before) / rounds;
+    }
+}
@@ -34,6 +34,7 @@
  */
 package com.ericsson.deviceaccess.coap.basedriver.util;
 
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessageFormat;
 import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPOptionHeader;
@@ -43,6 +44,11 @@ import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPResponseCode;
 import java.net.DatagramPacket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 import org.junit.Test;
@@ -230,4 +236,60 @@ public class CoAPMessageWriterTest {
         assertEquals(0, emptyAck.getCode().getNo());
 
     }
+
+    @Test
+    public void testEncodeIntoBuffer() throws Exception {
+        CoAPResponse resp = new CoAPResponse(1, CoAPMessageType.NON_CONFIRMABLE, CoAPResponseCode.CONTENT, 4321, new byte[]{7, 7});
+        // Added out of order, long value and large delta need extended fields
+        byte[] proxyUri = new byte[300];
+        Arrays.fill(proxyUri, (byte) 'a');
+        resp.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.SIZE1, new byte[]{4}));
+        resp.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.PROXY_URI, proxyUri));
+        resp.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.ETAG, new byte[]{1, 2}));
+        resp.setPayload("payload".getBytes(StandardCharsets.UTF_8));
+
+        CoAPMessageWriter writer = new CoAPMessageWriter(resp);
+        int length = writer.encodedLength();
+        ByteBuffer buffer = ByteBuffer.allocate(length + 8);
+        buffer.position(8);
+        assertEquals(length, writer.encode(buffer));
+        assertEquals(length + 8, buffer.position());
+        buffer.position(8);
+        assertArrayEquals(writer.encode(), Arrays.copyOfRange(buffer.array(), 8, buffer.limit()));
+
+        CoAPMessage msg = new CoAPMessageReader(buffer, null).decode();
+        assertEquals(4321, msg.getMessageId());
+        assertArrayEquals(proxyUri, msg.getOptionHeaders(CoAPOptionName.PROXY_URI).get(0).getValue());
+        assertArrayEquals(new byte[]{4}, msg.getOptionHeaders(CoAPOptionName.SIZE1).get(0).getValue());
+        assertArrayEquals(new byte[]{1, 2}, msg.getOptionHeaders(CoAPOptionName.ETAG).get(0).getValue());
+        assertEquals("payload", new String(msg.getPayload(), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testEncodeIntoSmallBuffer() throws Exception {
+        CoAPResponse resp = new CoAPResponse(1, CoAPMessageType.NON_CONFIRMABLE, CoAPResponseCode.CONTENT, 1);
+        resp.setPayload(new byte[10]);
+        new CoAPMessageWriter(resp).encode(ByteBuffer.allocate(10));
+    }
+
+    @Test
+    public void testEncodeAfterOverflow() throws Exception {
+        CoAPResponse resp = new CoAPResponse(1, CoAPMessageType.NON_CONFIRMABLE, CoAPResponseCode.CONTENT, 1);
+        resp.addOptionHeader(new CoAPOptionHeader(CoAPOptionName.ETAG, new byte[]{1, 2}));
+        resp.setPayload(new byte[10]);
+        CoAPMessageWriter writer = new CoAPMessageWriter(resp);
+        ByteBuffer small = ByteBuffer.allocate(12);
+        small.position(2);
+        try {
+            writer.encode(small);
+            fail("Message should not fit");
+        } catch (BufferOverflowException e) {
+            assertEquals(2, small.position());
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        int length = writer.encode(buffer);
+        assertEquals(buffer.position(), length);
+        assertArrayEquals(writer.encode(), Arrays.copyOf(buffer.array(), length));
+    }
 }
@@ -0,0 +1,124 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.util;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Schedules 100k retransmission-like timeouts of a few seconds and cancels
+ * them, the way acknowledged messages do. Prints the heap retained while they
+ * are outstanding and the threads used, next to the same load on the
+ * java.util.Timer per component that the CoAP stack used before.
+ * <p/>
+ * Not part of the default test run, run it with
+ * <code>mvn test -Dtest=HashedWheelTimerBenchmark</code>.
+ */
+public class HashedWheelTimerBenchmark {
+
+    private static final int COUNT = 100000;
+    // components that each had a java.util.Timer
+    private static final int COMPONENTS = 7;
+
+    @Test
+    public void outstandingTimeouts() throws Exception {
+        Runnable task = () -> {
+        };
+
+        int threadsBefore = Thread.activeCount();
+        HashedWheelTimer wheel = new HashedWheelTimer("benchmark timer", 10, TimeUnit.MILLISECONDS, 512);
+        HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[COUNT];
+        long before = usedHeap();
+        for (int i = 0; i < COUNT; i++) {
+            timeouts[i] = wheel.schedule(task, 2000 + i % 1000);
+        }
+        // one tick moves the scheduled entries into the wheel
+        Thread.sleep(50);
+        long wheelBytes = (usedHeap() - before) / COUNT;
+        int wheelThreads = Thread.activeCount() - threadsBefore;
+        assertEquals(COUNT, wheel.pending());
+        for (HashedWheelTimer.Timeout timeout : timeouts) {
+            timeout.cancel();
+        }
+        timeouts = null;
+        Thread.sleep(50);
+        long wheelCancelledBytes = (usedHeap() - before) / COUNT;
+        wheel.stop();
+
+        threadsBefore = Thread.activeCount();
+        Timer[] timers = new Timer[COMPONENTS];
+        for (int i = 0; i < COMPONENTS; i++) {
+            timers[i] = new Timer();
+        }
+        TimerTask[] tasks = new TimerTask[COUNT];
+        before = usedHeap();
+        for (int i = 0; i < COUNT; i++) {
+            tasks[i] = new TimerTask() {
+                @Override
+                public void run() {
+                }
+            };
+            timers[i % COMPONENTS].schedule(tasks[i], 2000 + i % 1000);
+        }
+        long timerBytes = (usedHeap() - before) / COUNT;
+        int timerThreads = Thread.activeCount() - threadsBefore;
+        for (TimerTask t : tasks) {
+            t.cancel();
+        }
+        tasks = null;
+        // cancelled TimerTasks stay in the queue until they are due or purged
+        long timerCancelledBytes = (usedHeap() - before) / COUNT;
+        for (Timer t : timers) {
+            t.cancel();
+        }
+
+        System.out.println(COUNT + " outstanding timeouts:");
+        System.out.println("  hashed wheel: " + wheelBytes + " bytes each, "
+                + wheelCancelledBytes + " bytes each after cancel, " + wheelThreads + " thread(s)");
+        System.out.println("  java.util.Timer: " + timerBytes + " bytes each, "
+                + timerCancelledBytes + " bytes each after cancel, " + timerThreads + " thread(s)");
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HashedWheelTimerTest {
+
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() {
+        timer = new HashedWheelTimer("test timer", 1, TimeUnit.MILLISECONDS, 64);
+    }
+
+    @After
+    public void tearDown() {
+        timer.stop();
+    }
+
+    @Test
+    public void testTaskRunsAfterDelay() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout timeout = timer.schedule(latch::countDown, 50);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        waitForPending(0);
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void testDelayLongerThanOneRound() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(latch::countDown, 150);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+    }
+
+    @Test
+    public void testCancelledTaskDoesNotRun() throws Exception {
+        AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.schedule(runs::incrementAndGet, 30);
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+        assertEquals(0, timer.pending());
+    }
+
+    @Test
+    public void testPeriodicTask() throws Exception {
+        CountDownLatch latch = new CountDownLatch(3);
+        HashedWheelTimer.Timeout timeout = timer.schedule(latch::countDown, 0, 10);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.isExpired());
+        assertTrue(timeout.cancel());
+        waitForPending(0);
+    }
+
+    @Test
+    public void testPeriodOfOneRevolution() throws Exception {
+        HashedWheelTimer wheelTimer = new HashedWheelTimer("revolution timer", 10, TimeUnit.MILLISECONDS, 8);
+        long period = 80;
+        long[] runs = new long[4];
+        AtomicInteger count = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(runs.length);
+        try {
+            long start = System.nanoTime();
+            wheelTimer.schedule(() -> {
+                int i = count.getAndIncrement();
+                if (i < runs.length) {
+                    runs[i] = System.nanoTime() - start;
+                    latch.countDown();
+                }
+            }, period, period);
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            wheelTimer.stop();
+        }
+        // A run a revolution late would be at least a whole period late
+        for (int i = 0; i < runs.length; i++) {
+            long late = TimeUnit.NANOSECONDS.toMillis(runs[i]) - (i + 1) * period;
+            if (late >= period / 2) {
+                fail("Run " + i + " was " + late + " ms late");
+            }
+        }
+    }
+
+    @Test
+    public void testFailingTaskDoesNotStopTimer() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        timer.schedule(() -> {
+            throw new IllegalStateException("expected");
+        }, 0);
+        timer.schedule(latch::countDown, 10);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRestartAfterStop() throws Exception {
+        timer.schedule(() -> {
+        }, 10000);
+        timer.stop();
+        assertEquals(0, timer.pending());
+        CountDownLatch latch = new CountDownLatch(1);
+        timer.schedule(latch::countDown, 0);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Cancelled retransmission-like timeouts must leave the wheel right away
+     * instead of waiting until they are due.
+     */
+    @Test
+    public void testCancelledTimeoutsLeaveWheel() throws Exception {
+        int count = 10000;
+        Runnable task = () -> {
+        };
+
+        HashedWheelTimer.Timeout[] timeouts = new HashedWheelTimer.Timeout[count];
+        for (int i = 0; i < count; i++) {
+            timeouts[i] = timer.schedule(task, 2000 + i % 1000);
+        }
+        // one tick moves the scheduled entries into the wheel
+        Thread.sleep(20);
+        assertEquals(count, timer.pending());
+        for (HashedWheelTimer.Timeout timeout : timeouts) {
+            assertTrue(timeout.cancel());
+        }
+        waitForPending(0);
+        for (HashedWheelTimer.Timeout timeout : timeouts) {
+            assertTrue(timeout.isCancelled());
+        }
+    }
+
+    private void waitForPending(int expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (timer.pending() != expected && System.currentTimeMillis() < end) {
+            Thread.sleep(5);
+        }
+        assertEquals(expected, timer.pending());
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.util;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestCode;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.ExchangeKey;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MessageCacheTest {
+
+    private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 5683);
+
+    @Test
+    public void testLeastRecentlyUsedEvicted() {
+        MessageCache<CoAPRequest> cache = new MessageCache<>(2, Long.MAX_VALUE, MessageCache.EXCHANGE_LIFETIME);
+        List<CoAPRequest> evicted = new ArrayList<>();
+        cache.setEvictionListener(evicted::add);
+        CoAPRequest first = request(1, 0);
+        CoAPRequest second = request(2, 0);
+        cache.put(first.getExchangeKey(), first);
+        cache.put(second.getExchangeKey(), second);
+        // touch the first one, so the second is the least recently used
+        assertSame(first, cache.get(first.getExchangeKey()));
+        CoAPRequest third = request(3, 0);
+        cache.put(third.getExchangeKey(), third);
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get(second.getExchangeKey()));
+        assertSame(first, cache.get(first.getExchangeKey()));
+        assertEquals(1, cache.getEvictions());
+        assertEquals(1, evicted.size());
+        assertSame(second, evicted.get(0));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testByteBudget() {
+        CoAPRequest small = request(1, 10);
+        long smallSize = sizeOf(small);
+        MessageCache<CoAPRequest> cache = new MessageCache<>(100, smallSize + 100, MessageCache.EXCHANGE_LIFETIME);
+        cache.put(small.getExchangeKey(), small);
+        assertEquals(smallSize, cache.getBytes());
+
+        CoAPRequest large = request(2, 100);
+        cache.put(large.getExchangeKey(), large);
+        assertFalse(cache.containsKey(small.getExchangeKey()));
+        assertTrue(cache.containsKey(large.getExchangeKey()));
+        assertEquals(sizeOf(large), cache.getBytes());
+
+        assertTrue(cache.remove(large.getExchangeKey(), large));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testEntriesExpire() throws Exception {
+        MessageCache<CoAPRequest> cache = new MessageCache<>(100, Long.MAX_VALUE, 20);
+        CoAPRequest first = request(1, 0);
+        CoAPRequest second = request(2, 0);
+        cache.put(first.getExchangeKey(), first);
+        cache.put(second.getExchangeKey(), second);
+        Thread.sleep(40);
+
+        assertNull(cache.get(first.getExchangeKey()));
+        CoAPRequest third = request(3, 0);
+        cache.put(third.getExchangeKey(), third);
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getExpirations());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testReplaceKeepsByteCount() {
+        MessageCache<CoAPRequest> cache = new MessageCache<>();
+        CoAPRequest first = request(1, 10);
+        CoAPRequest again = request(1, 20);
+        ExchangeKey key = first.getExchangeKey();
+        cache.put(key, first);
+        assertSame(first, cache.put(key, again));
+        assertEquals(sizeOf(again), cache.getBytes());
+        assertFalse(cache.remove(key, first));
+        assertSame(again, cache.remove(key));
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    public void testConcurrentUseStaysWithinLimits() throws Exception {
+        int max = 500;
+        MessageCache<CoAPRequest> cache = new MessageCache<>(max, Long.MAX_VALUE, MessageCache.EXCHANGE_LIFETIME);
+        AtomicLong evictedBytes = new AtomicLong();
+        cache.setEvictionListener(request -> evictedBytes.addAndGet(sizeOf(request)));
+        int threads = 4;
+        int perThread = 5000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int offset = t * perThread;
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    CoAPRequest request = request(offset + i, i % 32);
+                    cache.put(request.getExchangeKey(), request);
+                    cache.get(request(offset + i / 2, 0).getExchangeKey());
+                }
+            });
+            workers[t].start();
+        }
+        long putBytes = 0;
+        for (int i = 0; i < threads * perThread; i++) {
+            putBytes += sizeOf(request(i, (i % perThread) % 32));
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertTrue("size " + cache.size(), cache.size() <= max);
+        assertEquals(threads * perThread - cache.size(), cache.getEvictions());
+        assertEquals(putBytes - evictedBytes.get(), cache.getBytes());
+        assertEquals(threads * perThread, cache.getHits() + cache.getMisses());
+    }
+
+    private static CoAPRequest request(int messageId, int payloadLength) {
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.CONFIRMABLE, CoAPRequestCode.PUT, messageId);
+        request.setSocketAddress(PEER);
+        if (payloadLength > 0) {
+            request.setPayload(new byte[payloadLength]);
+        }
+        return request;
+    }
+
+    private static long sizeOf(CoAPRequest request) {
+        try {
+            return new CoAPMessageWriter(request).encodedLength();
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.coap.basedriver.util;
+
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPMessage.CoAPMessageType;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequest;
+import com.ericsson.deviceaccess.coap.basedriver.api.message.CoAPRequestCode;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageTrace.Direction;
+import com.ericsson.deviceaccess.coap.basedriver.util.MessageTrace.Record;
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MessageTraceTest {
+
+    private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 5683);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MessageTrace trace = new MessageTrace();
+
+    @After
+    public void tearDown() {
+        trace.stop();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        File file = folder.newFile("coap.trace");
+        trace.start(file, MessageTrace.DEFAULT_MAX_FILE_SIZE);
+        CoAPRequest request = request(17);
+        byte[] datagram = new CoAPMessageWriter(request(18)).encode();
+        trace.record(Direction.OUT, request);
+        trace.record(Direction.IN, PEER, datagram);
+        trace.stop();
+
+        List<Record> records = MessageTrace.read(file);
+        assertEquals(2, records.size());
+        assertEquals(Direction.OUT, records.get(0).getDirection());
+        assertEquals(PEER, records.get(0).getAddress());
+        CoAPMessage decoded = records.get(0).decode();
+        assertEquals(17, decoded.getMessageId());
+        assertEquals(CoAPRequestCode.PUT, decoded.getCode());
+        assertEquals(Direction.IN, records.get(1).getDirection());
+        assertArrayEquals(datagram, records.get(1).getDatagram());
+        assertTrue(records.get(1).toString().contains("18"));
+        assertEquals(0, trace.getDropped());
+    }
+
+    @Test
+    public void testUnresolvedAddress() throws Exception {
+        File file = folder.newFile("coap.trace");
+        trace.start(file, MessageTrace.DEFAULT_MAX_FILE_SIZE);
+        byte[] datagram = new CoAPMessageWriter(request(18)).encode();
+        trace.record(Direction.OUT, InetSocketAddress.createUnresolved("sensor.local", 5684), datagram);
+        trace.record(Direction.IN, PEER, datagram);
+        trace.stop();
+
+        List<Record> records = MessageTrace.read(file);
+        assertEquals(2, records.size());
+        InetSocketAddress address = records.get(0).getAddress();
+        assertTrue(address.isUnresolved());
+        assertEquals("sensor.local", address.getHostString());
+        assertEquals(5684, address.getPort());
+        assertEquals(Direction.OUT, records.get(0).getDirection());
+        assertEquals(PEER, records.get(1).getAddress());
+        assertEquals(0, trace.getDropped());
+    }
+
+    @Test
+    public void testNothingRecordedWhenStopped() throws Exception {
+        File file = folder.newFile("coap.trace");
+        trace.start(file, MessageTrace.DEFAULT_MAX_FILE_SIZE);
+        trace.stop();
+        assertFalse(trace.isEnabled());
+        trace.record(Direction.OUT, request(1));
+
+        assertTrue(MessageTrace.read(file).isEmpty());
+        assertEquals(0, trace.getDropped());
+    }
+
+    @Test
+    public void testRotation() throws Exception {
+        File file = folder.newFile("coap.trace");
+        trace.start(file, 200);
+        for (int i = 0; i < 20; i++) {
+            trace.record(Direction.OUT, request(i));
+        }
+        trace.stop();
+
+        List<Record> current = MessageTrace.read(file);
+        List<Record> previous = MessageTrace.read(new File(file.getPath() + ".1"));
+        assertFalse(current.isEmpty());
+        assertFalse(previous.isEmpty());
+        assertTrue(file.length() <= 200);
+        assertEquals(19, current.get(current.size() - 1).decode().getMessageId());
+    }
+
+    private static CoAPRequest request(int messageId) {
+        CoAPRequest request = new CoAPRequest(CoAPMessageType.CONFIRMABLE, CoAPRequestCode.PUT, messageId);
+        request.setSocketAddress(PEER);
+        return request;
+    }
+}
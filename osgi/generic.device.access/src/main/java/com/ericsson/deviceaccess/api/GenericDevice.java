@@ -38,6 +38,7 @@ import com.ericsson.common.util.serialization.View;
 import com.ericsson.deviceaccess.api.genericdevice.GDContextNode;
 import com.ericsson.deviceaccess.api.genericdevice.GDException;
 import com.ericsson.deviceaccess.api.genericdevice.GDService;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonView;
 import java.util.Map;
@@ -209,6 +210,31 @@ public interface GenericDevice extends GDContextNode {
      */
     String serializeState() throws GDException;
 
+    /**
+     * Gets the revision of the latest change of the device or any property in
+     * its services.
+     *
+     * @return the latest revision
+     * @see com.ericsson.deviceaccess.api.genericdevice.GDProperties#getRevision()
+     */
+    @JsonIgnore
+    long getRevision();
+
+    /**
+     * Serializes what has changed in the device after the specified revision:
+     * the device properties if any of them changed, the changed and removed
+     * properties of each service, and the names of the removed services.
+     * Services without changes are left out, services put after the revision
+     * are sent as a whole.
+     *
+     * @param revision a revision returned by an earlier call, or 0 for the
+     * whole state
+     * @return JSON of the changes. Example:
+     * <code>{"revision" : 42,"services" : {"Service1" : {"properties" : {"property1" : {"currentValue" : 99}}}}}</code>
+     * @throws com.ericsson.deviceaccess.api.genericdevice.GDException
+     */
+    String serializeStateSince(long revision) throws GDException;
+
     public enum State {
 
         /**
@@ -36,6 +36,10 @@ package com.ericsson.deviceaccess.api;
 
 import com.ericsson.common.util.serialization.Format;
 import com.ericsson.deviceaccess.api.genericdevice.GDException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 
 /**
  * Interface of something that shall be possible to serialize.
@@ -43,4 +47,35 @@ import com.ericsson.deviceaccess.api.genericdevice.GDException;
 public interface Serializable {
 
     String serialize(Format format) throws GDException;
+
+    /**
+     * Serializes straight to the specified writer, which is not closed.
+     *
+     * @param format
+     * @param writer
+     * @throws GDException
+     */
+    default void serialize(Format format, Writer writer) throws GDException {
+        try {
+            writer.write(serialize(format));
+        } catch (IOException ex) {
+            throw new GDException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Serializes straight to the specified stream as UTF-8. The stream is not
+     * closed.
+     *
+     * @param format
+     * @param out
+     * @throws GDException
+     */
+    default void serialize(Format format, OutputStream out) throws GDException {
+        try {
+            out.write(serialize(format).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException ex) {
+            throw new GDException(ex.getMessage(), ex);
+        }
+    }
 }
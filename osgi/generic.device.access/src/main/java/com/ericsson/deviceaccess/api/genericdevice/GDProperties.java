@@ -37,9 +37,11 @@ package com.ericsson.deviceaccess.api.genericdevice;
 import com.ericsson.common.util.serialization.View;
 import com.ericsson.deviceaccess.api.Serializable;
 import com.fasterxml.jackson.annotation.JsonAnyGetter;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.annotation.JsonView;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * A set of named properties.
@@ -174,6 +176,35 @@ public interface GDProperties extends Serializable {
      */
     void addAll(GDProperties source);
 
+    /**
+     * Starts a batch of updates. Until the matching {@link #commitUpdate()},
+     * changes to the properties made by the calling thread are collected
+     * instead of being notified one by one. Batches belong to the thread that
+     * started them and can be nested, changes are notified when the outermost
+     * batch is committed.
+     * <p/>
+     * Example:
+     * <blockquote><pre>
+     *   properties.beginUpdate();
+     *   try {
+     *       properties.setFloatValue("CurrentTemperature", 21.5f);
+     *       properties.setIntValue("CurrentHumidity", 40);
+     *   } finally {
+     *       properties.commitUpdate();
+     *   }
+     * </pre></blockquote>
+     */
+    void beginUpdate();
+
+    /**
+     * Ends a batch of updates started with {@link #beginUpdate()}. When the
+     * outermost batch ends, all the properties changed in it are notified in
+     * one event.
+     *
+     * @throws IllegalStateException if there is no batch to end
+     */
+    void commitUpdate();
+
     /**
      * Serializes the state (i.e. values of all properties) to JSON
      *
@@ -182,6 +213,75 @@ public interface GDProperties extends Serializable {
      */
     String serializeState();
 
+    /**
+     * Gets the revision of the latest change of any of the properties.
+     * Revisions increase monotonically and are shared by all properties, so
+     * they can be compared between property sets.
+     *
+     * @return the latest revision
+     */
+    @JsonIgnore
+    long getRevision();
+
+    /**
+     * Gets the properties which have changed after the specified revision.
+     *
+     * @param revision a revision returned by {@link #getRevision()}, or 0 for
+     * all properties
+     * @return map from name to value
+     */
+    Map<String, Data> getPropertiesSince(long revision);
+
+    /**
+     * Gets the properties which have changed or have been removed after the
+     * specified revision, together with the revision they are current at.
+     *
+     * @param revision a revision returned by an earlier call, or 0 for all
+     * properties
+     * @return the changes
+     */
+    Changes getChangesSince(long revision);
+
+    /**
+     * Serializes the values of the properties which have changed after the
+     * specified revision and the names of the removed ones, together with the
+     * revision they are current at.
+     *
+     * @param revision a revision returned by an earlier call, or 0 for all
+     * properties
+     * @return Example:
+     * <code>{"properties" : {"property1" : {"currentValue" : 99}},"removed" : ["property2"],"revision" : 42}</code>
+     */
+    String serializeStateSince(long revision);
+
+    /**
+     * Changes of a property set after some revision.
+     *
+     * @see GDProperties#getChangesSince(long)
+     */
+    public static class Changes {
+
+        /**
+         * The revision to ask for the next changes with. All changes up to it
+         * are included.
+         */
+        public final long revision;
+        /**
+         * The changed properties, from name to value.
+         */
+        public final Map<String, Data> properties;
+        /**
+         * Names of the removed properties.
+         */
+        public final Set<String> removed;
+
+        public Changes(long revision, Map<String, Data> properties, Set<String> removed) {
+            this.revision = revision;
+            this.properties = properties;
+            this.removed = removed;
+        }
+    }
+
     public static class Data {
 
         public Object currentValue;
@@ -105,4 +105,25 @@ public interface GDService extends GDContextNode {
      *
      */
     String serializeState();
+
+    /**
+     * Gets the revision of the latest change of any property in the service.
+     *
+     * @return the latest revision
+     * @see GDProperties#getRevision()
+     */
+    @JsonIgnore
+    long getRevision();
+
+    /**
+     * Serializes the values of the properties in the service which have
+     * changed after the specified revision.
+     *
+     * @param revision a revision returned by an earlier call, or 0 for all
+     * properties
+     * @return JSON of the changes. Example:
+     * <code>{"properties" : {"property1" : {"currentValue" : 99}},"revision" : 42}</code>
+     * @see GDProperties#serializeStateSince(long)
+     */
+    String serializeStateSince(long revision);
 }
@@ -0,0 +1,203 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Dispatches events to a fixed pool of worker threads. Events are partitioned
+ * by a key (the device id) so that all events with the same key are handled by
+ * the same worker, in the order they were added, while events with different
+ * keys can be handled in parallel.
+ * <p>
+ * Each worker has its own bounded {@link EventQueue}.
+ *
+ * @param <E> type of the event
+ */
+class EventDispatcher<E> {
+
+    /**
+     * Default capacity of the queue of each worker.
+     */
+    static final int DEFAULT_CAPACITY = 10000;
+    private static final Logger logger = LoggerFactory.getLogger(EventDispatcher.class);
+    private final List<Worker> workers;
+    private final Consumer<E> handler;
+
+    /**
+     * Creates dispatcher whose workers have blocking queues of default
+     * capacity.
+     *
+     * @param workerCount number of worker threads, at least one
+     * @param handler handler that is invoked for every event
+     */
+    EventDispatcher(int workerCount, Consumer<E> handler) {
+        this(workerCount, () -> new EventQueue<>(DEFAULT_CAPACITY, OverloadPolicy.BLOCK, e -> null, (a, b) -> b), handler);
+    }
+
+    /**
+     * Creates dispatcher.
+     *
+     * @param workerCount number of worker threads, at least one
+     * @param queueFactory creates the queue for each worker
+     * @param handler handler that is invoked for every event
+     */
+    EventDispatcher(int workerCount, Supplier<EventQueue<E>> queueFactory, Consumer<E> handler) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("There must be at least one worker");
+        }
+        this.handler = handler;
+        workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++) {
+            workers.add(new Worker("EventManager-worker-" + i, queueFactory.get()));
+        }
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    void start() {
+        workers.forEach(Worker::start);
+    }
+
+    /**
+     * Stops the worker threads. Events already in the queues are handled
+     * before the workers exit.
+     */
+    void shutdown() {
+        workers.forEach(worker -> worker.queue.close());
+    }
+
+    /**
+     * Adds event to the queue of the worker that handles given key. If the
+     * queue is full the overload policy of the queue is applied.
+     *
+     * @param key partitioning key
+     * @param event event
+     */
+    void dispatch(String key, E event) {
+        // Workers must never wait for a queue to avoid deadlocks between them
+        boolean mayBlock = !(Thread.currentThread() instanceof EventDispatcher.Worker);
+        try {
+            if (!workerFor(key).queue.put(event, mayBlock)) {
+                logger.warn("Event dispatcher is shut down, dropping event: " + event);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting for event queue, dropping event: " + event);
+        }
+    }
+
+    /**
+     * Gets the number of worker threads.
+     *
+     * @return worker count
+     */
+    int getWorkerCount() {
+        return workers.size();
+    }
+
+    /**
+     * Gets the number of events waiting to be handled.
+     *
+     * @return queued event count
+     */
+    int getQueuedCount() {
+        return workers.stream().mapToInt(worker -> worker.queue.size()).sum();
+    }
+
+    /**
+     * Gets the number of events dropped because a queue was full.
+     *
+     * @return dropped event count
+     */
+    long getDroppedCount() {
+        return workers.stream().mapToLong(worker -> worker.queue.getDropped()).sum();
+    }
+
+    /**
+     * Gets the number of events merged into already queued events.
+     *
+     * @return coalesced event count
+     */
+    long getCoalescedCount() {
+        return workers.stream().mapToLong(worker -> worker.queue.getCoalesced()).sum();
+    }
+
+    private Worker workerFor(String key) {
+        int hash = key == null ? 0 : key.hashCode();
+        // Spread the high bits as device ids often differ only at the end
+        hash ^= hash >>> 16;
+        return workers.get((hash & Integer.MAX_VALUE) % workers.size());
+    }
+
+    /**
+     * Worker thread that consumes its own queue.
+     */
+    private class Worker extends Thread {
+
+        private final EventQueue<E> queue;
+
+        Worker(String name, EventQueue<E> queue) {
+            super(name);
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                E event;
+                try {
+                    event = queue.take();
+                } catch (InterruptedException ex) {
+                    continue;
+                }
+                if (event == null) {
+                    return;
+                }
+                try {
+                    handler.accept(event);
+                } catch (RuntimeException e) {
+                    logger.warn("Event handling failed: " + event, e);
+                }
+            }
+        }
+    }
+}
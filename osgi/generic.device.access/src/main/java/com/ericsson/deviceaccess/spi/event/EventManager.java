@@ -47,13 +47,9 @@ import com.ericsson.deviceaccess.api.genericdevice.GDEventListener.Type;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
 import org.osgi.framework.Filter;
@@ -71,25 +67,48 @@ import org.slf4j.LoggerFactory;
  * Event manager that handles issuing if events at changes in properties.
  * Matches events against listeners filter (see {@link GDEventListener} for
  * details).
- *
+ * <p>
+ * Events are handled by a pool of worker threads. Events are partitioned by
+ * device id so events of one device are delivered in order, while events of
+ * different devices may be delivered in parallel. The number of workers is
+ * read from the {@value #WORKERS_PROPERTY} framework property and defaults to
+ * one.
+ * <p>
+ * Each worker has a bounded queue whose capacity and {@link OverloadPolicy}
+ * are read from the {@value #QUEUE_CAPACITY_PROPERTY} and
+ * {@value #OVERLOAD_POLICY_PROPERTY} framework properties.
  */
 public class EventManager implements ServiceListener, Runnable,
         ServiceTrackerCustomizer<GenericDevice, Object> {
 
+    /**
+     * Framework property for the number of event worker threads.
+     */
+    public static final String WORKERS_PROPERTY = "com.ericsson.deviceaccess.eventmanager.workers";
+    /**
+     * Framework property for the capacity of the event queue of each worker.
+     */
+    public static final String QUEUE_CAPACITY_PROPERTY = "com.ericsson.deviceaccess.eventmanager.queue.capacity";
+    /**
+     * Framework property for the {@link OverloadPolicy} of the event queues.
+     */
+    public static final String OVERLOAD_POLICY_PROPERTY = "com.ericsson.deviceaccess.eventmanager.queue.policy";
     private static final Logger logger = LoggerFactory.getLogger(EventManager.class);
     private static final String LISTENER_FILTER = "(" + Constants.OBJECTCLASS + "=" + GDEventListener.class
             .getName() + ")";
-    private static final Pattern DELTA_PATTERN = Pattern.compile("\\((([^(]*)__delta)");
     private BundleContext context;
     private final AtomicBoolean running = new AtomicBoolean(false);
-    private final Map<GDEventListener, Filter> listeners = new ConcurrentHashMap<>();
-    private final BlockingQueue<GenericDeviceEvent> events = new LinkedBlockingQueue<>();
-    private final Map<String, Object> deltaValues = new HashMap<>();
+    private final Object listenersLock = new Object();
+    private volatile ListenerIndex listeners = ListenerIndex.EMPTY;
+    private final Map<String, Object> deltaValues = new ConcurrentHashMap<>();
     private ServiceTracker deviceTracker;
     private final Map<String, GenericDevice> devices = new ConcurrentHashMap<>();
 
     private Thread thread;
-    private final GenericDeviceEvent POISON = new GenericDeviceEvent(null, null, null, null);
+    private volatile EventDispatcher<GenericDeviceEvent> dispatcher;
+    private int workerCount = 1;
+    private int queueCapacity = EventDispatcher.DEFAULT_CAPACITY;
+    private OverloadPolicy overloadPolicy = OverloadPolicy.BLOCK;
     private Filter ALLOW_ALL = new Filter() {
 
         @Override
@@ -122,31 +141,100 @@ public class EventManager implements ServiceListener, Runnable,
     }
 
     /**
-     * Thread body that consumes the event queue and issues events to listeners.
+     * Sets the number of worker threads that issue events to listeners. Takes
+     * effect on next {@link #start()}.
+     *
+     * @param workerCount number of workers, at least one
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) {
+            throw new IllegalArgumentException("There must be at least one worker");
+        }
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * Sets the capacity of the event queue of each worker. Takes effect on next
+     * {@link #start()}.
+     *
+     * @param queueCapacity capacity, at least one
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be at least one");
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Sets what is done when an event queue is full. Takes effect on next
+     * {@link #start()}.
+     *
+     * @param overloadPolicy
+     */
+    public void setOverloadPolicy(OverloadPolicy overloadPolicy) {
+        if (overloadPolicy == null) {
+            throw new IllegalArgumentException("Overload policy must be given");
+        }
+        this.overloadPolicy = overloadPolicy;
+    }
+
+    /**
+     * Gets the number of events waiting to be issued to listeners.
+     *
+     * @return queue depth
+     */
+    public int getQueueDepth() {
+        EventDispatcher<GenericDeviceEvent> current = dispatcher;
+        return current == null ? 0 : current.getQueuedCount();
+    }
+
+    /**
+     * Gets the number of events dropped because an event queue was full since
+     * the event manager was started.
+     *
+     * @return dropped event count
+     */
+    public long getDroppedEvents() {
+        EventDispatcher<GenericDeviceEvent> current = dispatcher;
+        return current == null ? 0 : current.getDroppedCount();
+    }
+
+    /**
+     * Gets the number of events merged into already queued events since the
+     * event manager was started.
+     *
+     * @return coalesced event count
+     */
+    public long getCoalescedEvents() {
+        EventDispatcher<GenericDeviceEvent> current = dispatcher;
+        return current == null ? 0 : current.getCoalescedCount();
+    }
+
+    /**
+     * Thread body that registers the event manager to listen for listeners and
+     * devices.
      */
     @Override
     public void run() {
         startListenGenericDeviceEvents();
         createTracker();
+    }
 
-        GenericDeviceEvent event;
-        while (running.get()) {
-            try {
-                // Wait for a GenericDeviceEvent to be received and forward this to all listeners
-                event = events.take();
-            } catch (InterruptedException ex) {
-                continue;
-            }
-            //POISON is invalid and because running is set to false this exits.
-            if (isEventInvalid(event)) {
-                continue;
-            }
-            Map<String, Object> matching = new HashMap<>();
-            if (!event.propertyEvent) {
-                addForChangeEvent(event, matching);
-            }
-            invokeListeners(event, matching);
+    /**
+     * Issues an event to the listeners. Called by the dispatcher workers.
+     *
+     * @param event
+     */
+    private void handleEvent(GenericDeviceEvent event) {
+        if (isEventInvalid(event)) {
+            return;
         }
+        Map<String, Object> matching = new HashMap<>();
+        if (!event.propertyEvent) {
+            addForChangeEvent(event, matching);
+        }
+        invokeListeners(event, matching);
     }
 
     /**
@@ -193,17 +281,15 @@ public class EventManager implements ServiceListener, Runnable,
      * @param matchingProperties
      */
     private void invokeListeners(GenericDeviceEvent event, Map<String, Object> matchingProperties) {
+        ListenerIndex index = listeners;
         String deviceId = event.deviceId;
         String serviceName = event.serviceId;
-        listeners.forEach((listener, filter) -> {
-            checkForDeltaProperty(filter, event, matchingProperties);
-            if (event.propertyEvent) {
-                listener.notifyGDPropertyEvent(event.type, deviceId, serviceName, event.propertyId);
-            } else if (filter.matches(matchingProperties)) {
-                System.out.println(event);
-                listener.notifyGDEvent(deviceId, serviceName, event.properties);
-            }
-        });
+        if (event.propertyEvent) {
+            index.getListeners().forEach(listener -> listener.notifyGDPropertyEvent(event.type, deviceId, serviceName, event.propertyId));
+            return;
+        }
+        index.getDeltaProperties().forEach(deltaProperty -> checkForDeltaProperty(deltaProperty, event, matchingProperties));
+        index.forEachMatching(deviceId, serviceName, matchingProperties, listener -> listener.notifyGDEvent(deviceId, serviceName, event.properties));
     }
 
     /**
@@ -222,23 +308,16 @@ public class EventManager implements ServiceListener, Runnable,
     }
 
     /**
-     * If filter and event is for delta property, this then updates it
+     * If event is for delta property, this then updates it
      *
-     * @param filter
+     * @param deltaProperty property whose delta some listener uses
      * @param event
      * @param matchingProperties
      */
-    private void checkForDeltaProperty(Filter filter, GenericDeviceEvent event, Map<String, Object> matchingProperties) {
-        if (filter != null) {
-            String deltaProperty = filter.toString();
-            Matcher matcher = DELTA_PATTERN.matcher(deltaProperty);
-            if (matcher.find()) {
-                deltaProperty = matcher.group(2);
-                // Is this an event update for the delta property?
-                if (event.properties.get(deltaProperty) != null) {
-                    updateDelta(matchingProperties, deltaProperty, event, matcher);
-                }
-            }
+    private void checkForDeltaProperty(String deltaProperty, GenericDeviceEvent event, Map<String, Object> matchingProperties) {
+        // Is this an event update for the delta property?
+        if (event.properties.get(deltaProperty) != null) {
+            updateDelta(matchingProperties, deltaProperty, event);
         }
     }
 
@@ -248,16 +327,15 @@ public class EventManager implements ServiceListener, Runnable,
      * @param matchingProperties
      * @param deltaProperty
      * @param event
-     * @param matcher
      */
-    private void updateDelta(Map<String, Object> matchingProperties, String deltaProperty, GenericDeviceEvent event, Matcher matcher) {
+    private void updateDelta(Map<String, Object> matchingProperties, String deltaProperty, GenericDeviceEvent event) {
         Object newProperty = matchingProperties.get(deltaProperty);
         String id = event.deviceId + event.serviceId + deltaProperty;
         // Any old values saved to calculate delta from?
         if (deltaValues.containsKey(id)) {
             Object delta = calculateDelta(newProperty, deltaValues.get(id));
             if (delta != null) {
-                String deltaString = matcher.group(1);
+                String deltaString = deltaProperty + ListenerIndex.DELTA_SUFFIX;
                 event.properties.put(deltaString, delta);
                 matchingProperties.put(deltaString, delta);
             }
@@ -294,7 +372,8 @@ public class EventManager implements ServiceListener, Runnable,
     }
 
     /**
-     * Handle notifications of new/removed GenericDeviceEventListeners
+     * Handle notifications of new/removed GenericDeviceEventListeners. The
+     * filter of a new listener is compiled into the listener index here.
      *
      * @param event
      */
@@ -305,12 +384,16 @@ public class EventManager implements ServiceListener, Runnable,
         switch (event.getType()) {
             case ServiceEvent.REGISTERED:
                 Object filter = reference.getProperty(GENERICDEVICE_FILTER);
-                listeners.put(listener, getFilter(filter));
+                synchronized (listenersLock) {
+                    listeners = listeners.with(listener, getFilter(filter));
+                }
                 break;
             case ServiceEvent.MODIFIED:
                 break;
             case ServiceEvent.UNREGISTERING:
-                listeners.remove(listener);
+                synchronized (listenersLock) {
+                    listeners = listeners.without(listener);
+                }
                 break;
         }
     }
@@ -345,12 +428,20 @@ public class EventManager implements ServiceListener, Runnable,
             if (!running.compareAndSet(false, true)) {
                 throw new IllegalStateException("There is thread already running");
             }
+            int capacity = queueCapacity;
+            OverloadPolicy policy = overloadPolicy;
+            dispatcher = new EventDispatcher<>(workerCount,
+                    () -> new EventQueue<>(capacity, policy, GenericDeviceEvent::coalesceKey, GenericDeviceEvent::merge),
+                    this::handleEvent);
             thread = new Thread(this);
             try {
+                dispatcher.start();
                 thread.start();
             } catch (Throwable e) {
                 logger.warn("Failed to start Event Manager: " + e);
                 running.set(false);
+                dispatcher.shutdown();
+                dispatcher = null;
                 thread = null;
             }
         }
@@ -364,7 +455,8 @@ public class EventManager implements ServiceListener, Runnable,
             if (!running.compareAndSet(true, false)) {
                 throw new IllegalStateException("There wasn't thread running to shutdown");
             }
-            events.add(POISON);
+            dispatcher.shutdown();
+            dispatcher = null;
             thread = null;
             if (deviceTracker != null) {
                 deviceTracker.close();
@@ -394,15 +486,15 @@ public class EventManager implements ServiceListener, Runnable,
      * @param func
      */
     private void addEvent(String deviceId, Function<GenericDevice, GenericDeviceEvent> func) {
-        if (running.get()) {
+        EventDispatcher<GenericDeviceEvent> current = dispatcher;
+        if (!running.get() || current == null) {
             logger.warn("Tried to notify event on closed event manager, dropping it!");
             return;
         }
         // Ignore events from devices that are not registered yet
         GenericDevice device = devices.get(deviceId);
         if (device != null) {
-            events.add(func.apply(device));
-            System.out.println(events);
+            current.dispatch(deviceId, func.apply(device));
         } else {
             logger.warn("There was no device registered with deviceID: " + deviceId);
         }
@@ -463,6 +555,30 @@ public class EventManager implements ServiceListener, Runnable,
             properties.put(SERVICE_NAME, serviceId);
         }
 
+        /**
+         * Gets the key of events that can be merged with this one.
+         *
+         * @return key, or null if this can not be merged
+         */
+        Object coalesceKey() {
+            if (propertyEvent || properties == null) {
+                return null;
+            }
+            return deviceId + '\u0000' + serviceId;
+        }
+
+        /**
+         * Merges newer event to this one, newer property values overriding.
+         *
+         * @param newer
+         * @return merged event
+         */
+        GenericDeviceEvent merge(GenericDeviceEvent newer) {
+            Map<String, Object> merged = new HashMap<>(properties);
+            merged.putAll(newer.properties);
+            return new GenericDeviceEvent(newer.device, deviceId, serviceId, merged);
+        }
+
         @Override
         public String toString() {
             if (propertyId == null) {
@@ -0,0 +1,239 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.event;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BinaryOperator;
+import java.util.function.Function;
+
+/**
+ * Bounded ring buffer of events with a selectable {@link OverloadPolicy}.
+ *
+ * @param <E> type of the event
+ */
+final class EventQueue<E> {
+
+    private final Object[] items;
+    private final Object[] keys;
+    private final OverloadPolicy policy;
+    private final Function<E, Object> coalesceKey;
+    private final BinaryOperator<E> merger;
+    private final Map<Object, Integer> coalesceSlots = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head;
+    private int count;
+    private boolean closed;
+    private long dropped;
+    private long coalesced;
+
+    /**
+     * Creates queue.
+     *
+     * @param capacity maximum number of queued events
+     * @param policy what to do when the queue is full
+     * @param coalesceKey gives the key of events that can be merged, or null
+     * if the event can not be merged
+     * @param merger merges an older and a newer event with the same key
+     */
+    EventQueue(int capacity, OverloadPolicy policy, Function<E, Object> coalesceKey, BinaryOperator<E> merger) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be at least one");
+        }
+        this.items = new Object[capacity];
+        this.keys = new Object[capacity];
+        this.policy = policy;
+        this.coalesceKey = coalesceKey;
+        this.merger = merger;
+    }
+
+    /**
+     * Adds event to the queue, applying the overload policy if the queue is
+     * full.
+     *
+     * @param event
+     * @param mayBlock false if the caller must not wait even if the policy is
+     * {@link OverloadPolicy#BLOCK}
+     * @return false if the queue was closed and the event was not added
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean put(E event, boolean mayBlock) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            if (closed) {
+                return false;
+            }
+            Object key = policy == OverloadPolicy.COALESCE ? coalesceKey.apply(event) : null;
+            if (count == items.length) {
+                if (policy == OverloadPolicy.BLOCK && mayBlock) {
+                    while (count == items.length && !closed) {
+                        notFull.await();
+                    }
+                    if (closed) {
+                        return false;
+                    }
+                } else if (key != null && coalesce(key, event)) {
+                    return true;
+                } else {
+                    removeHead();
+                    dropped++;
+                }
+            }
+            int slot = (head + count) % items.length;
+            items[slot] = event;
+            if (key != null) {
+                keys[slot] = key;
+                coalesceSlots.put(key, slot);
+            }
+            count++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean coalesce(Object key, E event) {
+        Integer slot = coalesceSlots.get(key);
+        if (slot == null) {
+            return false;
+        }
+        items[slot] = merger.apply((E) items[slot], event);
+        coalesced++;
+        return true;
+    }
+
+    /**
+     * Takes the oldest event from the queue, waiting until there is one.
+     *
+     * @return event, or null if the queue is closed and empty
+     * @throws InterruptedException if interrupted while waiting
+     */
+    E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (closed) {
+                    return null;
+                }
+                notEmpty.await();
+            }
+            E event = removeHead();
+            notFull.signal();
+            return event;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private E removeHead() {
+        E event = (E) items[head];
+        Object key = keys[head];
+        if (key != null) {
+            Integer slot = coalesceSlots.get(key);
+            if (slot != null && slot == head) {
+                coalesceSlots.remove(key);
+            }
+        }
+        items[head] = null;
+        keys[head] = null;
+        head = (head + 1) % items.length;
+        count--;
+        return event;
+    }
+
+    /**
+     * Closes the queue. Events already in the queue can still be taken, new
+     * events are rejected.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of queued events.
+     *
+     * @return depth of the queue
+     */
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of events dropped because the queue was full.
+     *
+     * @return dropped event count
+     */
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the number of events merged into an already queued event.
+     *
+     * @return coalesced event count
+     */
+    long getCoalesced() {
+        lock.lock();
+        try {
+            return coalesced;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.event;
+
+import com.ericsson.deviceaccess.api.genericdevice.GDEventListener;
+import static com.ericsson.deviceaccess.api.genericdevice.GDEventListener.DEVICE_ID;
+import static com.ericsson.deviceaccess.api.genericdevice.GDEventListener.SERVICE_NAME;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.osgi.framework.Filter;
+
+/**
+ * Immutable index of the registered listeners. The filter of each listener is
+ * compiled once when the listener is added, and the listener is indexed by the
+ * device ids, service names or property names that its filter requires. This
+ * way an event is only matched against the listeners that could match it.
+ * <p>
+ * Listeners whose filter cannot be analyzed are always matched.
+ */
+final class ListenerIndex {
+
+    /**
+     * Suffix of the properties that hold delta between consecutive values.
+     */
+    static final String DELTA_SUFFIX = "__delta";
+    static final ListenerIndex EMPTY = new ListenerIndex(Collections.emptyMap());
+
+    private final Map<GDEventListener, Entry> entries;
+    private final Map<String, List<Entry>> byDevice = new HashMap<>();
+    private final Map<String, List<Entry>> byService = new HashMap<>();
+    private final Map<String, List<Entry>> byProperty = new HashMap<>();
+    private final List<Entry> unindexed = new ArrayList<>();
+    private final Set<String> deltaProperties = new HashSet<>();
+
+    private ListenerIndex(Map<GDEventListener, Entry> entries) {
+        this.entries = entries;
+        entries.values().forEach(entry -> {
+            if (entry.deviceIds != null) {
+                entry.deviceIds.forEach(id -> bucket(byDevice, id).add(entry));
+            } else if (entry.serviceNames != null) {
+                entry.serviceNames.forEach(name -> bucket(byService, name).add(entry));
+            } else if (entry.properties != null) {
+                entry.properties.forEach(name -> bucket(byProperty, name).add(entry));
+            } else {
+                unindexed.add(entry);
+            }
+            deltaProperties.addAll(entry.deltaProperties);
+        });
+    }
+
+    private static List<Entry> bucket(Map<String, List<Entry>> map, String key) {
+        return map.computeIfAbsent(key, k -> new ArrayList<>());
+    }
+
+    /**
+     * Creates index with given listener added.
+     *
+     * @param listener
+     * @param filter
+     * @return new index
+     */
+    ListenerIndex with(GDEventListener listener, Filter filter) {
+        Map<GDEventListener, Entry> copy = new LinkedHashMap<>(entries);
+        copy.put(listener, new Entry(listener, filter));
+        return new ListenerIndex(copy);
+    }
+
+    /**
+     * Creates index with given listener removed.
+     *
+     * @param listener
+     * @return new index, or this if the listener was not in the index
+     */
+    ListenerIndex without(GDEventListener listener) {
+        if (!entries.containsKey(listener)) {
+            return this;
+        }
+        Map<GDEventListener, Entry> copy = new LinkedHashMap<>(entries);
+        copy.remove(listener);
+        return new ListenerIndex(copy);
+    }
+
+    /**
+     * Gets all the listeners.
+     *
+     * @return listeners
+     */
+    Collection<GDEventListener> getListeners() {
+        return entries.keySet();
+    }
+
+    /**
+     * Gets the names of the properties whose delta some listener uses, without
+     * the {@value #DELTA_SUFFIX} suffix.
+     *
+     * @return property names
+     */
+    Set<String> getDeltaProperties() {
+        return deltaProperties;
+    }
+
+    /**
+     * Matches event properties against the listeners that could be interested
+     * in them, and calls consumer for every listener whose filter matches.
+     *
+     * @param deviceId
+     * @param serviceName
+     * @param matchingProperties properties to match the filters against
+     * @param consumer
+     */
+    void forEachMatching(String deviceId, String serviceName, Map<String, Object> matchingProperties, Consumer<GDEventListener> consumer) {
+        matchAll(byDevice.get(deviceId), matchingProperties, consumer);
+        matchAll(byService.get(serviceName), matchingProperties, consumer);
+        matchAll(unindexed, matchingProperties, consumer);
+        if (!byProperty.isEmpty()) {
+            matchingProperties.keySet().forEach(name -> {
+                List<Entry> candidates = byProperty.get(name);
+                if (candidates != null) {
+                    candidates.forEach(entry -> {
+                        // Entry is in a bucket for each property it requires, only match it once
+                        if (name.equals(entry.firstPresentProperty(matchingProperties))) {
+                            entry.match(matchingProperties, consumer);
+                        }
+                    });
+                }
+            });
+        }
+    }
+
+    private static void matchAll(List<Entry> candidates, Map<String, Object> matchingProperties, Consumer<GDEventListener> consumer) {
+        if (candidates != null) {
+            candidates.forEach(entry -> entry.match(matchingProperties, consumer));
+        }
+    }
+
+    /**
+     * Listener with its compiled filter.
+     */
+    private static final class Entry {
+
+        private final GDEventListener listener;
+        private final Filter filter;
+        private final Set<String> deviceIds;
+        private final Set<String> serviceNames;
+        private final List<String> properties;
+        private final Set<String> deltaProperties = new HashSet<>();
+
+        Entry(GDEventListener listener, Filter filter) {
+            this.listener = listener;
+            this.filter = filter;
+            Node root = FilterParser.parse(filter.toString());
+            if (root == null) {
+                deviceIds = null;
+                serviceNames = null;
+                properties = null;
+            } else {
+                deviceIds = root.requiredValues(DEVICE_ID);
+                serviceNames = root.requiredValues(SERVICE_NAME);
+                Set<String> required = root.requiredAttributes();
+                properties = required == null ? null : new ArrayList<>(required);
+                root.collectDeltaProperties(deltaProperties);
+            }
+        }
+
+        String firstPresentProperty(Map<String, Object> matchingProperties) {
+            for (String name : properties) {
+                if (matchingProperties.containsKey(name)) {
+                    return name;
+                }
+            }
+            return null;
+        }
+
+        void match(Map<String, Object> matchingProperties, Consumer<GDEventListener> consumer) {
+            if (filter.matches(matchingProperties)) {
+                consumer.accept(listener);
+            }
+        }
+    }
+
+    /**
+     * Node of a parsed LDAP filter.
+     */
+    private static final class Node {
+
+        private final char operation;
+        private final String attribute;
+        private final String value;
+        private final boolean literal;
+        private final List<Node> children;
+
+        Node(char operation, List<Node> children) {
+            this.operation = operation;
+            this.children = children;
+            this.attribute = null;
+            this.value = null;
+            this.literal = false;
+        }
+
+        Node(char operation, String attribute, String value, boolean literal) {
+            this.operation = operation;
+            this.attribute = attribute;
+            this.value = value;
+            this.literal = literal;
+            this.children = Collections.emptyList();
+        }
+
+        /**
+         * Gets the values of which one the attribute must have for the filter
+         * to match.
+         *
+         * @param name attribute name
+         * @return values, or null if not restricted
+         */
+        Set<String> requiredValues(String name) {
+            switch (operation) {
+                case '=':
+                    if (literal && name.equals(attribute)) {
+                        return Collections.singleton(value);
+                    }
+                    return null;
+                case '&':
+                    return smallest(children.stream().map(child -> child.requiredValues(name)));
+                case '|':
+                    return union(children.stream().map(child -> child.requiredValues(name)));
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * Gets the attributes of which at least one must be present for the
+         * filter to match.
+         *
+         * @return attribute names, or null if not restricted
+         */
+        Set<String> requiredAttributes() {
+            switch (operation) {
+                case '&':
+                    return smallest(children.stream().map(Node::requiredAttributes));
+                case '|':
+                    return union(children.stream().map(Node::requiredAttributes));
+                case '!':
+                    return null;
+                default:
+                    return Collections.singleton(attribute);
+            }
+        }
+
+        void collectDeltaProperties(Set<String> result) {
+            if (attribute != null && attribute.endsWith(DELTA_SUFFIX)) {
+                result.add(attribute.substring(0, attribute.length() - DELTA_SUFFIX.length()));
+            }
+            children.forEach(child -> child.collectDeltaProperties(result));
+        }
+
+        private static Set<String> smallest(Stream<Set<String>> sets) {
+            return sets.filter(set -> set != null)
+                    .min((a, b) -> Integer.compare(a.size(), b.size()))
+                    .orElse(null);
+        }
+
+        private static Set<String> union(Stream<Set<String>> sets) {
+            Set<String> result = new HashSet<>();
+            for (Set<String> set : (Iterable<Set<String>>) sets::iterator) {
+                if (set == null) {
+                    return null;
+                }
+                result.addAll(set);
+            }
+            return result.isEmpty() ? null : result;
+        }
+    }
+
+    /**
+     * Parser for the string representation of an LDAP filter (RFC 1960).
+     */
+    private static final class FilterParser {
+
+        private final String filter;
+        private int pos;
+
+        private FilterParser(String filter) {
+            this.filter = filter;
+        }
+
+        /**
+         * Parses filter.
+         *
+         * @param filter
+         * @return root node, or null if the filter could not be parsed
+         */
+        static Node parse(String filter) {
+            if (filter == null) {
+                return null;
+            }
+            FilterParser parser = new FilterParser(filter.trim());
+            try {
+                Node root = parser.parseFilter();
+                return parser.pos == parser.filter.length() ? root : null;
+            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+                return null;
+            }
+        }
+
+        private Node parseFilter() {
+            skipWhitespace();
+            expect('(');
+            skipWhitespace();
+            Node node;
+            char c = filter.charAt(pos);
+            switch (c) {
+                case '&':
+                case '|':
+                    pos++;
+                    List<Node> children = new ArrayList<>();
+                    skipWhitespace();
+                    while (filter.charAt(pos) == '(') {
+                        children.add(parseFilter());
+                        skipWhitespace();
+                    }
+                    if (children.isEmpty()) {
+                        throw new IllegalArgumentException("Empty filter list");
+                    }
+                    node = new Node(c, children);
+                    break;
+                case '!':
+                    pos++;
+                    node = new Node(c, Collections.singletonList(parseFilter()));
+                    skipWhitespace();
+                    break;
+                default:
+                    node = parseItem();
+            }
+            expect(')');
+            return node;
+        }
+
+        private Node parseItem() {
+            int start = pos;
+            while ("=<>~()".indexOf(filter.charAt(pos)) < 0) {
+                pos++;
+            }
+            String attribute = filter.substring(start, pos).trim();
+            if (attribute.isEmpty()) {
+                throw new IllegalArgumentException("Missing attribute");
+            }
+            char operation = filter.charAt(pos);
+            if (operation != '=') {
+                pos++;
+                if (operation == '(' || operation == ')' || filter.charAt(pos) != '=') {
+                    throw new IllegalArgumentException("Invalid operation");
+                }
+            }
+            pos++;
+            StringBuilder value = new StringBuilder();
+            boolean literal = true;
+            char c;
+            while ((c = filter.charAt(pos)) != ')') {
+                if (c == '\\') {
+                    c = filter.charAt(++pos);
+                } else if (c == '*') {
+                    literal = false;
+                } else if (c == '(') {
+                    throw new IllegalArgumentException("Unescaped '('");
+                }
+                value.append(c);
+                pos++;
+            }
+            String string = value.toString();
+            // Values with surrounding whitespace are not compared verbatim
+            if (!string.equals(string.trim())) {
+                literal = false;
+            }
+            return new Node(operation, attribute, string, literal);
+        }
+
+        private void expect(char c) {
+            if (filter.charAt(pos) != c) {
+                throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+            }
+            pos++;
+        }
+
+        private void skipWhitespace() {
+            while (pos < filter.length() && Character.isWhitespace(filter.charAt(pos))) {
+                pos++;
+            }
+        }
+    }
+}
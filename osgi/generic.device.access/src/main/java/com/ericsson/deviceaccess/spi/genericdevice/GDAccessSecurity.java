@@ -36,17 +36,158 @@ package com.ericsson.deviceaccess.spi.genericdevice;
 
 import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission;
 import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission.Type;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
+/**
+ * Checks {@link GDAccessPermission}s against the installed
+ * {@link SecurityManager}.
+ * <p/>
+ * Decisions are not kept between calls, so changes to the policy take effect
+ * at once. Only the permission objects are cached. Operations on a whole
+ * tree can check all the classes once with
+ * {@link #doChecked(Type, Supplier, CheckedAction)}.
+ */
 public class GDAccessSecurity {
 
+    private static final Map<String, GDAccessPermission[]> PERMISSIONS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<Scope> CHECKED = new ThreadLocal<>();
+
     public static void checkPermission(Class<?> clazz, Type action) {
         SecurityManager manager = System.getSecurityManager();
         if (null != manager) {
-            manager.checkPermission(new GDAccessPermission(clazz.getName(), action));
+            checkPermission(manager, clazz, action);
+        }
+    }
+
+    /**
+     * Checks the permission for all the specified classes up front, then runs
+     * the body. Meant for operations on a whole tree, like serializing a
+     * device with all its services, so that nothing is done unless all the
+     * checks pass. While the body runs, a check that has passed is not
+     * repeated for the same access control context, class and action. The
+     * passed checks are forgotten when the body returns.
+     *
+     * @param <T> type of the result
+     * @param <E> type of the exception thrown by the body
+     * @param action
+     * @param classes supplies the classes, only asked for when there is a
+     * security manager
+     * @param body
+     * @return the result of the body
+     * @throws E if the body throws it
+     * @throws SecurityException if any of the permissions is not granted
+     */
+    public static <T, E extends Exception> T doChecked(Type action, Supplier<? extends Collection<Class<?>>> classes, CheckedAction<T, E> body) throws E {
+        SecurityManager manager = System.getSecurityManager();
+        if (null == manager) {
+            return body.run();
+        }
+        Scope outer = CHECKED.get();
+        CHECKED.set(new Scope(outer));
+        try {
+            for (Class<?> clazz : classes.get()) {
+                checkPermission(manager, clazz, action);
+            }
+            return body.run();
+        } finally {
+            if (outer == null) {
+                CHECKED.remove();
+            } else {
+                CHECKED.set(outer);
+            }
         }
     }
 
+    private static void checkPermission(SecurityManager manager, Class<?> clazz, Type action) {
+        Scope scope = CHECKED.get();
+        if (scope == null) {
+            manager.checkPermission(permission(clazz.getName(), action));
+            return;
+        }
+        Decision decision = new Decision(AccessController.getContext(), clazz.getName(), action);
+        for (Scope passed = scope; passed != null; passed = passed.outer) {
+            if (passed.decisions.contains(decision)) {
+                return;
+            }
+        }
+        manager.checkPermission(permission(decision.className, action));
+        scope.decisions.add(decision);
+    }
+
+    private static GDAccessPermission permission(String className, Type action) {
+        GDAccessPermission[] permissions = PERMISSIONS.computeIfAbsent(className, name -> {
+            Type[] types = Type.values();
+            GDAccessPermission[] result = new GDAccessPermission[types.length];
+            for (Type type : types) {
+                result[type.ordinal()] = new GDAccessPermission(name, type);
+            }
+            return result;
+        });
+        return permissions[action.ordinal()];
+    }
+
     private GDAccessSecurity() {
     }
 
+    /**
+     * Body of {@link #doChecked(Type, Supplier, CheckedAction)}.
+     *
+     * @param <T> type of the result
+     * @param <E> type of the exception thrown
+     */
+    @FunctionalInterface
+    public interface CheckedAction<T, E extends Exception> {
+
+        T run() throws E;
+    }
+
+    /**
+     * Checks passed during a {@link #doChecked(Type, Supplier, CheckedAction)}
+     * call that is running on the thread.
+     */
+    private static final class Scope {
+
+        private final Set<Decision> decisions = new HashSet<>();
+        private final Scope outer;
+
+        Scope(Scope outer) {
+            this.outer = outer;
+        }
+    }
+
+    private static final class Decision {
+
+        private final AccessControlContext context;
+        private final String className;
+        private final Type action;
+        private final int hash;
+
+        Decision(AccessControlContext context, String className, Type action) {
+            this.context = context;
+            this.className = className;
+            this.action = action;
+            this.hash = (context.hashCode() * 31 + className.hashCode()) * 31 + action.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Decision)) {
+                return false;
+            }
+            Decision other = (Decision) obj;
+            return action == other.action && className.equals(other.className) && context.equals(other.context);
+        }
+    }
 }
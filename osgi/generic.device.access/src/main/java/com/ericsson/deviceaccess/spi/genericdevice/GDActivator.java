@@ -35,11 +35,15 @@
 package com.ericsson.deviceaccess.spi.genericdevice;
 
 import com.ericsson.deviceaccess.spi.event.EventManager;
+import com.ericsson.deviceaccess.spi.event.OverloadPolicy;
 import com.ericsson.research.common.slf4jlogger.OSGILogFactory;
+import java.util.function.Consumer;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.FrameworkUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * GenericDeviceActivator is called when the GenericDevice bundle is activated
@@ -54,6 +58,8 @@ public class GDActivator implements BundleActivator {
         OSGILogFactory.initOSGI(bundle != null ? bundle.getBundleContext() : null);
     }
 
+    private static final Logger logger = LoggerFactory.getLogger(GDActivator.class);
+
     public static EventManager getEventManager() {
         return eventManager;
     }
@@ -61,9 +67,30 @@ public class GDActivator implements BundleActivator {
     @Override
     public void start(BundleContext context) throws Exception {
         eventManager.setContext(context);
+        configure(context, EventManager.WORKERS_PROPERTY, value -> eventManager.setWorkerCount(Integer.parseInt(value)));
+        configure(context, EventManager.QUEUE_CAPACITY_PROPERTY, value -> eventManager.setQueueCapacity(Integer.parseInt(value)));
+        configure(context, EventManager.OVERLOAD_POLICY_PROPERTY, value -> eventManager.setOverloadPolicy(OverloadPolicy.valueOf(value)));
         eventManager.start();
     }
 
+    /**
+     * Applies framework property to the event manager if it is set.
+     *
+     * @param context
+     * @param property
+     * @param setter
+     */
+    private static void configure(BundleContext context, String property, Consumer<String> setter) {
+        String value = context.getProperty(property);
+        if (value != null) {
+            try {
+                setter.accept(value.trim());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Invalid value for " + property + ": " + value, e);
+            }
+        }
+    }
+
     @Override
     public void stop(BundleContext context) throws Exception {
         eventManager.shutdown();
@@ -42,14 +42,22 @@ import com.ericsson.deviceaccess.api.Constants;
 import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission.Type;
 import com.ericsson.deviceaccess.api.genericdevice.GDEventListener;
 import com.ericsson.deviceaccess.api.genericdevice.GDException;
+import com.ericsson.deviceaccess.api.genericdevice.GDProperties;
 import com.ericsson.deviceaccess.api.genericdevice.GDService;
 import com.ericsson.deviceaccess.spi.GenericDevice;
 import static com.ericsson.deviceaccess.spi.genericdevice.GDAccessSecurity.checkPermission;
+import static com.ericsson.deviceaccess.spi.genericdevice.GDAccessSecurity.doChecked;
 import static com.ericsson.deviceaccess.spi.genericdevice.GDActivator.getEventManager;
 import com.ericsson.deviceaccess.spi.impl.genericdevice.GDServiceImpl;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 public abstract class GenericDeviceImpl extends GenericDevice.Stub implements GenericDevice {
 
@@ -98,6 +106,9 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
 
     private Map<String, GDService> service = new HashMap<>();
     private transient boolean isReady = false;
+    private final Object revisionLock = new Object();
+    private final Map<String, Long> serviceRevisions = new HashMap<>();
+    private long revision = Revisions.INSTANCE.next();
 
     /**
      *
@@ -143,7 +154,11 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
     @Override
     public void putService(GDService svc) {
         checkPermission(GenericDevice.class, Type.SET);
-        service.put(svc.getName(), svc);
+        String serviceName = svc.getName();
+        synchronized (revisionLock) {
+            service.put(serviceName, svc);
+            serviceRevisions.put(serviceName, Revisions.INSTANCE.next());
+        }
         svc.updatePath(getPath(true));
         ((com.ericsson.deviceaccess.spi.genericdevice.GDService) svc).setParentDevice(this);
         isReady = true;
@@ -173,8 +188,14 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
         if (urn == null) {
             throw new IllegalArgumentException("URN may not be null");
         }
-        String oldUrn = this.urn;
-        this.urn = urn;
+        String oldUrn;
+        synchronized (revisionLock) {
+            oldUrn = this.urn;
+            this.urn = urn;
+            if (!urn.equals(oldUrn)) {
+                revision = Revisions.INSTANCE.next();
+            }
+        }
         if (isReady && !urn.equals(oldUrn)) {
             notifyEvent("DeviceProperties", new HashMap() {
                 {
@@ -190,8 +211,14 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
         if (name == null) {
             throw new IllegalArgumentException("Name may not be null");
         }
-        String oldName = this.name;
-        this.name = name;
+        String oldName;
+        synchronized (revisionLock) {
+            oldName = this.name;
+            this.name = name;
+            if (!name.equals(oldName)) {
+                revision = Revisions.INSTANCE.next();
+            }
+        }
         if (isReady && !name.equals(oldName)) {
             notifyEvent("DeviceProperties", new HashMap() {
                 {
@@ -246,8 +273,14 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
     @Override
     public void setOnline(boolean online) {
         checkPermission(GenericDevice.class, Type.SET);
-        boolean oldOnline = this.online;
-        this.online = online;
+        boolean oldOnline;
+        synchronized (revisionLock) {
+            oldOnline = this.online;
+            this.online = online;
+            if (online != oldOnline) {
+                revision = Revisions.INSTANCE.next();
+            }
+        }
         if (isReady && online != oldOnline) {
             notifyEvent("DeviceProperties", new HashMap() {
                 {
@@ -283,8 +316,14 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
 
     public void setState(State state) {
         checkPermission(GenericDevice.class, Type.SET);
-        State oldState = this.state;
-        this.state = state;
+        State oldState;
+        synchronized (revisionLock) {
+            oldState = this.state;
+            this.state = state;
+            if (state != oldState) {
+                revision = Revisions.INSTANCE.next();
+            }
+        }
         if (isReady && (state == null && oldState != null || state != null && !state.equals(oldState))) {
             notifyEvent("DeviceProperties", new HashMap() {
                 {
@@ -336,7 +375,16 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
         if (service == null) {
             throw new NullPointerException("Map cannot be null");
         }
-        this.service = service;
+        synchronized (revisionLock) {
+            Set<String> names = new HashSet<>(this.service.keySet());
+            names.addAll(service.keySet());
+            names.forEach(name -> {
+                if (this.service.get(name) != service.get(name)) {
+                    serviceRevisions.put(name, Revisions.INSTANCE.next());
+                }
+            });
+            this.service = service;
+        }
     }
 
     @Override
@@ -402,9 +450,32 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
 
     @Override
     public String serialize(Format format) throws GDException {
-        checkPermission(GenericDevice.class, Type.GET);
         try {
-            return SerializationUtil.execute(format, mapper -> mapper.writerWithView(View.ID.Ignore.class).writeValueAsString(this));
+            return doChecked(Type.GET, this::serializedClasses, () -> SerializationUtil.serialize(format, View.ID.Ignore.class, this));
+        } catch (SerializationException ex) {
+            throw new GDException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void serialize(Format format, Writer writer) throws GDException {
+        try {
+            doChecked(Type.GET, this::serializedClasses, () -> {
+                SerializationUtil.serialize(format, View.ID.Ignore.class, this, writer);
+                return null;
+            });
+        } catch (SerializationException ex) {
+            throw new GDException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void serialize(Format format, OutputStream out) throws GDException {
+        try {
+            doChecked(Type.GET, this::serializedClasses, () -> {
+                SerializationUtil.serialize(format, View.ID.Ignore.class, this, out);
+                return null;
+            });
         } catch (SerializationException ex) {
             throw new GDException(ex.getMessage(), ex);
         }
@@ -413,22 +484,110 @@ public abstract class GenericDeviceImpl extends GenericDevice.Stub implements Ge
     @Override
     public String serializeState() throws GDException {
         try {
-            return SerializationUtil.execute(Format.JSON, mapper -> mapper.writerWithView(View.StatelessID.Ignore.class).writeValueAsString(this));
+            return doChecked(Type.GET, this::serializedClasses, () -> SerializationUtil.serialize(Format.JSON, View.StatelessID.Ignore.class, this));
         } catch (SerializationException ex) {
             throw new GDException(ex.getMessage(), ex);
         }
     }
 
+    /**
+     * Gets the classes whose permissions are checked when this device is
+     * serialized with all its services.
+     *
+     * @return the classes
+     */
+    private Set<Class<?>> serializedClasses() {
+        Set<Class<?>> classes = new HashSet<>();
+        classes.add(GenericDevice.class);
+        service.values().forEach(svc -> GDServiceImpl.addSerializedClasses(svc, classes));
+        return classes;
+    }
+
     @Override
-    public String getSerializedNode(String path, Format format) throws GDException {
+    public long getRevision() {
         checkPermission(GenericDevice.class, Type.GET);
+        long latest;
+        Collection<GDService> services;
+        synchronized (revisionLock) {
+            latest = revision;
+            for (long serviceRevision : serviceRevisions.values()) {
+                latest = Math.max(latest, serviceRevision);
+            }
+            services = new ArrayList<>(service.values());
+        }
+        for (GDService svc : services) {
+            latest = Math.max(latest, svc.getRevision());
+        }
+        return latest;
+    }
+
+    @Override
+    public String serializeStateSince(long revision) throws GDException {
         try {
-            return SerializationUtil.serializeAccordingPath(format, path, Constants.PATH_DELIMITER, this);
+            return doChecked(Type.GET, this::serializedClasses, () -> serializeChangesSince(revision));
         } catch (SerializationException ex) {
-            throw new GDException(404, ex.getMessage(), ex);
+            throw new GDException(ex.getMessage(), ex);
         }
     }
 
+    private String serializeChangesSince(long revision) throws SerializationException {
+        Map<String, Object> changes = new HashMap<>();
+        Map<String, GDService> current;
+        Set<String> added = new HashSet<>();
+        Set<String> removed = new HashSet<>();
+        long safeRevision;
+        synchronized (revisionLock) {
+            // Revisions of the device are only handed out under the lock, so
+            // all up to this one are visible here
+            safeRevision = Revisions.INSTANCE.current();
+            if (this.revision > revision) {
+                changes.put("URN", urn);
+                changes.put("name", name);
+                changes.put("online", online);
+                changes.put("state", state);
+            }
+            current = new HashMap<>(service);
+            serviceRevisions.forEach((serviceName, serviceRevision) -> {
+                if (serviceRevision > revision && current.containsKey(serviceName)) {
+                    added.add(serviceName);
+                } else if (serviceRevision > revision) {
+                    removed.add(serviceName);
+                }
+            });
+        }
+        Map<String, Object> services = new HashMap<>();
+        for (Map.Entry<String, GDService> entry : current.entrySet()) {
+            // A service put after the revision is sent as a whole
+            GDProperties.Changes serviceChanges = entry.getValue().getProperties()
+                    .getChangesSince(added.contains(entry.getKey()) ? 0 : revision);
+            safeRevision = Math.min(safeRevision, serviceChanges.revision);
+            Map<String, Object> serviceState = new HashMap<>();
+            if (!serviceChanges.properties.isEmpty()) {
+                serviceState.put("properties", serviceChanges.properties);
+            }
+            if (!serviceChanges.removed.isEmpty()) {
+                serviceState.put("removed", serviceChanges.removed);
+            }
+            if (!serviceState.isEmpty()) {
+                services.put(entry.getKey(), serviceState);
+            }
+        }
+        changes.put("revision", safeRevision);
+        if (!services.isEmpty()) {
+            changes.put("services", services);
+        }
+        if (!removed.isEmpty()) {
+            changes.put("removedServices", removed);
+        }
+        return SerializationUtil.serialize(Format.JSON, View.StatelessID.Ignore.class, changes);
+    }
+
+    @Override
+    public String getSerializedNode(String path, Format format) throws GDException {
+        checkPermission(GenericDevice.class, Type.GET);
+        return NodeNavigator.INSTANCE.getSerializedNode(this, path, format);
+    }
+
     /**
      * A utility method to get device property dictionary which contains
      * parameters such as device.id, device.type and so on. The dictionary
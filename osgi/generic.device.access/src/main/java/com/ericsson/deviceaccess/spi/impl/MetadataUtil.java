@@ -37,7 +37,7 @@ package com.ericsson.deviceaccess.spi.impl;
 import com.ericsson.deviceaccess.api.genericdevice.GDProperties;
 import com.ericsson.deviceaccess.api.genericdevice.GDPropertyMetadata;
 import com.ericsson.deviceaccess.spi.genericdevice.GDError;
-import java.util.Arrays;
+import com.ericsson.deviceaccess.spi.schema.ParameterSchema;
 import java.util.Map;
 
 /**
@@ -79,85 +79,21 @@ public enum MetadataUtil {
         if (metadata == null) {
             return;
         }
-
-        Class<?> type = metadata.getType();
-        if (Number.class.isAssignableFrom(type)) {
-            if (propertyValue instanceof String) {
-                try {
-                    Float.parseFloat((String) propertyValue);
-                } catch (NumberFormatException e) {
-                    throwError(propertyName, propertyValue, type);
-                }
-            } else if (Float.class.isAssignableFrom(type)) {
-                if (!(propertyValue instanceof Float)) {
-                    throwError(propertyName, propertyValue, type);
-                }
-            } else if (Long.class.isAssignableFrom(type)) {
-                if (!(propertyValue instanceof Long)) {
-                    throwError(propertyName, propertyValue, type);
-                }
-            } else {
-                if (!(propertyValue instanceof Integer || propertyValue instanceof Short || propertyValue instanceof Byte)) {
-                    throwError(propertyName, propertyValue, type);
-                }
-            }
-
-            double doubleValue;
-            if (propertyValue instanceof String) {
-                doubleValue = Double.parseDouble((String) propertyValue);
-            } else {
-                doubleValue = ((Number) propertyValue).doubleValue();
-            }
-            checkRange(metadata, propertyName, propertyValue, doubleValue);
-        } else {
-            // Treat all other objects as string
-            String value = propertyValue.toString();
-            String[] validValues = metadata.getValidValues();
-            if (validValues != null) {
-                Arrays.sort(validValues);
-                if (Arrays.binarySearch(validValues, value) < 0) {
-                    throw new GDError(
-                            "The property: '" + propertyName + "'=" + propertyValue + " with the value '" + value
-                            + "' is not among the allowed values '" + Arrays.toString(validValues) + "'");
-                }
-            }
-        }
-    }
-
-    private void throwError(String propertyName, Object propertyValue, Class<?> type) throws GDError {
-        StringBuilder builder = new StringBuilder();
-        builder.append("The property: ")
-                .append("'").append(propertyName).append("'")
-                .append("=")
-                .append(propertyValue)
-                .append(" is a ")
-                .append("'").append(propertyValue.getClass()).append("'")
-                .append(" which not parsable to ")
-                .append("'").append(type).append("'");
-        throw new GDError(builder.toString());
+        validator(metadata).verify(propertyName, propertyValue);
     }
 
     /**
-     * Checks that the specified value is within the range specified in the
-     * metadata.
+     * Gets the validator compiled from the specified metadata. The validator
+     * of a {@link ParameterSchema} is cached on the schema, other metadata is
+     * compiled on every call.
      *
      * @param metadata
-     * @param propertyName
-     * @param propertyValue
-     * @param valueToBeChecked
-     * @throws GDError thrown if value does not adhere to the metadata
+     * @return the validator
      */
-    private static void checkRange(GDPropertyMetadata metadata, String propertyName, Object propertyValue, double valueToBeChecked) throws GDError {
-        if (valueToBeChecked > metadata.getMaxValue().doubleValue()) {
-            throw new GDError(
-                    "The property: '" + propertyName + "'=" + propertyValue
-                    + " is above the max value '" + metadata.getMaxValue() + "'");
-        }
-
-        if (valueToBeChecked < metadata.getMinValue().doubleValue()) {
-            throw new GDError(
-                    "The property: '" + propertyName + "'=" + propertyValue
-                    + " is below the min value '" + metadata.getMinValue() + "'");
+    public MetadataValidator validator(GDPropertyMetadata metadata) {
+        if (metadata instanceof ParameterSchema) {
+            return ((ParameterSchema) metadata).validator();
         }
+        return new MetadataValidator(metadata);
     }
 }
@@ -0,0 +1,222 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.impl;
+
+import com.ericsson.deviceaccess.api.genericdevice.GDPropertyMetadata;
+import com.ericsson.deviceaccess.spi.genericdevice.GDError;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Validator compiled from a {@link GDPropertyMetadata}. The type, range and
+ * valid values are resolved once so that verifying a value neither sorts nor
+ * parses more than once.
+ *
+ * @see MetadataUtil#validator(GDPropertyMetadata)
+ */
+public final class MetadataValidator {
+
+    private final Class<?> type;
+    private final Kind kind;
+    private final Number minValue;
+    private final Number maxValue;
+    private final double min;
+    private final double max;
+    private final long minLong;
+    private final long maxLong;
+    private final Set<String> validValues;
+    private final String validValuesText;
+
+    /**
+     * Compiles the specified metadata.
+     *
+     * @param metadata
+     */
+    public MetadataValidator(GDPropertyMetadata metadata) {
+        type = metadata.getType();
+        if (Number.class.isAssignableFrom(type)) {
+            if (Float.class.isAssignableFrom(type)) {
+                kind = Kind.FLOAT;
+            } else if (Long.class.isAssignableFrom(type)) {
+                kind = Kind.LONG;
+            } else {
+                kind = Kind.INTEGER;
+            }
+            minValue = metadata.getMinValue();
+            maxValue = metadata.getMaxValue();
+            validValues = null;
+            validValuesText = null;
+        } else {
+            kind = Kind.STRING;
+            minValue = null;
+            maxValue = null;
+            String[] values = metadata.getValidValues();
+            if (values != null) {
+                values = values.clone();
+                Arrays.sort(values);
+                validValues = new HashSet<>(Arrays.asList(values));
+                validValuesText = Arrays.toString(values);
+            } else {
+                validValues = null;
+                validValuesText = null;
+            }
+        }
+        min = minValue == null ? Double.NEGATIVE_INFINITY : minValue.doubleValue();
+        max = maxValue == null ? Double.POSITIVE_INFINITY : maxValue.doubleValue();
+        minLong = minValue == null ? Long.MIN_VALUE : (long) Math.ceil(min);
+        maxLong = maxValue == null ? Long.MAX_VALUE : (long) Math.floor(max);
+    }
+
+    /**
+     * Verifies the specified property value. A <code>null</code> value stands
+     * for the default value and is always accepted.
+     *
+     * @param propertyName
+     * @param propertyValue
+     * @return the value as a number if the property is numeric, parsed if it
+     * was given as a string, otherwise <code>null</code>
+     * @throws GDError thrown if value does not adhere to the metadata
+     */
+    public Number verify(String propertyName, Object propertyValue) throws GDError {
+        if (propertyValue == null) {
+            return null;
+        }
+        switch (kind) {
+            case STRING:
+                // Treat all other objects as string
+                if (validValues != null) {
+                    String value = propertyValue.toString();
+                    if (!validValues.contains(value)) {
+                        throw new GDError(
+                                "The property: '" + propertyName + "'=" + propertyValue + " with the value '" + value
+                                + "' is not among the allowed values '" + validValuesText + "'");
+                    }
+                }
+                return null;
+            case FLOAT:
+                if (propertyValue instanceof Float) {
+                    checkRange(propertyName, propertyValue, ((Float) propertyValue).doubleValue());
+                    return (Float) propertyValue;
+                }
+                break;
+            case LONG:
+                if (propertyValue instanceof Long) {
+                    checkRange(propertyName, propertyValue, ((Long) propertyValue).longValue());
+                    return (Long) propertyValue;
+                }
+                break;
+            default:
+                if (propertyValue instanceof Integer || propertyValue instanceof Short || propertyValue instanceof Byte) {
+                    checkRange(propertyName, propertyValue, ((Number) propertyValue).longValue());
+                    return (Number) propertyValue;
+                }
+        }
+        if (propertyValue instanceof String) {
+            double value;
+            try {
+                value = Double.parseDouble((String) propertyValue);
+            } catch (NumberFormatException e) {
+                throw notParsable(propertyName, propertyValue);
+            }
+            checkRange(propertyName, propertyValue, value);
+            return value;
+        }
+        throw notParsable(propertyName, propertyValue);
+    }
+
+    /**
+     * Checks that the specified integral value is within the range.
+     *
+     * @param propertyName
+     * @param value
+     * @throws GDError thrown if value is out of range
+     */
+    public void checkRange(String propertyName, long value) throws GDError {
+        if (value > maxLong || value < minLong) {
+            checkRange(propertyName, value, (double) value);
+        }
+    }
+
+    /**
+     * Checks that the specified floating point value is within the range.
+     *
+     * @param propertyName
+     * @param value
+     * @throws GDError thrown if value is out of range
+     */
+    public void checkRange(String propertyName, float value) throws GDError {
+        if (value > max || value < min) {
+            checkRange(propertyName, value, (double) value);
+        }
+    }
+
+    private void checkRange(String propertyName, Object propertyValue, long value) throws GDError {
+        if (value > maxLong || value < minLong) {
+            checkRange(propertyName, propertyValue, (double) value);
+        }
+    }
+
+    private void checkRange(String propertyName, Object propertyValue, double value) throws GDError {
+        if (value > max) {
+            throw new GDError(
+                    "The property: '" + propertyName + "'=" + propertyValue
+                    + " is above the max value '" + maxValue + "'");
+        }
+        if (value < min) {
+            throw new GDError(
+                    "The property: '" + propertyName + "'=" + propertyValue
+                    + " is below the min value '" + minValue + "'");
+        }
+    }
+
+    private GDError notParsable(String propertyName, Object propertyValue) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("The property: ")
+                .append("'").append(propertyName).append("'")
+                .append("=")
+                .append(propertyValue)
+                .append(" is a ")
+                .append("'").append(propertyValue.getClass()).append("'")
+                .append(" which not parsable to ")
+                .append("'").append(type).append("'");
+        return new GDError(builder.toString());
+    }
+
+    private enum Kind {
+
+        INTEGER, LONG, FLOAT, STRING
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.impl;
+
+import com.ericsson.common.util.serialization.Format;
+import com.ericsson.common.util.serialization.SerializationException;
+import com.ericsson.common.util.serialization.SerializationUtil;
+import com.ericsson.deviceaccess.api.Constants;
+import com.ericsson.deviceaccess.api.GenericDevice;
+import com.ericsson.deviceaccess.api.genericdevice.GDAction;
+import com.ericsson.deviceaccess.api.genericdevice.GDException;
+import com.ericsson.deviceaccess.api.genericdevice.GDProperties;
+import com.ericsson.deviceaccess.api.genericdevice.GDProperties.Data;
+import com.ericsson.deviceaccess.api.genericdevice.GDService;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves paths like <code>services/light/properties/level/currentValue</code>
+ * by walking the device, service, action and property objects, so that only
+ * the requested node is serialized.
+ * <p/>
+ * A path segment which is not part of that object graph is resolved by
+ * {@link SerializationUtil#serializeAccordingPath} from the last node that
+ * was reached.
+ */
+public enum NodeNavigator {
+
+    /**
+     * Singleton.
+     */
+    INSTANCE;
+
+    private static final Pattern DELIMITER = Pattern.compile(Pattern.quote(Constants.PATH_DELIMITER));
+    private static final Object NOT_FOUND = new Object();
+
+    /**
+     * Serializes the node at the specified path, relative to the root.
+     *
+     * @param root
+     * @param path
+     * @param format
+     * @return the serialized node
+     * @throws GDException with code 404 if there is no such node
+     */
+    public String getSerializedNode(Object root, String path, Format format) throws GDException {
+        if (path == null) {
+            throw new GDException(404, "Path cannot be null");
+        }
+        String[] segments = DELIMITER.split(path);
+        Object node = root;
+        try {
+            for (int i = 0; i < segments.length; i++) {
+                if (segments[i].isEmpty()) {
+                    break;
+                }
+                Object child = child(node, segments[i]);
+                if (child == NOT_FOUND) {
+                    if (node instanceof Services) {
+                        node = ((Services) node).device.getServices();
+                    }
+                    StringBuilder rest = new StringBuilder();
+                    for (int j = i; j < segments.length; j++) {
+                        rest.append(segments[j]).append(Constants.PATH_DELIMITER);
+                    }
+                    return SerializationUtil.serializeAccordingPath(format, rest.toString(), Constants.PATH_DELIMITER, node);
+                }
+                node = child;
+            }
+            if (node instanceof Services) {
+                node = ((Services) node).device.getServices();
+            }
+            return SerializationUtil.serializeNode(node);
+        } catch (SerializationException ex) {
+            throw new GDException(404, ex.getMessage(), ex);
+        }
+    }
+
+    private static Object child(Object node, String name) {
+        if (node instanceof GenericDevice) {
+            if ("services".equals(name) || "service".equals(name)) {
+                return new Services((GenericDevice) node);
+            }
+        } else if (node instanceof Services) {
+            GDService service = ((Services) node).device.getService(name);
+            if (service != null) {
+                return service;
+            }
+        } else if (node instanceof GDService) {
+            GDService service = (GDService) node;
+            GDAction action = service.getAction(name);
+            if (action != null) {
+                return action;
+            } else if ("actions".equals(name) || "action".equals(name)) {
+                return service.getActions();
+            } else if ("properties".equals(name)) {
+                return service.getProperties();
+            }
+        } else if (node instanceof GDAction) {
+            if ("arguments".equals(name)) {
+                return ((GDAction) node).getArgumentsMetadata();
+            } else if ("result".equals(name)) {
+                return ((GDAction) node).getResultMetadata();
+            }
+        } else if (node instanceof GDProperties) {
+            Data data = ((GDProperties) node).getProperties().get(name);
+            if (data != null) {
+                return data;
+            }
+        } else if (node instanceof Data) {
+            if ("currentValue".equals(name) && ((Data) node).currentValue != null) {
+                return ((Data) node).currentValue;
+            } else if ("metadata".equals(name)) {
+                return ((Data) node).metadata;
+            }
+        } else if (node instanceof Map) {
+            Object value = ((Map<?, ?>) node).get(name);
+            if (value != null) {
+                return value;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * The services of a device, which are looked up one by one rather than
+     * copied into a map.
+     */
+    private static final class Services {
+
+        private final GenericDevice device;
+
+        Services(GenericDevice device) {
+            this.device = device;
+        }
+    }
+}
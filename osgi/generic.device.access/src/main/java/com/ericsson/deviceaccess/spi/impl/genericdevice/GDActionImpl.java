@@ -39,7 +39,6 @@ import com.ericsson.common.util.serialization.Format;
 import com.ericsson.common.util.serialization.SerializationException;
 import com.ericsson.common.util.serialization.SerializationUtil;
 import com.ericsson.common.util.serialization.View;
-import com.ericsson.deviceaccess.api.Constants;
 import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission.Type;
 import com.ericsson.deviceaccess.api.genericdevice.GDAction;
 import com.ericsson.deviceaccess.api.genericdevice.GDActionContext;
@@ -49,6 +48,7 @@ import com.ericsson.deviceaccess.api.genericdevice.GDProperties;
 import com.ericsson.deviceaccess.api.genericdevice.GDPropertyMetadata;
 import com.ericsson.deviceaccess.spi.genericdevice.GDAccessSecurity;
 import com.ericsson.deviceaccess.spi.impl.MetadataUtil;
+import com.ericsson.deviceaccess.spi.impl.NodeNavigator;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -209,7 +209,7 @@ public class GDActionImpl extends GDAction.Stub implements GDAction {
     public String serialize(Format format) throws GDException {
         GDAccessSecurity.checkPermission(getClass(), Type.GET);
         try {
-            return SerializationUtil.execute(format, mapper -> mapper.writerWithView(View.ID.Ignore.class).writeValueAsString(this));
+            return SerializationUtil.serialize(format, View.ID.Ignore.class, this);
         } catch (SerializationException ex) {
             throw new GDException(ex.getMessage(), ex);
         }
@@ -218,10 +218,6 @@ public class GDActionImpl extends GDAction.Stub implements GDAction {
     @Override
     public String getSerializedNode(String path, Format format) throws GDException {
         GDAccessSecurity.checkPermission(getClass(), Type.GET);
-        try {
-            return SerializationUtil.serializeAccordingPath(format, path, Constants.PATH_DELIMITER, this);
-        } catch (SerializationException ex) {
-            throw new GDException(404, ex.getMessage(), ex);
-        }
+        return NodeNavigator.INSTANCE.getSerializedNode(this, path, format);
     }
 }
@@ -98,7 +98,7 @@ public class GDActionResultImpl implements GDActionResult {
     public String serialize(Format format) throws GDException {
         GDAccessSecurity.checkPermission(getClass(), Type.GET);
         try {
-            return SerializationUtil.execute(format, mapper -> mapper.writerWithView(View.ID.Ignore.class).writeValueAsString(this));
+            return SerializationUtil.serialize(format, View.ID.Ignore.class, this);
         } catch (SerializationException ex) {
             throw new GDException(ex.getMessage(), ex);
         }
@@ -45,28 +45,53 @@ import com.ericsson.deviceaccess.api.genericdevice.GDPropertyMetadata;
 import com.ericsson.deviceaccess.spi.genericdevice.GDAccessSecurity;
 import com.ericsson.deviceaccess.spi.genericdevice.GDError;
 import com.ericsson.deviceaccess.spi.impl.MetadataUtil;
+import com.ericsson.deviceaccess.spi.impl.MetadataValidator;
+import com.ericsson.deviceaccess.spi.impl.Revisions;
 import com.fasterxml.jackson.annotation.JsonAnySetter;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Property set whose values are stored in typed slots. The slot of each
+ * property is resolved once from its {@link GDPropertyMetadata}, and integer,
+ * long and float values are kept in primitive arrays so that the typed getters
+ * and setters do not box.
+ * <p/>
+ * The {@link Data} objects returned by {@link #getProperties()} are a boxed
+ * view of the slots which is refreshed when the map is requested.
+ * <p/>
+ * Values are read, and written and stamped with their revision, while
+ * holding the lock of the slot map. Changes are collected under the same lock, so a
+ * change is never stamped with a revision that a reader has already passed.
+ */
 public class GDPropertiesImpl extends GDProperties.Stub
         implements GDProperties {
 
     public static final String LAST_UPDATE_TIME = "lastUpdateTime";
-    private Map<String, Data> properties;
-//    private Map<String, GDPropertyMetadata> metadata;
+    private final Map<String, Slot> slots = new ConcurrentHashMap<>();
+    private final Map<String, Data> properties = new HashMap<>();
+    private final Map<String, Data> unmodifiableProperties = Collections.unmodifiableMap(properties);
+    private int[] intValues = new int[0];
+    private long[] longValues = new long[0];
+    private float[] floatValues = new float[0];
+    private Object[] objectValues = new Object[0];
+    private Slot lastUpdateTime;
     private GDServiceImpl parentService;
+    private final Map<String, Long> removed = new HashMap<>();
+    private long revision;
+    private final ThreadLocal<Batch> batch = new ThreadLocal<>();
 
     public GDPropertiesImpl(Iterable<GDPropertyMetadata> metadataArray, GDServiceImpl parentService) {
         this.parentService = parentService;
-//        this.metadata = new HashMap<>();
-        this.properties = new HashMap<>();
         if (metadataArray != null) {
-            metadataArray.forEach(meta -> {
-                properties.put(meta.getName(), new Data(meta).setToDefault());
-            });
+            metadataArray.forEach(this::addSlot);
         }
     }
 
@@ -74,9 +99,77 @@ public class GDPropertiesImpl extends GDProperties.Stub
         this(metadataArray, null);
     }
 
+    /**
+     * Resolves the slot for the property and sets it to its default value.
+     *
+     * @param metadata
+     */
+    private void addSlot(GDPropertyMetadata metadata) {
+        Kind kind = Kind.of(metadata.getType());
+        synchronized (slots) {
+            int index;
+            switch (kind) {
+                case INT:
+                    index = intValues.length;
+                    intValues = Arrays.copyOf(intValues, index + 1);
+                    break;
+                case LONG:
+                    index = longValues.length;
+                    longValues = Arrays.copyOf(longValues, index + 1);
+                    break;
+                case FLOAT:
+                    index = floatValues.length;
+                    floatValues = Arrays.copyOf(floatValues, index + 1);
+                    break;
+                default:
+                    index = objectValues.length;
+                    objectValues = Arrays.copyOf(objectValues, index + 1);
+            }
+            Slot slot = new Slot(kind, index, metadata);
+            setToDefault(slot);
+            slot.revision = revision = Revisions.INSTANCE.next();
+            slots.put(metadata.getName(), slot);
+            properties.put(metadata.getName(), slot.data);
+            removed.remove(metadata.getName());
+            if (LAST_UPDATE_TIME.equals(metadata.getName()) && kind == Kind.LONG) {
+                lastUpdateTime = slot;
+            }
+        }
+    }
+
+    private void setToDefault(Slot slot) {
+        if (slot.kind == Kind.OBJECT) {
+            Data data = new Data(slot.metadata).setToDefault();
+            objectValues[slot.index] = data.currentValue;
+            slot.dirty = true;
+            return;
+        }
+        Number defaultNumber = slot.metadata.getDefaultNumberValue();
+        switch (slot.kind) {
+            case INT:
+                intValues[slot.index] = defaultNumber == null ? 0 : defaultNumber.intValue();
+                break;
+            case LONG:
+                longValues[slot.index] = defaultNumber == null ? 0 : defaultNumber.longValue();
+                break;
+            default:
+                floatValues[slot.index] = defaultNumber == null ? 0 : defaultNumber.floatValue();
+        }
+        slot.dirty = true;
+    }
+
+    private Slot slot(String key) {
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            throw new GDError("There is no property: " + key
+                    + " specified in the metadata for this property set.");
+        }
+        return slot;
+    }
+
     @Override
     public boolean hasProperty(String name) {
-        return properties.containsKey(name);
+        return slots.containsKey(name);
     }
 
     /**
@@ -84,11 +177,26 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public Object getValue(String name) {
-        Data data = properties.get(name);
-        if (data.currentValue == null) {
-            data.setToDefault();
+        Slot slot = slot(name);
+        synchronized (slots) {
+            if (slot.kind == Kind.OBJECT && objectValues[slot.index] == null) {
+                setToDefault(slot);
+            }
+            return boxedValue(slot);
+        }
+    }
+
+    private Object boxedValue(Slot slot) {
+        switch (slot.kind) {
+            case INT:
+                return intValues[slot.index];
+            case LONG:
+                return longValues[slot.index];
+            case FLOAT:
+                return floatValues[slot.index];
+            default:
+                return objectValues[slot.index];
         }
-        return data.currentValue;
     }
 
     /**
@@ -96,12 +204,15 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public String getStringValue(String key) {
-        Data data = properties.get(key);
-        Object value = data.currentValue;
+        Slot slot = slot(key);
+        Object value;
+        synchronized (slots) {
+            value = boxedValue(slot);
+        }
         if (value != null) {
             return String.valueOf(value);
         }
-        return data.metadata.getDefaultStringValue();
+        return slot.metadata.getDefaultStringValue();
     }
 
     /**
@@ -109,17 +220,19 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public void setStringValue(String key, String value) {
-        if (properties.get(key) == null) {
-            throw new GDError("There is no property: " + key
-                    + " specified in the metadata for this property set.");
-        }
-        Class<?> type = properties.get(key).metadata.getType();
-        if (Float.class.equals(type)) {
-            setFloatValue(key, Float.parseFloat(value));
-        } else if (Integer.class.equals(type)) {
-            setIntValue(key, Integer.parseInt(value));
-        } else {
-            setValue(key, value);
+        Slot slot = slot(key);
+        switch (slot.kind) {
+            case INT:
+                setIntValue(key, Integer.parseInt(value));
+                break;
+            case LONG:
+                setLongValue(key, Long.parseLong(value));
+                break;
+            case FLOAT:
+                setFloatValue(key, Float.parseFloat(value));
+                break;
+            default:
+                setValue(key, value);
         }
     }
 
@@ -128,7 +241,21 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public void setIntValue(String key, int value) {
-        setValue(key, value);
+        Slot slot = slot(key);
+        if (slot.kind != Kind.INT) {
+            setValue(key, value);
+            return;
+        }
+        slot.validator.checkRange(key, value);
+        boolean changed;
+        synchronized (slots) {
+            changed = intValues[slot.index] != value;
+            intValues[slot.index] = value;
+            updated(slot, changed);
+        }
+        if (changed && isNotifying()) {
+            tryNotifyChange(key, value);
+        }
     }
 
     /**
@@ -136,7 +263,21 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public void setLongValue(String key, long value) {
-        setValue(key, value);
+        Slot slot = slot(key);
+        if (slot.kind != Kind.LONG) {
+            setValue(key, value);
+            return;
+        }
+        slot.validator.checkRange(key, value);
+        boolean changed;
+        synchronized (slots) {
+            changed = longValues[slot.index] != value;
+            longValues[slot.index] = value;
+            updated(slot, changed);
+        }
+        if (changed && isNotifying()) {
+            tryNotifyChange(key, value);
+        }
     }
 
     /**
@@ -144,32 +285,126 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public void setFloatValue(String key, float value) {
-        setValue(key, value);
+        Slot slot = slot(key);
+        if (slot.kind != Kind.FLOAT) {
+            setValue(key, value);
+            return;
+        }
+        slot.validator.checkRange(key, value);
+        boolean changed;
+        synchronized (slots) {
+            changed = Float.floatToIntBits(floatValues[slot.index]) != Float.floatToIntBits(value);
+            floatValues[slot.index] = value;
+            updated(slot, changed);
+        }
+        if (changed && isNotifying()) {
+            tryNotifyChange(key, value);
+        }
     }
 
     @JsonAnySetter
     public void setValue(String key, Object value) {
-        MetadataUtil.INSTANCE.verifyPropertyAgainstMetadata(properties.get(key).metadata, key, value);
-        properties.compute(key, (k, data) -> {
-            tryNotifyChange(k, data.currentValue, value);
-            data.currentValue = value;
-            return data;
-        });
+        Slot slot = slot(key);
+        Number number = slot.validator.verify(key, value);
+        if (number == null && slot.kind != Kind.OBJECT) {
+            number = defaultNumber(slot);
+        }
+        boolean changed;
+        Object newValue;
+        int index = slot.index;
+        synchronized (slots) {
+            switch (slot.kind) {
+                case INT:
+                    int intValue = number.intValue();
+                    changed = intValues[index] != intValue;
+                    intValues[index] = intValue;
+                    break;
+                case LONG:
+                    long longValue = number.longValue();
+                    changed = longValues[index] != longValue;
+                    longValues[index] = longValue;
+                    break;
+                case FLOAT:
+                    float floatValue = number.floatValue();
+                    changed = Float.floatToIntBits(floatValues[index]) != Float.floatToIntBits(floatValue);
+                    floatValues[index] = floatValue;
+                    break;
+                default:
+                    Object oldValue = objectValues[index];
+                    changed = (value == null && oldValue != null) || (value != null && !value.equals(oldValue));
+                    objectValues[index] = value;
+            }
+            updated(slot, changed);
+            newValue = boxedValue(slot);
+        }
+        if (changed && isNotifying()) {
+            tryNotifyChange(key, newValue);
+        }
     }
 
-    private void tryNotifyChange(final String key, Object oldValue,
-            final Object value) {
-        properties.computeIfPresent(LAST_UPDATE_TIME, (k, data) -> {
-            data.currentValue = System.currentTimeMillis();
-            return data;
-        });
-        if (parentService != null && parentService.getParentDevice() != null) {
-            if ((value == null && oldValue != null) || (value != null && !value.equals(oldValue))) {
-                parentService.notifyEvent(new HashMap() {
-                    {
-                        put(key, value);
-                    }
-                });
+    /**
+     * Called after a value has been set, while holding the lock of the slot
+     * map.
+     *
+     * @param slot
+     * @param changed whether the value changed
+     */
+    private void updated(Slot slot, boolean changed) {
+        if (lastUpdateTime != null) {
+            longValues[lastUpdateTime.index] = System.currentTimeMillis();
+            lastUpdateTime.dirty = true;
+        }
+        if (changed) {
+            slot.dirty = true;
+            slot.revision = revision = Revisions.INSTANCE.next();
+            if (lastUpdateTime != null) {
+                lastUpdateTime.revision = revision;
+            }
+        }
+    }
+
+    private boolean isNotifying() {
+        return parentService != null && parentService.getParentDevice() != null;
+    }
+
+    private void tryNotifyChange(String key, Object value) {
+        Batch current = batch.get();
+        if (current != null) {
+            current.changes.put(key, value);
+        } else {
+            HashMap<String, Object> changes = new HashMap<>();
+            changes.put(key, value);
+            parentService.notifyEvent(changes);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void beginUpdate() {
+        Batch current = batch.get();
+        if (current == null) {
+            current = new Batch();
+            batch.set(current);
+        }
+        current.depth++;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void commitUpdate() {
+        Batch current = batch.get();
+        if (current == null) {
+            throw new IllegalStateException("There is no update to commit");
+        }
+        current.depth--;
+        if (current.depth == 0) {
+            batch.remove();
+            if (!current.changes.isEmpty() && parentService != null && parentService.getParentDevice() != null) {
+                parentService.notifyEvent(current.changes);
             }
         }
     }
@@ -179,7 +414,30 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public int getIntValue(String key) {
-        return getValue(key, Integer::parseInt, value -> value.intValue());
+        Slot slot = slot(key);
+        Object value;
+        synchronized (slots) {
+            switch (slot.kind) {
+                case INT:
+                    return intValues[slot.index];
+                case LONG:
+                    return (int) longValues[slot.index];
+                case FLOAT:
+                    return (int) floatValues[slot.index];
+                default:
+                    value = objectValues[slot.index];
+            }
+        }
+        if (value instanceof String) {
+            try {
+                return Integer.parseInt((String) value);
+            } catch (NumberFormatException e) {
+                return defaultNumber(slot).intValue();
+            }
+        } else if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        return defaultNumber(slot).intValue();
     }
 
     /**
@@ -187,7 +445,30 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public long getLongValue(String key) {
-        return getValue(key, Long::parseLong, value -> value.longValue());
+        Slot slot = slot(key);
+        Object value;
+        synchronized (slots) {
+            switch (slot.kind) {
+                case INT:
+                    return intValues[slot.index];
+                case LONG:
+                    return longValues[slot.index];
+                case FLOAT:
+                    return (long) floatValues[slot.index];
+                default:
+                    value = objectValues[slot.index];
+            }
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return defaultNumber(slot).longValue();
+            }
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return defaultNumber(slot).longValue();
     }
 
     /**
@@ -195,23 +476,35 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public float getFloatValue(String key) {
-        return getValue(key, Float::parseFloat, value -> value.floatValue());
-    }
-
-    private <T extends Number> T getValue(String key, Function<String, T> parser, Function<Number, T> getter) {
-        Data data = properties.get(key);
-        Object value = data.currentValue;
-        Number defaultValue = data.metadata.getDefaultNumberValue();
+        Slot slot = slot(key);
+        Object value;
+        synchronized (slots) {
+            switch (slot.kind) {
+                case INT:
+                    return intValues[slot.index];
+                case LONG:
+                    return longValues[slot.index];
+                case FLOAT:
+                    return floatValues[slot.index];
+                default:
+                    value = objectValues[slot.index];
+            }
+        }
         if (value instanceof String) {
             try {
-                return parser.apply((String) value);
+                return Float.parseFloat((String) value);
             } catch (NumberFormatException e) {
-                return getter.apply(defaultValue);
+                return defaultNumber(slot).floatValue();
             }
         } else if (value instanceof Number) {
-            return getter.apply((Number) value);
+            return ((Number) value).floatValue();
         }
-        return getter.apply(defaultValue);
+        return defaultNumber(slot).floatValue();
+    }
+
+    private static Number defaultNumber(Slot slot) {
+        Number defaultValue = slot.metadata.getDefaultNumberValue();
+        return defaultValue == null ? 0 : defaultValue;
     }
 
     /**
@@ -219,8 +512,9 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public String getValueType(String key) {
-        if (properties.containsKey(key)) {
-            return properties.get(key).metadata.getTypeName();
+        Slot slot = slots.get(key);
+        if (slot != null) {
+            return slot.metadata.getTypeName();
         }
         return null;
     }
@@ -230,14 +524,87 @@ public class GDPropertiesImpl extends GDProperties.Stub
      */
     @Override
     public Map<String, Data> getProperties() {
-        return Collections.unmodifiableMap(properties);
+        synchronized (slots) {
+            slots.values().forEach(this::refresh);
+        }
+        return unmodifiableProperties;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getRevision() {
+        synchronized (slots) {
+            return revision;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, Data> getPropertiesSince(long revision) {
+        return getChangesSince(revision).properties;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Changes getChangesSince(long revision) {
+        Map<String, Data> changed = new HashMap<>();
+        Set<String> gone = new HashSet<>();
+        synchronized (slots) {
+            slots.forEach((name, slot) -> {
+                if (slot.revision > revision) {
+                    refresh(slot);
+                    changed.put(name, new Data(slot.metadata).set(slot.data.currentValue));
+                }
+            });
+            removed.forEach((name, removedAt) -> {
+                if (removedAt > revision) {
+                    gone.add(name);
+                }
+            });
+            // Every revision up to this one is visible, as they are only
+            // handed out to this property set while holding the lock
+            return new Changes(Revisions.INSTANCE.current(), changed, gone);
+        }
+    }
+
+    private void refresh(Slot slot) {
+        if (slot.dirty) {
+            slot.dirty = false;
+            slot.data.currentValue = boxedValue(slot);
+        }
     }
 
     @Override
     public String serialize(Format format) throws GDException {
         GDAccessSecurity.checkPermission(getClass(), Type.GET);
         try {
-            return SerializationUtil.execute(format, mapper -> mapper.writerWithView(View.ID.Ignore.class).writeValueAsString(this));
+            return SerializationUtil.serialize(format, View.ID.Ignore.class, this);
+        } catch (SerializationException ex) {
+            throw new GDException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void serialize(Format format, Writer writer) throws GDException {
+        GDAccessSecurity.checkPermission(getClass(), Type.GET);
+        try {
+            SerializationUtil.serialize(format, View.ID.Ignore.class, this, writer);
+        } catch (SerializationException ex) {
+            throw new GDException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void serialize(Format format, OutputStream out) throws GDException {
+        GDAccessSecurity.checkPermission(getClass(), Type.GET);
+        try {
+            SerializationUtil.serialize(format, View.ID.Ignore.class, this, out);
         } catch (SerializationException ex) {
             throw new GDException(ex.getMessage(), ex);
         }
@@ -246,7 +613,28 @@ public class GDPropertiesImpl extends GDProperties.Stub
     @Override
     public String serializeState() {
         try {
-            return SerializationUtil.execute(Format.JSON, mapper -> mapper.writerWithView(View.StatelessID.Ignore.class).writeValueAsString(this));
+            return SerializationUtil.serialize(Format.JSON, View.StatelessID.Ignore.class, this);
+        } catch (SerializationException ex) {
+            return "{}";
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String serializeStateSince(long revision) {
+        Changes changes = getChangesSince(revision);
+        Map<String, Object> state = new HashMap<>();
+        state.put("revision", changes.revision);
+        if (!changes.properties.isEmpty()) {
+            state.put("properties", changes.properties);
+        }
+        if (!changes.removed.isEmpty()) {
+            state.put("removed", changes.removed);
+        }
+        try {
+            return SerializationUtil.serialize(Format.JSON, View.StatelessID.Ignore.class, state);
         } catch (SerializationException ex) {
             return "{}";
         }
@@ -265,17 +653,75 @@ public class GDPropertiesImpl extends GDProperties.Stub
                 setIntValue(name, source.getIntValue(name));
             } else if (Float.class.isAssignableFrom(type)) {
                 setFloatValue(name, source.getFloatValue(name));
+            } else if (Long.class.isAssignableFrom(type)) {
+                setLongValue(name, source.getLongValue(name));
             }
         });
     }
 
     public void addDynamicProperty(GDPropertyMetadata propertyMetadata) {
-        properties.put(propertyMetadata.getName(), new Data(propertyMetadata).setToDefault());
+        addSlot(propertyMetadata);
         parentService.notifyEventAdded(propertyMetadata.getName());
     }
 
     public void removeDynamicProperty(GDPropertyMetadata propertyMetadata) {
-        this.properties.remove(propertyMetadata.getName());
-        parentService.notifyEventRemoved(propertyMetadata.getName());
+        String name = propertyMetadata.getName();
+        synchronized (slots) {
+            if (slots.remove(name) != null) {
+                properties.remove(name);
+                removed.put(name, revision = Revisions.INSTANCE.next());
+            }
+        }
+        parentService.notifyEventRemoved(name);
+    }
+
+    /**
+     * Kind of storage used for a property.
+     */
+    private enum Kind {
+
+        INT, LONG, FLOAT, OBJECT;
+
+        static Kind of(Class<?> type) {
+            if (Integer.class.equals(type)) {
+                return INT;
+            } else if (Long.class.equals(type)) {
+                return LONG;
+            } else if (Float.class.equals(type)) {
+                return FLOAT;
+            }
+            return OBJECT;
+        }
+    }
+
+    /**
+     * Batch of updates started by one thread.
+     */
+    private static final class Batch {
+
+        private final HashMap<String, Object> changes = new HashMap<>();
+        private int depth;
+    }
+
+    /**
+     * Storage slot of a property, resolved from its metadata.
+     */
+    private static final class Slot {
+
+        private final Kind kind;
+        private final int index;
+        private final GDPropertyMetadata metadata;
+        private final Data data;
+        private final MetadataValidator validator;
+        private boolean dirty;
+        private long revision;
+
+        Slot(Kind kind, int index, GDPropertyMetadata metadata) {
+            this.kind = kind;
+            this.index = index;
+            this.metadata = metadata;
+            this.data = new Data(metadata);
+            this.validator = MetadataUtil.INSTANCE.validator(metadata);
+        }
     }
 }
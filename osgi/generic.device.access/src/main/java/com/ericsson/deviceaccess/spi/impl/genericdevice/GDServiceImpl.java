@@ -38,7 +38,6 @@ import com.ericsson.common.util.serialization.Format;
 import com.ericsson.common.util.serialization.SerializationException;
 import com.ericsson.common.util.serialization.SerializationUtil;
 import com.ericsson.common.util.serialization.View;
-import com.ericsson.deviceaccess.api.Constants;
 import com.ericsson.deviceaccess.api.GenericDevice;
 import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission.Type;
 import com.ericsson.deviceaccess.api.genericdevice.GDAction;
@@ -46,15 +45,22 @@ import com.ericsson.deviceaccess.api.genericdevice.GDException;
 import com.ericsson.deviceaccess.api.genericdevice.GDProperties;
 import com.ericsson.deviceaccess.api.genericdevice.GDPropertyMetadata;
 import static com.ericsson.deviceaccess.spi.genericdevice.GDAccessSecurity.checkPermission;
+import static com.ericsson.deviceaccess.spi.genericdevice.GDAccessSecurity.doChecked;
 import com.ericsson.deviceaccess.spi.genericdevice.GDService;
 import com.ericsson.deviceaccess.spi.impl.GenericDeviceImpl;
+import com.ericsson.deviceaccess.spi.impl.NodeNavigator;
 import com.ericsson.deviceaccess.spi.schema.ParameterSchema;
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class GDServiceImpl extends GDService.Stub
         implements GDService {
@@ -195,30 +201,85 @@ public class GDServiceImpl extends GDService.Stub
      */
     @Override
     public String serialize(Format format) throws GDException {
-        checkPermission(getClass(), Type.GET);
         try {
-            return SerializationUtil.execute(format, mapper -> mapper.writerWithView(View.ID.Ignore.class).writeValueAsString(this));
+            return doChecked(Type.GET, this::serializedClasses, () -> SerializationUtil.serialize(format, View.ID.Ignore.class, this));
+        } catch (SerializationException ex) {
+            throw new GDException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public void serialize(Format format, Writer writer) throws GDException {
+        try {
+            doChecked(Type.GET, this::serializedClasses, () -> {
+                SerializationUtil.serialize(format, View.ID.Ignore.class, this, writer);
+                return null;
+            });
         } catch (SerializationException ex) {
             throw new GDException(ex.getMessage(), ex);
         }
     }
 
+    @Override
+    public void serialize(Format format, OutputStream out) throws GDException {
+        try {
+            doChecked(Type.GET, this::serializedClasses, () -> {
+                SerializationUtil.serialize(format, View.ID.Ignore.class, this, out);
+                return null;
+            });
+        } catch (SerializationException ex) {
+            throw new GDException(ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Adds the classes whose permissions are checked when the specified
+     * service is serialized.
+     *
+     * @param svc
+     * @param classes
+     */
+    public static void addSerializedClasses(com.ericsson.deviceaccess.api.genericdevice.GDService svc, Collection<Class<?>> classes) {
+        classes.add(svc.getClass());
+        if (svc instanceof GDServiceImpl) {
+            // read the fields, the getters would check the permissions again
+            GDServiceImpl impl = (GDServiceImpl) svc;
+            classes.add(impl.properties.getClass());
+            impl.action.values().forEach(act -> classes.add(act.getClass()));
+        } else {
+            classes.add(svc.getProperties().getClass());
+            svc.getActions().values().forEach(act -> classes.add(act.getClass()));
+        }
+    }
+
+    private Set<Class<?>> serializedClasses() {
+        Set<Class<?>> classes = new HashSet<>();
+        addSerializedClasses(this, classes);
+        return classes;
+    }
+
     @Override
     public String serializeState() {
         return properties.serializeState();
     }
 
+    @Override
+    public long getRevision() {
+        return properties.getRevision();
+    }
+
+    @Override
+    public String serializeStateSince(long revision) {
+        return properties.serializeStateSince(revision);
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public String getSerializedNode(String path, Format format) throws GDException {
         checkPermission(getClass(), Type.GET);
-        try {
-            return SerializationUtil.serializeAccordingPath(format, path, Constants.PATH_DELIMITER, this);
-        } catch (SerializationException ex) {
-            throw new GDException(404, ex.getMessage(), ex);
-        }
+        return NodeNavigator.INSTANCE.getSerializedNode(this, path, format);
     }
 
     @JsonIgnore
@@ -42,6 +42,7 @@ import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission.Type;
 import com.ericsson.deviceaccess.api.genericdevice.GDException;
 import com.ericsson.deviceaccess.api.genericdevice.GDPropertyMetadata;
 import com.ericsson.deviceaccess.spi.genericdevice.GDAccessSecurity;
+import com.ericsson.deviceaccess.spi.impl.MetadataValidator;
 import java.util.Arrays;
 
 /**
@@ -56,6 +57,7 @@ public class ParameterSchema implements GDPropertyMetadata {
     private Class<?> type;
     private String[] validValues;
     private String path;
+    private transient volatile MetadataValidator validator;
 
     /**
      * @param name
@@ -212,6 +214,21 @@ public class ParameterSchema implements GDPropertyMetadata {
         this.path = path;
     }
 
+    /**
+     * Gets the validator compiled from this schema. It is compiled on first
+     * use, the schema does not change after it has been built.
+     *
+     * @return the validator
+     */
+    public MetadataValidator validator() {
+        MetadataValidator result = validator;
+        if (result == null) {
+            result = new MetadataValidator(this);
+            validator = result;
+        }
+        return result;
+    }
+
     public static class Builder {
 
         private String name;
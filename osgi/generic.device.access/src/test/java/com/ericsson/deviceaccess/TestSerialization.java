@@ -35,7 +35,10 @@
 package com.ericsson.deviceaccess;
 
 import com.ericsson.common.util.serialization.Format;
+import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission;
+import com.ericsson.deviceaccess.api.genericdevice.GDAction;
 import com.ericsson.deviceaccess.api.genericdevice.GDException;
+import com.ericsson.deviceaccess.api.genericdevice.GDService;
 import com.ericsson.deviceaccess.spi.event.EventManager;
 import com.ericsson.deviceaccess.spi.genericdevice.GDActivator;
 import com.ericsson.deviceaccess.spi.impl.GenericDeviceImpl;
@@ -43,12 +46,17 @@ import com.ericsson.deviceaccess.spi.impl.genericdevice.GDActionImpl;
 import com.ericsson.deviceaccess.spi.impl.genericdevice.GDServiceImpl;
 import com.ericsson.deviceaccess.spi.schema.ServiceSchema;
 import com.ericsson.research.common.testutil.ReflectionTestUtil;
+import java.security.Permission;
+import java.util.HashMap;
 import java.util.Map;
 import org.jmock.Expectations;
 import org.jmock.integration.junit4.JUnit4Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
+import org.json.JSONObject;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Test;
 
 public class TestSerialization {
@@ -165,6 +173,110 @@ public class TestSerialization {
         assertTrue(node.contains("res1"));
     }
 
+    @Test
+    public void testSerializeStateSinceChecksAllClasses() throws Exception {
+        GenericDeviceImpl dev = new GenericDeviceImpl() {
+        };
+        dev.putService(new TestService());
+        String denied = TestService.TestAction.class.getName();
+        System.setSecurityManager(new SecurityManager() {
+            @Override
+            public void checkPermission(Permission perm) {
+                if (perm instanceof GDAccessPermission && perm.getName().equals(denied)) {
+                    throw new SecurityException("Denied " + perm);
+                }
+            }
+
+            @Override
+            public void checkPermission(Permission perm, Object context) {
+                checkPermission(perm);
+            }
+        });
+        try {
+            try {
+                dev.serializeState();
+                fail("Full state should be denied");
+            } catch (SecurityException e) {
+            }
+            try {
+                dev.serializeStateSince(0);
+                fail("Changes should be denied like the full state");
+            } catch (SecurityException e) {
+            }
+        } finally {
+            System.setSecurityManager(null);
+        }
+    }
+
+    @Test
+    public void testSerializeStateSince() throws Exception {
+        GenericDeviceImpl dev = new GenericDeviceImpl() {
+        };
+        TestService test = new TestService();
+        dev.putService(test);
+        dev.putService(new GDServiceImpl("other", serviceSchema.getPropertiesSchemas()));
+
+        JSONObject all = new JSONObject(dev.serializeStateSince(0));
+        assertTrue(all.getJSONObject("services").has("test"));
+        assertTrue(all.getJSONObject("services").has("other"));
+        assertTrue(all.has("state"));
+        long revision = all.getLong("revision");
+        assertTrue(revision >= dev.getRevision());
+        assertFalse(dev.serialize(Format.JSON).contains("revision"));
+
+        JSONObject none = new JSONObject(dev.serializeStateSince(revision));
+        assertFalse(none.has("services"));
+        assertFalse(none.has("state"));
+
+        test.getProperties().setIntValue("prop1", 42);
+        JSONObject changed = new JSONObject(dev.serializeStateSince(revision));
+        assertFalse(changed.has("state"));
+        JSONObject services = changed.getJSONObject("services");
+        assertFalse(services.has("other"));
+        assertEquals(42, services.getJSONObject("test").getJSONObject("properties").getJSONObject("prop1").getInt("currentValue"));
+        assertTrue(changed.getLong("revision") > revision);
+
+        revision = changed.getLong("revision");
+        GDServiceImpl late = new GDServiceImpl("late", serviceSchema.getPropertiesSchemas());
+        Map<String, GDService> replaced = new HashMap<>();
+        replaced.put("test", test);
+        replaced.put("late", late);
+        dev.setService(replaced);
+        JSONObject replacedState = new JSONObject(dev.serializeStateSince(revision));
+        assertEquals("other", replacedState.getJSONArray("removedServices").getString(0));
+        assertTrue(replacedState.getJSONObject("services").getJSONObject("late").getJSONObject("properties").has("prop1"));
+        assertFalse(replacedState.getJSONObject("services").has("test"));
+    }
+
+    @Test
+    public void testGetNodeOutsideObjectGraph() throws Exception {
+        GenericDeviceImpl dev = new GenericDeviceImpl() {
+        };
+        dev.putService(new TestService());
+
+        assertEquals("\"test\"", dev.getSerializedNode("services/test/name", Format.JSON));
+        assertEquals("-10", dev.getSerializedNode("services/test/action/arguments/arg/minValue", Format.JSON));
+        assertTrue(dev.getSerializedNode("services/test/properties/prop1/metadata", Format.JSON).contains("Integer"));
+    }
+
+    /**
+     * Resolving a node should not serialize the rest of the device.
+     */
+    @Test
+    public void testGetNodeDoesNotSerializeOtherServices() throws Exception {
+        GenericDeviceImpl dev = new GenericDeviceImpl() {
+        };
+        TestService test = new TestService();
+        test.getProperties().setIntValue("prop1", 10);
+        dev.putService(test);
+        dev.putService(new UnserializableService("other"));
+
+        assertEquals("10", dev.getSerializedNode("services/test/properties/prop1/currentValue", Format.JSON));
+        assertTrue(dev.getSerializedNode("services/test/properties/prop1/metadata", Format.JSON).contains("Integer"));
+        assertEquals("\"test\"", dev.getSerializedNode("services/test/name", Format.JSON));
+        assertTrue(new JSONObject(dev.getSerializedNode("services/test", Format.JSON)).has("actions"));
+    }
+
     @Test
     public void testGetNonExistingNode() throws Exception {
         GenericDeviceImpl dev = new GenericDeviceImpl() {
@@ -251,4 +363,24 @@ public class TestSerialization {
             }
         }
     }
+
+    /**
+     * A service which fails when anything beyond its name is read.
+     */
+    class UnserializableService extends GDServiceImpl {
+
+        UnserializableService(String name) {
+            super(name, serviceSchema.getPropertiesSchemas());
+        }
+
+        @Override
+        public Map<String, GDAction> getActions() {
+            throw new IllegalStateException("Service " + getName() + " was serialized");
+        }
+
+        @Override
+        public String serialize(Format format) throws GDException {
+            throw new IllegalStateException("Service " + getName() + " was serialized");
+        }
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.event;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Load test with 1000 devices and a slow listener: events/s should scale with
+ * the number of workers.
+ * <p/>
+ * Not part of the default test run, as the result depends on the machine.
+ * Run it with <code>mvn test -Dtest=EventDispatcherBenchmark</code>.
+ */
+public class EventDispatcherBenchmark {
+
+    private static final int DEVICES = 1000;
+    private static final int EVENTS_PER_DEVICE = 20;
+    private static final long LISTENER_NANOS = 50_000;
+
+    @Test
+    public void throughputScalesWithWorkers() throws InterruptedException {
+        double single = measureEventsPerSecond(1);
+        double quad = measureEventsPerSecond(4);
+        double octa = measureEventsPerSecond(8);
+        System.out.println("EventDispatcher events/s with " + DEVICES + " devices: 1 worker " + (long) single
+                + ", 4 workers " + (long) quad + ", 8 workers " + (long) octa);
+
+        assertTrue("4 workers should be at least twice as fast as 1", quad > 2 * single);
+        assertTrue("8 workers should be faster than 4", octa > quad);
+    }
+
+    private static double measureEventsPerSecond(int workers) throws InterruptedException {
+        int total = DEVICES * EVENTS_PER_DEVICE;
+        CountDownLatch done = new CountDownLatch(total);
+        EventDispatcher<String> dispatcher = new EventDispatcher<>(workers, event -> {
+            // Simulates a listener doing I/O
+            LockSupport.parkNanos(LISTENER_NANOS);
+            done.countDown();
+        });
+        dispatcher.start();
+        long start = System.nanoTime();
+        for (int sequence = 0; sequence < EVENTS_PER_DEVICE; sequence++) {
+            for (int device = 0; device < DEVICES; device++) {
+                dispatcher.dispatch("dev" + device, "event");
+            }
+        }
+        assertTrue(done.await(60, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+        dispatcher.shutdown();
+        return total * 1e9 / elapsed;
+    }
+}
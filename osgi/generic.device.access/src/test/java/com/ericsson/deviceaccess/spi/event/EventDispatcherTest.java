@@ -0,0 +1,154 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.event;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * EventDispatcher Tester.
+ */
+public class EventDispatcherTest {
+
+    private static final int DEVICES = 1000;
+    private static final int EVENTS_PER_DEVICE = 20;
+
+    @Test
+    public void testOrderingPerDevice() throws InterruptedException {
+        final Map<String, Integer> lastSeen = new ConcurrentHashMap<>();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(DEVICES * EVENTS_PER_DEVICE);
+        EventDispatcher<int[]> dispatcher = new EventDispatcher<>(4, event -> {
+            String deviceId = "dev" + event[0];
+            Integer previous = lastSeen.put(deviceId, event[1]);
+            if (previous != null && previous + 1 != event[1]) {
+                outOfOrder.incrementAndGet();
+            }
+            done.countDown();
+        });
+        dispatcher.start();
+        for (int sequence = 0; sequence < EVENTS_PER_DEVICE; sequence++) {
+            for (int device = 0; device < DEVICES; device++) {
+                dispatcher.dispatch("dev" + device, new int[]{device, sequence});
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+
+        assertEquals(0, outOfOrder.get());
+        assertEquals(DEVICES, lastSeen.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNoWorkers() {
+        new EventDispatcher<>(0, event -> {
+        });
+    }
+
+    @Test
+    public void testEachDeviceHandledByOneWorker() throws InterruptedException {
+        final Map<String, Set<String>> threadsByDevice = new ConcurrentHashMap<>();
+        final CountDownLatch done = new CountDownLatch(DEVICES * EVENTS_PER_DEVICE);
+        EventDispatcher<String> dispatcher = new EventDispatcher<>(4, deviceId -> {
+            threadsByDevice.computeIfAbsent(deviceId, id -> ConcurrentHashMap.newKeySet())
+                    .add(Thread.currentThread().getName());
+            done.countDown();
+        });
+        dispatcher.start();
+        for (int sequence = 0; sequence < EVENTS_PER_DEVICE; sequence++) {
+            for (int device = 0; device < DEVICES; device++) {
+                dispatcher.dispatch("dev" + device, "dev" + device);
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+
+        Set<String> allThreads = new HashSet<>();
+        threadsByDevice.values().forEach(threads -> {
+            assertEquals(1, threads.size());
+            allThreads.addAll(threads);
+        });
+        assertEquals(DEVICES, threadsByDevice.size());
+        assertEquals(4, allThreads.size());
+    }
+
+    @Test
+    public void testShutdownHandlesQueuedEvents() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger handled = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(100);
+        EventDispatcher<Integer> dispatcher = new EventDispatcher<>(2, event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.incrementAndGet();
+            done.countDown();
+        });
+        dispatcher.start();
+        for (int i = 0; i < 100; i++) {
+            dispatcher.dispatch("dev" + i, i);
+        }
+        dispatcher.shutdown();
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(100, handled.get());
+    }
+
+    @Test
+    public void testFailingHandlerDoesNotStopWorker() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        EventDispatcher<Integer> dispatcher = new EventDispatcher<>(1, event -> {
+            if (event == 0) {
+                throw new IllegalStateException("Expected failure");
+            }
+            done.countDown();
+        });
+        dispatcher.start();
+        dispatcher.dispatch("dev", 0);
+        dispatcher.dispatch("dev", 1);
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        dispatcher.shutdown();
+    }
+}
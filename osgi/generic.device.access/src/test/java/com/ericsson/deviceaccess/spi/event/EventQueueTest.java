@@ -0,0 +1,156 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.event;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/**
+ * EventQueue Tester.
+ */
+public class EventQueueTest {
+
+    /**
+     * Events are "key=value" strings, coalesced by key.
+     */
+    private static EventQueue<String> queue(int capacity, OverloadPolicy policy) {
+        return new EventQueue<>(capacity, policy,
+                event -> event.substring(0, event.indexOf('=')),
+                (older, newer) -> newer);
+    }
+
+    @Test
+    public void testFifo() throws InterruptedException {
+        EventQueue<String> queue = queue(2, OverloadPolicy.BLOCK);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.put("a=" + i, true));
+            assertTrue(queue.put("b=" + i, true));
+            assertEquals(2, queue.size());
+            assertEquals("a=" + i, queue.take());
+            assertEquals("b=" + i, queue.take());
+        }
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testDropOldest() throws InterruptedException {
+        EventQueue<String> queue = queue(2, OverloadPolicy.DROP_OLDEST);
+        queue.put("a=1", true);
+        queue.put("b=1", true);
+        queue.put("c=1", true);
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getDropped());
+        assertEquals("b=1", queue.take());
+        assertEquals("c=1", queue.take());
+    }
+
+    @Test
+    public void testCoalesce() throws InterruptedException {
+        EventQueue<String> queue = queue(2, OverloadPolicy.COALESCE);
+        queue.put("a=1", true);
+        queue.put("b=1", true);
+        queue.put("a=2", true);
+        queue.put("b=2", true);
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.getCoalesced());
+        assertEquals(0, queue.getDropped());
+        assertEquals("a=2", queue.take());
+
+        // No queued event to merge with, oldest is dropped
+        queue.put("c=1", true);
+        queue.put("d=1", true);
+        assertEquals(1, queue.getDropped());
+        assertEquals("c=1", queue.take());
+        assertEquals("d=1", queue.take());
+    }
+
+    @Test
+    public void testCoalesceAfterWrap() throws InterruptedException {
+        EventQueue<String> queue = queue(3, OverloadPolicy.COALESCE);
+        for (int i = 0; i < 10; i++) {
+            queue.put("a=" + i, true);
+            queue.put("b=" + i, true);
+            queue.put("c=" + i, true);
+            queue.put("b=x" + i, true);
+            assertEquals("a=" + i, queue.take());
+            assertEquals("b=x" + i, queue.take());
+            assertEquals("c=" + i, queue.take());
+        }
+        assertEquals(10, queue.getCoalesced());
+    }
+
+    @Test
+    public void testBlock() throws InterruptedException {
+        final EventQueue<String> queue = queue(1, OverloadPolicy.BLOCK);
+        queue.put("a=1", true);
+        final AtomicBoolean added = new AtomicBoolean();
+        final CountDownLatch done = new CountDownLatch(1);
+        new Thread(() -> {
+            try {
+                added.set(queue.put("a=2", true));
+            } catch (InterruptedException e) {
+            }
+            done.countDown();
+        }).start();
+        assertFalse(done.await(100, TimeUnit.MILLISECONDS));
+        assertEquals("a=1", queue.take());
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(added.get());
+        assertEquals("a=2", queue.take());
+        assertEquals(0, queue.getDropped());
+    }
+
+    @Test
+    public void testBlockNotAllowed() throws InterruptedException {
+        EventQueue<String> queue = queue(1, OverloadPolicy.BLOCK);
+        queue.put("a=1", true);
+        queue.put("a=2", false);
+        assertEquals(1, queue.getDropped());
+        assertEquals("a=2", queue.take());
+    }
+
+    @Test
+    public void testClose() throws InterruptedException {
+        EventQueue<String> queue = queue(2, OverloadPolicy.BLOCK);
+        queue.put("a=1", true);
+        queue.close();
+        assertFalse(queue.put("a=2", true));
+        assertEquals("a=1", queue.take());
+        assertNull(queue.take());
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.event;
+
+import com.ericsson.deviceaccess.api.genericdevice.GDEventListener;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import static org.junit.Assert.*;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * ListenerIndex Tester.
+ */
+public class ListenerIndexTest {
+
+    private final AtomicInteger matchCount = new AtomicInteger();
+
+    @Test
+    public void testDeviceAndServiceFilters() throws InvalidSyntaxException {
+        GDEventListener device = new DummyListener();
+        GDEventListener service = new DummyListener();
+        GDEventListener either = new DummyListener();
+        ListenerIndex index = ListenerIndex.EMPTY
+                .with(device, filter("(&(device.id=zwave31)(|(temp >= 30)(power <= 100)))"))
+                .with(service, filter("(&(service.name=TemperatureSensor)(CurrentTemperature>=30))"))
+                .with(either, filter("(|(device.id=a)(device.id=b))"));
+
+        assertEquals(Collections.singletonList(device), matching(index, "zwave31", "srv", "temp", 31));
+        assertEquals(Collections.emptyList(), matching(index, "zwave31", "srv", "temp", 29));
+        assertEquals(Collections.emptyList(), matching(index, "zwave32", "srv", "temp", 31));
+        assertEquals(Collections.singletonList(service), matching(index, "dev", "TemperatureSensor", "CurrentTemperature", 31));
+        assertEquals(Collections.singletonList(either), matching(index, "b", "srv", "temp", 1));
+        assertEquals(4, matchCount.get());
+    }
+
+    @Test
+    public void testPropertyFilters() throws InvalidSyntaxException {
+        GDEventListener listener = new DummyListener();
+        GDEventListener negated = new DummyListener();
+        ListenerIndex index = ListenerIndex.EMPTY
+                .with(listener, filter("(&(device.online=true)(|(CurrentPower=*)(CurrentTemperature=*)))"))
+                .with(negated, filter("(!(device.id=dev))"));
+
+        Map<String, Object> properties = properties("dev2", "srv", "CurrentPower", 22);
+        properties.put("CurrentTemperature", 20);
+        properties.put("device.online", true);
+        List<GDEventListener> result = new ArrayList<>();
+        index.forEachMatching("dev2", "srv", properties, result::add);
+        assertEquals(2, result.size());
+        assertTrue(result.contains(listener));
+        assertTrue(result.contains(negated));
+
+        assertEquals(Collections.emptyList(), matching(index, "dev", "srv", "Other", 1));
+    }
+
+    @Test
+    public void testDeltaProperties() throws InvalidSyntaxException {
+        ListenerIndex index = ListenerIndex.EMPTY
+                .with(new DummyListener(), filter("(&(device.id=dev)(|(temp__delta>=2)(power__delta>=10)))"));
+        assertEquals(2, index.getDeltaProperties().size());
+        assertTrue(index.getDeltaProperties().contains("temp"));
+        assertTrue(index.getDeltaProperties().contains("power"));
+    }
+
+    @Test
+    public void testUnparsableFilterIsAlwaysMatched() {
+        GDEventListener listener = new DummyListener();
+        ListenerIndex index = ListenerIndex.EMPTY.with(listener, new CountingFilter(null) {
+            @Override
+            public boolean matches(Map<String, ?> map) {
+                matchCount.incrementAndGet();
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return "custom";
+            }
+        });
+        assertEquals(Collections.singletonList(listener), matching(index, "dev", "srv", "temp", 1));
+    }
+
+    @Test
+    public void testRemove() throws InvalidSyntaxException {
+        GDEventListener listener = new DummyListener();
+        ListenerIndex index = ListenerIndex.EMPTY.with(listener, filter("(device.id=dev)"));
+        assertSame(index, index.without(new DummyListener()));
+        index = index.without(listener);
+        assertTrue(index.getListeners().isEmpty());
+        assertEquals(Collections.emptyList(), matching(index, "dev", "srv", "temp", 1));
+    }
+
+    /**
+     * Per event only the filters of the listeners that could match should be
+     * evaluated, regardless of how many listeners there are.
+     */
+    @Test
+    public void testCostIsFlatWithManyListeners() throws InvalidSyntaxException {
+        ListenerIndex index = ListenerIndex.EMPTY;
+        for (int i = 0; i < 500; i++) {
+            index = index.with(new DummyListener(), filter("(&(device.id=dev" + i + ")(temp>=30))"));
+            index = index.with(new DummyListener(), filter("(&(service.name=srv" + i + ")(temp>=30))"));
+            index = index.with(new DummyListener(), filter("(prop" + i + "=*)"));
+        }
+        matchCount.set(0);
+        assertEquals(1, matching(index, "dev7", "other", "temp", 31).size());
+        assertEquals(1, matchCount.get());
+        matchCount.set(0);
+        assertEquals(1, matching(index, "other", "srv7", "prop9", 31).size());
+        assertEquals(2, matchCount.get());
+    }
+
+    private List<GDEventListener> matching(ListenerIndex index, String deviceId, String serviceName, String property, Object value) {
+        List<GDEventListener> result = new ArrayList<>();
+        index.forEachMatching(deviceId, serviceName, properties(deviceId, serviceName, property, value), result::add);
+        return result;
+    }
+
+    private static Map<String, Object> properties(String deviceId, String serviceName, String property, Object value) {
+        Map<String, Object> properties = new HashMap<>();
+        properties.put(GDEventListener.DEVICE_ID, deviceId);
+        properties.put(GDEventListener.SERVICE_NAME, serviceName);
+        properties.put(property, value);
+        return properties;
+    }
+
+    private Filter filter(String filter) throws InvalidSyntaxException {
+        return new CountingFilter(FrameworkUtil.createFilter(filter));
+    }
+
+    private class CountingFilter implements Filter {
+
+        private final Filter filter;
+
+        CountingFilter(Filter filter) {
+            this.filter = filter;
+        }
+
+        @Override
+        public boolean match(ServiceReference<?> reference) {
+            return filter.match(reference);
+        }
+
+        @Override
+        public boolean match(Dictionary<String, ?> dictionary) {
+            return filter.match(dictionary);
+        }
+
+        @Override
+        public boolean matchCase(Dictionary<String, ?> dictionary) {
+            return filter.matchCase(dictionary);
+        }
+
+        @Override
+        public boolean matches(Map<String, ?> map) {
+            matchCount.incrementAndGet();
+            return filter.matches(map);
+        }
+
+        @Override
+        public String toString() {
+            return filter.toString();
+        }
+    }
+
+    private static class DummyListener implements GDEventListener {
+
+        @Override
+        public void notifyGDEvent(String deviceId, String serviceName, Map<String, Object> properties) {
+        }
+
+        @Override
+        public void notifyGDPropertyEvent(Type type, String deviceId, String serviceName, String propertyId) {
+        }
+    }
+}
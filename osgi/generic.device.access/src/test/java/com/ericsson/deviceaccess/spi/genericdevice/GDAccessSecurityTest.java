@@ -0,0 +1,185 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.genericdevice;
+
+import com.ericsson.common.util.serialization.Format;
+import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission;
+import com.ericsson.deviceaccess.api.genericdevice.GDAccessPermission.Type;
+import com.ericsson.deviceaccess.spi.impl.GenericDeviceImpl;
+import java.security.AccessControlContext;
+import java.security.AccessController;
+import java.security.Permission;
+import java.security.PrivilegedAction;
+import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * GDAccessSecurity Tester.
+ */
+public class GDAccessSecurityTest {
+
+    private CountingSecurityManager manager;
+
+    @Before
+    public void setup() {
+        manager = new CountingSecurityManager();
+        System.setSecurityManager(manager);
+    }
+
+    @After
+    public void tearDown() {
+        System.setSecurityManager(null);
+    }
+
+    @Test
+    public void testRevokedPermissionTakesEffect() {
+        GDAccessSecurity.checkPermission(String.class, Type.GET);
+        GDAccessSecurity.checkPermission(String.class, Type.GET);
+        assertEquals(2, manager.checks.get());
+
+        manager.denied = String.class.getName();
+        try {
+            GDAccessSecurity.checkPermission(String.class, Type.GET);
+            fail("Permission should be denied");
+        } catch (SecurityException e) {
+        }
+    }
+
+    @Test
+    public void testDeniedDecisionIsNotCached() {
+        manager.denied = String.class.getName();
+        for (int i = 0; i < 2; i++) {
+            try {
+                GDAccessSecurity.checkPermission(String.class, Type.GET);
+                fail("Permission should be denied");
+            } catch (SecurityException e) {
+            }
+        }
+        assertEquals(2, manager.checks.get());
+    }
+
+    @Test
+    public void testDoChecked() {
+        String result = GDAccessSecurity.doChecked(Type.GET, () -> Arrays.asList(String.class, Integer.class), () -> {
+            GDAccessSecurity.checkPermission(String.class, Type.GET);
+            GDAccessSecurity.checkPermission(Integer.class, Type.GET);
+            return "done";
+        });
+        assertEquals("done", result);
+        assertEquals(2, manager.checks.get());
+
+        // the checks are covered only while the body runs
+        GDAccessSecurity.checkPermission(String.class, Type.GET);
+        assertEquals(3, manager.checks.get());
+    }
+
+    @Test
+    public void testDoCheckedDoesNotRepeatChecks() {
+        GDAccessSecurity.doChecked(Type.GET, () -> Arrays.asList(String.class), () -> {
+            for (int i = 0; i < 10; i++) {
+                GDAccessSecurity.checkPermission(String.class, Type.SET);
+                GDAccessSecurity.checkPermission(Integer.class, Type.GET);
+            }
+            return null;
+        });
+        assertEquals(3, manager.checks.get());
+    }
+
+    @Test
+    public void testDoCheckedDoesNotCoverOtherContexts() {
+        AccessControlContext other = new AccessControlContext(new ProtectionDomain[]{new ProtectionDomain(null, null)});
+        GDAccessSecurity.doChecked(Type.GET, () -> Arrays.asList(String.class), () -> {
+            AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+                GDAccessSecurity.checkPermission(String.class, Type.GET);
+                return null;
+            }, other);
+            return null;
+        });
+        assertEquals(2, manager.checks.get());
+    }
+
+    @Test(expected = SecurityException.class)
+    public void testDoCheckedDenied() {
+        manager.denied = Integer.class.getName();
+        GDAccessSecurity.doChecked(Type.GET, () -> Arrays.asList(String.class, Integer.class), () -> {
+            fail("Body should not run");
+            return null;
+        });
+    }
+
+    @Test
+    public void testSerializeDoesNotRepeatChecks() throws Exception {
+        GenericDeviceImpl device = new GenericDeviceImpl() {
+        };
+        device.serialize(Format.JSON);
+        assertFalse(manager.permissions.isEmpty());
+        // once up front and once from the serializer
+        assertTrue(manager.permissions.size() <= 2 * new HashSet<>(manager.permissions).size());
+    }
+
+    private static class CountingSecurityManager extends SecurityManager {
+
+        private final AtomicInteger checks = new AtomicInteger();
+        private final List<Permission> permissions = new CopyOnWriteArrayList<>();
+        private volatile String denied;
+
+        @Override
+        public void checkPermission(Permission perm) {
+            if (perm instanceof GDAccessPermission) {
+                checks.incrementAndGet();
+                permissions.add(perm);
+                if (perm.getName().equals(denied)) {
+                    throw new SecurityException("Denied " + perm);
+                }
+            }
+        }
+
+        @Override
+        public void checkPermission(Permission perm, Object context) {
+            checkPermission(perm);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.impl;
+
+import com.ericsson.common.util.serialization.Format;
+import com.ericsson.common.util.serialization.SerializationUtil;
+import com.ericsson.common.util.serialization.View;
+import com.ericsson.deviceaccess.spi.event.EventManager;
+import com.ericsson.deviceaccess.spi.genericdevice.GDActivator;
+import com.ericsson.research.common.testutil.ReflectionTestUtil;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.jmock.Expectations;
+import org.jmock.integration.junit4.JUnit4Mockery;
+import org.jmock.lib.legacy.ClassImposteriser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Compares building a writer and a string per device with streaming through
+ * the cached writer.
+ * <p/>
+ * Not part of the default test run, run it with
+ * <code>mvn test -Dtest=GenericDeviceImplBenchmark</code>.
+ */
+public class GenericDeviceImplBenchmark {
+
+    private static final int DEVICES = 1000;
+    private static final int ITERATIONS = 100;
+    private static final int ROUNDS = 5;
+
+    private JUnit4Mockery context = new JUnit4Mockery() {
+        {
+            setImposteriser(ClassImposteriser.INSTANCE);
+        }
+    };
+    private List<GenericDeviceImpl> devices;
+
+    @Before
+    public void setup() throws Exception {
+        EventManager eventManager = context.mock(EventManager.class);
+        context.checking(new Expectations() {
+            {
+                allowing(eventManager);
+            }
+        });
+        ReflectionTestUtil.setField(GDActivator.class, "eventManager", eventManager);
+        devices = new ArrayList<>();
+        for (int i = 0; i < DEVICES; i++) {
+            GenericDeviceImpl device = new GenericDeviceImpl() {
+            };
+            device.setId("dev" + i);
+            device.setURN("urn:dev:" + i);
+            device.setName("device " + i);
+            device.setProtocol("prot");
+            devices.add(device);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReflectionTestUtil.setField(GDActivator.class, "eventManager", null);
+    }
+
+    @Test
+    public void streamedAgainstStringPerDevice() throws Exception {
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+
+        writeStrings(sink);
+        writeStreamed(sink);
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            writeStrings(sink);
+            long stringNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            writeStreamed(sink);
+            long streamedNanos = System.nanoTime() - start;
+
+            System.out.printf("Serializing %d devices: %.2f ms per writer and string, %.2f ms cached and streamed%n",
+                    DEVICES, stringNanos / 1e6 / ITERATIONS, streamedNanos / 1e6 / ITERATIONS);
+        }
+    }
+
+    private void writeStrings(OutputStream sink) throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (GenericDeviceImpl device : devices) {
+                String json = SerializationUtil.execute(Format.JSON, mapper -> mapper.writerWithView(View.ID.Ignore.class).writeValueAsString(device));
+                sink.write(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private void writeStreamed(OutputStream sink) throws Exception {
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (GenericDeviceImpl device : devices) {
+                device.serialize(Format.JSON, sink);
+            }
+        }
+    }
+}
@@ -44,6 +44,9 @@ import com.ericsson.deviceaccess.spi.event.EventManager;
 import com.ericsson.deviceaccess.spi.genericdevice.GDActivator;
 import com.ericsson.deviceaccess.spi.genericdevice.GDService;
 import com.ericsson.research.common.testutil.ReflectionTestUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import org.jmock.Expectations;
 import org.jmock.integration.junit4.JUnit4Mockery;
@@ -51,6 +54,8 @@ import org.jmock.lib.legacy.ClassImposteriser;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
@@ -192,4 +197,31 @@ public class GenericDeviceImplTest {
         }
     }
 
+    @Test
+    public void testSerializeToStream() throws GDException {
+        String json = device.serialize(Format.JSON);
+
+        boolean[] closed = new boolean[2];
+        StringWriter writer = new StringWriter() {
+            @Override
+            public void close() {
+                closed[1] = true;
+            }
+        };
+        device.serialize(Format.JSON, writer);
+        assertEquals(json, writer.toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public void close() {
+                closed[0] = true;
+            }
+        };
+        device.serialize(Format.JSON, out);
+        assertEquals(json, new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertFalse(closed[0]);
+        assertFalse(closed[1]);
+    }
+
+
 }
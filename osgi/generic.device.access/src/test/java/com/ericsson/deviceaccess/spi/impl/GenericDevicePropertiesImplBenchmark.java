@@ -0,0 +1,94 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.impl;
+
+import com.ericsson.deviceaccess.spi.impl.genericdevice.GDPropertiesImpl;
+import com.ericsson.deviceaccess.spi.schema.ParameterSchema;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * Compares typed slot access with a boxed map holding the same values.
+ * <p/>
+ * Not part of the default test run, run it with
+ * <code>mvn test -Dtest=GenericDevicePropertiesImplBenchmark</code>.
+ */
+public class GenericDevicePropertiesImplBenchmark {
+
+    private static final int ITERATIONS = 2000000;
+    private static final int ROUNDS = 5;
+
+    @Test
+    public void typedAccessAgainstBoxedMap() {
+        GDPropertiesImpl typed = new GDPropertiesImpl(Arrays.asList(
+                new ParameterSchema.Builder("iProp", Integer.class).build(),
+                new ParameterSchema.Builder("lProp", Long.class).build(),
+                new ParameterSchema.Builder("fProp", Float.class).build()));
+        Map<String, Object> boxed = new HashMap<>();
+        boxed.put("iProp", 0);
+        boxed.put("lProp", 0L);
+        boxed.put("fProp", 0f);
+
+        GenericDevicePropertiesImplTest.accessTyped(typed, ITERATIONS);
+        accessBoxed(boxed, ITERATIONS);
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            long typedSum = GenericDevicePropertiesImplTest.accessTyped(typed, ITERATIONS);
+            long typedNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            long boxedSum = accessBoxed(boxed, ITERATIONS);
+            long boxedNanos = System.nanoTime() - start;
+
+            assertEquals(boxedSum, typedSum);
+            System.out.printf("Typed property access: %.1f ns/op, boxed map: %.1f ns/op%n",
+                    (double) typedNanos / ITERATIONS, (double) boxedNanos / ITERATIONS);
+        }
+    }
+
+    private static long accessBoxed(Map<String, Object> boxed, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            int value = 1000 + (i & 0xffff);
+            boxed.put("iProp", value);
+            boxed.put("lProp", (long) value);
+            boxed.put("fProp", (float) value);
+            sum += ((Number) boxed.get("iProp")).intValue() + ((Number) boxed.get("lProp")).longValue() + (long) ((Number) boxed.get("fProp")).floatValue();
+        }
+        return sum;
+    }
+}
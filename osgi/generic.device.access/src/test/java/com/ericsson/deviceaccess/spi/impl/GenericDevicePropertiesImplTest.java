@@ -37,16 +37,26 @@ package com.ericsson.deviceaccess.spi.impl;
 import com.ericsson.common.util.serialization.Format;
 import com.ericsson.deviceaccess.api.genericdevice.GDException;
 import com.ericsson.deviceaccess.api.genericdevice.GDPropertyMetadata;
+import com.ericsson.deviceaccess.spi.genericdevice.GDError;
 import com.ericsson.deviceaccess.spi.impl.genericdevice.GDPropertiesImpl;
+import com.ericsson.deviceaccess.spi.schema.ParameterSchema;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import org.jmock.Expectations;
 import org.jmock.integration.junit4.JUnit4Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -134,4 +144,162 @@ public class GenericDevicePropertiesImplTest {
             fail(e.getMessage());
         }
     }
+
+    @Test
+    public void testPropertiesSince() throws JSONException {
+        GDPropertiesImpl typed = createTypedProperties();
+        long revision = typed.getRevision();
+        assertEquals(5, typed.getPropertiesSince(0).size());
+        assertTrue(typed.getPropertiesSince(revision).isEmpty());
+
+        typed.setIntValue("iProp", 7);
+        typed.setStringValue("sProp", "a");
+        assertTrue(typed.getRevision() > revision);
+        assertEquals(new HashSet<>(Arrays.asList("iProp", GDPropertiesImpl.LAST_UPDATE_TIME)), typed.getPropertiesSince(revision).keySet());
+
+        JSONObject state = new JSONObject(typed.serializeStateSince(revision));
+        assertEquals(7, state.getJSONObject("properties").getJSONObject("iProp").getInt("currentValue"));
+        long next = state.getLong("revision");
+        assertTrue(next >= typed.getRevision());
+        assertTrue(new JSONObject(typed.serializeStateSince(next)).isNull("properties"));
+    }
+
+    /**
+     * Every property is written once per round by one of several threads
+     * while the changes are polled. A change that is stamped but not yet
+     * visible when the revision is taken would never be polled again.
+     */
+    @Test
+    public void testNoUpdateLostWhilePolling() throws Exception {
+        int propertyCount = 400;
+        int writerCount = 4;
+        List<GDPropertyMetadata> metadata = new ArrayList<>();
+        for (int i = 0; i < propertyCount; i++) {
+            metadata.add(new ParameterSchema.Builder("p" + i, Integer.class).build());
+        }
+        GDPropertiesImpl concurrent = new GDPropertiesImpl(metadata);
+        Map<String, Integer> polled = new HashMap<>();
+        long revision = 0;
+        for (int round = 1; round <= 50; round++) {
+            final int value = round;
+            List<Thread> writers = new ArrayList<>();
+            for (int w = 0; w < writerCount; w++) {
+                final int first = w;
+                Thread writer = new Thread(() -> {
+                    for (int i = first; i < propertyCount; i += writerCount) {
+                        concurrent.setIntValue("p" + i, value);
+                    }
+                });
+                writers.add(writer);
+                writer.start();
+            }
+            boolean writing = true;
+            while (writing) {
+                writing = writers.stream().anyMatch(Thread::isAlive);
+                revision = poll(concurrent, revision, polled);
+            }
+            for (int i = 0; i < propertyCount; i++) {
+                assertEquals("p" + i + " in round " + round, value, (int) polled.get("p" + i));
+            }
+        }
+    }
+
+    private static long poll(GDPropertiesImpl properties, long revision, Map<String, Integer> polled) throws JSONException {
+        JSONObject state = new JSONObject(properties.serializeStateSince(revision));
+        JSONObject changed = state.optJSONObject("properties");
+        if (changed != null) {
+            for (String name : JSONObject.getNames(changed)) {
+                polled.put(name, changed.getJSONObject(name).getInt("currentValue"));
+            }
+        }
+        return state.getLong("revision");
+    }
+
+    @Test
+    public void testTypedValues() {
+        GDPropertiesImpl typed = createTypedProperties();
+        typed.setIntValue("iProp", 4711);
+        typed.setLongValue("lProp", 1L << 40);
+        typed.setFloatValue("fProp", 2.5f);
+        typed.setStringValue("sProp", "b");
+
+        assertEquals(4711, typed.getIntValue("iProp"));
+        assertEquals(1L << 40, typed.getLongValue("lProp"));
+        assertEquals(2.5f, typed.getFloatValue("fProp"), 0);
+        assertEquals("b", typed.getStringValue("sProp"));
+        assertEquals("4711", typed.getStringValue("iProp"));
+        assertEquals(4711, typed.getProperties().get("iProp").currentValue);
+        assertEquals(1L << 40, typed.getProperties().get("lProp").currentValue);
+
+        typed.setStringValue("iProp", "17");
+        assertEquals(17, typed.getIntValue("iProp"));
+        assertEquals(17, typed.getProperties().get("iProp").currentValue);
+        assertTrue(typed.getLongValue(GDPropertiesImpl.LAST_UPDATE_TIME) > 0);
+    }
+
+    @Test
+    public void testTypedValueFromStringOrNull() {
+        GDPropertiesImpl typed = createTypedProperties();
+        int defaultInt = typed.getIntValue("iProp");
+        typed.setValue("iProp", "12.7");
+        typed.setValue("fProp", "0.5");
+        assertEquals(12, typed.getIntValue("iProp"));
+        assertEquals(0.5f, typed.getFloatValue("fProp"), 0);
+
+        typed.setValue("iProp", null);
+        typed.setValue("sProp", null);
+        assertEquals(defaultInt, typed.getIntValue("iProp"));
+        assertEquals("a", typed.getStringValue("sProp"));
+    }
+
+    @Test(expected = GDError.class)
+    public void testTypedValueAboveMax() {
+        createTypedProperties().setIntValue("iProp", 100001);
+    }
+
+    @Test(expected = GDError.class)
+    public void testTypedValueInvalid() {
+        createTypedProperties().setStringValue("sProp", "c");
+    }
+
+    /**
+     * Typed reads and writes of numeric properties should not allocate.
+     */
+    @Test
+    public void testTypedAccessDoesNotAllocate() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        GDPropertiesImpl typed = createTypedProperties();
+        long threadId = Thread.currentThread().getId();
+
+        accessTyped(typed, 200000);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        long sum = accessTyped(typed, 100000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        assertTrue("Typed access allocated " + allocated + " bytes", allocated < 1024);
+        assertTrue(sum != 0);
+    }
+
+    static long accessTyped(GDPropertiesImpl typed, int iterations) {
+        long sum = 0;
+        for (int i = 0; i < iterations; i++) {
+            int value = 1000 + (i & 0xffff);
+            typed.setIntValue("iProp", value);
+            typed.setLongValue("lProp", value);
+            typed.setFloatValue("fProp", value);
+            sum += typed.getIntValue("iProp") + typed.getLongValue("lProp") + (long) typed.getFloatValue("fProp");
+        }
+        return sum;
+    }
+
+    private static GDPropertiesImpl createTypedProperties() {
+        return new GDPropertiesImpl(Arrays.asList(
+                new ParameterSchema.Builder("iProp", Integer.class).setMinValue("0").setMaxValue("100000").build(),
+                new ParameterSchema.Builder("lProp", Long.class).build(),
+                new ParameterSchema.Builder("fProp", Float.class).build(),
+                new ParameterSchema.Builder("sProp", String.class).setDefault("a").setValidValues("a", "b").build(),
+                new ParameterSchema.Builder(GDPropertiesImpl.LAST_UPDATE_TIME, Long.class).build()));
+    }
 }
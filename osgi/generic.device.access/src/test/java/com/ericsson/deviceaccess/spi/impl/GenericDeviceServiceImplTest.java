@@ -37,6 +37,7 @@ package com.ericsson.deviceaccess.spi.impl;
 import com.ericsson.common.util.serialization.Format;
 import com.ericsson.deviceaccess.api.genericdevice.GDAction;
 import com.ericsson.deviceaccess.api.genericdevice.GDException;
+import com.ericsson.deviceaccess.api.genericdevice.GDProperties;
 import com.ericsson.deviceaccess.api.genericdevice.GDPropertyMetadata;
 import com.ericsson.deviceaccess.spi.event.EventManager;
 import com.ericsson.deviceaccess.spi.genericdevice.GDActivator;
@@ -44,14 +45,19 @@ import com.ericsson.deviceaccess.spi.impl.genericdevice.GDPropertiesImpl;
 import com.ericsson.deviceaccess.spi.impl.genericdevice.GDServiceImpl;
 import com.ericsson.research.common.testutil.ReflectionTestUtil;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 import org.jmock.Expectations;
 import org.jmock.integration.junit4.JUnit4Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
@@ -234,6 +240,90 @@ public class GenericDeviceServiceImplTest {
         context.assertIsSatisfied();
     }
 
+    @Test
+    public void testBatchedEvents() {
+        context.checking(new Expectations() {
+            {
+                oneOf(device).notifyEvent(with("srv"), with(new HashMap() {
+                    {
+                        put("fProp", 23.0f);
+                        put("iProp", 24);
+                        put("sProp", "apa");
+                    }
+                }));
+            }
+        });
+
+        props.beginUpdate();
+        props.setFloatValue("fProp", 23);
+        props.beginUpdate();
+        props.setIntValue("iProp", 23);
+        props.setIntValue("iProp", 24);
+        props.commitUpdate();
+        props.setStringValue("sProp", "apa");
+        // Unchanged value is not part of the event
+        props.setFloatValue("fProp", 23);
+        props.commitUpdate();
+
+        context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testBatchBelongsToThread() throws InterruptedException {
+        context.checking(new Expectations() {
+            {
+                oneOf(device).notifyEvent(with("srv"), with(new HashMap() {
+                    {
+                        put("fProp", 23.0f);
+                    }
+                }));
+            }
+        });
+        final AtomicReference<Exception> otherResult = new AtomicReference<>();
+
+        props.beginUpdate();
+        props.setFloatValue("fProp", 23);
+        // The batch is not visible to other threads
+        Thread other = new Thread(() -> {
+            try {
+                props.commitUpdate();
+            } catch (IllegalStateException e) {
+                otherResult.set(e);
+            }
+        });
+        other.start();
+        other.join();
+        props.commitUpdate();
+
+        assertNotNull(otherResult.get());
+        context.assertIsSatisfied();
+    }
+
+    @Test
+    public void testRemovedPropertySince() throws JSONException {
+        context.checking(new Expectations() {
+            {
+                oneOf(device).notifyEventRemoved("srv", "sProp");
+            }
+        });
+        long revision = props.getRevision();
+
+        props.removeDynamicProperty(metadataString);
+
+        GDProperties.Changes changes = props.getChangesSince(revision);
+        assertEquals(Collections.singleton("sProp"), changes.removed);
+        assertTrue(changes.properties.isEmpty());
+        JSONObject state = new JSONObject(props.serializeStateSince(revision));
+        assertEquals("sProp", state.getJSONArray("removed").getString(0));
+        assertTrue(props.getChangesSince(changes.revision).removed.isEmpty());
+        context.assertIsSatisfied();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testCommitWithoutBegin() {
+        props.commitUpdate();
+    }
+
     @Test
     public void testSerialize() throws GDException, JSONException {
         context.checking(new Expectations() {
@@ -0,0 +1,110 @@
+/*
+ * Copyright Ericsson AB 2011-2014. All Rights Reserved.
+ *
+ * The contents of this file are subject to the Lesser GNU Public License,
+ *  (the "License"), either version 2.1 of the License, or
+ * (at your option) any later version.; you may not use this file except in
+ * compliance with the License. You should have received a copy of the
+ * License along with this software. If not, it can be
+ * retrieved online at https://www.gnu.org/licenses/lgpl.html. Moreover
+ * it could also be requested from Free Software Foundation, Inc.,
+ * 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301, USA.
+ *
+ * BECAUSE THE LIBRARY IS LICENSED FREE OF CHARGE, THERE IS NO
+ * WARRANTY FOR THE LIBRARY, TO THE EXTENT PERMITTED BY APPLICABLE LAW.
+ * EXCEPT WHEN OTHERWISE STATED IN WRITING THE COPYRIGHT HOLDERS AND/OR
+ * OTHER PARTIES PROVIDE THE LIBRARY "AS IS" WITHOUT WARRANTY OF ANY KIND,
+
+ * EITHER EXPRESSED OR IMPLIED, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE. THE ENTIRE RISK AS TO THE QUALITY AND PERFORMANCE OF THE
+ * LIBRARY IS WITH YOU. SHOULD THE LIBRARY PROVE DEFECTIVE,
+ * YOU ASSUME THE COST OF ALL NECESSARY SERVICING, REPAIR OR CORRECTION.
+ *
+ * IN NO EVENT UNLESS REQUIRED BY APPLICABLE LAW OR AGREED TO IN WRITING
+ * WILL ANY COPYRIGHT HOLDER, OR ANY OTHER PARTY WHO MAY MODIFY AND/OR
+ * REDISTRIBUTE THE LIBRARY AS PERMITTED ABOVE, BE LIABLE TO YOU FOR
+ * DAMAGES, INCLUDING ANY GENERAL, SPECIAL, INCIDENTAL OR CONSEQUENTIAL
+ * DAMAGES ARISING OUT OF THE USE OR INABILITY TO USE THE LIBRARY
+ * (INCLUDING BUT NOT LIMITED TO LOSS OF DATA OR DATA BEING RENDERED
+ * INACCURATE OR LOSSES SUSTAINED BY YOU OR THIRD PARTIES OR A FAILURE
+ * OF THE LIBRARY TO OPERATE WITH ANY OTHER SOFTWARE), EVEN IF SUCH
+ * HOLDER OR OTHER PARTY HAS BEEN ADVISED OF THE POSSIBILITY OF SUCH DAMAGES.
+ *
+ */
+package com.ericsson.deviceaccess.spi.impl;
+
+import com.ericsson.deviceaccess.spi.genericdevice.GDError;
+import com.ericsson.deviceaccess.spi.schema.ParameterSchema;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * MetadataValidator Tester.
+ */
+public class MetadataValidatorTest {
+
+    private final ParameterSchema intSchema = new ParameterSchema.Builder("int", Integer.class)
+            .setMinValue("-10").setMaxValue("10").build();
+    private final ParameterSchema stringSchema = new ParameterSchema.Builder("string", String.class)
+            .setDefault("b").setValidValues("c", "b", "a").build();
+
+    @Test
+    public void testValidValues() {
+        MetadataValidator validator = new MetadataValidator(stringSchema);
+        validator.verify("string", "a");
+        validator.verify("string", "c");
+        assertArrayEquals(new String[]{"a", "b", "c"}, stringSchema.getValidValues());
+    }
+
+    @Test(expected = GDError.class)
+    public void testInvalidValue() {
+        new MetadataValidator(stringSchema).verify("string", "d");
+    }
+
+    @Test
+    public void testRange() {
+        MetadataValidator validator = new MetadataValidator(intSchema);
+        validator.verify("int", 10);
+        validator.verify("int", "-10");
+        validator.checkRange("int", -10L);
+    }
+
+    @Test
+    public void testParsedValueReturned() {
+        MetadataValidator validator = new MetadataValidator(intSchema);
+        assertEquals(7, validator.verify("int", 7).intValue());
+        assertEquals(-3, validator.verify("int", "-3").intValue());
+        assertNull(validator.verify("int", null));
+        assertNull(new MetadataValidator(stringSchema).verify("string", "a"));
+        assertNull(new MetadataValidator(stringSchema).verify("string", null));
+    }
+
+    @Test(expected = GDError.class)
+    public void testAboveMax() {
+        new MetadataValidator(intSchema).checkRange("int", 11L);
+    }
+
+    @Test(expected = GDError.class)
+    public void testStringBelowMin() {
+        new MetadataValidator(intSchema).verify("int", "-10.5");
+    }
+
+    @Test(expected = GDError.class)
+    public void testNotParsable() {
+        new MetadataValidator(intSchema).verify("int", "ten");
+    }
+
+    @Test(expected = GDError.class)
+    public void testWrongType() {
+        new MetadataValidator(intSchema).verify("int", 1L);
+    }
+
+    @Test
+    public void testValidatorIsCached() {
+        assertSame(MetadataUtil.INSTANCE.validator(intSchema), MetadataUtil.INSTANCE.validator(intSchema));
+    }
+}
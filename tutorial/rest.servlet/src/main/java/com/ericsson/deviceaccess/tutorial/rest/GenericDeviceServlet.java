@@ -204,7 +204,7 @@ public class GenericDeviceServlet extends NanoHTTPD implements BundleActivator,
                     .stream()
                     .map(ref -> context.getService(ref))
                     .collect(Collectors.toMap(dev -> dev.getId(), Function.identity()));
-            return SerializationUtil.execute(Format.JSON, mapper -> mapper.writerWithView(View.ID.Ignore.class).writeValueAsString(devices));
+            return SerializationUtil.serialize(Format.JSON, View.ID.Ignore.class, devices);
         } catch (InvalidSyntaxException | SerializationException e) {
             logger.error(e);
         }